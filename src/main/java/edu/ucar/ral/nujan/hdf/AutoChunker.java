@@ -0,0 +1,202 @@
+// The MIT License
+// 
+// Copyright (c) 2010 University Corporation for Atmospheric Research
+// 
+// Permission is hereby granted, free of charge, to any person
+// obtaining a copy of this software and associated documentation
+// files (the "Software"), to deal in the Software without
+// restriction, including without limitation the rights to use,
+// copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following
+// conditions:
+// 
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+// 
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+// OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT.  IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+// HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+// WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+// FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+
+
+
+package edu.ucar.ral.nujan.hdf;
+
+import java.util.Arrays;
+
+
+/**
+ * Chooses chunk shapes for variables whose specChunkDims
+ * contain HdfGroup.CHUNK_AUTO or HdfGroup.CHUNK_AUTO_LONG.
+ * <p>
+ * The chunk is sized to hold about targetByte bytes.
+ * Positive lens in specChunkDims are kept as given.
+ * Then each CHUNK_AUTO_LONG dimension, in order, gets as much
+ * of the remaining target as its len allows, which suits
+ * reading a long time series at one point.
+ * Then the CHUNK_AUTO dimensions share the rest as evenly
+ * as possible: a dimension shorter than its share is taken
+ * whole, and the others get equal lens.
+ * An unlimited dimension 0 marked CHUNK_AUTO gets whatever is left,
+ * at least 1 record, as netCDF-4 does.
+ * <p>
+ * Finally each chosen len is evened out so the last chunk
+ * in a dimension is not much shorter than the others:
+ * for example a dimension of 100 with a chosen len of 60 gets
+ * two chunks of 50, not one of 60 and one of 40.
+ */
+
+class AutoChunker {
+
+
+/**
+ * Slack when comparing a computed share to a dimension len,
+ * so a share that should be exactly 64 isn't 63.99999.
+ */
+static final double EPSILON = 1e-6;
+
+
+/**
+ * Returns the chunk lens for a variable, resolving any
+ * CHUNK_AUTO and CHUNK_AUTO_LONG values in specChunkDims.
+ *
+ * @param specChunkDims  The chunk lens requested.
+ * @param varDims  The variable dimensions.  If isUnlimited,
+ *    varDims[0] is ignored.
+ * @param isUnlimited  True if dimension 0 is unlimited.
+ * @param elementLen  The len in bytes of one element.
+ * @param targetByte  The desired chunk len in bytes.
+ */
+
+static int[] chooseChunkDims(
+  int[] specChunkDims,
+  int[] varDims,
+  boolean isUnlimited,
+  int elementLen,
+  long targetByte)
+throws HdfException
+{
+  int rank = specChunkDims.length;
+  if (varDims == null || varDims.length != rank)
+    throwerr("specChunkDims len != varDims len");
+  int[] chunkDims = Arrays.copyOf( specChunkDims, rank);
+
+  // The target num elements not yet given to any dimension.
+  double budget = Math.max( 1, targetByte / (double) Math.max( 1, elementLen));
+
+  // Fixed lens
+  for (int ii = 0; ii < rank; ii++) {
+    int spec = specChunkDims[ii];
+    if (spec > 0) budget /= spec;
+    else if (spec != HdfGroup.CHUNK_AUTO && spec != HdfGroup.CHUNK_AUTO_LONG)
+      throwerr("invalid specChunkDims: %s", HdfUtil.formatInts( specChunkDims));
+  }
+  budget = Math.max( 1, budget);
+
+  // Long dimensions, in order
+  for (int ii = 0; ii < rank; ii++) {
+    if (specChunkDims[ii] == HdfGroup.CHUNK_AUTO_LONG) {
+      int clen = (int) Math.min( Integer.MAX_VALUE, budget + EPSILON);
+      if (! (isUnlimited && ii == 0))
+        clen = Math.min( clen, varDims[ii]);
+      chunkDims[ii] = Math.max( 1, clen);
+      budget = Math.max( 1, budget / chunkDims[ii]);
+    }
+  }
+
+  // Balanced dimensions: repeatedly take whole the dimensions
+  // shorter than an equal share, until the rest all get the share.
+  boolean[] isOpen = new boolean[rank];
+  int numOpen = 0;
+  for (int ii = 0; ii < rank; ii++) {
+    if (specChunkDims[ii] == HdfGroup.CHUNK_AUTO
+      && ! (isUnlimited && ii == 0))
+    {
+      isOpen[ii] = true;
+      numOpen++;
+    }
+  }
+  while (numOpen > 0) {
+    double share = Math.pow( budget, 1.0 / numOpen) + EPSILON;
+    boolean isTaken = false;
+    for (int ii = 0; ii < rank; ii++) {
+      if (isOpen[ii] && varDims[ii] <= share) {
+        chunkDims[ii] = Math.max( 1, varDims[ii]);
+        budget = Math.max( 1, budget / chunkDims[ii]);
+        isOpen[ii] = false;
+        numOpen--;
+        isTaken = true;
+      }
+    }
+    if (! isTaken) {
+      for (int ii = 0; ii < rank; ii++) {
+        if (isOpen[ii]) {
+          chunkDims[ii] = Math.max( 1, (int) share);
+          budget = Math.max( 1, budget / chunkDims[ii]);
+          isOpen[ii] = false;
+        }
+      }
+      numOpen = 0;
+    }
+  }
+
+  // An unlimited dimension takes what is left.
+  if (isUnlimited && specChunkDims[0] == HdfGroup.CHUNK_AUTO) {
+    chunkDims[0] = (int) Math.max( 1,
+      Math.min( Integer.MAX_VALUE, budget + EPSILON));
+  }
+
+  // Even out the chunks in each chosen dimension.
+  for (int ii = 0; ii < rank; ii++) {
+    if (specChunkDims[ii] < 0 && ! (isUnlimited && ii == 0)
+      && chunkDims[ii] < varDims[ii])
+    {
+      int numChunk = (varDims[ii] + chunkDims[ii] - 1) / chunkDims[ii];
+      chunkDims[ii] = (varDims[ii] + numChunk - 1) / numChunk;
+    }
+  }
+  return chunkDims;
+}
+
+
+
+/**
+ * Returns specChunkDims for a variable of the given rank
+ * matching one of the HdfGroup.ACCESS_* hints.
+ */
+
+static int[] getAutoSpec(
+  int rank,
+  int accessHint)
+throws HdfException
+{
+  if (rank <= 0) throwerr("invalid rank: %d", rank);
+  int[] spec = new int[rank];
+  Arrays.fill( spec, HdfGroup.CHUNK_AUTO);
+  if (accessHint == HdfGroup.ACCESS_TIME_SERIES)
+    spec[0] = HdfGroup.CHUNK_AUTO_LONG;
+  else if (accessHint == HdfGroup.ACCESS_SPATIAL) {
+    if (rank > 1) spec[0] = 1;
+  }
+  else if (accessHint != HdfGroup.ACCESS_BALANCED)
+    throwerr("invalid accessHint: %d", accessHint);
+  return spec;
+}
+
+
+
+
+static void throwerr( String msg, Object... args)
+throws HdfException
+{
+  throw new HdfException( String.format( msg, args));
+}
+
+
+
+} // end class
@@ -118,7 +118,7 @@ throws HdfException
   hdfFile.indent++;
 
   fmtBuf.alignPos( "setFormatEntry for " + blkName, 8);
-  blkPosition = fmtBuf.getPos();
+  blkPosition = fmtBuf.getAddr();
   if (hdfFile.bugs >= 5)
     prtf( hdfFile.formatName("setFormatEntry: " + blkName, fmtBuf.getPos()));
 }
@@ -32,19 +32,26 @@ import java.util.ArrayList;
 /**
  * Represents a Btree node, required for chunked data.
  * <p>
- * Rather than have a full tree structure, we just use a single
- * leaf node that may be huge.  Performance tests have shown
- * this performs as well as the hierarchical tree structure.
- *
  * BtreeNodes are used in only one place:<ul>
- *   <li> MsgLayout uses a BtreeNode
- *     to point to the raw data chunks.
- *     Theoretically we could have a whole tree of chunks, but
- *     we always have exactly 1 chunk.  In general this is like
- *     the contiguous format, but we must use chunked since
- *     HDF5 compression requires chunked format.
+ *   <li> MsgLayout uses a BtreeNode, the root of a version 1
+ *     chunk Btree, to point to the raw data chunks.
  * </ul>
- *
+ * <p>
+ * The root is created by MsgLayout.  On the first format pass
+ * the root builds the rest of the tree (see {@link #buildTree}):
+ * leaf nodes (nodeLevel == 0) point to the chunks, and internal
+ * nodes (nodeLevel &gt; 0) point to the nodes one level down.
+ * Each node holds at most 2*K entries, where K is
+ * hdfFile.btreeChunkK, written as storageK by MsgKvalue.
+ * Nodes on the same level are linked by their sibling pointers.
+ * If a variable has no more than 2*K chunks, the root is
+ * the single leaf.
+ * <p>
+ * For sparse variables (see HdfGroup.isSparse) some chunks may
+ * never be written.  The tree is built over all chunks on pass 1,
+ * and on pass 2 {@link #pruneTree} leaves out the unwritten chunks
+ * and any nodes left empty.  The empty nodes are still formatted,
+ * unreferenced, so the block positions found on pass 1 stay valid.
  */
 
 class BtreeNode extends BaseBlk {
@@ -53,8 +60,6 @@ class BtreeNode extends BaseBlk {
 /** The group containing the chunks to be represented by this BtreeNode */
 HdfGroup hdfGroup;
 
-ArrayList<byte[]> keyList;
-
 int compressionLevel;
 
 final int signa = 'T';       // "TREE"
@@ -62,22 +67,53 @@ final int signb = 'R';
 final int signc = 'E';
 final int signd = 'E';
 
+/**
+ * 0 for a leaf node, whose entries are chunks;
+ * else the height above the leaves, whose entries are subNodes.
+ */
 int nodeLevel;
 
+/**
+ * If nodeLevel == 0, the chunks pointed to by this node.
+ */
+HdfChunk[] leafChunks;
 
+/**
+ * If nodeLevel &gt; 0, the nodes one level down.
+ */
+BtreeNode[] subNodes;
 
+/**
+ * The entries actually formatted: the same as leafChunks and
+ * subNodes, except after pruneTree leaves out unwritten chunks
+ * and empty nodes.
+ */
+HdfChunk[] liveChunks;
+BtreeNode[] liveNodes;
 
-final byte[] lowKey = new byte[5];
+/**
+ * Neighbors on the same level, or null.
+ */
+BtreeNode leftSibling;
+BtreeNode rightSibling;
 
-final byte[] highKey = new byte[] {
-  (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff};
+/**
+ * True once the entries are set: by buildTree for the root,
+ * and at creation for the other nodes.
+ */
+boolean isBuilt = false;
+
+/**
+ * True for the root node, the one referenced by MsgLayout.
+ */
+boolean isRoot = false;
 
 
 
 
 
 /**
- * Constructor chunked data trees.
+ * Constructor for the root node of a chunked data tree.
  *
  * @param compressionLevel Zip compression level:
  *        0 is uncompressed; 1 - 9 are increasing compression.
@@ -104,6 +140,7 @@ BtreeNode(
 public String toString() {
   String res = super.toString();
   res += "  nodeLevel: " + nodeLevel;
+  res += "  numEntry: " + getNumEntry();
   res += "  group: \"" + hdfGroup.groupName + "\"";
   return res;
 }
@@ -112,10 +149,202 @@ public String toString() {
 
 
 
+/**
+ * Returns the number of entries (chunks or subNodes) in this node.
+ */
+
+int getNumEntry()
+{
+  int ires = 0;
+  if (nodeLevel == 0) {
+    if (liveChunks != null) ires = liveChunks.length;
+  }
+  else ires = liveNodes.length;
+  return ires;
+}
+
+
+
+
+/**
+ * Returns the first (lowest) chunk in the subtree headed by this node,
+ * or null if the tree is empty.
+ * The key for this node in the parent is the key of this chunk.
+ */
+
+HdfChunk getFirstChunk()
+{
+  HdfChunk res = null;
+  if (nodeLevel == 0) {
+    if (liveChunks != null && liveChunks.length > 0) res = liveChunks[0];
+  }
+  else if (liveNodes.length > 0) res = liveNodes[0].getFirstChunk();
+  return res;
+}
+
+
+
+
+
+/**
+ * Builds the tree below this root node.
+ * <p>
+ * The chunks are in hdfGroup.hdfChunks, which is already in
+ * the Btree key order: the last dimension varies fastest.
+ * Each level is split into the fewest nodes of at most 2*K entries,
+ * with the entries spread evenly among them.
+ */
+
+void buildTree()
+throws HdfException
+{
+  int twoK = 2 * hdfFile.btreeChunkK;
+  HdfChunk[] chunks = hdfGroup.hdfChunks;
+  int numChunk = chunks.length;
+
+  if (numChunk <= twoK) {
+    nodeLevel = 0;
+    leafChunks = chunks;
+    liveChunks = leafChunks;
+  }
+  else {
+    // Make the leaves
+    int numNode = (numChunk + twoK - 1) / twoK;
+    BtreeNode[] levelNodes = new BtreeNode[ numNode];
+    for (int inode = 0; inode < numNode; inode++) {
+      int ibeg = (int) ((long) inode * numChunk / numNode);
+      int iend = (int) ((long) (inode + 1) * numChunk / numNode);
+      BtreeNode node = new BtreeNode( compressionLevel, hdfGroup, hdfFile);
+      node.nodeLevel = 0;
+      node.leafChunks = new HdfChunk[ iend - ibeg];
+      System.arraycopy( chunks, ibeg, node.leafChunks, 0, iend - ibeg);
+      node.liveChunks = node.leafChunks;
+      node.isBuilt = true;
+      levelNodes[inode] = node;
+    }
+    linkSiblings( levelNodes);
+
+    // Make internal levels until one node will hold them all
+    int level = 1;
+    while (levelNodes.length > twoK) {
+      int numSub = levelNodes.length;
+      numNode = (numSub + twoK - 1) / twoK;
+      BtreeNode[] upNodes = new BtreeNode[ numNode];
+      for (int inode = 0; inode < numNode; inode++) {
+        int ibeg = (int) ((long) inode * numSub / numNode);
+        int iend = (int) ((long) (inode + 1) * numSub / numNode);
+        BtreeNode node = new BtreeNode( compressionLevel, hdfGroup, hdfFile);
+        node.nodeLevel = level;
+        node.subNodes = new BtreeNode[ iend - ibeg];
+        System.arraycopy( levelNodes, ibeg, node.subNodes, 0, iend - ibeg);
+        node.liveNodes = node.subNodes;
+        node.isBuilt = true;
+        upNodes[inode] = node;
+      }
+      linkSiblings( upNodes);
+      levelNodes = upNodes;
+      level++;
+    }
+
+    // This node becomes the root
+    nodeLevel = level;
+    subNodes = levelNodes;
+    liveNodes = subNodes;
+  }
+  isRoot = true;
+  isBuilt = true;
+
+  if (hdfFile.bugs >= 2)
+    prtf("BtreeNode.buildTree: %s  numChunk: %d  twoK: %d  rootLevel: %d",
+      hdfGroup.getPath(), numChunk, twoK, nodeLevel);
+}
+
+
+
+
+/**
+ * Called on the root on pass 2 for sparse variables:
+ * sets liveChunks and liveNodes to leave out unwritten chunks
+ * and empty nodes, and relinks the siblings on each level
+ * to skip the empty nodes.
+ * The shape of the tree, and so the formatted length, is unchanged.
+ */
+
+void pruneTree()
+{
+  pruneSub();
+
+  // Relink siblings, level by level, using only live nodes
+  ArrayList<BtreeNode> levelList = new ArrayList<BtreeNode>();
+  levelList.add( this);
+  while (levelList.get(0).nodeLevel > 0) {
+    ArrayList<BtreeNode> downList = new ArrayList<BtreeNode>();
+    for (BtreeNode node : levelList) {
+      for (BtreeNode subNode : node.liveNodes) {
+        downList.add( subNode);
+      }
+    }
+    if (downList.size() == 0) break;
+    linkSiblings( downList.toArray( new BtreeNode[ downList.size()]));
+    levelList = downList;
+  }
+
+  if (hdfFile.bugs >= 2)
+    prtf("BtreeNode.pruneTree: %s  numEntry: %d",
+      hdfGroup.getPath(), getNumEntry());
+}
+
+
+
+
+/**
+ * Recursive part of pruneTree: sets liveChunks or liveNodes
+ * for the subtree headed by this node, and clears the siblings.
+ */
+
+void pruneSub()
+{
+  leftSibling = null;
+  rightSibling = null;
+  if (nodeLevel == 0) {
+    ArrayList<HdfChunk> liveList = new ArrayList<HdfChunk>();
+    for (HdfChunk chunk : leafChunks) {
+      if (chunk.chunkDataAddr != 0) liveList.add( chunk);
+    }
+    liveChunks = liveList.toArray( new HdfChunk[ liveList.size()]);
+  }
+  else {
+    ArrayList<BtreeNode> liveList = new ArrayList<BtreeNode>();
+    for (BtreeNode subNode : subNodes) {
+      subNode.pruneSub();
+      if (subNode.getNumEntry() > 0) liveList.add( subNode);
+    }
+    liveNodes = liveList.toArray( new BtreeNode[ liveList.size()]);
+  }
+}
+
+
+
+
+/**
+ * Sets the leftSibling and rightSibling links for a level of nodes.
+ */
+
+static void linkSiblings( BtreeNode[] nodes)
+{
+  for (int ii = 0; ii < nodes.length; ii++) {
+    if (ii > 0) nodes[ii].leftSibling = nodes[ii-1];
+    if (ii < nodes.length - 1) nodes[ii].rightSibling = nodes[ii+1];
+  }
+}
+
+
+
+
 
 /**
  * Formats this individual BaseBlk to fmtBuf;
- * calls addWork to add any referenced BaseBlks (subNode, subTable)
+ * calls addWork to add any referenced BaseBlks (subNodes)
  * to workList; extends abstract BaseBlk.
  *
  * <pre>
@@ -124,7 +353,7 @@ public String toString() {
  * (not for group names), but still requires fileVersion==1 Btrees
  * for data chunks.
  *
- * We must format all the entries to fill out the btree node,
+ * We must format all 2*K entries to fill out each btree node,
  * even if some are empty.
  * If the full table is not present, the HDF5 C software
  * may die when it tries to load the table and finds
@@ -203,8 +432,13 @@ throws HdfException
 {
   setFormatEntry( formatPass, true, fmtBuf); // BaseBlk: set blkPos, buf pos
 
-  int numChunk = hdfGroup.hdfChunks.length;
-  if (numChunk > hdfFile.maxNumBtreeKid) hdfFile.maxNumBtreeKid = numChunk;
+  if (! isBuilt) buildTree();         // we are the root, on pass 1
+  if (isRoot && formatPass == 2 && hdfGroup.isSparse()) pruneTree();
+
+  int twoK = 2 * hdfFile.btreeChunkK;
+  int numEntry = getNumEntry();
+  if (numEntry > twoK)
+    throwerr("BtreeNode: numEntry %d > 2*K == %d", numEntry, twoK);
 
   fmtBuf.putBufByte("BtreeNode: signa", signa);       // "TREE"
   fmtBuf.putBufByte("BtreeNode: signb", signb);
@@ -214,66 +448,90 @@ throws HdfException
   fmtBuf.putBufByte("BtreeNode: nodeType", 1);   // data node
   fmtBuf.putBufByte("BtreeNode: nodeLevel", nodeLevel);
 
-  fmtBuf.putBufShort("BtreeNode: numChunk", numChunk);
+  fmtBuf.putBufShort("BtreeNode: numEntry", numEntry);
 
-  fmtBuf.putBufLong("BtreeNode: leftSibling.pos",
-    HdfFileWriter.UNDEFINED_ADDR);
+  long siblingPos = HdfFileWriter.UNDEFINED_ADDR;
+  if (leftSibling != null) siblingPos = leftSibling.blkPosition;
+  fmtBuf.putBufLong("BtreeNode: leftSibling.pos", siblingPos);
 
-  fmtBuf.putBufLong("BtreeNode: rightSibling.pos",
-    HdfFileWriter.UNDEFINED_ADDR);
+  siblingPos = HdfFileWriter.UNDEFINED_ADDR;
+  if (rightSibling != null) siblingPos = rightSibling.blkPosition;
+  fmtBuf.putBufLong("BtreeNode: rightSibling.pos", siblingPos);
 
 
   // Only one format, since fileVersion==2 uses fileVersion==1 format.
 
-  // Turn on bit i to skip filter i.
-  int filterMask = 0;                      // use all filters
-
-  // For each chunk, format: chunkSize, key, diskAddr
-  for (int ichunk = 0; ichunk < hdfGroup.hdfChunks.length; ichunk++) {
-    HdfChunk chunk = hdfGroup.hdfChunks[ichunk];
-
-    fmtBuf.putBufInt("BtreeNode: chunkSize",
-      (int) chunk.chunkDataSize);     // xxx convert long to int
-    fmtBuf.putBufInt("BtreeNode: key filterMask", filterMask);
-    for (int ii = 0; ii < hdfGroup.varRank; ii++) {
-      fmtBuf.putBufLong("BtreeNode: key startIx", chunk.chunkStartIxs[ii]);
+  // For each entry, format: key, child pointer.
+  // The key of an internal entry is the key of the first chunk
+  // in that subtree.
+  for (int ient = 0; ient < numEntry; ient++) {
+    if (nodeLevel == 0) {
+      HdfChunk chunk = liveChunks[ient];
+      formatKey( chunk, fmtBuf);
+      fmtBuf.putBufLong("BtreeNode: chunk addr", chunk.chunkDataAddr);
+    }
+    else {
+      BtreeNode subNode = liveNodes[ient];
+      formatKey( subNode.getFirstChunk(), fmtBuf);
+      fmtBuf.putBufLong("BtreeNode: subNode addr", subNode.blkPosition);
     }
-    fmtBuf.putBufLong("BtreeNode: key eleLen offset", 0);
-
-    // Format the child pointer
-    fmtBuf.putBufLong("BtreeNode: chunk addr", chunk.chunkDataAddr);
   }
 
-  // Format the final key
-  fmtBuf.putBufInt("BtreeNode: final key chunkSize", 0);
-  fmtBuf.putBufInt("BtreeNode: final key filterMask", filterMask);
-  for (int jj = 0; jj < hdfGroup.varRank; jj++) {
-    fmtBuf.putBufLong("BtreeNode: final key dimOffset", hdfGroup.varDims[jj]);
+  // External blocks.  Includes any pruned, empty nodes,
+  // so all nodes keep their pass 1 positions.
+  if (nodeLevel > 0) {
+    for (BtreeNode subNode : subNodes) {
+      hdfFile.addWork("BtreeNode", subNode);
+    }
   }
-  fmtBuf.putBufLong("BtreeNode: final key eleLen offset",
-    hdfGroup.msgDataType.elementLen);
-
-  // We must format all the entries to fill out the btree node,
-  // even if some are empty.
-  // See doc at method start.
-  int safe_k_value = 128;     // >= HDF5_BTREE_CHUNK_IK_DEF == 32
-  for (int ii = 0; ii < 2 * safe_k_value - 1; ii++) {
-    // Format the fake child pointer
-    fmtBuf.putBufLong("BtreeNode: fill chunk addr", 0);
-
-    // Format the fill key
-    fmtBuf.putBufInt("BtreeNode: fill key chunkSize", 0);
-    fmtBuf.putBufInt("BtreeNode: fill key mask", 0);
-    for (int jj = 0; jj < hdfGroup.msgDataSpace.rank; jj++) {
-      fmtBuf.putBufLong("BtreeNode: fill key dimOffset", 0);
+
+  // Format the final key, which is the first key of our right
+  // sibling, or if none, a key beyond the end of the variable.
+  if (rightSibling != null) formatKey( rightSibling.getFirstChunk(), fmtBuf);
+  else {
+    fmtBuf.putBufInt("BtreeNode: final key chunkSize", 0);
+    fmtBuf.putBufInt("BtreeNode: final key filterMask", 0);
+    for (int jj = 0; jj < hdfGroup.varRank; jj++) {
+      fmtBuf.putBufLong("BtreeNode: final key dimOffset",
+        hdfGroup.varDims[jj]);
     }
-    fmtBuf.putBufLong("BtreeNode: fill key eleLen offset", 0);
-  } // for ii
+    fmtBuf.putBufLong("BtreeNode: final key eleLen offset",
+      hdfGroup.msgDataType.elementLen);
+  }
 
+  // Fill out the node to the full 2*K entries that HDF5
+  // expects.  See doc at method start.
+  int keyLen = 4 + 4 + 8 * (hdfGroup.varRank + 1);
+  fmtBuf.putBufFill("BtreeNode: fill entries", 0,
+    (twoK - numEntry) * (8 + keyLen));
 
   noteFormatExit( fmtBuf);         // BaseBlk: print debug
 } // end formatBuf
 
+
+
+
+/**
+ * Formats the key for one chunk: chunkSize, filterMask,
+ * startIxs, and a 0 offset for the element length dimension.
+ */
+
+void formatKey(
+  HdfChunk chunk,
+  HBuffer fmtBuf)
+throws HdfException
+{
+  // Bit i is on if filter i was skipped for this chunk.
+  fmtBuf.putBufInt("BtreeNode: chunkSize",
+    (int) chunk.chunkDataSize);     // xxx convert long to int
+  fmtBuf.putBufInt("BtreeNode: key filterMask", chunk.filterMask);
+  for (int ii = 0; ii < hdfGroup.varRank; ii++) {
+    fmtBuf.putBufLong("BtreeNode: key startIx", chunk.chunkStartIxs[ii]);
+  }
+  fmtBuf.putBufLong("BtreeNode: key eleLen offset", 0);
+}
+
+
 } // end class
 
 
@@ -0,0 +1,602 @@
+// The MIT License
+// 
+// Copyright (c) 2010 University Corporation for Atmospheric Research
+// 
+// Permission is hereby granted, free of charge, to any person
+// obtaining a copy of this software and associated documentation
+// files (the "Software"), to deal in the Software without
+// restriction, including without limitation the rights to use,
+// copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following
+// conditions:
+// 
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+// 
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+// OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT.  IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+// HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+// WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+// FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+
+
+package edu.ucar.ral.nujan.hdf;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+
+/**
+ * Assembles chunks from hyperslab writes that don't match
+ * the chunking of a variable, such as scan lines or tiles.
+ * <p>
+ * HdfGroup.writeHyperslab formats the caller's data to memory
+ * and calls scatter, which copies it into a staging buffer
+ * for each chunk it touches.  A staging buffer holds a whole
+ * chunk in HDF5 format, initialized to the fill value.
+ * As soon as all the elements of a chunk (clipped to the
+ * variable) are written, the chunk is removed from the cache
+ * and written by HdfGroup.writeDataSub, so it is quantized,
+ * filtered, compressed and written as any other chunk.
+ * <p>
+ * The staging buffers in memory are limited to maxByte.
+ * When the limit is reached, the least recently used partial
+ * chunks are spilled to a temporary file, and read back
+ * when they are next written.
+ * <p>
+ * close calls drain, which writes the remaining partial chunks,
+ * with the fill value in the elements never written,
+ * and deletes the spill file.
+ * <p>
+ * Used when HdfFileWriter.setAssemblyCache was called.
+ */
+
+class ChunkAssembler {
+
+
+/**
+ * Max total bytes of staging buffers in memory.
+ */
+long maxByte;
+
+/**
+ * Directory for the spill file, or null for the
+ * default temporary directory.
+ */
+String spillDir;
+
+/**
+ * The global owning HdfFileWriter.
+ */
+HdfFileWriter hdfFile;
+
+
+// The following are all guarded by this.
+
+/**
+ * The staged chunks in memory, least recently used first.
+ */
+private LinkedHashMap<HdfChunk,Stage> stageMap
+  = new LinkedHashMap<HdfChunk,Stage>( 16, 0.75f, true);
+
+/**
+ * The staged chunks spilled to spillChannel.
+ */
+private HashMap<HdfChunk,Stage> spillMap = new HashMap<HdfChunk,Stage>();
+
+/**
+ * The spill file, created on the first spill.
+ */
+private File spillFile = null;
+private RandomAccessFile spillRaf = null;
+private FileChannel spillChannel = null;
+private long spillFileLen = 0;
+
+/**
+ * Free regions of the spill file, by length.
+ * All chunks of a variable have the same length,
+ * so regions are reused without fragmentation.
+ */
+private HashMap<Integer,ArrayList<Long>> freeSpillMap
+  = new HashMap<Integer,ArrayList<Long>>();
+
+// Current state
+long numStageByte;         // total len of the staging buffers in memory
+
+// Statistics
+long maxStageByte;         // high water mark of numStageByte
+long numScatter;           // num calls to scatter
+long numChunk;             // num chunks completed and written
+long numPartialChunk;      // num partial chunks written by drain
+long numSpill;             // num staging buffers spilled
+long numReload;            // num staging buffers read back
+
+
+
+/**
+ * One partly written chunk.
+ */
+
+static class Stage {
+
+  HdfChunk chunk;
+  byte[] bytes;                  // the chunk, or null if spilled
+  int chunkLen;                  // bytes.length
+  long spillAddr;                // position in the spill file
+  BitSet doneBits;               // bit ii is set if element ii is written
+  long numDone;                  // num elements written
+  long numNeeded;                // num elements in the chunk,
+                                 //   clipped to the variable
+
+  Stage(
+    HdfChunk chunk,
+    int chunkLen,
+    long numNeeded)
+  {
+    this.chunk = chunk;
+    this.chunkLen = chunkLen;
+    this.numNeeded = numNeeded;
+    this.doneBits = new BitSet();
+  }
+} // end inner class Stage
+
+
+
+
+
+/**
+ * @param maxByte  Max total bytes of staging buffers in memory.
+ * @param spillDir  Directory for the spill file, or null
+ *    for the default temporary directory.
+ * @param hdfFile The global owning HdfFileWriter.
+ */
+
+ChunkAssembler(
+  long maxByte,
+  String spillDir,
+  HdfFileWriter hdfFile)
+throws HdfException
+{
+  if (maxByte <= 0) throwerr("invalid maxByte: %d", maxByte);
+  this.maxByte = maxByte;
+  this.spillDir = spillDir;
+  this.hdfFile = hdfFile;
+  if (hdfFile.bugs >= 1)
+    prtf("ChunkAssembler: maxByte: %d  spillDir: %s", maxByte, spillDir);
+}
+
+
+
+
+public synchronized String toString() {
+  String res = "maxByte: " + maxByte
+    + "  numStaged: " + stageMap.size()
+    + "  numSpilled: " + spillMap.size()
+    + "  numStageByte: " + numStageByte
+    + "  maxStageByte: " + maxStageByte
+    + "  numScatter: " + numScatter
+    + "  numChunk: " + numChunk
+    + "  numPartialChunk: " + numPartialChunk
+    + "  numSpill: " + numSpill
+    + "  numReload: " + numReload
+    + "  spillFileLen: " + spillFileLen;
+  return res;
+}
+
+
+
+
+
+/**
+ * Copies one hyperslab into the staging buffers of the
+ * chunks it touches, and writes the chunks it completes.
+ * The hyperslabs written to a variable must not overlap:
+ * each chunk records which elements have been written, and an
+ * overlapping hyperslab is rejected before anything is copied.
+ *
+ * @param grp  The variable.  Must be chunked,
+ *    and not have an unlimited dimension.
+ * @param startIxs  The indices of the first element of the hyperslab.
+ * @param dataDims  The dimensions of the hyperslab.
+ * @param slabBytes  The hyperslab in HDF5 format, in row major order.
+ */
+
+void scatter(
+  HdfGroup grp,
+  int[] startIxs,
+  int[] dataDims,
+  byte[] slabBytes)
+throws HdfException
+{
+  int rank = grp.varRank;
+  int[] chunkDims = grp.specChunkDims;
+  int eleLen = grp.elementLen;
+
+  // Chunk start indices of the first and last chunks touched
+  int[] firstIxs = new int[rank];
+  int[] lastIxs = new int[rank];
+  for (int ii = 0; ii < rank; ii++) {
+    firstIxs[ii] = (startIxs[ii] / chunkDims[ii]) * chunkDims[ii];
+    lastIxs[ii] = ((startIxs[ii] + dataDims[ii] - 1) / chunkDims[ii])
+      * chunkDims[ii];
+  }
+
+  ArrayList<Stage> doneList = new ArrayList<Stage>();
+  synchronized (this) {
+    numScatter++;
+    // Pass 0 checks every run of every chunk touched, so a
+    // rejected hyperslab leaves the staged chunks unchanged.
+    // Pass 1 copies the runs.
+    int[] loIxs = new int[rank];
+    int[] hiIxs = new int[rank];
+    for (int ipass = 0; ipass < 2; ipass++) {
+      int[] chunkIxs = Arrays.copyOf( firstIxs, rank);
+      while (true) {
+        Stage stage;
+        if (ipass == 0) stage = findStage( grp, chunkIxs);
+        else stage = getStage( grp, chunkIxs);
+
+        // Intersection of the hyperslab and the chunk
+        long numEle = 1;
+        for (int ii = 0; ii < rank; ii++) {
+          loIxs[ii] = Math.max( startIxs[ii], chunkIxs[ii]);
+          hiIxs[ii] = Math.min( startIxs[ii] + dataDims[ii],
+            chunkIxs[ii] + chunkDims[ii]);
+          numEle *= hiIxs[ii] - loIxs[ii];
+        }
+
+        // Check or copy runs along the last dimension.
+        // In pass 0 a chunk not yet staged has nothing to check.
+        int runEle = hiIxs[rank-1] - loIxs[rank-1];
+        int[] ixs = Arrays.copyOf( loIxs, rank);
+        while (stage != null) {
+          long srcOff = 0;
+          int dstOff = 0;
+          for (int ii = 0; ii < rank; ii++) {
+            srcOff = srcOff * dataDims[ii] + ixs[ii] - startIxs[ii];
+            dstOff = dstOff * chunkDims[ii] + ixs[ii] - chunkIxs[ii];
+          }
+          if (ipass == 0) {
+            int setIx = stage.doneBits.nextSetBit( dstOff);
+            if (setIx >= 0 && setIx < dstOff + runEle)
+              throwerr("hyperslabs overlap.  path: %s  chunk startIxs: %s",
+                grp.getPath(), HdfUtil.formatInts( chunkIxs));
+          }
+          else {
+            stage.doneBits.set( dstOff, dstOff + runEle);
+            System.arraycopy( slabBytes, (int) (srcOff * eleLen),
+              stage.bytes, dstOff * eleLen, runEle * eleLen);
+          }
+          int ii = rank - 2;
+          while (ii >= 0 && ixs[ii] == hiIxs[ii] - 1) {
+            ixs[ii] = loIxs[ii];
+            ii--;
+          }
+          if (ii < 0) break;
+          ixs[ii]++;
+        }
+
+        if (ipass == 1) {
+          stage.numDone += numEle;
+          if (stage.numDone == stage.numNeeded) {
+            stageMap.remove( stage.chunk);
+            numStageByte -= stage.chunkLen;
+            doneList.add( stage);
+          }
+        }
+
+        // Next chunk
+        int ii = rank - 1;
+        while (ii >= 0 && chunkIxs[ii] == lastIxs[ii]) {
+          chunkIxs[ii] = firstIxs[ii];
+          ii--;
+        }
+        if (ii < 0) break;
+        chunkIxs[ii] += chunkDims[ii];
+      } // while more chunks
+    } // for ipass
+  } // end synchronized
+
+  // Write the completed chunks without holding the lock,
+  // so other threads may scatter meanwhile.
+  for (Stage stage : doneList) {
+    writeStage( stage);
+  }
+  if (hdfFile.bugs >= 2)
+    prtf("ChunkAssembler.scatter: %s  startIxs: %s  dataDims: %s"
+      + "  numDone: %d", grp.getPath(), HdfUtil.formatInts( startIxs),
+      HdfUtil.formatInts( dataDims), doneList.size());
+}
+
+
+
+
+
+/**
+ * Returns the staging buffer, in memory or spilled, for the chunk
+ * of grp starting at chunkIxs, or null if it isn't staged.
+ * Throws if the chunk isn't staged but has been claimed:
+ * written by writeData, or completed by earlier hyperslabs.
+ * Doesn't read back spilled buffers or spill others, though
+ * a buffer in memory is marked recently used, as getStage would.
+ * Caller must hold the lock on this.
+ */
+
+private Stage findStage(
+  HdfGroup grp,
+  int[] chunkIxs)
+throws HdfException
+{
+  HdfChunk chunk = grp.hdfChunks[ grp.calcChunkIx( chunkIxs)];
+  Stage stage = stageMap.get( chunk);
+  if (stage == null) stage = spillMap.get( chunk);
+  if (stage == null) {
+    synchronized (chunk) {
+      if (chunk.chunkDataAddr != 0 || chunk.chunkQueued)
+        throwerr("chunk has already been written.  path: %s"
+          + "  startIxs: %s",
+          grp.getPath(), HdfUtil.formatInts( chunk.chunkStartIxs));
+    }
+  }
+  return stage;
+}
+
+
+
+
+
+/**
+ * Returns the staging buffer in memory for the chunk of grp
+ * starting at chunkIxs, creating it or reading it back
+ * from the spill file as needed.  First spills others
+ * to keep the buffers in memory within maxByte.
+ * Caller must hold the lock on this.
+ */
+
+private Stage getStage(
+  HdfGroup grp,
+  int[] chunkIxs)
+throws HdfException
+{
+  HdfChunk chunk = grp.hdfChunks[ grp.calcChunkIx( chunkIxs)];
+  Stage stage = stageMap.get( chunk);
+  if (stage == null) {
+    stage = spillMap.remove( chunk);
+    boolean isNew = stage == null;
+    if (isNew) {
+      // Claim the chunk, so writeData can't write it too.
+      synchronized (chunk) {
+        if (chunk.chunkDataAddr != 0 || chunk.chunkQueued)
+          throwerr("chunk has already been written.  path: %s"
+            + "  startIxs: %s",
+            grp.getPath(), HdfUtil.formatInts( chunk.chunkStartIxs));
+        chunk.chunkQueued = true;
+      }
+      long chunkVolume = 1;
+      long numNeeded = 1;
+      for (int ii = 0; ii < grp.varRank; ii++) {
+        chunkVolume *= grp.specChunkDims[ii];
+        numNeeded *= Math.min( grp.specChunkDims[ii],
+          grp.varDims[ii] - chunkIxs[ii]);
+      }
+      stage = new Stage( chunk, (int) (chunkVolume * grp.elementLen),
+        numNeeded);
+    }
+
+    // Spill the least recently used buffers to make room
+    Iterator<Stage> iter = stageMap.values().iterator();
+    while (numStageByte + stage.chunkLen > maxByte && iter.hasNext()) {
+      Stage oldStage = iter.next();
+      iter.remove();
+      writeSpill( oldStage);
+      spillMap.put( oldStage.chunk, oldStage);
+      numStageByte -= oldStage.chunkLen;
+      numSpill++;
+    }
+
+    if (isNew) {
+      stage.bytes = new byte[ stage.chunkLen];
+      byte[] fillBytes = grp.msgFillValue.fillBytes;
+      if (fillBytes != null && fillBytes.length == grp.elementLen) {
+        for (int ii = 0; ii < stage.chunkLen; ii += fillBytes.length) {
+          System.arraycopy( fillBytes, 0, stage.bytes, ii, fillBytes.length);
+        }
+      }
+    }
+    else {
+      readSpill( stage);
+      numReload++;
+    }
+    stageMap.put( chunk, stage);
+    numStageByte += stage.chunkLen;
+    maxStageByte = Math.max( maxStageByte, numStageByte);
+  }
+  return stage;
+}
+
+
+
+
+
+/**
+ * Writes a staging buffer to the spill file and releases it.
+ * Caller must hold the lock on this.
+ */
+
+private void writeSpill( Stage stage)
+throws HdfException
+{
+  try {
+    if (spillChannel == null) {
+      File dir = null;
+      if (spillDir != null) dir = new File( spillDir);
+      spillFile = File.createTempFile( "nujan", ".spill", dir);
+      spillFile.deleteOnExit();
+      spillRaf = new RandomAccessFile( spillFile, "rw");
+      spillChannel = spillRaf.getChannel();
+      if (hdfFile.bugs >= 1)
+        prtf("ChunkAssembler: spill file: %s", spillFile);
+    }
+    ArrayList<Long> freeList = freeSpillMap.get( stage.chunkLen);
+    if (freeList != null && freeList.size() > 0)
+      stage.spillAddr = freeList.remove( freeList.size() - 1);
+    else {
+      stage.spillAddr = spillFileLen;
+      spillFileLen += stage.chunkLen;
+    }
+    ByteBuffer bbuf = ByteBuffer.wrap( stage.bytes);
+    long pos = stage.spillAddr;
+    while (bbuf.hasRemaining()) {
+      pos += spillChannel.write( bbuf, pos);
+    }
+  }
+  catch( IOException exc) {
+    exc.printStackTrace();
+    throwerr("caught: %s", exc);
+  }
+  stage.bytes = null;
+}
+
+
+
+
+
+/**
+ * Reads a staging buffer back from the spill file,
+ * and frees its region of the file.
+ * Caller must hold the lock on this.
+ */
+
+private void readSpill( Stage stage)
+throws HdfException
+{
+  stage.bytes = new byte[ stage.chunkLen];
+  ByteBuffer bbuf = ByteBuffer.wrap( stage.bytes);
+  long pos = stage.spillAddr;
+  try {
+    while (bbuf.hasRemaining()) {
+      int len = spillChannel.read( bbuf, pos);
+      if (len < 0) throwerr("unexpected end of spill file");
+      pos += len;
+    }
+  }
+  catch( IOException exc) {
+    exc.printStackTrace();
+    throwerr("caught: %s", exc);
+  }
+  ArrayList<Long> freeList = freeSpillMap.get( stage.chunkLen);
+  if (freeList == null) {
+    freeList = new ArrayList<Long>();
+    freeSpillMap.put( stage.chunkLen, freeList);
+  }
+  freeList.add( stage.spillAddr);
+}
+
+
+
+
+
+/**
+ * Writes one assembled chunk, complete or not,
+ * as a full raw chunk, by HdfGroup.writeDataSub.
+ */
+
+private void writeStage( Stage stage)
+throws HdfException
+{
+  HdfChunk chunk = stage.chunk;
+  synchronized (chunk) {
+    chunk.chunkQueued = false;
+  }
+  ByteBuffer rawBuf = ByteBuffer.wrap( stage.bytes);
+  rawBuf.order( ByteOrder.LITTLE_ENDIAN);
+  try {
+    chunk.hdfGroup.writeDataSub( chunk.chunkStartIxs, rawBuf, true);
+  }
+  catch( IOException exc) {
+    exc.printStackTrace();
+    throwerr("caught: %s", exc);
+  }
+  synchronized (this) {
+    if (stage.numDone == stage.numNeeded) numChunk++;
+    else numPartialChunk++;
+  }
+}
+
+
+
+
+
+/**
+ * Writes the remaining partial chunks, with the fill value
+ * in the elements never written, and deletes the spill file.
+ * Called by HdfFileWriter.close.
+ */
+
+synchronized void drain()
+throws HdfException
+{
+  try {
+    ArrayList<Stage> stageList = new ArrayList<Stage>( stageMap.values());
+    stageMap.clear();
+    numStageByte = 0;
+    for (Stage stage : stageList) {
+      writeStage( stage);
+    }
+    stageList = new ArrayList<Stage>( spillMap.values());
+    spillMap.clear();
+    for (Stage stage : stageList) {
+      readSpill( stage);
+      numReload++;
+      writeStage( stage);
+      stage.bytes = null;
+    }
+  }
+  finally {
+    if (spillChannel != null) {
+      try { spillRaf.close(); }
+      catch( IOException exc) {
+        exc.printStackTrace();
+        throwerr("caught: %s", exc);
+      }
+      spillFile.delete();
+      spillChannel = null;
+    }
+  }
+  if (hdfFile.bugs >= 1) prtf("ChunkAssembler.drain: %s", this);
+}
+
+
+
+
+
+static void prtf( String msg, Object... args) {
+  System.out.printf( msg + "\n", args);
+}
+
+
+
+
+static void throwerr( String msg, Object... args)
+throws HdfException
+{
+  throw new HdfException( String.format( msg, args));
+}
+
+
+
+} // end class
@@ -0,0 +1,317 @@
+// The MIT License
+// 
+// Copyright (c) 2010 University Corporation for Atmospheric Research
+// 
+// Permission is hereby granted, free of charge, to any person
+// obtaining a copy of this software and associated documentation
+// files (the "Software"), to deal in the Software without
+// restriction, including without limitation the rights to use,
+// copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following
+// conditions:
+// 
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+// 
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+// OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT.  IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+// HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+// WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+// FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+
+
+package edu.ucar.ral.nujan.hdf;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Runs the filter chains of filtered (compressed) variables
+ * on a pool of worker threads.
+ * <p>
+ * Only the filters run on the workers.  The encoded
+ * results are written to the file by a client thread,
+ * in completion order, on later calls to submit and in drain.
+ * File space is reserved by hdfFile.allocSpace.
+ * submit and drain are synchronized, so several client threads
+ * may call writeData at once.
+ * <p>
+ * Used when HdfFileWriter.setCompressThreads was called with
+ * numThread &gt; 0.
+ */
+
+class ChunkCompressor {
+
+
+/**
+ * Number of worker threads.
+ */
+int numThread;
+
+/**
+ * Max number of chunks submitted but not yet written.
+ * When reached, submit waits for a chunk to finish.
+ * This bounds the memory held by raw and compressed chunks.
+ */
+int maxPending;
+
+/**
+ * Number of chunks submitted but not yet written.
+ */
+int numPending;
+
+/**
+ * The global owning HdfFileWriter.
+ */
+HdfFileWriter hdfFile;
+
+private ExecutorService pool;
+private ExecutorCompletionService<CompressJob> completer;
+
+
+// Statistics
+long numChunk;           // num chunks written
+long numRawByte;         // total uncompressed bytes
+long numCompByte;        // total compressed bytes
+
+
+
+/**
+ * A single chunk to be encoded.
+ * Call returns this same job, with encBuf and filterMask filled in.
+ */
+
+class CompressJob implements Callable<CompressJob> {
+
+  HdfChunk chunk;
+  byte[] rawBytes;
+  ByteBuffer encBuf;
+  int filterMask;
+
+  CompressJob(
+    HdfChunk chunk,
+    byte[] rawBytes)
+  {
+    this.chunk = chunk;
+    this.rawBytes = rawBytes;
+  }
+
+  public CompressJob call()
+  throws HdfException
+  {
+    HdfModInt maskOut = new HdfModInt( 0);
+    encBuf = chunk.hdfGroup.encodeChunk( ByteBuffer.wrap( rawBytes), maskOut);
+    filterMask = maskOut.getValue();
+    rawBytes = null;               // let gc have it
+    return this;
+  }
+} // end inner class CompressJob
+
+
+
+
+
+/**
+ * Creates the worker pool.
+ * @param numThread  Number of worker threads.
+ * @param hdfFile The global owning HdfFileWriter.
+ */
+
+ChunkCompressor(
+  int numThread,
+  HdfFileWriter hdfFile)
+throws HdfException
+{
+  if (numThread <= 0) throwerr("invalid numThread: %d", numThread);
+  this.numThread = numThread;
+  this.maxPending = 2 * numThread;
+  this.hdfFile = hdfFile;
+
+  pool = Executors.newFixedThreadPool( numThread, new ThreadFactory() {
+    int threadNum = 0;
+    public synchronized Thread newThread( Runnable runner) {
+      Thread thread = new Thread( runner, "nujan-deflate-" + threadNum++);
+      thread.setDaemon( true);
+      return thread;
+    }
+  });
+  completer = new ExecutorCompletionService<CompressJob>( pool);
+
+  if (hdfFile.bugs >= 1)
+    prtf("ChunkCompressor: numThread: %d  maxPending: %d",
+      numThread, maxPending);
+}
+
+
+
+
+public String toString() {
+  String res = "numThread: " + numThread
+    + "  numPending: " + numPending
+    + "  numChunk: " + numChunk
+    + "  numRawByte: " + numRawByte
+    + "  numCompByte: " + numCompByte;
+  return res;
+}
+
+
+
+
+
+/**
+ * Queues one chunk of a filtered variable for encoding.
+ * First writes any chunks that have already finished,
+ * and if maxPending chunks are in flight, waits for one to finish.
+ *
+ * @param chunk  The chunk being written.
+ * @param rawBytes  The formatted, unfiltered chunk data.
+ *    Must not be changed by the caller after this call.
+ */
+
+synchronized void submit(
+  HdfChunk chunk,
+  byte[] rawBytes)
+throws HdfException
+{
+  while (true) {
+    Future<CompressJob> fut = completer.poll();
+    if (fut == null) break;
+    writeJob( fut);
+  }
+  while (numPending >= maxPending) {
+    writeJob( takeJob());
+  }
+
+  if (hdfFile.bugs >= 2)
+    prtf("ChunkCompressor.submit: %s  startIxs: %s  rawLen: %d",
+      chunk.hdfGroup.getPath(), HdfUtil.formatInts( chunk.chunkStartIxs),
+      rawBytes.length);
+  completer.submit( new CompressJob( chunk, rawBytes));
+  numPending++;
+  numRawByte += rawBytes.length;
+}
+
+
+
+
+
+/**
+ * Waits for all pending chunks, writes them, and shuts down the pool.
+ * Called by HdfFileWriter.close.
+ */
+
+synchronized void drain()
+throws HdfException
+{
+  try {
+    while (numPending > 0) {
+      writeJob( takeJob());
+    }
+  }
+  finally {
+    pool.shutdownNow();
+    try { pool.awaitTermination( 60, TimeUnit.SECONDS); }
+    catch( InterruptedException exc) {
+      Thread.currentThread().interrupt();
+    }
+  }
+  if (hdfFile.bugs >= 1) prtf("ChunkCompressor.drain: %s", this);
+}
+
+
+
+
+
+/**
+ * Waits for the next finished chunk.
+ */
+
+private Future<CompressJob> takeJob()
+throws HdfException
+{
+  Future<CompressJob> fut = null;
+  try { fut = completer.take(); }
+  catch( InterruptedException exc) {
+    Thread.currentThread().interrupt();
+    throwerr("interrupted while waiting for compression");
+  }
+  return fut;
+}
+
+
+
+
+
+/**
+ * Appends one finished chunk at the end of file and records
+ * its chunkDataAddr, chunkDataSize, and filterMask.
+ */
+
+private void writeJob( Future<CompressJob> fut)
+throws HdfException
+{
+  CompressJob job = null;
+  try { job = fut.get(); }
+  catch( InterruptedException exc) {
+    Thread.currentThread().interrupt();
+    throwerr("interrupted while waiting for compression");
+  }
+  catch( ExecutionException exc) {
+    exc.printStackTrace();
+    throwerr("caught: %s", exc.getCause());
+  }
+  numPending--;
+
+  int encLen = job.encBuf.remaining();
+  long addr = hdfFile.writeChunk(
+    job.encBuf, job.filterMask, job.chunk.hdfGroup.isDedup());
+
+  synchronized (job.chunk) {
+    job.chunk.chunkDataAddr = addr;
+    job.chunk.chunkDataSize = encLen;
+    job.chunk.filterMask = job.filterMask;
+    job.chunk.chunkQueued = false;
+  }
+  numChunk++;
+  numCompByte += encLen;
+
+  if (hdfFile.bugs >= 2)
+    prtf("ChunkCompressor.writeJob: %s  startIxs: %s"
+      + "  chunkDataAddr: %d  chunkDataSize: %d",
+      job.chunk.hdfGroup.getPath(),
+      HdfUtil.formatInts( job.chunk.chunkStartIxs),
+      job.chunk.chunkDataAddr, job.chunk.chunkDataSize);
+}
+
+
+
+
+
+static void prtf( String msg, Object... args) {
+  System.out.printf( msg + "\n", args);
+}
+
+
+
+
+static void throwerr( String msg, Object... args)
+throws HdfException
+{
+  throw new HdfException( String.format( msg, args));
+}
+
+
+
+} // end class
@@ -0,0 +1,158 @@
+// The MIT License
+// 
+// Copyright (c) 2010 University Corporation for Atmospheric Research
+// 
+// Permission is hereby granted, free of charge, to any person
+// obtaining a copy of this software and associated documentation
+// files (the "Software"), to deal in the Software without
+// restriction, including without limitation the rights to use,
+// copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following
+// conditions:
+// 
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+// 
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+// OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT.  IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+// HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+// WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+// FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+
+
+package edu.ucar.ral.nujan.hdf;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * Base class for the filters in a variable's filter pipeline.
+ * Subclasses must implement getFilterId, getClientValues, and encode.
+ * <p>
+ * A chunked variable may have an ordered chain of filters,
+ * passed to {@link HdfGroup#addVariable(String,int,int,int[],int[],Object,FilterBase[])
+ * HdfGroup.addVariable}.  On write, each chunk is formatted
+ * to bytes, then passed through the filters in order,
+ * and the result is written to the file.
+ * The filter ids and client values are written to the
+ * variable's filter message, so a reader can find the
+ * matching decoders.  Ids of 256 and up are registered
+ * with The HDF Group.
+ * <p>
+ * Filters may be called by several threads at once,
+ * when HdfFileWriter.setCompressThreads or setWriteBehind is used,
+ * and one filter object may be shared by several variables,
+ * so encode must be thread safe.
+ * <p>
+ * The built in filters are {@link FilterShuffle}, {@link FilterDeflate},
+ * {@link FilterNbit}, {@link FilterScaleOffset},
+ * and {@link FilterFletcher32}, and the registered filters
+ * {@link FilterLz4} and {@link FilterBitshuffle}.
+ */
+
+public abstract class FilterBase {
+
+
+/**
+ * Returns the HDF5 filter id: 1 - 255 for the filters
+ * defined by HDF5, or a registered id of 256 or more.
+ */
+
+public abstract int getFilterId();
+
+
+
+/**
+ * Returns the filter name written to the filter message, or null.
+ * The name is only for the humans;
+ * the default is the HDF5 name for ids 1 - 6, else null.
+ */
+
+public String getFilterName() {
+  String res = null;
+  int filterId = getFilterId();
+  if (filterId > 0 && filterId < MsgFilter.filtNames.length)
+    res = MsgFilter.filtNames[ filterId];
+  return res;
+}
+
+
+
+/**
+ * Returns true if the filter is optional.
+ * An optional filter's encode may return null for a chunk,
+ * to skip the filter for that chunk.  The default is false.
+ */
+
+public boolean isOptional() {
+  return false;
+}
+
+
+
+/**
+ * Returns the client data values written to the filter message
+ * for a variable.  Called when the variable is defined,
+ * and again when the file is closed, after all chunks are encoded.
+ * The number of values must not change.
+ *
+ * @param dtype The variable's data type, one of HdfGroup.DTYPE_*.
+ * @param elementLen The variable's element length in bytes.
+ * @param chunkDims The variable's chunk dimensions.
+ */
+
+public abstract int[] getClientValues(
+  int dtype,
+  int elementLen,
+  int[] chunkDims)
+throws HdfException;
+
+
+
+/**
+ * Encodes one chunk.
+ *
+ * @param inBuf The chunk: the bytes from position to limit.
+ *    This is the formatted chunk for the first filter in a chain,
+ *    or the output of the previous filter.
+ *    encode must not change the contents of inBuf.
+ * @param dtype The variable's data type, one of HdfGroup.DTYPE_*.
+ * @param elementLen The variable's element length in bytes.
+ * @return The encoded chunk: the bytes from position to limit.
+ *    The caller may keep the result, so it must not be
+ *    reused by later calls.
+ *    May be inBuf itself.  If the filter is optional, may be null,
+ *    meaning the filter is skipped for this chunk.
+ */
+
+public abstract ByteBuffer encode(
+  ByteBuffer inBuf,
+  int dtype,
+  int elementLen)
+throws HdfException;
+
+
+
+/**
+ * Releases any resources held by the filter.
+ * Called by HdfFileWriter.close for each distinct filter.
+ * The filter may be used again afterwards, by another file.
+ * The default does nothing.
+ */
+
+public void close() {
+}
+
+
+
+public String toString() {
+  return "filterId: " + getFilterId() + "  name: " + getFilterName();
+}
+
+
+
+} // end class
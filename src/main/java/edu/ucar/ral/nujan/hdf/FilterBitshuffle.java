@@ -0,0 +1,286 @@
+// The MIT License
+// 
+// Copyright (c) 2010 University Corporation for Atmospheric Research
+// 
+// Permission is hereby granted, free of charge, to any person
+// obtaining a copy of this software and associated documentation
+// files (the "Software"), to deal in the Software without
+// restriction, including without limitation the rights to use,
+// copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following
+// conditions:
+// 
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+// 
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+// OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT.  IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+// HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+// WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+// FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+
+
+
+package edu.ucar.ral.nujan.hdf;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * The bitshuffle filter, registered HDF5 filter id 32008,
+ * optionally followed by LZ4 compression within the same filter.
+ * Like FilterShuffle, but transposes bits instead of bytes:
+ * bit 0 of all elements in a block comes first, then bit 1,
+ * and so on.  Slowly varying numeric data then has long runs
+ * of equal bytes, which LZ4 compresses well and fast.
+ * Readers need the bitshuffle HDF5 plugin, as in hdf5plugin.
+ * <p>
+ * The data are processed in blocks of blockSize elements.
+ * A trailing partial block is bitshuffled in a multiple of 8
+ * elements, and the last numEle % 8 elements are copied as is.
+ * With COMPRESS_LZ4, the encoded chunk is the uncompressed len
+ * as a big endian long, the block len in bytes as a big endian int,
+ * then for each block its compressed len as a big endian int
+ * and the LZ4 block, then the leftover bytes.
+ * This is the layout of bshuf_h5_filter.
+ * <p>
+ * The client values are those of bshuf_h5_set_local:
+ * the bitshuffle format version, element len, block size,
+ * and compression.
+ * Bitshuffling and compression are pure Java.
+ */
+
+public class FilterBitshuffle extends FilterBase {
+
+
+/** Compression value: bitshuffle only. */
+public static final int COMPRESS_NONE = 0;
+/** Compression value: bitshuffle, then LZ4 each block. */
+public static final int COMPRESS_LZ4 = 2;
+
+/** Bitshuffle format version written to the client values. */
+static final int VERSION_MAJOR = 0;
+static final int VERSION_MINOR = 3;
+
+/** Target block len in bytes for the default block size. */
+static final int TARGET_BLOCK_BYTES = 8192;
+/** Min default block size, in elements. */
+static final int MIN_RECOMMEND_BLOCK = 128;
+/** Block sizes, in elements, must be a multiple of this. */
+static final int BLOCKED_MULT = 8;
+
+/** Len of the LZ4 chunk header: uncompressed len and block len. */
+static final int HDR_LEN = 12;
+
+
+int compression;          // COMPRESS_NONE or COMPRESS_LZ4
+int blockSize;            // elements per block, or 0 for the default
+
+
+
+/**
+ * Bitshuffles with the default block size.
+ * @param compression  COMPRESS_NONE or COMPRESS_LZ4.
+ */
+
+public FilterBitshuffle( int compression)
+throws HdfException
+{
+  this( compression, 0);
+}
+
+
+
+/**
+ * @param compression  COMPRESS_NONE or COMPRESS_LZ4.
+ * @param blockSize  Num elements per block: a multiple of 8,
+ *    or 0 for the default, about 8 KB per block.
+ */
+
+public FilterBitshuffle(
+  int compression,
+  int blockSize)
+throws HdfException
+{
+  if (compression != COMPRESS_NONE && compression != COMPRESS_LZ4)
+    HdfUtil.throwerr("invalid compression: %d", compression);
+  if (blockSize < 0 || blockSize % BLOCKED_MULT != 0)
+    HdfUtil.throwerr("blockSize must be a multiple of %d: %d",
+      BLOCKED_MULT, blockSize);
+  this.compression = compression;
+  this.blockSize = blockSize;
+}
+
+
+
+public int getFilterId() {
+  return MsgFilter.FILT_BITSHUFFLE;
+}
+
+
+
+public String getFilterName() {
+  return "bitshuffle";
+}
+
+
+
+public int[] getClientValues(
+  int dtype,
+  int elementLen,
+  int[] chunkDims)
+{
+  return new int[] {
+    VERSION_MAJOR, VERSION_MINOR, elementLen, blockSize, compression};
+}
+
+
+
+/**
+ * Returns a new buffer holding the bitshuffled,
+ * and maybe compressed, chunk.
+ */
+
+public ByteBuffer encode(
+  ByteBuffer inBuf,
+  int dtype,
+  int elementLen)
+throws HdfException
+{
+  int len = inBuf.remaining();
+  if (len % elementLen != 0)
+    HdfUtil.throwerr("chunk len %d is not a multiple of elementLen %d",
+      len, elementLen);
+  byte[] inBytes;
+  int off;
+  if (inBuf.hasArray()) {
+    inBytes = inBuf.array();
+    off = inBuf.arrayOffset() + inBuf.position();
+  }
+  else {
+    inBytes = new byte[ len];
+    inBuf.duplicate().get( inBytes);
+    off = 0;
+  }
+
+  int numEle = len / elementLen;
+  int blockEle = blockSize > 0 ? blockSize : getDefaultBlockSize( elementLen);
+  int blockBytes = blockEle * elementLen;
+  int numFull = numEle / blockEle;
+  int lastEle = numEle % blockEle;
+  lastEle -= lastEle % BLOCKED_MULT;
+  int shufLen = numFull * blockBytes + lastEle * elementLen;
+
+  // Bitshuffle each block, then copy the leftover bytes.
+  byte[] shufBytes = new byte[ len];
+  for (int iblk = 0; iblk < numFull; iblk++) {
+    int pos = iblk * blockBytes;
+    transBitElem( inBytes, off + pos, blockEle, elementLen, shufBytes, pos);
+  }
+  if (lastEle > 0) {
+    int pos = numFull * blockBytes;
+    transBitElem( inBytes, off + pos, lastEle, elementLen, shufBytes, pos);
+  }
+  System.arraycopy( inBytes, off + shufLen, shufBytes, shufLen,
+    len - shufLen);
+
+  ByteBuffer res;
+  if (compression == COMPRESS_NONE) res = ByteBuffer.wrap( shufBytes);
+  else {
+    int maxLen = HDR_LEN
+      + (numFull + 1) * (4 + Lz4Block.maxCompressedLen( blockBytes))
+      + len - shufLen;
+    byte[] outBytes = new byte[ maxLen];
+    FilterLz4.putLongBE( outBytes, 0, len);
+    FilterLz4.putIntBE( outBytes, 8, blockBytes);
+    int[] hashTable = Lz4Block.newHashTable();
+    int opos = HDR_LEN;
+    int ipos = 0;
+    while (ipos < shufLen) {
+      int curLen = Math.min( blockBytes, shufLen - ipos);
+      int compLen = Lz4Block.compress(
+        shufBytes, ipos, curLen, outBytes, opos + 4, hashTable);
+      FilterLz4.putIntBE( outBytes, opos, compLen);
+      opos += 4 + compLen;
+      ipos += curLen;
+    }
+    System.arraycopy( shufBytes, shufLen, outBytes, opos, len - shufLen);
+    opos += len - shufLen;
+    res = ByteBuffer.wrap( outBytes, 0, opos);
+  }
+  return res;
+}
+
+
+
+public String toString() {
+  return super.toString() + "  compression: " + compression
+    + "  blockSize: " + blockSize;
+}
+
+
+
+
+/**
+ * Returns the default block size in elements, the same as
+ * bshuf_default_block_size: about TARGET_BLOCK_BYTES,
+ * a multiple of BLOCKED_MULT, and at least MIN_RECOMMEND_BLOCK.
+ */
+
+static int getDefaultBlockSize( int elementLen) {
+  int res = TARGET_BLOCK_BYTES / elementLen;
+  res = (res / BLOCKED_MULT) * BLOCKED_MULT;
+  return Math.max( res, MIN_RECOMMEND_BLOCK);
+}
+
+
+
+
+/**
+ * Bitshuffles one block of numEle elements, a multiple of 8,
+ * from inBytes[inOff] to outBytes[outOff].
+ * Same result as bshuf_trans_bit_elem: the output is
+ * 8 * eleLen rows of numEle / 8 bytes, where row 8 * ib + kk
+ * holds bit kk of byte ib of each element, in element order,
+ * starting at the low bit of each byte.
+ */
+
+static void transBitElem(
+  byte[] inBytes,
+  int inOff,
+  int numEle,
+  int eleLen,
+  byte[] outBytes,
+  int outOff)
+{
+  int rowLen = numEle / 8;
+  for (int ib = 0; ib < eleLen; ib++) {
+    int rowBase = outOff + 8 * ib * rowLen;
+    for (int igrp = 0; igrp < rowLen; igrp++) {
+      // Gather byte ib of 8 elements, then transpose the 8x8 bits.
+      int ipos = inOff + 8 * igrp * eleLen + ib;
+      long xx = 0;
+      for (int jj = 0; jj < 8; jj++) {
+        xx |= (inBytes[ipos] & 0xffL) << (8 * jj);
+        ipos += eleLen;
+      }
+      long tt = (xx ^ (xx >>> 7)) & 0x00AA00AA00AA00AAL;
+      xx = xx ^ tt ^ (tt << 7);
+      tt = (xx ^ (xx >>> 14)) & 0x0000CCCC0000CCCCL;
+      xx = xx ^ tt ^ (tt << 14);
+      tt = (xx ^ (xx >>> 28)) & 0x00000000F0F0F0F0L;
+      xx = xx ^ tt ^ (tt << 28);
+      for (int kk = 0; kk < 8; kk++) {
+        outBytes[rowBase + kk * rowLen + igrp] = (byte) (xx >>> (8 * kk));
+      }
+    }
+  }
+}
+
+
+
+} // end class
@@ -0,0 +1,529 @@
+// The MIT License
+// 
+// Copyright (c) 2010 University Corporation for Atmospheric Research
+// 
+// Permission is hereby granted, free of charge, to any person
+// obtaining a copy of this software and associated documentation
+// files (the "Software"), to deal in the Software without
+// restriction, including without limitation the rights to use,
+// copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following
+// conditions:
+// 
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+// 
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+// OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT.  IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+// HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+// WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+// FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+
+
+package edu.ucar.ral.nujan.hdf;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+
+/**
+ * The HDF5 deflate (zlib) filter, id 1.
+ * <p>
+ * The client value is the compression level.
+ * Each thread that calls encode gets its own Deflater,
+ * made on first use and kept until close.
+ * <p>
+ * In adaptive mode the filter is optional, and chunks that
+ * don't compress are stored raw: encode returns null,
+ * and the filter's bit is set in the chunk's filter mask.
+ * To save the cost of deflating a chunk of noise, encode first
+ * deflates a SAMPLE_LEN byte sample from the middle of the chunk
+ * at the fastest level, and skips the chunk if the sample
+ * doesn't shrink below SKIP_RATIO.
+ * Chunks that pass the sample but don't get smaller
+ * when deflated are also stored raw.
+ * <p>
+ * With compressionLevel LEVEL_AUTO, encode deflates a sample
+ * of each of the first AUTO_NUM_CHUNK chunks at every level,
+ * and picks the lowest level whose total compressed size is within
+ * autoTolerance of the best.  Levels slower than autoMinSpeed,
+ * if set, aren't considered.  The level is chosen per filter, so
+ * give each variable its own FilterDeflate.  The choice is kept
+ * if the filter is used again, by another file.
+ * See getAutoStatus for the measured ratios.
+ */
+
+public class FilterDeflate extends FilterBase {
+
+
+/**
+ * compressionLevel for the constructor: choose the level
+ * by sampling the first chunks.
+ */
+public static final int LEVEL_AUTO = -1;
+
+/**
+ * Zip compression level: 1 - 9 are increasing compression.
+ * With LEVEL_AUTO, the level chosen so far.
+ */
+volatile int compressionLevel;
+
+/**
+ * If true, compressionLevel is chosen by sampling.
+ */
+boolean autoLevel;
+
+/**
+ * If true, chunks that don't compress are stored raw.
+ */
+boolean adaptive;
+
+/**
+ * Len of the sample deflated by adaptive mode before the
+ * full chunk.  Chunks shorter than 4 * SAMPLE_LEN aren't sampled.
+ */
+static final int SAMPLE_LEN = 4096;
+
+/**
+ * In adaptive mode, a chunk is stored raw if its sample
+ * deflates to more than SKIP_RATIO times the sample length.
+ */
+static final double SKIP_RATIO = 0.97;
+
+/**
+ * With LEVEL_AUTO, the level used until the first chunk is sampled.
+ */
+static final int AUTO_START_LEVEL = 6;
+
+/**
+ * With LEVEL_AUTO, the num chunks sampled before the level is fixed.
+ */
+static final int AUTO_NUM_CHUNK = 4;
+
+/**
+ * With LEVEL_AUTO, the max len of the sample from each chunk.
+ */
+static final int AUTO_SAMPLE_LEN = 64 * 1024;
+
+/**
+ * With LEVEL_AUTO, the chosen level's compressed size may exceed
+ * the best size by up to this fraction.
+ */
+double autoTolerance = 0.02;
+
+/**
+ * With LEVEL_AUTO, the min deflate speed in MB/sec
+ * for a level to be chosen, or 0 for no limit.
+ */
+double autoMinSpeed = 0;
+
+// With LEVEL_AUTO, statistics for the sampled chunks.
+// The arrays are indexed by level.  Guarded by this.
+private volatile boolean autoDone;   // if true, the level is fixed
+private int autoNumChunk;            // num chunks sampled
+private long autoRawLen;             // total sample len
+private long[] autoCompLens;         // total compressed sample len
+private long[] autoNanos;            // total time deflating samples
+
+/**
+ * Each calling thread gets its own Deflater, made on first use.
+ * Replaced by close.
+ */
+private volatile ThreadLocal<Deflater> localDeflater;
+
+/**
+ * All Deflaters made by localDeflater, so close can end them.
+ */
+private ArrayList<Deflater> allDeflaters;
+
+
+
+/**
+ * @param compressionLevel  Zip compression level:
+ *    1 - 9 are increasing compression, or LEVEL_AUTO.
+ */
+
+public FilterDeflate(
+  int compressionLevel)
+throws HdfException
+{
+  this( compressionLevel, false);
+}
+
+
+
+/**
+ * @param compressionLevel  Zip compression level:
+ *    1 - 9 are increasing compression, or LEVEL_AUTO.
+ * @param adaptive  If true, chunks that don't compress
+ *    are stored raw.
+ */
+
+public FilterDeflate(
+  int compressionLevel,
+  boolean adaptive)
+throws HdfException
+{
+  if (compressionLevel == LEVEL_AUTO) {
+    autoLevel = true;
+    compressionLevel = AUTO_START_LEVEL;
+    autoCompLens = new long[10];
+    autoNanos = new long[10];
+  }
+  else if (compressionLevel < 1 || compressionLevel > 9)
+    HdfUtil.throwerr("invalid compressionLevel: %d", compressionLevel);
+  this.compressionLevel = compressionLevel;
+  this.adaptive = adaptive;
+  allDeflaters = new ArrayList<Deflater>();
+  localDeflater = makeLocalDeflater();
+}
+
+
+
+
+/**
+ * Returns the compression level specified in the constructor,
+ * or with LEVEL_AUTO, the level chosen so far.
+ */
+public int getCompressionLevel() { return compressionLevel; }
+
+/**
+ * Returns true if the constructor was called with LEVEL_AUTO.
+ */
+public boolean getAutoLevel() { return autoLevel; }
+
+/**
+ * Returns the adaptive flag specified in the constructor.
+ */
+public boolean getAdaptive() { return adaptive; }
+
+
+
+/**
+ * With LEVEL_AUTO, sets the fraction by which the chosen level's
+ * compressed size may exceed the best level's.  The default is 0.02.
+ * Must be called before the first chunk is written.
+ */
+
+public void setAutoTolerance( double autoTolerance)
+throws HdfException
+{
+  if (autoTolerance < 0)
+    HdfUtil.throwerr("invalid autoTolerance: %g", autoTolerance);
+  this.autoTolerance = autoTolerance;
+}
+
+
+
+/**
+ * With LEVEL_AUTO, sets the min deflate speed, in MB/sec of
+ * uncompressed data, for a level to be chosen.
+ * If no level is fast enough, uses level 1.
+ * The default is 0: no limit.
+ * Must be called before the first chunk is written.
+ */
+
+public void setAutoMinSpeed( double autoMinSpeed)
+throws HdfException
+{
+  if (autoMinSpeed < 0)
+    HdfUtil.throwerr("invalid autoMinSpeed: %g", autoMinSpeed);
+  this.autoMinSpeed = autoMinSpeed;
+}
+
+
+
+public int getFilterId() {
+  return MsgFilter.FILT_DEFLATE;
+}
+
+
+
+/**
+ * Returns true in adaptive mode, since then
+ * some chunks may skip the filter.
+ */
+
+public boolean isOptional() {
+  return adaptive;
+}
+
+
+
+/**
+ * Returns the compression level.  With LEVEL_AUTO this is
+ * AUTO_START_LEVEL when the variable is defined,
+ * and the chosen level when the file is closed.
+ */
+
+public int[] getClientValues(
+  int dtype,
+  int elementLen,
+  int[] chunkDims)
+{
+  return new int[] { compressionLevel};
+}
+
+
+
+/**
+ * Returns a new buffer holding the deflated chunk,
+ * or in adaptive mode, null if the chunk doesn't compress.
+ * Reads straight from inBuf's backing array, if it has one.
+ */
+
+public ByteBuffer encode(
+  ByteBuffer inBuf,
+  int dtype,
+  int elementLen)
+{
+  int len = inBuf.remaining();
+  byte[] rawBytes;
+  int off;
+  if (inBuf.hasArray()) {
+    rawBytes = inBuf.array();
+    off = inBuf.arrayOffset() + inBuf.position();
+  }
+  else {
+    rawBytes = new byte[ len];
+    inBuf.duplicate().get( rawBytes);
+    off = 0;
+  }
+  Deflater deflater = localDeflater.get();
+  HdfModInt compLen = new HdfModInt( 0);
+
+  boolean skipIt = false;
+  if (adaptive && len >= 4 * SAMPLE_LEN) {
+    byte[] sampBytes = deflateBytes( deflater, rawBytes,
+      off + (len - SAMPLE_LEN) / 2, SAMPLE_LEN, Deflater.BEST_SPEED,
+      (int) (SKIP_RATIO * SAMPLE_LEN), compLen);
+    if (sampBytes == null) skipIt = true;
+  }
+
+  ByteBuffer res = null;
+  if (! skipIt) {
+    // Read autoDone before compressionLevel: sampleLevels sets
+    // the final level before autoDone, so once autoDone is seen
+    // the level read is the one MsgFilter writes on close.
+    int level;
+    if (autoLevel && ! autoDone)
+      level = sampleLevels( deflater, rawBytes, off, len);
+    else level = compressionLevel;
+
+    // In adaptive mode, give up as soon as the output
+    // is as long as the input.
+    byte[] compBytes = deflateBytes( deflater, rawBytes, off, len,
+      level, adaptive ? len - 1 : -1, compLen);
+    if (compBytes != null)
+      res = ByteBuffer.wrap( compBytes, 0, compLen.getValue());
+  }
+  return res;
+}
+
+
+
+/**
+ * Ends all our Deflaters.
+ */
+
+public synchronized void close() {
+  synchronized (allDeflaters) {
+    for (Deflater deflater : allDeflaters) {
+      deflater.end();
+    }
+    allDeflaters.clear();
+  }
+  localDeflater = makeLocalDeflater();
+}
+
+
+
+/**
+ * With LEVEL_AUTO, returns the chosen level and, for each level,
+ * the compressed / uncompressed ratio and deflate speed in MB/sec
+ * measured on the samples.  Else returns null.
+ */
+
+public synchronized String getAutoStatus() {
+  String res = null;
+  if (autoLevel) {
+    res = "autoLevel: " + compressionLevel
+      + "  numChunk: " + autoNumChunk
+      + "  done: " + autoDone
+      + "  ratio,MB/sec by level:";
+    if (autoNumChunk > 0) {
+      for (int level = 1; level <= 9; level++) {
+        res += String.format("  %d: %.4f,%.1f", level,
+          autoCompLens[level] / (double) autoRawLen, getAutoSpeed( level));
+      }
+    }
+  }
+  return res;
+}
+
+
+
+public String toString() {
+  String res = super.toString() + "  compressionLevel: " + compressionLevel
+    + "  adaptive: " + adaptive;
+  if (autoLevel) res += "  autoLevel: true";
+  return res;
+}
+
+
+
+
+/**
+ * With LEVEL_AUTO, deflates a sample of a chunk at every level,
+ * adds the results to the statistics, and returns the
+ * level chosen so far.
+ * After AUTO_NUM_CHUNK chunks the level is fixed.
+ */
+
+private int sampleLevels(
+  Deflater deflater,
+  byte[] rawBytes,
+  int off,
+  int len)
+{
+  int sampLen = Math.min( len, AUTO_SAMPLE_LEN);
+  int sampOff = off + (len - sampLen) / 2;
+  long[] compLens = new long[10];
+  long[] nanos = new long[10];
+  HdfModInt compLen = new HdfModInt( 0);
+  for (int level = 1; level <= 9; level++) {
+    long timea = System.nanoTime();
+    deflateBytes( deflater, rawBytes, sampOff, sampLen, level, -1, compLen);
+    nanos[level] = System.nanoTime() - timea;
+    compLens[level] = compLen.getValue();
+  }
+
+  synchronized (this) {
+    if (! autoDone) {
+      autoNumChunk++;
+      autoRawLen += sampLen;
+      for (int level = 1; level <= 9; level++) {
+        autoCompLens[level] += compLens[level];
+        autoNanos[level] += nanos[level];
+      }
+      compressionLevel = chooseLevel();
+      if (autoNumChunk >= AUTO_NUM_CHUNK) autoDone = true;
+    }
+    return compressionLevel;
+  }
+}
+
+
+
+
+/**
+ * Returns the lowest level whose compressed size is within
+ * autoTolerance of the best, considering only levels
+ * at least autoMinSpeed fast, or level 1 if none are.
+ * Caller must hold our lock.
+ */
+
+private int chooseLevel() {
+  boolean[] isFast = new boolean[10];
+  long bestLen = Long.MAX_VALUE;
+  for (int level = 1; level <= 9; level++) {
+    isFast[level] = autoMinSpeed == 0 || getAutoSpeed( level) >= autoMinSpeed;
+    if (isFast[level]) bestLen = Math.min( bestLen, autoCompLens[level]);
+  }
+  int res = 1;
+  for (int level = 9; level >= 1; level--) {
+    if (isFast[level] && autoCompLens[level] <= (1 + autoTolerance) * bestLen)
+      res = level;
+  }
+  return res;
+}
+
+
+
+
+/**
+ * Returns the measured deflate speed for a level,
+ * in MB/sec of uncompressed data.  Caller must hold our lock.
+ */
+
+private double getAutoSpeed( int level) {
+  return 1.e3 * autoRawLen / Math.max( 1, autoNanos[level]);
+}
+
+
+
+
+private ThreadLocal<Deflater> makeLocalDeflater() {
+  return new ThreadLocal<Deflater>() {
+    protected Deflater initialValue() {
+      Deflater deflater = new Deflater();
+      synchronized (allDeflaters) {
+        allDeflaters.add( deflater);
+      }
+      return deflater;
+    }
+  };
+}
+
+
+
+
+
+/**
+ * Compresses rawBytes[off] through rawBytes[off+len-1] with deflater,
+ * which is reset first.
+ *
+ * @param deflater  A Deflater owned by the calling thread.
+ * @param rawBytes  The uncompressed data.
+ * @param off  Index of the first byte to compress.
+ * @param len  Number of bytes to compress.
+ * @param compressionLevel  Deflater level, 1 - 9.
+ * @param maxLen  The max compressed length, or -1 for no limit.
+ * @param compLen  Output: the compressed length.
+ * @return An array holding the compressed data in
+ *    elements 0 through compLen - 1, or null if
+ *    the compressed length would exceed maxLen.
+ */
+
+static byte[] deflateBytes(
+  Deflater deflater,
+  byte[] rawBytes,
+  int off,
+  int len,
+  int compressionLevel,
+  int maxLen,
+  HdfModInt compLen)
+{
+  deflater.reset();
+  deflater.setLevel( compressionLevel);
+  deflater.setInput( rawBytes, off, len);
+  deflater.finish();
+
+  int bufLen = 100 + len / 2;
+  if (maxLen >= 0) bufLen = Math.min( bufLen, maxLen + 1);
+  byte[] compBytes = new byte[ bufLen];
+  int clen = 0;
+  while (! deflater.finished()) {
+    if (clen == compBytes.length) {
+      if (maxLen >= 0 && clen > maxLen) return null;
+      int newLen = 2 * compBytes.length;
+      if (maxLen >= 0) newLen = Math.min( newLen, maxLen + 1);
+      compBytes = Arrays.copyOf( compBytes, newLen);
+    }
+    clen += deflater.deflate( compBytes, clen, compBytes.length - clen);
+  }
+  if (maxLen >= 0 && clen > maxLen) return null;
+  compLen.setValue( clen);
+  return compBytes;
+}
+
+
+
+
+} // end class
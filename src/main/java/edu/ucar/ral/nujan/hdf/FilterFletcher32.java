@@ -0,0 +1,188 @@
+// The MIT License
+// 
+// Copyright (c) 2010 University Corporation for Atmospheric Research
+// 
+// Permission is hereby granted, free of charge, to any person
+// obtaining a copy of this software and associated documentation
+// files (the "Software"), to deal in the Software without
+// restriction, including without limitation the rights to use,
+// copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following
+// conditions:
+// 
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+// 
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+// OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT.  IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+// HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+// WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+// FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+
+
+package edu.ucar.ral.nujan.hdf;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * The HDF5 Fletcher32 checksum filter, id 3.
+ * Appends a 4 byte checksum to each chunk, so readers
+ * can detect corrupted chunks.
+ * Usually it's last in the filter chain, after compression,
+ * so the checksum covers the fewest bytes.
+ * <p>
+ * The checksum is computed in the same pass that copies
+ * the encoded chunk to the output buffer.
+ * There are no client values.  Like H5Pset_fletcher32,
+ * we mark the filter mandatory.
+ */
+
+public class FilterFletcher32 extends FilterBase {
+
+
+/**
+ * Len of the checksum appended to each chunk.
+ */
+static final int CHECKSUM_LEN = 4;
+
+/**
+ * Max num 16 bit words summed before the sums are reduced,
+ * so sum2 can't overflow 32 bits.  Same as HDF5.
+ */
+static final int MAX_BLOCK = 360;
+
+
+
+public FilterFletcher32() {
+}
+
+
+
+public int getFilterId() {
+  return MsgFilter.FILT_FLETCHER32;
+}
+
+
+
+public int[] getClientValues(
+  int dtype,
+  int elementLen,
+  int[] chunkDims)
+{
+  return new int[0];
+}
+
+
+
+/**
+ * Returns a new buffer holding the chunk followed by
+ * its little endian checksum, as HDF5 writes it.
+ */
+
+public ByteBuffer encode(
+  ByteBuffer inBuf,
+  int dtype,
+  int elementLen)
+{
+  int len = inBuf.remaining();
+  byte[] inBytes;
+  int off;
+  if (inBuf.hasArray()) {
+    inBytes = inBuf.array();
+    off = inBuf.arrayOffset() + inBuf.position();
+  }
+  else {
+    inBytes = new byte[ len];
+    inBuf.duplicate().get( inBytes);
+    off = 0;
+  }
+
+  byte[] outBytes = new byte[ len + CHECKSUM_LEN];
+  int checksum = copyChecksum( inBytes, off, len, outBytes);
+  outBytes[len]     = (byte) checksum;
+  outBytes[len + 1] = (byte) (checksum >>> 8);
+  outBytes[len + 2] = (byte) (checksum >>> 16);
+  outBytes[len + 3] = (byte) (checksum >>> 24);
+  return ByteBuffer.wrap( outBytes);
+}
+
+
+
+
+/**
+ * Copies inBytes[off] through inBytes[off+len-1] to outBytes[0]
+ * through outBytes[len-1], and returns their HDF5 Fletcher32 checksum.
+ * <p>
+ * Same as H5_checksum_fletcher32: the data are summed as
+ * big endian 16 bit words, and an odd last byte is
+ * the high byte of a final word.
+ * The sums are reduced after every MAX_BLOCK words, as in HDF5,
+ * but within a block the words are read four at a time
+ * as a big endian long, and each long is written to outBytes
+ * as it's summed, so the data are read only once.
+ */
+
+static int copyChecksum(
+  byte[] inBytes,
+  int off,
+  int len,
+  byte[] outBytes)
+{
+  ByteBuffer inBuf = ByteBuffer.wrap( inBytes);     // big endian
+  ByteBuffer outBuf = ByteBuffer.wrap( outBytes);
+
+  int sum1 = 0;
+  int sum2 = 0;
+  int ipos = off;
+  int numWord = len / 2;
+  while (numWord > 0) {
+    int blockLen = Math.min( numWord, MAX_BLOCK);
+    numWord -= blockLen;
+    int numLong = blockLen / 4;
+    for (int ii = 0; ii < numLong; ii++) {
+      long words = inBuf.getLong( ipos);
+      outBuf.putLong( ipos - off, words);
+      ipos += 8;
+      sum1 += (int) (words >>> 48);
+      sum2 += sum1;
+      sum1 += (int) (words >>> 32) & 0xffff;
+      sum2 += sum1;
+      sum1 += (int) (words >>> 16) & 0xffff;
+      sum2 += sum1;
+      sum1 += (int) words & 0xffff;
+      sum2 += sum1;
+    }
+    for (int ii = 4 * numLong; ii < blockLen; ii++) {
+      outBytes[ipos - off] = inBytes[ipos];
+      outBytes[ipos - off + 1] = inBytes[ipos+1];
+      sum1 += ((inBytes[ipos] & 0xff) << 8) | (inBytes[ipos+1] & 0xff);
+      sum2 += sum1;
+      ipos += 2;
+    }
+    sum1 = (sum1 & 0xffff) + (sum1 >>> 16);
+    sum2 = (sum2 & 0xffff) + (sum2 >>> 16);
+  }
+
+  // Odd num bytes
+  if (len % 2 != 0) {
+    outBytes[ipos - off] = inBytes[ipos];
+    sum1 += (inBytes[ipos] & 0xff) << 8;
+    sum2 += sum1;
+    sum1 = (sum1 & 0xffff) + (sum1 >>> 16);
+    sum2 = (sum2 & 0xffff) + (sum2 >>> 16);
+  }
+
+  // Second reduction, to 16 bits
+  sum1 = (sum1 & 0xffff) + (sum1 >>> 16);
+  sum2 = (sum2 & 0xffff) + (sum2 >>> 16);
+  return (sum2 << 16) | sum1;
+}
+
+
+
+} // end class
@@ -0,0 +1,196 @@
+// The MIT License
+// 
+// Copyright (c) 2010 University Corporation for Atmospheric Research
+// 
+// Permission is hereby granted, free of charge, to any person
+// obtaining a copy of this software and associated documentation
+// files (the "Software"), to deal in the Software without
+// restriction, including without limitation the rights to use,
+// copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following
+// conditions:
+// 
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+// 
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+// OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT.  IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+// HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+// WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+// FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+
+
+
+package edu.ucar.ral.nujan.hdf;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * The LZ4 filter, registered HDF5 filter id 32004.
+ * Much faster than FilterDeflate, at a lower compression ratio.
+ * Readers need the HDF5 LZ4 filter plugin, as in hdf5plugin
+ * or the HDF Group's plugin collection.
+ * <p>
+ * The encoded chunk has the layout of the plugin's H5Z_filter_lz4:
+ * the uncompressed len as a big endian long,
+ * the block size as a big endian int, and then for each block
+ * its compressed len as a big endian int and the LZ4 block.
+ * A block that doesn't compress is stored raw, with
+ * its compressed len equal to its block size.
+ * <p>
+ * The client value is the block size in bytes, 0 for the default.
+ * The default, like the plugin's, is large enough that each
+ * chunk is one block.
+ * Compression is pure Java.
+ */
+
+public class FilterLz4 extends FilterBase {
+
+
+/** Block size used when blockSize is 0, the same as the plugin. */
+static final int DEFAULT_BLOCK_SIZE = 1 << 30;
+
+/** Len of the chunk header: uncompressed len and block size. */
+static final int HDR_LEN = 12;
+
+
+int blockSize;            // bytes per block, or 0 for the default
+
+
+
+/**
+ * Compresses each chunk as one block.
+ */
+
+public FilterLz4()
+throws HdfException
+{
+  this( 0);
+}
+
+
+
+/**
+ * @param blockSize  The num bytes per LZ4 block,
+ *    or 0 for one block per chunk.
+ */
+
+public FilterLz4( int blockSize)
+throws HdfException
+{
+  if (blockSize < 0) HdfUtil.throwerr("invalid blockSize: %d", blockSize);
+  this.blockSize = blockSize;
+}
+
+
+
+public int getFilterId() {
+  return MsgFilter.FILT_LZ4;
+}
+
+
+
+public String getFilterName() {
+  return "lz4";
+}
+
+
+
+public int[] getClientValues(
+  int dtype,
+  int elementLen,
+  int[] chunkDims)
+{
+  return new int[] { blockSize};
+}
+
+
+
+/**
+ * Returns a new buffer holding the compressed chunk.
+ */
+
+public ByteBuffer encode(
+  ByteBuffer inBuf,
+  int dtype,
+  int elementLen)
+{
+  int len = inBuf.remaining();
+  byte[] inBytes;
+  int off;
+  if (inBuf.hasArray()) {
+    inBytes = inBuf.array();
+    off = inBuf.arrayOffset() + inBuf.position();
+  }
+  else {
+    inBytes = new byte[ len];
+    inBuf.duplicate().get( inBytes);
+    off = 0;
+  }
+
+  int blkLen = blockSize > 0 ? blockSize : DEFAULT_BLOCK_SIZE;
+  if (blkLen > len) blkLen = len;
+  int numBlock = len == 0 ? 0 : (len - 1) / blkLen + 1;
+  byte[] outBytes = new byte[ HDR_LEN
+    + numBlock * (4 + Lz4Block.maxCompressedLen( blkLen))];
+  putLongBE( outBytes, 0, len);
+  putIntBE( outBytes, 8, blkLen);
+
+  int[] hashTable = Lz4Block.newHashTable();
+  int opos = HDR_LEN;
+  for (int iblk = 0; iblk < numBlock; iblk++) {
+    int ipos = off + iblk * blkLen;
+    int curLen = Math.min( blkLen, off + len - ipos);
+    int compLen = Lz4Block.compress(
+      inBytes, ipos, curLen, outBytes, opos + 4, hashTable);
+    if (compLen >= curLen) {
+      // Incompressible: store raw, as the plugin does.
+      System.arraycopy( inBytes, ipos, outBytes, opos + 4, curLen);
+      compLen = curLen;
+    }
+    putIntBE( outBytes, opos, compLen);
+    opos += 4 + compLen;
+  }
+  return ByteBuffer.wrap( outBytes, 0, opos);
+}
+
+
+
+public String toString() {
+  return super.toString() + "  blockSize: " + blockSize;
+}
+
+
+
+
+static void putIntBE(
+  byte[] bytes,
+  int pos,
+  int val)
+{
+  bytes[pos]   = (byte) (val >>> 24);
+  bytes[pos+1] = (byte) (val >>> 16);
+  bytes[pos+2] = (byte) (val >>> 8);
+  bytes[pos+3] = (byte) val;
+}
+
+
+
+
+static void putLongBE(
+  byte[] bytes,
+  int pos,
+  long val)
+{
+  putIntBE( bytes, pos, (int) (val >>> 32));
+  putIntBE( bytes, pos + 4, (int) val);
+}
+
+
+
+} // end class
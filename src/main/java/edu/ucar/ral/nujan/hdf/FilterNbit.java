@@ -0,0 +1,261 @@
+// The MIT License
+// 
+// Copyright (c) 2010 University Corporation for Atmospheric Research
+// 
+// Permission is hereby granted, free of charge, to any person
+// obtaining a copy of this software and associated documentation
+// files (the "Software"), to deal in the Software without
+// restriction, including without limitation the rights to use,
+// copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following
+// conditions:
+// 
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+// 
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+// OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT.  IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+// HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+// WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+// FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+
+
+
+package edu.ucar.ral.nujan.hdf;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+
+/**
+ * The HDF5 N-bit filter, id 5.
+ * Stores only the significant bits of each integer element:
+ * the precision bits starting at bitOffset, packed end to end.
+ * For example 12 bit sensor values held in DTYPE_FIXED16
+ * take 3/4 the space.
+ * <p>
+ * The variable's data type gets the same precision and bitOffset,
+ * so readers see the original type.  Signed values must fit in
+ * precision bits as two's complement, and unsigned values
+ * in precision bits; other bits are dropped.
+ * <p>
+ * The client values are those of H5Z_set_local_nbit
+ * for an atomic type.  Like H5Pset_nbit, we mark the filter optional.
+ * Floating point types are not supported.
+ */
+
+public class FilterNbit extends FilterBase {
+
+
+/** Num client values for an atomic type. */
+static final int NUM_PARM = 8;
+
+// Client value indices and values
+static final int PARM_NUM          = 0;
+static final int PARM_NOCOMPRESS   = 1;
+static final int PARM_NELMTS       = 2;
+static final int PARM_CLASS        = 3;
+static final int PARM_SIZE         = 4;
+static final int PARM_ORDER        = 5;
+static final int PARM_PRECISION    = 6;
+static final int PARM_OFFSET       = 7;
+
+static final int CLS_ATOMIC        = 1;
+static final int ORDER_LE          = 0;
+
+
+int precision;            // num significant bits
+int bitOffset;            // num low order pad bits
+
+
+
+/**
+ * @param precision  The num significant bits in each element, >= 1.
+ * @param bitOffset  The num low order bits to skip, usually 0.
+ */
+
+public FilterNbit(
+  int precision,
+  int bitOffset)
+throws HdfException
+{
+  if (precision < 1 || precision > 64)
+    HdfUtil.throwerr("invalid precision: %d", precision);
+  if (bitOffset < 0 || precision + bitOffset > 64)
+    HdfUtil.throwerr("invalid bitOffset: %d", bitOffset);
+  this.precision = precision;
+  this.bitOffset = bitOffset;
+}
+
+
+
+public int getFilterId() {
+  return MsgFilter.FILT_NBIT;
+}
+
+
+
+public boolean isOptional() {
+  return true;
+}
+
+
+
+public int getPrecision() {
+  return precision;
+}
+
+
+
+public int getBitOffset() {
+  return bitOffset;
+}
+
+
+
+public int[] getClientValues(
+  int dtype,
+  int elementLen,
+  int[] chunkDims)
+throws HdfException
+{
+  checkDtype( dtype, elementLen);
+  long numEle = 1;
+  for (int dim : chunkDims) {
+    numEle *= dim;
+  }
+
+  int[] vals = new int[ NUM_PARM];
+  vals[PARM_NUM] = NUM_PARM;
+  vals[PARM_NOCOMPRESS] = isFullPrecision( elementLen) ? 1 : 0;
+  vals[PARM_NELMTS] = (int) numEle;
+  vals[PARM_CLASS] = CLS_ATOMIC;
+  vals[PARM_SIZE] = elementLen;
+  vals[PARM_ORDER] = ORDER_LE;
+  vals[PARM_PRECISION] = precision;
+  vals[PARM_OFFSET] = bitOffset;
+  return vals;
+}
+
+
+
+/**
+ * Returns a new buffer holding the packed chunk,
+ * in the layout of H5Z_filter_nbit.
+ */
+
+public ByteBuffer encode(
+  ByteBuffer inBuf,
+  int dtype,
+  int elementLen)
+throws HdfException
+{
+  checkDtype( dtype, elementLen);
+  int len = inBuf.remaining();
+  byte[] res;
+  if (isFullPrecision( elementLen)) {
+    // Like HDF5, store as is.
+    res = new byte[ len];
+    inBuf.duplicate().get( res);
+  }
+  else {
+    ByteBuffer lbuf = inBuf.duplicate().order( ByteOrder.LITTLE_ENDIAN);
+    res = packBits( lbuf, len / elementLen, elementLen);
+  }
+  return ByteBuffer.wrap( res);
+}
+
+
+
+public String toString() {
+  return super.toString() + "  precision: " + precision
+    + "  bitOffset: " + bitOffset;
+}
+
+
+
+
+/**
+ * Packs the precision bits above bitOffset of each element,
+ * most significant bit first, as H5Z_nbit_compress does.
+ * As HDF5, the len is the num full bytes plus one.
+ */
+
+byte[] packBits(
+  ByteBuffer lbuf,
+  int numEle,
+  int elementLen)
+{
+  long totBits = (long) numEle * precision;
+  byte[] res = new byte[ (int) (totBits / 8) + 1];
+  int ipos = lbuf.position();
+  int opos = 0;
+  long acc = 0;            // pending bits, right aligned
+  int accLen = 0;          // num pending bits, always < 8 between elements
+  int highBits = Math.max( 0, precision - 32);
+  int lowBits = precision - highBits;
+  long lowMask = (1L << lowBits) - 1;
+  for (int ii = 0; ii < numEle; ii++) {
+    long val;
+    if (elementLen == 1) val = lbuf.get( ipos);
+    else if (elementLen == 2) val = lbuf.getShort( ipos);
+    else if (elementLen == 4) val = lbuf.getInt( ipos);
+    else val = lbuf.getLong( ipos);
+    ipos += elementLen;
+    val >>>= bitOffset;
+
+    if (highBits > 0) {
+      acc = (acc << highBits) | ((val >>> 32) & ((1L << highBits) - 1));
+      accLen += highBits;
+      while (accLen >= 8) {
+        accLen -= 8;
+        res[opos++] = (byte) (acc >>> accLen);
+      }
+    }
+    acc = (acc << lowBits) | (val & lowMask);
+    accLen += lowBits;
+    while (accLen >= 8) {
+      accLen -= 8;
+      res[opos++] = (byte) (acc >>> accLen);
+    }
+  }
+  if (accLen > 0) res[opos] = (byte) (acc << (8 - accLen));
+  return res;
+}
+
+
+
+
+boolean isFullPrecision( int elementLen) {
+  return bitOffset == 0 && precision == 8 * elementLen;
+}
+
+
+
+
+void checkDtype(
+  int dtype,
+  int elementLen)
+throws HdfException
+{
+  if (dtype != HdfGroup.DTYPE_SFIXED08
+    && dtype != HdfGroup.DTYPE_UFIXED08
+    && dtype != HdfGroup.DTYPE_FIXED16
+    && dtype != HdfGroup.DTYPE_FIXED32
+    && dtype != HdfGroup.DTYPE_FIXED64)
+  {
+    HdfUtil.throwerr("FilterNbit requires an integer dtype, not %s",
+      HdfGroup.dtypeNames[dtype]);
+  }
+  if (precision + bitOffset > 8 * elementLen)
+    HdfUtil.throwerr("precision %d + bitOffset %d exceeds the element bits",
+      precision, bitOffset);
+}
+
+
+
+} // end class
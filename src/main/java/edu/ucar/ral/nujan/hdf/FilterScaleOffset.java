@@ -0,0 +1,540 @@
+// The MIT License
+// 
+// Copyright (c) 2010 University Corporation for Atmospheric Research
+// 
+// Permission is hereby granted, free of charge, to any person
+// obtaining a copy of this software and associated documentation
+// files (the "Software"), to deal in the Software without
+// restriction, including without limitation the rights to use,
+// copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following
+// conditions:
+// 
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+// 
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+// OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT.  IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+// HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+// WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+// FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+
+
+
+package edu.ucar.ral.nujan.hdf;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+
+/**
+ * The HDF5 scale-offset filter, id 6.
+ * Stores each chunk as its minimum value plus,
+ * for each element, the offset from the minimum
+ * in just enough bits to hold the chunk's range.
+ * Readers see the original data type.
+ * <p>
+ * Scale types:
+ * <ul>
+ *   <li> SO_INT: integer data.  Lossless with scaleFactor
+ *        SO_INT_MINBITS_DEFAULT, which finds the min bits for
+ *        each chunk.  Else scaleFactor is the num bits kept.
+ *   <li> SO_FLOAT_DSCALE: float data.  Values are rounded
+ *        to scaleFactor decimal digits after the decimal point,
+ *        so this is lossy.
+ * </ul>
+ * If fillValue is given, elements equal to it are stored
+ * in one reserved code, so a distant fill value doesn't widen
+ * the range.  It should match the variable's fill value.
+ * <p>
+ * The encoded chunk has the same layout as H5Z_filter_scaleoffset:
+ * a HDR_LEN byte header holding minbits and the min value,
+ * then the offsets packed most significant bit first.
+ * It's often followed by FilterDeflate.
+ */
+
+public class FilterScaleOffset extends FilterBase {
+
+
+/** Scale type: floats, scaled by a power of 10. */
+public static final int SO_FLOAT_DSCALE = 0;
+/** Scale type: integers. */
+public static final int SO_INT = 2;
+/** For SO_INT, scaleFactor meaning: find the min bits for each chunk. */
+public static final int SO_INT_MINBITS_DEFAULT = 0;
+
+/** Num client values, as set by H5Z_set_local_scaleoffset. */
+static final int NUM_PARM = 20;
+
+/** Len of the header at the start of each encoded chunk. */
+static final int HDR_LEN = 21;
+
+// Client value indices and values
+static final int PARM_SCALETYPE    = 0;
+static final int PARM_SCALEFACTOR  = 1;
+static final int PARM_NELMTS       = 2;
+static final int PARM_CLASS        = 3;
+static final int PARM_SIZE         = 4;
+static final int PARM_SIGN         = 5;
+static final int PARM_ORDER        = 6;
+static final int PARM_FILAVAIL     = 7;
+static final int PARM_FILVAL       = 8;
+
+static final int CLS_INTEGER       = 0;
+static final int CLS_FLOAT         = 1;
+static final int SGN_NONE          = 0;
+static final int SGN_2             = 1;
+static final int ORDER_LE          = 0;
+static final int FILL_UNDEFINED    = 0;
+static final int FILL_DEFINED      = 1;
+
+
+int scaleType;            // SO_INT or SO_FLOAT_DSCALE
+int scaleFactor;          // minbits for SO_INT; decimal digits for DSCALE
+Object fillValue;         // fill value, or null
+
+
+
+/**
+ * @param scaleType  SO_INT or SO_FLOAT_DSCALE.
+ * @param scaleFactor  For SO_INT, the num bits to keep,
+ *    or SO_INT_MINBITS_DEFAULT.
+ *    For SO_FLOAT_DSCALE, the num decimal digits to keep
+ *    after the decimal point.
+ */
+
+public FilterScaleOffset(
+  int scaleType,
+  int scaleFactor)
+throws HdfException
+{
+  this( scaleType, scaleFactor, null);
+}
+
+
+
+/**
+ * @param scaleType  SO_INT or SO_FLOAT_DSCALE.
+ * @param scaleFactor  For SO_INT, the num bits to keep,
+ *    or SO_INT_MINBITS_DEFAULT.
+ *    For SO_FLOAT_DSCALE, the num decimal digits to keep
+ *    after the decimal point.
+ * @param fillValue  The variable's fill value, or null.
+ *    Must have the class matching the variable's dtype,
+ *    as for HdfGroup.addVariable.
+ */
+
+public FilterScaleOffset(
+  int scaleType,
+  int scaleFactor,
+  Object fillValue)
+throws HdfException
+{
+  if (scaleType == SO_INT) {
+    if (scaleFactor < 0 || scaleFactor > 64)
+      HdfUtil.throwerr("invalid scaleFactor for SO_INT: %d", scaleFactor);
+  }
+  else if (scaleType == SO_FLOAT_DSCALE) {
+    if (scaleFactor < 0 || scaleFactor > 30)
+      HdfUtil.throwerr("invalid scaleFactor for SO_FLOAT_DSCALE: %d",
+        scaleFactor);
+  }
+  else HdfUtil.throwerr("unsupported scaleType: %d", scaleType);
+  this.scaleType = scaleType;
+  this.scaleFactor = scaleFactor;
+  this.fillValue = fillValue;
+}
+
+
+
+public int getFilterId() {
+  return MsgFilter.FILT_SCALEOFFSET;
+}
+
+
+
+/**
+ * Returns the NUM_PARM client values, as H5Z_set_local_scaleoffset
+ * sets them: scale type and factor, num elements in a chunk,
+ * type class, size, sign, and byte order, and the fill value.
+ */
+
+public int[] getClientValues(
+  int dtype,
+  int elementLen,
+  int[] chunkDims)
+throws HdfException
+{
+  boolean isFloat = isFloatType( dtype);
+  if (isFloat && scaleType != SO_FLOAT_DSCALE)
+    HdfUtil.throwerr("float dtype requires SO_FLOAT_DSCALE");
+  if (! isFloat && scaleType != SO_INT)
+    HdfUtil.throwerr("scale offset requires an integer or float dtype,"
+      + " with SO_INT for integers");
+  if (scaleType == SO_INT && scaleFactor > 8 * elementLen)
+    HdfUtil.throwerr("scaleFactor %d exceeds the element bits", scaleFactor);
+
+  long numEle = 1;
+  for (int dim : chunkDims) {
+    numEle *= dim;
+  }
+
+  int[] vals = new int[ NUM_PARM];
+  vals[PARM_SCALETYPE] = scaleType;
+  vals[PARM_SCALEFACTOR] = scaleFactor;
+  vals[PARM_NELMTS] = (int) numEle;
+  vals[PARM_CLASS] = isFloat ? CLS_FLOAT : CLS_INTEGER;
+  vals[PARM_SIZE] = elementLen;
+  if (! isFloat)
+    vals[PARM_SIGN] = dtype == HdfGroup.DTYPE_UFIXED08 ? SGN_NONE : SGN_2;
+  vals[PARM_ORDER] = ORDER_LE;
+  if (fillValue != null) {
+    long fillBits = getFillBits( dtype);
+    vals[PARM_FILAVAIL] = FILL_DEFINED;
+    vals[PARM_FILVAL] = (int) fillBits;
+    if (elementLen == 8) vals[PARM_FILVAL + 1] = (int) (fillBits >>> 32);
+  }
+  else vals[PARM_FILAVAIL] = FILL_UNDEFINED;
+  return vals;
+}
+
+
+
+/**
+ * Returns a new buffer holding the encoded chunk.
+ */
+
+public ByteBuffer encode(
+  ByteBuffer inBuf,
+  int dtype,
+  int elementLen)
+throws HdfException
+{
+  ByteBuffer lbuf = inBuf.duplicate().order( ByteOrder.LITTLE_ENDIAN);
+  int len = lbuf.remaining();
+  int numEle = len / elementLen;
+  int fullBits = 8 * elementLen;
+  boolean hasFill = fillValue != null;
+
+  // codes: the value stored for each element, found by
+  // the min and scale.  minbits == fullBits means store as is.
+  int minbits;
+  long minval = 0;
+  long[] codes = null;
+
+  if (isFloatType( dtype)) {
+    boolean isDouble = dtype == HdfGroup.DTYPE_FLOAT64;
+    double[] vals = new double[ numEle];
+    for (int ii = 0; ii < numEle; ii++) {
+      if (isDouble) vals[ii] = lbuf.getDouble( lbuf.position() + 8 * ii);
+      else vals[ii] = lbuf.getFloat( lbuf.position() + 4 * ii);
+    }
+    double fill = 0;
+    if (hasFill) fill = ((Number) fillValue).doubleValue();
+    double fillTol = Math.pow( 10, -scaleFactor);
+    boolean[] isFill = new boolean[ numEle];
+
+    double min = 0;
+    double max = 0;
+    boolean haveVal = false;
+    for (int ii = 0; ii < numEle; ii++) {
+      double val = vals[ii];
+      if (hasFill && Math.abs( val - fill) < fillTol) isFill[ii] = true;
+      else if (! haveVal) {
+        min = val;
+        max = val;
+        haveVal = true;
+      }
+      else {
+        if (val > max) max = val;
+        if (val < min) min = val;
+      }
+    }
+
+    double range = scaleDiff( max, min, isDouble);
+    if (rnd( range) > Math.pow( 2, fullBits - 1))
+      minbits = fullBits;
+    else {
+      long span = rnd( range) + 1;
+      minbits = log2( hasFill ? span + 1 : span);
+      if (isDouble) minval = Double.doubleToRawLongBits( min);
+      else minval = Float.floatToRawIntBits( (float) min) & 0xffffffffL;
+    }
+    if (minbits < fullBits) {
+      codes = new long[ numEle];
+      for (int ii = 0; ii < numEle; ii++) {
+        if (isFill[ii]) codes[ii] = (1L << minbits) - 1;
+        else codes[ii] = rnd( scaleDiff( vals[ii], min, isDouble));
+      }
+    }
+  }
+
+  else {                   // else integer
+    long[] vals = new long[ numEle];
+    for (int ii = 0; ii < numEle; ii++) {
+      vals[ii] = getInt( lbuf, lbuf.position() + elementLen * ii, dtype);
+    }
+    long fill = 0;
+    if (hasFill) fill = toLong( getFillBits( dtype), dtype);
+
+    long min = 0;
+    long max = 0;
+    boolean haveVal = false;
+    for (int ii = 0; ii < numEle; ii++) {
+      long val = vals[ii];
+      if (hasFill && val == fill) continue;
+      if (! haveVal) {
+        min = val;
+        max = val;
+        haveVal = true;
+      }
+      else {
+        if (val > max) max = val;
+        if (val < min) min = val;
+      }
+    }
+
+    if (scaleFactor != SO_INT_MINBITS_DEFAULT) {
+      minbits = scaleFactor;
+      minval = min;
+    }
+    else {
+      // The range, unsigned, must leave room for span and
+      // maybe the fill code.
+      long diff = max - min;
+      long maxDiff = fullBits == 64 ? -3 : (1L << fullBits) - 3;
+      if (diff + Long.MIN_VALUE > maxDiff + Long.MIN_VALUE)
+        minbits = fullBits;
+      else {
+        long span = diff + 1;
+        minbits = log2( hasFill ? span + 1 : span);
+        minval = min;
+      }
+    }
+    if (minbits < fullBits) {
+      codes = new long[ numEle];
+      for (int ii = 0; ii < numEle; ii++) {
+        if (hasFill && vals[ii] == fill) codes[ii] = (1L << minbits) - 1;
+        else codes[ii] = vals[ii] - min;
+      }
+    }
+  } // else integer
+
+  // As HDF5: the header, then either the raw chunk
+  // or the packed codes.
+  int outLen = HDR_LEN + (int) ((long) len * minbits / fullBits) + 1;
+  byte[] outBytes = new byte[ outLen];
+  for (int ii = 0; ii < 4; ii++) {
+    outBytes[ii] = (byte) (minbits >>> (8 * ii));
+  }
+  outBytes[4] = 8;                  // len of minval
+  for (int ii = 0; ii < 8; ii++) {
+    outBytes[5 + ii] = (byte) (minval >>> (8 * ii));
+  }
+
+  if (minbits == fullBits)
+    lbuf.duplicate().get( outBytes, HDR_LEN, len);
+  else if (minbits > 0)
+    packBits( codes, minbits, outBytes, HDR_LEN);
+
+  return ByteBuffer.wrap( outBytes);
+}
+
+
+
+public String toString() {
+  return super.toString() + "  scaleType: " + scaleType
+    + "  scaleFactor: " + scaleFactor + "  fillValue: " + fillValue;
+}
+
+
+
+
+/**
+ * Returns (val - min) * 10^scaleFactor, computed as HDF5 does
+ * in the precision of the data type.
+ */
+
+double scaleDiff(
+  double val,
+  double min,
+  boolean isDouble)
+{
+  double res;
+  if (isDouble) {
+    double pow = Math.pow( 10, scaleFactor);
+    res = val * pow - min * pow;
+  }
+  else {
+    float pow = (float) Math.pow( 10, scaleFactor);
+    res = (float) val * pow - (float) min * pow;
+  }
+  return res;
+}
+
+
+
+
+/**
+ * Packs the low numBits bits of each code into outBytes,
+ * starting at outBytes[opos], most significant bit first,
+ * as H5Z_scaleoffset_compress does.
+ */
+
+static void packBits(
+  long[] codes,
+  int numBits,
+  byte[] outBytes,
+  int opos)
+{
+  long acc = 0;            // pending bits, right aligned
+  int accLen = 0;          // num pending bits, always < 8 between codes
+  int highBits = Math.max( 0, numBits - 32);
+  int lowBits = numBits - highBits;
+  long lowMask = (1L << lowBits) - 1;
+  for (long code : codes) {
+    if (highBits > 0) {
+      acc = (acc << highBits) | ((code >>> 32) & ((1L << highBits) - 1));
+      accLen += highBits;
+      while (accLen >= 8) {
+        accLen -= 8;
+        outBytes[opos++] = (byte) (acc >>> accLen);
+      }
+    }
+    acc = (acc << lowBits) | (code & lowMask);
+    accLen += lowBits;
+    while (accLen >= 8) {
+      accLen -= 8;
+      outBytes[opos++] = (byte) (acc >>> accLen);
+    }
+  }
+  if (accLen > 0) outBytes[opos] = (byte) (acc << (8 - accLen));
+}
+
+
+
+
+/**
+ * Returns the num bits needed for values 0 through num - 1,
+ * where num is unsigned: ceil( log2( num)).
+ */
+
+static int log2( long num) {
+  return 64 - Long.numberOfLeadingZeros( num - 1);
+}
+
+
+
+
+/**
+ * Rounds half away from zero, like llround.
+ */
+
+static long rnd( double val) {
+  return val >= 0 ? Math.round( val) : -Math.round( -val);
+}
+
+
+
+
+static boolean isFloatType( int dtype) {
+  return dtype == HdfGroup.DTYPE_FLOAT32 || dtype == HdfGroup.DTYPE_FLOAT64;
+}
+
+
+
+
+/**
+ * Reads one integer element: signed, except DTYPE_UFIXED08.
+ */
+
+static long getInt(
+  ByteBuffer lbuf,
+  int pos,
+  int dtype)
+throws HdfException
+{
+  long res = 0;
+  if (dtype == HdfGroup.DTYPE_SFIXED08) res = lbuf.get( pos);
+  else if (dtype == HdfGroup.DTYPE_UFIXED08) res = lbuf.get( pos) & 0xff;
+  else if (dtype == HdfGroup.DTYPE_FIXED16) res = lbuf.getShort( pos);
+  else if (dtype == HdfGroup.DTYPE_FIXED32) res = lbuf.getInt( pos);
+  else if (dtype == HdfGroup.DTYPE_FIXED64) res = lbuf.getLong( pos);
+  else HdfUtil.throwerr("scale offset requires an integer or float dtype");
+  return res;
+}
+
+
+
+
+/**
+ * Interprets the low bytes of fillBits as getInt does.
+ */
+
+static long toLong(
+  long fillBits,
+  int dtype)
+{
+  long res = fillBits;
+  if (dtype == HdfGroup.DTYPE_SFIXED08) res = (byte) fillBits;
+  else if (dtype == HdfGroup.DTYPE_FIXED16) res = (short) fillBits;
+  else if (dtype == HdfGroup.DTYPE_FIXED32) res = (int) fillBits;
+  return res;
+}
+
+
+
+
+/**
+ * Returns the bits of fillValue, in the low bytes.
+ */
+
+long getFillBits( int dtype)
+throws HdfException
+{
+  long res = 0;
+  if (dtype == HdfGroup.DTYPE_SFIXED08 || dtype == HdfGroup.DTYPE_UFIXED08) {
+    if (! (fillValue instanceof Byte)) throwFillType( dtype);
+    res = ((Byte) fillValue).byteValue() & 0xffL;
+  }
+  else if (dtype == HdfGroup.DTYPE_FIXED16) {
+    if (! (fillValue instanceof Short)) throwFillType( dtype);
+    res = ((Short) fillValue).shortValue() & 0xffffL;
+  }
+  else if (dtype == HdfGroup.DTYPE_FIXED32) {
+    if (! (fillValue instanceof Integer)) throwFillType( dtype);
+    res = ((Integer) fillValue).intValue() & 0xffffffffL;
+  }
+  else if (dtype == HdfGroup.DTYPE_FIXED64) {
+    if (! (fillValue instanceof Long)) throwFillType( dtype);
+    res = ((Long) fillValue).longValue();
+  }
+  else if (dtype == HdfGroup.DTYPE_FLOAT32) {
+    if (! (fillValue instanceof Float)) throwFillType( dtype);
+    res = Float.floatToRawIntBits( ((Float) fillValue).floatValue())
+      & 0xffffffffL;
+  }
+  else if (dtype == HdfGroup.DTYPE_FLOAT64) {
+    if (! (fillValue instanceof Double)) throwFillType( dtype);
+    res = Double.doubleToRawLongBits( ((Double) fillValue).doubleValue());
+  }
+  else throwFillType( dtype);
+  return res;
+}
+
+
+
+void throwFillType( int dtype)
+throws HdfException
+{
+  HdfUtil.throwerr("fillValue class %s doesn't match dtype %s",
+    fillValue.getClass().getName(), HdfGroup.dtypeNames[dtype]);
+}
+
+
+
+} // end class
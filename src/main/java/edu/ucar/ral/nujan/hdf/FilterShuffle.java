@@ -0,0 +1,146 @@
+// The MIT License
+// 
+// Copyright (c) 2010 University Corporation for Atmospheric Research
+// 
+// Permission is hereby granted, free of charge, to any person
+// obtaining a copy of this software and associated documentation
+// files (the "Software"), to deal in the Software without
+// restriction, including without limitation the rights to use,
+// copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following
+// conditions:
+// 
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+// 
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+// OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT.  IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+// HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+// WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+// FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+
+
+package edu.ucar.ral.nujan.hdf;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * The HDF5 shuffle filter, id 2.
+ * Stores the first bytes of all elements in a chunk, then the
+ * second bytes, and so on.  For numeric data the high order bytes
+ * vary slowly, so a following FilterDeflate compresses
+ * the shuffled chunk better, and faster.
+ * <p>
+ * The client value is the element length.
+ * Like H5Pset_shuffle, we mark the filter optional.
+ */
+
+public class FilterShuffle extends FilterBase {
+
+
+public FilterShuffle() {
+}
+
+
+
+public int getFilterId() {
+  return MsgFilter.FILT_SHUFFLE;
+}
+
+
+
+public boolean isOptional() {
+  return true;
+}
+
+
+
+public int[] getClientValues(
+  int dtype,
+  int elementLen,
+  int[] chunkDims)
+{
+  return new int[] { elementLen};
+}
+
+
+
+/**
+ * Returns a new buffer holding the shuffled chunk.
+ * Reads straight from inBuf's backing array, if it has one.
+ */
+
+public ByteBuffer encode(
+  ByteBuffer inBuf,
+  int dtype,
+  int elementLen)
+{
+  int len = inBuf.remaining();
+  byte[] res;
+  if (inBuf.hasArray()) {
+    res = shuffleBytes( inBuf.array(),
+      inBuf.arrayOffset() + inBuf.position(), len, elementLen);
+  }
+  else {
+    byte[] rawBytes = new byte[ len];
+    inBuf.duplicate().get( rawBytes);
+    res = shuffleBytes( rawBytes, 0, len, elementLen);
+  }
+  return ByteBuffer.wrap( res);
+}
+
+
+
+
+/**
+ * Applies the HDF5 shuffle filter to rawBytes[off]
+ * through rawBytes[off+len-1]: byte ib of element ie
+ * is moved to position ib * numEle + ie,
+ * so the first bytes of all elements come first, then
+ * the second bytes, and so on.
+ * Leftover bytes, if len is not a multiple of eleLen,
+ * are copied unchanged to the end, as HDF5 does.
+ *
+ * @param rawBytes  The formatted chunk data.
+ * @param off  Index of the first byte.
+ * @param len  Number of bytes.
+ * @param eleLen  The element length in bytes.
+ * @return A new array of length len holding the shuffled bytes.
+ */
+
+static byte[] shuffleBytes(
+  byte[] rawBytes,
+  int off,
+  int len,
+  int eleLen)
+{
+  byte[] res = new byte[ len];
+  int numEle = len / eleLen;
+  if (eleLen == 1 || numEle <= 1)
+    System.arraycopy( rawBytes, off, res, 0, len);
+  else {
+    // Write each output stream sequentially.
+    for (int ib = 0; ib < eleLen; ib++) {
+      int ipos = off + ib;
+      int opos = ib * numEle;
+      int olim = opos + numEle;
+      while (opos < olim) {
+        res[opos++] = rawBytes[ipos];
+        ipos += eleLen;
+      }
+    }
+    int numDone = numEle * eleLen;
+    System.arraycopy( rawBytes, off + numDone, res, numDone, len - numDone);
+  }
+  return res;
+}
+
+
+
+
+} // end class
@@ -26,9 +26,16 @@
 
 package edu.ucar.ral.nujan.hdf;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.Buffer;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.ShortBuffer;
 import java.nio.channels.FileChannel;
 import java.util.zip.Deflater;
 
@@ -36,6 +43,21 @@ import java.util.zip.Deflater;
 /**
  * A write-only buffer either in memory or on top of an
  * open output FileChannel.
+ * <p>
+ * A buffer on a FileChannel may either write at the channel's
+ * own position, or at a fixed file position given to the constructor.
+ * The latter uses only positional writes, so several threads may
+ * write to different regions of the same channel.
+ * <p>
+ * A memory-only buffer may also compress: the compressed
+ * output is collected in memory, and retrieved after flush by
+ * getCompressedBytes.
+ * <p>
+ * With HdfFileWriter.OPT_MAP_DATA, a positional buffer of known
+ * length is instead a window on the mapped output file:
+ * puts go straight to the mapped pages.
+ * Similarly with HdfFileWriter.setCoalesceBuffer, it may be
+ * a region of the file's coalescing buffer.
  */
 
 class HBuffer {
@@ -53,7 +75,41 @@ static final int BLEN = 10000;
 private FileChannel outChannel;
 
 /**
- * Deflater compression level (0==none) for use with outChannel.
+ * If &gt;= 0, the file position for the next write to outChannel:
+ * writes are positional and advance chanPos.
+ * If &lt; 0, writes use the outChannel's own position.
+ */
+private long chanPos = -1;
+
+/**
+ * If &gt;= 0, bbuf is a region of the output file starting at
+ * this file position, either mapped or in the coalescing buffer,
+ * and is neither expanded nor written out.
+ */
+private long regionAddr = -1;
+
+/**
+ * If true, bbuf is a region of the coalescing buffer,
+ * which flush releases.
+ */
+private boolean isCoalesced = false;
+
+/**
+ * For a memory-only buffer that will be written somewhere
+ * other than file position 0, the file position of bbuf[0],
+ * so getAddr returns file addresses.
+ */
+private long baseAddr = 0;
+
+/**
+ * If outChannel == null and compressionLevel &gt; 0,
+ * the compressed output is collected here.
+ */
+private ByteArrayOutputStream compOut;
+
+/**
+ * Deflater compression level (0==none) for use with outChannel
+ * or compOut.
  */
 int compressionLevel;
 
@@ -81,7 +137,8 @@ Deflater deflater;
  *
  * @param outChannel Either an open output FileChannel, or null.
  * @param compressionLevel The Deflater compression level used with
- *     an open output FileChannel.  0 == no compression.
+ *     an open output FileChannel, or if outChannel is null,
+ *     for output collected in memory.  0 == no compression.
  * @param hdfFile The global owning HdfFileWriter.
  */
 
@@ -98,8 +155,7 @@ throws HdfException
   bbuf = ByteBuffer.allocate( BLEN);
   bbuf.order( ByteOrder.LITTLE_ENDIAN);
   if (compressionLevel > 0) {
-    if (outChannel == null)
-      throwerr("cannot have compressionLevel > 0 with no outChannel");
+    if (outChannel == null) compOut = new ByteArrayOutputStream();
     deflater = new Deflater( compressionLevel);
   }
   if (hdfFile.bugs >= 5) {
@@ -111,25 +167,130 @@ throws HdfException
 
 
 
+
+/**
+ * Creates a write-only, uncompressed buffer on top of an open
+ * output FileChannel, that writes starting at file position chanPos.
+ * Only positional writes are used: the channel's own position
+ * is neither used nor changed.
+ *
+ * @param outChannel An open output FileChannel.
+ * @param chanPos The file position for the first write.
+ * @param hdfFile The global owning HdfFileWriter.
+ */
+
+HBuffer(
+  FileChannel outChannel,
+  long chanPos,
+  HdfFileWriter hdfFile)
+throws HdfException
+{
+  this( outChannel, 0, hdfFile);
+  if (outChannel == null) throwerr("chanPos requires an outChannel");
+  if (chanPos < 0) throwerr("invalid chanPos: %d", chanPos);
+  this.chanPos = chanPos;
+}
+
+
+
+/**
+ * Creates a write-only, uncompressed buffer for exactly chanLen bytes
+ * of an open output FileChannel, starting at file position chanPos.
+ * With HdfFileWriter.OPT_MAP_DATA, the bytes are put
+ * into a mapped region of the file, from HdfFileWriter.mapRegion.
+ * Else if the file has a coalescing buffer with room, they are
+ * put into it, from HdfFileWriter.coalesceRegion.
+ * Else this is the same as HBuffer( outChannel, chanPos, hdfFile).
+ * Either way, the caller must call flush.
+ *
+ * @param outChannel An open output FileChannel.
+ * @param chanPos The file position for the first write.
+ * @param chanLen The number of bytes that will be written.
+ * @param hdfFile The global owning HdfFileWriter.
+ */
+
+HBuffer(
+  FileChannel outChannel,
+  long chanPos,
+  long chanLen,
+  HdfFileWriter hdfFile)
+throws HdfException
+{
+  this( outChannel, chanPos, hdfFile);
+  ByteBuffer regionBuf = hdfFile.mapRegion( chanPos, chanLen);
+  if (regionBuf == null) {
+    regionBuf = hdfFile.coalesceRegion( chanPos, chanLen);
+    isCoalesced = regionBuf != null;
+  }
+  if (regionBuf != null) {
+    bbuf = regionBuf;
+    regionAddr = chanPos;
+  }
+}
+
+
+
 public String toString() {
   String res = "outChannel:";
   if (outChannel == null) res += " null";
-  else {
-    try {
-      res += " pos: " + outChannel.position();
-    }
+  else res += " pos: " + getOutPos();
+  res += "  bbuf: " + bbuf;
+  return res;
+}
+
+
+
+
+/**
+ * Returns the file position of the next write to outChannel,
+ * or -1 if there's no outChannel.  For debug messages.
+ */
+
+long getOutPos()
+{
+  long res = -1;
+  if (regionAddr >= 0) res = regionAddr + bbuf.position();
+  else if (chanPos >= 0) res = chanPos;
+  else if (outChannel != null) {
+    try { res = outChannel.position(); }
     catch( IOException exc) {
       exc.printStackTrace();
-      res += " pos: " + exc + "  caught: " + exc;
     }
   }
-  res += "  bbuf: " + bbuf;
   return res;
 }
 
 
 
 
+/**
+ * Returns true if full bbufs are written out (to outChannel
+ * or to compOut) rather than expanded.
+ */
+
+private boolean isStreaming()
+{
+  return (outChannel != null || compOut != null) && regionAddr < 0;
+}
+
+
+
+
+/**
+ * Returns the compressed output collected for a memory-only
+ * buffer with compressionLevel &gt; 0.  Call after flush.
+ */
+
+byte[] getCompressedBytes()
+throws HdfException
+{
+  if (compOut == null) throwerr("no compressed output");
+  return compOut.toByteArray();
+}
+
+
+
+
 /**
  * Clears the in-memory buffer, but doesn't change the outChannel.
  */
@@ -150,6 +311,28 @@ int getPos() {
 
 
 
+/**
+ * Sets the file position of the start of this buffer,
+ * used by getAddr.
+ */
+
+void setBaseAddr( long baseAddr) {
+  this.baseAddr = baseAddr;
+}
+
+
+
+/**
+ * Returns the file address of the current position:
+ * the base address plus getPos.
+ */
+
+long getAddr() {
+  return baseAddr + getPos();
+}
+
+
+
 /**
  * Sets the current position of the in-memory buffer.
  */
@@ -181,9 +364,9 @@ throws HdfException
   if (limPos < startPos || limPos > getPos()) throwerr("invalid limPos");
   int blen = (int) (limPos - startPos);
   byte[] bytes = new byte[blen];
-  for (int ii = 0; ii < blen; ii++) {
-    bytes[ii] = bbuf.get( (int) startPos + ii);
-  }
+  ByteBuffer dupBuf = bbuf.duplicate();
+  dupBuf.position( (int) startPos);
+  dupBuf.get( bytes);
   return bytes;
 }
 
@@ -191,6 +374,24 @@ throws HdfException
 
 
 
+/**
+ * Returns a view of the in-memory buffer, for 0 &lt;= pos &lt; getPos(),
+ * without copying.  The view shares bbuf, so it is only valid
+ * until the next put or clear.
+ */
+
+ByteBuffer getBufView()
+{
+  ByteBuffer res = bbuf.duplicate();
+  res.order( bbuf.order());
+  res.flip();
+  return res;
+}
+
+
+
+
+
 /**
  * Writes the in-memory buffer to <b><tt>chan</tt><b>
  * - a <b>different</b> FileChannel than our outChannel.
@@ -218,6 +419,63 @@ throws HdfException
 
 
 
+/**
+ * Writes the in-memory buffer to <b><tt>chan</tt><b>
+ * starting at file position pos, using positional writes only.
+ * Must have outChannel == null and compressionLevel == 0.
+ */
+
+void writeChannel(
+  FileChannel chan,
+  long pos)
+throws HdfException
+{
+  if (hdfFile.bugs >= 5) {
+    prtf("writeChannel: pos: %d  bbuf: pos: %d  limit: %d  capacity: %d",
+      pos, getPos(), bbuf.limit(), bbuf.capacity());
+  }
+  if (outChannel != null) throwerr("two channels specified");
+  if (compressionLevel > 0) throwerr("compression not supported here");
+  bbuf.flip();
+
+  try {
+    while (bbuf.hasRemaining()) {
+      pos += chan.write( bbuf, pos);
+    }
+  }
+  catch( IOException exc) {
+    exc.printStackTrace();
+    throwerr("caught: %s", exc);
+  }
+  bbuf.clear();
+}
+
+
+
+
+/**
+ * Writes the remaining contents of buf to compOut, or to outChannel
+ * at chanPos, or to outChannel at its own position.
+ */
+
+private void writeOut( ByteBuffer buf)
+throws IOException
+{
+  if (compOut != null) {
+    byte[] bytes = new byte[ buf.remaining()];
+    buf.get( bytes);
+    compOut.write( bytes, 0, bytes.length);
+  }
+  else if (chanPos >= 0) {
+    while (buf.hasRemaining()) {
+      chanPos += outChannel.write( buf, chanPos);
+    }
+  }
+  else outChannel.write( buf);
+}
+
+
+
 /**
  * Insure bbuf has at least idelta free space - if bbuf is too full,
  * write bbuf to outChannel (if outChanel != null) or expand bbuf.
@@ -232,7 +490,10 @@ throws HdfException
   //}
 
   if (getPos() + idelta > bbuf.capacity()) {
-    if (outChannel == null) {
+    if (regionAddr >= 0)
+      throwerr("file region overflow: pos: %d  idelta: %d  capacity: %d",
+        getPos(), idelta, bbuf.capacity());
+    else if (! isStreaming()) {
       // Expand bbuf
       int newLen = 100 + 2 * (getPos() + idelta);
       if (hdfFile.bugs >= 10) {
@@ -260,7 +521,7 @@ throws HdfException
         if (compressionLevel > 0) writeCompressedOutput();
         else {
           bbuf.flip();
-          outChannel.write( bbuf);
+          writeOut( bbuf);
         }
       }
       catch( IOException exc) {
@@ -298,7 +559,7 @@ throws IOException, HdfException
     prtf("writeCompressedOutput.entry:");
     prtf("  bbuf: pos: %d  limit: %d  capacity: %d",
       getPos(), bbuf.limit(), bbuf.capacity());
-    prtf("  outChannel: pos: %d", outChannel.position());
+    prtf("  outChannel: pos: %d", getOutPos());
   }
   byte[] bytes = new byte[ getPos()];
   bbuf.flip();
@@ -315,11 +576,11 @@ throws IOException, HdfException
 
     cbuf.position( 0);
     cbuf.limit( compLen);
-    outChannel.write( cbuf);
+    writeOut( cbuf);
   }
   if (hdfFile.bugs >= 5) {
     prtf("writeCompressedOutput.exit:");
-    prtf("  outChannel: pos: %d", outChannel.position());
+    prtf("  outChannel: pos: %d", getOutPos());
   }
 }
 
@@ -327,15 +588,26 @@ throws IOException, HdfException
 
 
 /**
- * Writes bbuf to outChannel, compressing if need be.
+ * Writes bbuf to outChannel (or for a compressed memory-only buffer,
+ * to compOut), compressing if need be.
+ * For a mapped region, does nothing.
+ * For a region of the coalescing buffer, releases the region,
+ * so the coalescing buffer may be written out.
  */
 
 void flush()
 throws IOException, HdfException
 {
-  if (outChannel == null) throwerr("cannot flush null channel");
+  if (regionAddr >= 0) {           // already in the mapped pages
+    if (isCoalesced) {             // or the coalescing buffer
+      hdfFile.releaseRegion();
+      isCoalesced = false;
+    }
+    return;
+  }
+  if (! isStreaming()) throwerr("cannot flush null channel");
   if (hdfFile.bugs >= 5)
-    prtf("flush.entry: outChannel.pos: %d", outChannel.position());
+    prtf("flush.entry: outChannel.pos: %d", getOutPos());
   try {
     if (compressionLevel > 0) {
       deflater.finish();
@@ -344,7 +616,7 @@ throws IOException, HdfException
     }
     else {
       bbuf.flip();
-      outChannel.write( bbuf);
+      writeOut( bbuf);
     }
   }
   catch( IOException exc) {
@@ -353,7 +625,7 @@ throws IOException, HdfException
   }
   bbuf.clear();
   if (hdfFile.bugs >= 5)
-    prtf("flush.exit: outChannel.pos: %d", outChannel.position());
+    prtf("flush.exit: outChannel.pos: %d", getOutPos());
 }
 
 
@@ -507,6 +779,351 @@ throws HdfException
 
 
 
+/**
+ * Insures bbuf has room for at least one more element of eleLen bytes,
+ * and returns how many of the numEle remaining elements fit.
+ * Called by the bulk putBuf*s methods, once per pass.
+ * <p>
+ * For a memory-only buffer we expand once for the whole row.
+ * With an outChannel (or compOut) we never grow bbuf past its
+ * capacity: we flush what we have and fill at most one buffer per pass.
+ */
+
+private int prepBulk(
+  int eleLen,
+  int numEle)
+throws HdfException
+{
+  long needLen = (long) eleLen * numEle;
+  if (! isStreaming()) expandBuf( (int) needLen);
+  else {
+    int maxLen = bbuf.capacity() - bbuf.capacity() % eleLen;
+    expandBuf( (int) Math.min( needLen, maxLen));
+  }
+  return Math.min( numEle, bbuf.remaining() / eleLen);
+}
+
+
+
+/**
+ * Puts len bytes, starting at values[off], to the internal buffer.
+ * @param name  debug name
+ * @param values the source array.
+ * @param off  index of the first element to copy.
+ * @param len  number of elements to copy.
+ */
+
+void putBufBytes(
+  String name,
+  byte[] values,
+  int off,
+  int len)
+throws HdfException
+{
+  if (hdfFile.bugs >= 5) {
+    for (int ii = 0; ii < len; ii++) {
+      putBufByte( name, 0xff & values[off+ii]);
+    }
+  }
+  else {
+    while (len > 0) {
+      int nput = prepBulk( 1, len);
+      bbuf.put( values, off, nput);
+      off += nput;
+      len -= nput;
+    }
+  }
+}
+
+
+
+/**
+ * Puts len copies of a single byte to the internal buffer.
+ * @param name  debug name
+ * @param value contains the value in the low order byte.
+ * @param len  number of bytes to put.
+ */
+
+void putBufFill(
+  String name,
+  int value,
+  int len)
+throws HdfException
+{
+  if (hdfFile.bugs >= 5) {
+    for (int ii = 0; ii < len; ii++) {
+      putBufByte( name, value);
+    }
+  }
+  else {
+    if (value < 0 || value > 255)
+      throwerr("putBufFill: invalid value: " + value);
+    while (len > 0) {
+      int nput = prepBulk( 1, len);
+      for (int ii = 0; ii < nput; ii++) {
+        bbuf.put( (byte) value);
+      }
+      len -= nput;
+    }
+  }
+}
+
+
+
+/**
+ * Puts len shorts, starting at values[off], to the internal buffer.
+ * @param name  debug name
+ * @param values the source array.
+ * @param off  index of the first element to copy.
+ * @param len  number of elements to copy.
+ */
+
+void putBufShorts(
+  String name,
+  short[] values,
+  int off,
+  int len)
+throws HdfException
+{
+  if (hdfFile.bugs >= 5) {
+    for (int ii = 0; ii < len; ii++) {
+      putBufShort( name, values[off+ii]);
+    }
+  }
+  else {
+    while (len > 0) {
+      int nput = prepBulk( 2, len);
+      bbuf.asShortBuffer().put( values, off, nput);
+      bbuf.position( bbuf.position() + 2 * nput);
+      off += nput;
+      len -= nput;
+    }
+  }
+}
+
+
+
+/**
+ * Puts len ints, starting at values[off], to the internal buffer.
+ * @param name  debug name
+ * @param values the source array.
+ * @param off  index of the first element to copy.
+ * @param len  number of elements to copy.
+ */
+
+void putBufInts(
+  String name,
+  int[] values,
+  int off,
+  int len)
+throws HdfException
+{
+  if (hdfFile.bugs >= 5) {
+    for (int ii = 0; ii < len; ii++) {
+      putBufInt( name, values[off+ii]);
+    }
+  }
+  else {
+    while (len > 0) {
+      int nput = prepBulk( 4, len);
+      bbuf.asIntBuffer().put( values, off, nput);
+      bbuf.position( bbuf.position() + 4 * nput);
+      off += nput;
+      len -= nput;
+    }
+  }
+}
+
+
+
+/**
+ * Puts len longs, starting at values[off], to the internal buffer.
+ * @param name  debug name
+ * @param values the source array.
+ * @param off  index of the first element to copy.
+ * @param len  number of elements to copy.
+ */
+
+void putBufLongs(
+  String name,
+  long[] values,
+  int off,
+  int len)
+throws HdfException
+{
+  if (hdfFile.bugs >= 5) {
+    for (int ii = 0; ii < len; ii++) {
+      putBufLong( name, values[off+ii]);
+    }
+  }
+  else {
+    while (len > 0) {
+      int nput = prepBulk( 8, len);
+      bbuf.asLongBuffer().put( values, off, nput);
+      bbuf.position( bbuf.position() + 8 * nput);
+      off += nput;
+      len -= nput;
+    }
+  }
+}
+
+
+
+/**
+ * Puts len floats, starting at values[off], to the internal buffer.
+ * @param name  debug name
+ * @param values the source array.
+ * @param off  index of the first element to copy.
+ * @param len  number of elements to copy.
+ */
+
+void putBufFloats(
+  String name,
+  float[] values,
+  int off,
+  int len)
+throws HdfException
+{
+  if (hdfFile.bugs >= 5) {
+    for (int ii = 0; ii < len; ii++) {
+      putBufFloat( name, values[off+ii]);
+    }
+  }
+  else {
+    while (len > 0) {
+      int nput = prepBulk( 4, len);
+      bbuf.asFloatBuffer().put( values, off, nput);
+      bbuf.position( bbuf.position() + 4 * nput);
+      off += nput;
+      len -= nput;
+    }
+  }
+}
+
+
+
+/**
+ * Puts len doubles, starting at values[off], to the internal buffer.
+ * @param name  debug name
+ * @param values the source array.
+ * @param off  index of the first element to copy.
+ * @param len  number of elements to copy.
+ */
+
+void putBufDoubles(
+  String name,
+  double[] values,
+  int off,
+  int len)
+throws HdfException
+{
+  if (hdfFile.bugs >= 5) {
+    for (int ii = 0; ii < len; ii++) {
+      putBufDouble( name, values[off+ii]);
+    }
+  }
+  else {
+    while (len > 0) {
+      int nput = prepBulk( 8, len);
+      bbuf.asDoubleBuffer().put( values, off, nput);
+      bbuf.position( bbuf.position() + 8 * nput);
+      off += nput;
+      len -= nput;
+    }
+  }
+}
+
+
+
+/**
+ * Puts len elements, starting at element off past the position
+ * of values, to the internal buffer.
+ * The position of values is not changed.
+ * <p>
+ * A ByteBuffer holds the raw bytes of elements eleLen bytes long,
+ * in its own byte order.  If that's little endian, or eleLen == 1,
+ * the bytes are copied as is; else they are swapped.
+ * The other Buffer types are copied by value.
+ *
+ * @param name  debug name
+ * @param values the source Buffer: ByteBuffer, ShortBuffer, IntBuffer,
+ *    LongBuffer, FloatBuffer, or DoubleBuffer.
+ * @param eleLen  length in bytes of one element.
+ * @param off  index of the first element to copy,
+ *    relative to values.position().
+ * @param len  number of elements to copy.
+ */
+
+void putBufBuffer(
+  String name,
+  Buffer values,
+  int eleLen,
+  int off,
+  int len)
+throws HdfException
+{
+  if (hdfFile.bugs >= 5)
+    prtf("putBufBuffer: %s  values: %s  eleLen: %d  off: %d  len: %d",
+      name, values, eleLen, off, len);
+
+  // Make src, a view on just the elements we want,
+  // in the byte order of the values.
+  Buffer src = null;
+  if (values instanceof ByteBuffer) {
+    ByteOrder order = ((ByteBuffer) values).order();
+    ByteBuffer bsrc = ((ByteBuffer) values).duplicate();
+    bsrc.position( values.position() + off * eleLen);
+    bsrc.limit( bsrc.position() + len * eleLen);
+    bsrc = bsrc.slice();
+    bsrc.order( order);
+    if (eleLen == 1 || order == ByteOrder.LITTLE_ENDIAN) src = bsrc;
+    else if (eleLen == 2) src = bsrc.asShortBuffer();
+    else if (eleLen == 4) src = bsrc.asIntBuffer();
+    else if (eleLen == 8) src = bsrc.asLongBuffer();
+    else throwerr("putBufBuffer: invalid eleLen: %d", eleLen);
+  }
+  else {
+    if (values instanceof ShortBuffer)
+      src = ((ShortBuffer) values).duplicate();
+    else if (values instanceof IntBuffer)
+      src = ((IntBuffer) values).duplicate();
+    else if (values instanceof LongBuffer)
+      src = ((LongBuffer) values).duplicate();
+    else if (values instanceof FloatBuffer)
+      src = ((FloatBuffer) values).duplicate();
+    else if (values instanceof DoubleBuffer)
+      src = ((DoubleBuffer) values).duplicate();
+    else throwerr("putBufBuffer: unsupported Buffer: %s", values.getClass());
+    src.position( src.position() + off);
+    src.limit( src.position() + len);
+  }
+
+  while (len > 0) {
+    int nput = prepBulk( eleLen, len);
+    if (src instanceof ByteBuffer) {
+      src.limit( src.position() + nput * eleLen);
+      bbuf.put( (ByteBuffer) src);
+    }
+    else {
+      src.limit( src.position() + nput);
+      if (src instanceof ShortBuffer)
+        bbuf.asShortBuffer().put( (ShortBuffer) src);
+      else if (src instanceof IntBuffer)
+        bbuf.asIntBuffer().put( (IntBuffer) src);
+      else if (src instanceof LongBuffer)
+        bbuf.asLongBuffer().put( (LongBuffer) src);
+      else if (src instanceof FloatBuffer)
+        bbuf.asFloatBuffer().put( (FloatBuffer) src);
+      else if (src instanceof DoubleBuffer)
+        bbuf.asDoubleBuffer().put( (DoubleBuffer) src);
+      bbuf.position( bbuf.position() + eleLen * nput);
+    }
+    len -= nput;
+  }
+}
+
+
+
 /**
  * Appends the contents of inBuf to our internal buffer.
  * @param name  debug name
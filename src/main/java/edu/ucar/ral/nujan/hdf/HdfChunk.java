@@ -38,6 +38,14 @@ HdfGroup hdfGroup;        // the owning group
 long chunkDataSize;       // size = disk space used; may be less than the
                           //   product of dims * eleSize if compressed
 long chunkDataAddr;       // offset on disk
+int filterMask;           // bit ii is set if filter ii of the variable's
+                          //   filter chain was skipped for this chunk
+boolean chunkQueued;      // being written by writeData, or submitted
+                          //   to the ChunkCompressor, but not yet
+                          //   written
+byte[] compactData;       // for a compact variable, the raw data,
+                          //   kept in the layout message rather
+                          //   than at chunkDataAddr
 
 
 
@@ -61,7 +69,8 @@ public String toString() {
   String res =
       "  chunkStartIxs: " + HdfUtil.formatInts( chunkStartIxs) + "\n"
     + "  chunkDataSize: " + chunkDataSize + "\n"
-    + "  chunkDataAddr: " + chunkDataAddr;
+    + "  chunkDataAddr: " + chunkDataAddr + "\n"
+    + "  filterMask: " + filterMask;
   return res;
 } // end toString
 
@@ -30,11 +30,17 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.SimpleTimeZone;
 
 
@@ -76,6 +82,69 @@ static String softwareVersion = "0.9.2";
  */
 public static final int OPT_ALLOW_OVERWRITE = 1;
 
+/**
+ * Bit flag for optFlag: allow sparse chunked variables.
+ * Chunks that are never written are legal, and are left
+ * out of the chunk Btree, so readers see the fill value.
+ * Chunks passed to writeData that contain only the
+ * fill value are not written.
+ */
+public static final int OPT_SPARSE_CHUNKS = 2;
+
+/**
+ * Bit flag for optFlag: write raw data through memory mapped
+ * windows on the output file, rather than through FileChannel.write.
+ * The uncompressed chunks of variables are formatted straight
+ * into the mapped pages.  Compressed chunks are copied into the
+ * mapped pages once compressed.
+ * The file is opened read/write, since FileChannel.map requires it,
+ * and is truncated to its final length in close.
+ * Some systems, such as Windows, cannot truncate a file while it
+ * is mapped: there close fails.
+ */
+public static final int OPT_MAP_DATA = 4;
+
+/**
+ * Bit flag for optFlag: deduplicate chunks.
+ * Each encoded chunk of a chunked variable is hashed with SHA-256,
+ * and a chunk identical to one already written, with the same
+ * filterMask, is not written again: its Btree entry points
+ * at the earlier copy.  Readers see no difference, since
+ * the chunk Btree holds only addresses.  Chunks of different
+ * variables may be shared.
+ * Unfiltered chunks are formatted to memory so they can be hashed.
+ * Tools that modify chunks in place, rather than rewriting
+ * the file, would change every variable sharing the chunk.
+ * See getNumDedupChunk and getNumDedupByte.
+ */
+public static final int OPT_DEDUP_CHUNKS = 8;
+
+/**
+ * With OPT_MAP_DATA, the length of each mapped window.
+ * Each window is mapped starting at the first region that
+ * didn't fit in the previous window.
+ */
+static final long MAP_WINDOW_LEN = 64 * 1024 * 1024;
+
+/**
+ * Length of the coalescing buffer used by writeBatch
+ * if setCoalesceBuffer was not called.
+ */
+public static final int DEFAULT_COALESCE_LEN = 8 * 1024 * 1024;
+
+/**
+ * Target chunk len in bytes for variables added with
+ * HdfGroup.CHUNK_AUTO, if setAutoChunkBytes was not called.
+ */
+public static final long DEFAULT_AUTO_CHUNK_BYTES = 1024 * 1024;
+
+/**
+ * Max len of the raw data of a compact variable.
+ * The data are stored in a header message, whose
+ * len field is 2 bytes.
+ */
+public static final int MAX_COMPACT_LEN = 65520;
+
 
 
 
@@ -140,8 +209,9 @@ String filePath;
 
 
 /**
- * Options passed to the constructor.
- * Currently the only possible option is OPT_ALLOW_OVERWRITE.
+ * Options passed to the constructor:
+ * OPT_ALLOW_OVERWRITE, OPT_SPARSE_CHUNKS, OPT_MAP_DATA,
+ * OPT_DEDUP_CHUNKS.
  */
 int optFlag;                    // zero or more OPT_* bit options
 
@@ -161,9 +231,17 @@ long utcModTimeMilliSec;
 long utcModTimeSec;
 
 /**
- * The max num of kids in any Btree node.
+ * The K value for chunk Btrees: each BtreeNode holds at most
+ * 2*K entries.  Set in endDefine by setBtreeChunkK,
+ * and written as storageK by MsgKvalue.
  */
-int maxNumBtreeKid = 100;
+int btreeChunkK = 1;
+
+/**
+ * Upper limit for btreeChunkK.  This is the HDF5 default,
+ * HDF5_BTREE_CHUNK_IK_DEF.
+ */
+static final int MAX_BTREE_CHUNK_K = 32;
 
 /**
  * Current indentation level, for debug only.
@@ -199,14 +277,142 @@ private HBuffer mainBuf;
 
 /**
  * Output stream for outFile, underneath outChannel.
+ * Null with OPT_MAP_DATA.
  */
 FileOutputStream outStream;
 
 /**
- * Output channel for outFile, on top of outStream.
+ * With OPT_MAP_DATA, the read/write file underneath outChannel.
+ */
+RandomAccessFile outRaf;
+
+/**
+ * Output channel for outFile, on top of outStream or outRaf.
  */
 FileChannel outChannel;
 
+/**
+ * With OPT_MAP_DATA, the current mapped window on outChannel,
+ * and its file position.  Set by mapRegion.
+ */
+private MappedByteBuffer mapWindow = null;
+private long mapWindowAddr = 0;
+
+/**
+ * With OPT_MAP_DATA, the number of windows mapped.
+ */
+long numMapWindow = 0;
+
+/**
+ * Length of the coalescing buffer.  0 means none.
+ * Set by setCoalesceBuffer.
+ */
+int coalesceLen = 0;
+
+/**
+ * Target chunk len in bytes for HdfGroup.CHUNK_AUTO.
+ * Set by setAutoChunkBytes.
+ */
+long autoChunkBytes = DEFAULT_AUTO_CHUNK_BYTES;
+
+/**
+ * Contiguous variables with at most this many bytes of raw data
+ * use compact storage.  0 means none.  Set by setCompactMax.
+ */
+int compactMax = 0;
+
+/**
+ * If not null, the coalescing buffer: holds the raw data for
+ * consecutive file regions starting at coalesceAddr,
+ * to be written in one positional write.
+ * Regions are handed out by coalesceRegion.
+ */
+private ByteBuffer coalesceBuf = null;
+private long coalesceAddr = 0;
+
+/**
+ * Number of regions handed out by coalesceRegion and not yet
+ * released.  coalesceBuf is only written when this is 0.
+ */
+private int numOpenRegion = 0;
+
+/**
+ * Number of regions put in coalesceBuf, and the number of
+ * times it was written to outChannel.
+ */
+long numCoalesceRegion = 0;
+long numCoalesceWrite = 0;
+
+/**
+ * Number of worker threads used to deflate chunks of
+ * compressed variables.  0 means compress on the client's thread.
+ * Set by setCompressThreads.
+ */
+int numCompressThread = 0;
+
+/**
+ * If numCompressThread &gt; 0, the worker pool used by
+ * HdfGroup.writeDataSub for compressed chunks.
+ * Created in endDefine, drained in close.
+ */
+ChunkCompressor chunkCompressor = null;
+
+/**
+ * If writeBehindMaxByte &gt; 0, writeData hands chunks to a
+ * WritePipeline with this budget.  Set by setWriteBehind.
+ */
+long writeBehindMaxByte = 0;
+
+/**
+ * Number of compress threads for the WritePipeline.
+ * Set by setWriteBehind.
+ */
+int writeBehindThreads = 0;
+
+/**
+ * If assemblyMaxByte &gt; 0, HdfGroup.writeHyperslab hands
+ * hyperslabs to a ChunkAssembler with this memory limit,
+ * spilling to a file in assemblySpillDir.
+ * Set by setAssemblyCache.
+ */
+long assemblyMaxByte = 0;
+String assemblySpillDir = null;
+
+/**
+ * Assembles chunks from HdfGroup.writeHyperslab, or null.
+ * Created in endDefine, drained in close.
+ */
+ChunkAssembler chunkAssembler = null;
+
+/**
+ * If writeBehindMaxByte &gt; 0, the pipeline used by
+ * HdfGroup.writeDataSub.  Created in endDefine, drained in close.
+ */
+WritePipeline writePipeline = null;
+
+/**
+ * With OPT_SPARSE_CHUNKS: the number of chunks passed to
+ * writeData that were skipped because they were all fill,
+ * and their total uncompressed length.
+ */
+long numFillChunk = 0;
+long numFillChunkByte = 0;
+
+/**
+ * With OPT_DEDUP_CHUNKS: the address of each distinct chunk written,
+ * keyed by dedupKey.  ByteBuffer equals and hashCode use the
+ * buffer contents.
+ */
+HashMap<ByteBuffer,Long> dedupMap = null;
+
+/**
+ * With OPT_DEDUP_CHUNKS: the number of chunks that were
+ * not written because an identical chunk was,
+ * and their total encoded length.
+ */
+long numDedupChunk = 0;
+long numDedupByte = 0;
+
 /**
  * List of BaseBlks that need to be formatted to mainBuf.
  * Used by formatBufAll, which is called by endDefine (formatPass=1)
@@ -251,7 +457,8 @@ final long baseAddress = 0;
 
 /**
  * Current address of the end of file.
- * This is updated by endDefine and HdfGroup.writeDataSub.
+ * This is set by endDefine, and after that only changed
+ * by allocSpace, so writeData may be called by several threads.
  */
 long eofAddr;
 
@@ -268,8 +475,9 @@ long statTimeOverall;
 /**
  * Creates a new HDF5 output file.
  * @param filePath  The name or disk path of the file to create.
- * @param optFlag  The bitwise OR of one or more OPT_* flags.
- *     Currently the only one implemented is OPT_ALLOW_OVERWRITE.
+ * @param optFlag  The bitwise OR of one or more OPT_* flags:
+ *     OPT_ALLOW_OVERWRITE, OPT_SPARSE_CHUNKS, OPT_MAP_DATA,
+ *     OPT_DEDUP_CHUNKS.
  */
 
 public HdfFileWriter(
@@ -286,8 +494,9 @@ throws HdfException
 /**
  * Creates a new HDF5 output file.
  * @param filePath  The name or disk path of the file to create.
- * @param optFlag  The bitwise OR of one or more OPT_* flags.
- *     Currently the only one implemented is OPT_ALLOW_OVERWRITE.
+ * @param optFlag  The bitwise OR of one or more OPT_* flags:
+ *     OPT_ALLOW_OVERWRITE, OPT_SPARSE_CHUNKS, OPT_MAP_DATA,
+ *     OPT_DEDUP_CHUNKS.
  */
 
 public HdfFileWriter(
@@ -307,8 +516,9 @@ throws HdfException
  * Do not use: for internal testing only.
  * Creates a new HDF5 output file.
  * @param filePath  The name or disk path of the file to create.
- * @param optFlag  The bitwise OR of one or more OPT_* flags.
- *     Currently the only one implemented is OPT_ALLOW_OVERWRITE.
+ * @param optFlag  The bitwise OR of one or more OPT_* flags:
+ *     OPT_ALLOW_OVERWRITE, OPT_SPARSE_CHUNKS, OPT_MAP_DATA,
+ *     OPT_DEDUP_CHUNKS.
  * @param debugLevel  Level for logging debug messages to stdout:<ul>
  *   <li>   0:   none
  *   <li>   1:   HdfGroup: addVariable, addAttribute, writeData
@@ -365,13 +575,22 @@ throws HdfException
     if ( ((optFlag & OPT_ALLOW_OVERWRITE) == 0)
       && new File( filePath).exists())
       throwerr("file \"%s\" already exists", filePath);
-    outStream = new FileOutputStream( filePath);
+    if ((optFlag & OPT_MAP_DATA) != 0) {
+      outRaf = new RandomAccessFile( filePath, "rw");
+      outRaf.setLength( 0);
+      outChannel = outRaf.getChannel();
+    }
+    else {
+      outStream = new FileOutputStream( filePath);
+      outChannel = outStream.getChannel();
+    }
   }
   catch( IOException exc) {
     exc.printStackTrace();
     throwerr("caught: %s", exc);
   }
-  outChannel = outStream.getChannel();
+  if ((optFlag & OPT_DEDUP_CHUNKS) != 0)
+    dedupMap = new HashMap<ByteBuffer,Long>();
 } // end constructor
 
 
@@ -427,6 +646,234 @@ public void setDebugLevel( int debugLevel) {
 
 
 
+/**
+ * Sets the number of worker threads used to deflate the chunks
+ * of compressed variables.
+ * If 0 (the default), each chunk is compressed on the thread
+ * calling HdfGroup.writeData.
+ * If numThread &gt; 0, writeData hands each compressed chunk
+ * to a pool of numThread threads, each with its own Deflater,
+ * and the compressed chunks are appended to the file in the
+ * order they finish.  The chunks still pending are written by close.
+ * <p>
+ * Must be called before endDefine.
+ * @param numThread  Number of worker threads, or 0 for none.
+ */
+
+public void setCompressThreads( int numThread)
+throws HdfException
+{
+  if (fileStatus != ST_DEFINING)
+    throwerr("must call setCompressThreads before endDefine");
+  if (numThread < 0) throwerr("invalid numThread: %d", numThread);
+  this.numCompressThread = numThread;
+}
+
+
+
+
+/**
+ * Enables asynchronous write-behind of chunk data.
+ * <p>
+ * HdfGroup.writeData formats the data to memory and returns.
+ * Chunks of compressed variables are then deflated by a pool of
+ * numCompressThread threads, and a single writer thread appends
+ * the chunks to the file.  close waits for all chunks to be written
+ * before writing the metadata.
+ * <p>
+ * The total raw length of all chunks in the pipeline is limited
+ * to maxByte: when it is reached, writeData waits for the writer.
+ * See getWriteBehindStatus for the queue depths and stall times.
+ * <p>
+ * DTYPE_STRING_VAR variables are still written by writeData itself.
+ * Cannot be combined with setCompressThreads.
+ * Must be called before endDefine.
+ *
+ * @param numCompressThread  Number of compress threads; at least 1.
+ * @param maxByte  Memory budget in bytes for chunks in the pipeline.
+ */
+
+public void setWriteBehind(
+  int numCompressThread,
+  long maxByte)
+throws HdfException
+{
+  if (fileStatus != ST_DEFINING)
+    throwerr("must call setWriteBehind before endDefine");
+  if (numCompressThread <= 0)
+    throwerr("invalid numCompressThread: %d", numCompressThread);
+  if (maxByte <= 0) throwerr("invalid maxByte: %d", maxByte);
+  this.writeBehindThreads = numCompressThread;
+  this.writeBehindMaxByte = maxByte;
+}
+
+
+
+
+
+/**
+ * Sets the length of a file level coalescing buffer for raw data.
+ * <p>
+ * Without it, HdfGroup.writeData writes each chunk with its own
+ * FileChannel.write calls.  With it, the formatted output of
+ * successive chunks (of the same or different variables) is
+ * collected in the buffer, and written with one large
+ * write when the buffer is full, or by writeBatch, or by close.
+ * Chunks longer than the buffer are written directly.
+ * <p>
+ * Not used with OPT_MAP_DATA, which needs no write calls.
+ * Must be called before endDefine.
+ * @param numByte  Length of the buffer, or 0 for none.
+ */
+
+public void setCoalesceBuffer( int numByte)
+throws HdfException
+{
+  if (fileStatus != ST_DEFINING)
+    throwerr("must call setCoalesceBuffer before endDefine");
+  if (numByte < 0) throwerr("invalid numByte: %d", numByte);
+  this.coalesceLen = numByte;
+}
+
+
+
+
+/**
+ * Sets the target chunk len in bytes for variables
+ * whose specChunkDims contain HdfGroup.CHUNK_AUTO or
+ * HdfGroup.CHUNK_AUTO_LONG.  The default is
+ * DEFAULT_AUTO_CHUNK_BYTES.  Larger chunks compress better and
+ * need fewer reads for large requests; smaller chunks cost
+ * less to read for small requests, and less writer memory.
+ * <p>
+ * Applies to variables added afterwards.
+ * Must be called before endDefine.
+ * @param numByte  Target len of a chunk.
+ */
+
+public void setAutoChunkBytes( long numByte)
+throws HdfException
+{
+  if (fileStatus != ST_DEFINING)
+    throwerr("must call setAutoChunkBytes before endDefine");
+  if (numByte <= 0) throwerr("invalid numByte: %d", numByte);
+  this.autoChunkBytes = numByte;
+}
+
+
+
+
+/**
+ * Sets the max len of the raw data of variables
+ * stored with compact layout.
+ * <p>
+ * Normally the raw data of a variable are written in
+ * their own block, and readers must seek to it.
+ * With compact layout, the raw data are stored in the
+ * variable's object header, which readers read anyway.
+ * This suits tiny variables such as scalars, short
+ * coordinate arrays, and the netCDF dimension scales.
+ * <p>
+ * At endDefine, each contiguous variable having at most numByte
+ * bytes of raw data switches to compact layout, except
+ * DTYPE_STRING_VAR, DTYPE_VLEN, and DTYPE_COMPOUND variables.
+ * Chunked and compressed variables are not affected.
+ * The data are held in memory until close.
+ * Must be called before endDefine.
+ *
+ * @param numByte  Max len, at most MAX_COMPACT_LEN, or 0 for none.
+ */
+
+public void setCompactMax( int numByte)
+throws HdfException
+{
+  if (fileStatus != ST_DEFINING)
+    throwerr("must call setCompactMax before endDefine");
+  if (numByte < 0 || numByte > MAX_COMPACT_LEN)
+    throwerr("invalid numByte: %d", numByte);
+  this.compactMax = numByte;
+}
+
+
+
+
+/**
+ * Enables HdfGroup.writeHyperslab, which writes hyperslabs
+ * that need not match the chunking of a variable.
+ * <p>
+ * Each hyperslab is copied into a staging buffer for each chunk
+ * it touches.  When all the elements of a chunk are written,
+ * the chunk is compressed and written as by writeData.
+ * The staging buffers in memory are limited to maxByte:
+ * when the limit is reached, the least recently used partial
+ * chunks are spilled to a temporary file in spillDir.
+ * close writes any partial chunks still staged, with the
+ * fill value in the elements never written.
+ * See getAssemblyStatus for the counts.
+ * <p>
+ * Must be called before endDefine.
+ *
+ * @param maxByte  Memory limit in bytes for the staging buffers.
+ * @param spillDir  Directory for the spill file, or null for
+ *    the default temporary directory.
+ */
+
+public void setAssemblyCache(
+  long maxByte,
+  String spillDir)
+throws HdfException
+{
+  if (fileStatus != ST_DEFINING)
+    throwerr("must call setAssemblyCache before endDefine");
+  if (maxByte <= 0) throwerr("invalid maxByte: %d", maxByte);
+  this.assemblyMaxByte = maxByte;
+  this.assemblySpillDir = spillDir;
+}
+
+
+
+
+/**
+ * Returns a one line summary of the chunk assembly cache:
+ * the chunks staged in memory and spilled, the bytes in
+ * memory and their high water mark, and the numbers of
+ * chunks completed, partial chunks written by close,
+ * spills, and reloads.
+ * Returns null if setAssemblyCache was not called,
+ * or before endDefine.
+ */
+
+public String getAssemblyStatus()
+{
+  String res = null;
+  if (chunkAssembler != null) res = chunkAssembler.toString();
+  return res;
+}
+
+
+
+
+/**
+ * Returns a one line summary of the write-behind pipeline:
+ * the chunks and bytes in flight, the current and max
+ * depths of the compress and write queues,
+ * the number of times and total milliseconds writeData
+ * waited for the memory budget, the writer's idle time,
+ * and the totals written.
+ * Returns null if setWriteBehind was not called,
+ * or before endDefine.
+ */
+
+public String getWriteBehindStatus()
+{
+  String res = null;
+  if (writePipeline != null) res = writePipeline.toString();
+  return res;
+}
+
+
+
+
 /**
  * Indicates the end of definition phase for the client.
  * <ul>
@@ -462,6 +909,17 @@ throws HdfException
   //if (bugs >= 2)
   //  prtf("HdfFileWriter.endDefine: set bugs = 0 for formatPass 1");
   //bugs = 0;
+  setBtreeChunkK();
+
+  // Small contiguous variables switch to compact layout
+  // before their headers are laid out.
+  if (compactMax > 0) {
+    ArrayList<HdfGroup> grpList = new ArrayList<HdfGroup>();
+    findAllGroups( rootGroup, grpList);
+    for (HdfGroup grp : grpList) {
+      grp.chooseCompact( compactMax);
+    }
+  }
   formatBufAll( 1);           // formatPass = 1
 
   bugs = debugLevel;
@@ -471,6 +929,19 @@ throws HdfException
 
   // Set eofAddr in superBlock
   eofAddr = mainBuf.getPos();
+
+  if (numCompressThread > 0 && writeBehindMaxByte > 0)
+    throwerr("cannot use both setCompressThreads and setWriteBehind");
+  if (numCompressThread > 0)
+    chunkCompressor = new ChunkCompressor( numCompressThread, this);
+  if (writeBehindMaxByte > 0)
+    writePipeline = new WritePipeline(
+      writeBehindThreads, writeBehindMaxByte, this);
+  if (coalesceLen > 0 && (optFlag & OPT_MAP_DATA) == 0)
+    coalesceBuf = ByteBuffer.allocateDirect( coalesceLen);
+  if (assemblyMaxByte > 0)
+    chunkAssembler = new ChunkAssembler(
+      assemblyMaxByte, assemblySpillDir, this);
   statTimea = printStat( statTimea, "wtr.endDefine.exit",
     "filePath: " + filePath);
 
@@ -511,20 +982,104 @@ throws HdfException
     throwerr("must call endDefine before calling close");
   else if (fileStatus == ST_CLOSED) throwerr("file is already closed");
   else if (fileStatus != ST_WRITEDATA) throwerr("invalid fileStatus");
+
+  // Write any partial chunks still being assembled.
+  // They are written by HdfGroup.writeDataSub, before ST_CLOSED.
+  if (chunkAssembler != null) {
+    chunkAssembler.drain();
+    statTimea = printStat( statTimea, "wtr.close.drain",
+      "assembler: " + chunkAssembler);
+  }
   fileStatus = ST_CLOSED;
 
-  // Insure all defined datasets have been written
+  // Write any chunks still being compressed
+  if (chunkCompressor != null) {
+    chunkCompressor.drain();
+    statTimea = printStat( statTimea, "wtr.close.drain",
+      "compressor: " + chunkCompressor);
+  }
+  if (writePipeline != null) {
+    writePipeline.drain();
+    statTimea = printStat( statTimea, "wtr.close.drain",
+      "pipeline: " + writePipeline);
+  }
+
+  if (bugs >= 1 && (optFlag & OPT_SPARSE_CHUNKS) != 0)
+    prtf("HdfFileWriter.close: skipped fill chunks: %d  bytes: %d",
+      numFillChunk, numFillChunkByte);
+  if (bugs >= 1 && dedupMap != null)
+    prtf("HdfFileWriter.close: dedup chunks: %d  bytes: %d  distinct: %d",
+      numDedupChunk, numDedupByte, dedupMap.size());
+
+  // Settle the length of unlimited variables, and write
+  // their chunk Btrees after the raw data.
+  formatRecordBtrees();
+
+  // Write the last of the coalescing buffer
+  if (coalesceBuf != null) {
+    synchronized (this) {
+      if (numOpenRegion != 0)
+        throwerr("close: writeData calls are still in progress");
+      flushCoalesce();
+    }
+    if (bugs >= 1)
+      prtf("HdfFileWriter.close: numCoalesceRegion: %d"
+        + "  numCoalesceWrite: %d", numCoalesceRegion, numCoalesceWrite);
+  }
+
+  // Insure all defined datasets have been written,
+  // except sparse variables, which may omit chunks.
   ArrayList<HdfGroup> grpList = new ArrayList<HdfGroup>();
   findAllGroups( rootGroup, grpList);
+
+  // All chunks have been encoded, so release the filters.
+  // One filter may be shared by several variables.
+  // Record the levels chosen by FilterDeflate.LEVEL_AUTO.
+  ArrayList<FilterBase> filterList = new ArrayList<FilterBase>();
+  for (HdfGroup grp : grpList) {
+    if (grp.isVariable) {
+      for (FilterBase filter : grp.filterChain) {
+        if (! filterList.contains( filter)) {
+          filterList.add( filter);
+          if (filter instanceof FilterDeflate
+            && ((FilterDeflate) filter).getAutoLevel())
+          {
+            String autoMsg = "var: " + grp.getPath() + "  "
+              + ((FilterDeflate) filter).getAutoStatus();
+            if (bugs >= 1) prtf("HdfFileWriter.close: %s", autoMsg);
+            statTimea = printStat( statTimea, "wtr.close.autoLevel", autoMsg);
+          }
+          filter.close();
+        }
+      }
+    }
+  }
+
+  // A compact variable that was never written keeps its
+  // fill value: see MsgLayout.formatMsgCore.
   String errMsg = "";
   for (HdfGroup grp : grpList) {
-    if (grp.isVariable && grp.msgDataSpace.totNumEle != 0) {
+    if (grp.isVariable && grp.msgDataSpace.totNumEle != 0
+      && ! grp.isSparse())
+    {
       for (HdfChunk chunk : grp.hdfChunks) {
-        if (chunk.chunkDataAddr == 0)
+        if (chunk.chunkDataAddr == 0 && ! grp.isCompact())
           errMsg += "  " + grp.getPath()
             + "  chunk indices: "
             + HdfUtil.formatInts( chunk.chunkStartIxs) + "\n";
       }
+      // Slabs must cover the variable: one range of all elements.
+      synchronized (grp.hdfChunks[0]) {
+        if (grp.isSlabbed
+          && (grp.slabRanges.size() != 1
+            || grp.slabRanges.firstKey() != 0
+            || grp.slabRanges.firstEntry().getValue() != grp.totNumEle))
+        {
+          errMsg += "  " + grp.getPath()
+            + "  slabs written: " + grp.getSlabNumEle()
+            + " of " + grp.totNumEle + " elements\n";
+        }
+      }
     }
   }
   if (errMsg.length() > 0)
@@ -544,12 +1099,23 @@ throws HdfException
   if (bugs >= 2)
     prtf("HdfFileWriter.close: after pass 2: mainBuf pos: %d", mainBuf.getPos());
 
-  // Write mainBuf to outfile
+  // Write mainBuf to outfile.
+  // With OPT_MAP_DATA the last window may extend past eofAddr.
   try {
     outChannel.position( 0);
     mainBuf.writeChannel( outChannel);
-    outChannel.close();
-    outStream.close();
+    if (outRaf != null) {
+      if (bugs >= 1)
+        prtf("HdfFileWriter.close: numMapWindow: %d", numMapWindow);
+      mapWindow = null;
+      outChannel.truncate( eofAddr);
+      outChannel.close();
+      outRaf.close();
+    }
+    else {
+      outChannel.close();
+      outStream.close();
+    }
   }
   catch( IOException exc) {
     exc.printStackTrace();
@@ -566,6 +1132,506 @@ throws HdfException
 
 
 
+/**
+ * Sets btreeChunkK, the K value for all chunk Btrees in the file.
+ * <p>
+ * HDF5 reads every Btree node at its full size of 2*K entries,
+ * so unused entries must be written as padding.  We use the
+ * smallest K that lets the largest chunked variable fit in a
+ * single leaf, up to MAX_BTREE_CHUNK_K.  Larger variables get
+ * multi-level trees.
+ * The num chunks of an unlimited variable isn't known until
+ * close, so if there is one we use MAX_BTREE_CHUNK_K.
+ */
+
+void setBtreeChunkK()
+{
+  ArrayList<HdfGroup> grpList = new ArrayList<HdfGroup>();
+  findAllGroups( rootGroup, grpList);
+  int maxNumChunk = 0;
+  for (HdfGroup grp : grpList) {
+    if (grp.isVariable && grp.msgLayout != null
+      && grp.msgLayout.chunkBtree != null)
+    {
+      maxNumChunk = Math.max( maxNumChunk, grp.hdfChunks.length);
+      if (grp.isUnlimited)
+        maxNumChunk = Math.max( maxNumChunk, 2 * MAX_BTREE_CHUNK_K);
+    }
+  }
+  btreeChunkK = Math.max( 1,
+    Math.min( MAX_BTREE_CHUNK_K, (maxNumChunk + 1) / 2));
+  if (bugs >= 1)
+    prtf("HdfFileWriter.setBtreeChunkK: maxNumChunk: %d  btreeChunkK: %d",
+      maxNumChunk, btreeChunkK);
+}
+
+
+
+
+
+/**
+ * Called by close after all data are written.
+ * Calls HdfGroup.settleRecords for each unlimited variable,
+ * then formats their chunk Btrees after the raw data
+ * and writes them.
+ * Their chunks aren't known when the other metadata
+ * are laid out, in endDefine, so their Btrees can't go there.
+ * As in formatBufAll, we format twice: the second pass
+ * fills in the sibling and subNode positions found by the first.
+ * A variable with no records has no Btree: its address is
+ * UNDEFINED_ADDR.
+ */
+
+void formatRecordBtrees()
+throws HdfException
+{
+  ArrayList<HdfGroup> grpList = new ArrayList<HdfGroup>();
+  findAllGroups( rootGroup, grpList);
+  ArrayList<BtreeNode> rootList = new ArrayList<BtreeNode>();
+  for (HdfGroup grp : grpList) {
+    if (grp.isVariable && grp.isUnlimited) {
+      grp.settleRecords();
+      BtreeNode root = grp.msgLayout.chunkBtree;
+      if (grp.hdfChunks.length == 0) root.blkPosition = UNDEFINED_ADDR;
+      else rootList.add( root);
+    }
+  }
+  if (rootList.size() == 0) return;
+
+  long tailAddr = HdfUtil.alignLong( 8, eofAddr);
+  HBuffer tailBuf = new HBuffer( null, 0, this);
+  tailBuf.setBaseAddr( tailAddr);
+  for (int formatPass = 1; formatPass <= 2; formatPass++) {
+    tailBuf.clear();
+    workList = new ArrayList<BaseBlk>();
+    for (BtreeNode root : rootList) {
+      addWork("formatRecordBtrees", root);
+    }
+    while (workList.size() > 0) {
+      BaseBlk blk = workList.remove(0);
+      blk.formatBuf( formatPass, tailBuf);
+    }
+  }
+
+  if (allocSpace( tailBuf.getPos()) != tailAddr)
+    throwerr("formatRecordBtrees: addr mismatch");
+  writeAt( tailBuf.getBufView(), tailAddr);
+  if (bugs >= 1)
+    prtf("HdfFileWriter.formatRecordBtrees: num Btrees: %d"
+      + "  addr: %d  len: %d", rootList.size(), tailAddr, tailBuf.getPos());
+}
+
+
+
+
+
+/**
+ * Reserves len bytes of file space for raw data, at the next
+ * 8 byte boundary after eofAddr, and returns the address.
+ * Synchronized, so each caller gets a distinct region
+ * and can then write to it with writeAt, without holding any lock.
+ */
+
+synchronized long allocSpace( long len)
+{
+  long addr = HdfUtil.alignLong( 8, eofAddr);
+  eofAddr = addr + len;
+  return addr;
+}
+
+
+
+
+/**
+ * Writes the remaining contents of bbuf to outChannel at file
+ * position pos, using positional writes only:
+ * outChannel's own position is neither used nor changed.
+ * With OPT_MAP_DATA, copies bbuf into the mapped window instead,
+ * or with a coalescing buffer, into the coalescing buffer if it fits.
+ */
+
+void writeAt(
+  ByteBuffer bbuf,
+  long pos)
+throws HdfException
+{
+  ByteBuffer regionBuf = mapRegion( pos, bbuf.remaining());
+  if (regionBuf != null) {
+    regionBuf.put( bbuf);
+    return;
+  }
+  regionBuf = coalesceRegion( pos, bbuf.remaining());
+  if (regionBuf != null) {
+    regionBuf.put( bbuf);
+    releaseRegion();
+    return;
+  }
+  try {
+    while (bbuf.hasRemaining()) {
+      pos += outChannel.write( bbuf, pos);
+    }
+  }
+  catch( IOException exc) {
+    exc.printStackTrace();
+    throwerr("caught: %s", exc);
+  }
+}
+
+
+
+
+
+/**
+ * Reserves space for an encoded chunk and writes it,
+ * as allocSpace and writeAt, and returns its address.
+ * With OPT_DEDUP_CHUNKS and allowDedup, if an identical chunk
+ * with the same filterMask was already written,
+ * returns its address instead and writes nothing.
+ * Called by HdfGroup.writeDataSub, ChunkCompressor, and WritePipeline.
+ */
+
+long writeChunk(
+  ByteBuffer encBuf,
+  int filterMask,
+  boolean allowDedup)
+throws HdfException
+{
+  long len = encBuf.remaining();
+  long addr;
+  if (allowDedup && dedupMap != null) {
+    ByteBuffer key = dedupKey( encBuf, filterMask);
+    Long oldAddr;
+    synchronized (this) {
+      oldAddr = dedupMap.get( key);
+      if (oldAddr != null) {
+        addr = oldAddr.longValue();
+        numDedupChunk++;
+        numDedupByte += len;
+      }
+      else {
+        addr = allocSpace( len);
+        dedupMap.put( key, addr);
+      }
+    }
+    // An identical chunk may still be in flight in another thread,
+    // but it will be written before close.
+    if (oldAddr == null) writeAt( encBuf, addr);
+  }
+  else {
+    addr = allocSpace( len);
+    writeAt( encBuf, addr);
+  }
+  return addr;
+}
+
+
+
+
+/**
+ * Returns the dedupMap key for an encoded chunk:
+ * the SHA-256 digest of its remaining bytes,
+ * followed by its len and filterMask.
+ */
+
+static ByteBuffer dedupKey(
+  ByteBuffer encBuf,
+  int filterMask)
+throws HdfException
+{
+  byte[] digest = null;
+  try {
+    MessageDigest md = MessageDigest.getInstance("SHA-256");
+    md.update( encBuf.duplicate());
+    digest = md.digest();
+  }
+  catch( NoSuchAlgorithmException exc) {
+    throwerr("caught: %s", exc);
+  }
+  ByteBuffer key = ByteBuffer.allocate( digest.length + 12);
+  key.put( digest);
+  key.putLong( encBuf.remaining());
+  key.putInt( filterMask);
+  key.flip();
+  return key;
+}
+
+
+
+
+/**
+ * With OPT_DEDUP_CHUNKS, returns the number of chunks
+ * not written because an identical chunk was already written.
+ * Else returns 0.
+ */
+
+public synchronized long getNumDedupChunk() {
+  return numDedupChunk;
+}
+
+
+
+
+/**
+ * With OPT_DEDUP_CHUNKS, returns the total encoded length of
+ * the chunks not written because an identical chunk was
+ * already written: the bytes saved.  Else returns 0.
+ */
+
+public synchronized long getNumDedupByte() {
+  return numDedupByte;
+}
+
+
+
+
+/**
+ * With OPT_MAP_DATA, returns a little endian buffer on the len bytes
+ * of the output file starting at addr, which must have been
+ * reserved by allocSpace.  Puts to the buffer go straight
+ * to the mapped pages.
+ * If the region isn't in the current window, maps a new window
+ * of MAP_WINDOW_LEN bytes (or len, if larger) starting at addr.
+ * <p>
+ * Returns null without OPT_MAP_DATA, or if len is too large
+ * for a single ByteBuffer: the caller then writes to outChannel.
+ */
+
+synchronized ByteBuffer mapRegion(
+  long addr,
+  long len)
+throws HdfException
+{
+  ByteBuffer res = null;
+  if ((optFlag & OPT_MAP_DATA) != 0 && len <= Integer.MAX_VALUE) {
+    if (mapWindow == null
+      || addr < mapWindowAddr
+      || addr + len > mapWindowAddr + mapWindow.capacity())
+    {
+      long winLen = Math.max( len, MAP_WINDOW_LEN);
+      try {
+        mapWindow = outChannel.map(
+          FileChannel.MapMode.READ_WRITE, addr, winLen);
+      }
+      catch( IOException exc) {
+        exc.printStackTrace();
+        throwerr("caught: %s", exc);
+      }
+      mapWindowAddr = addr;
+      numMapWindow++;
+      if (bugs >= 2)
+        prtf("HdfFileWriter.mapRegion: new window: addr: %d  len: %d",
+          addr, winLen);
+    }
+    ByteBuffer dupBuf = mapWindow.duplicate();
+    dupBuf.position( (int) (addr - mapWindowAddr));
+    dupBuf.limit( dupBuf.position() + (int) len);
+    res = dupBuf.slice();
+    res.order( ByteOrder.LITTLE_ENDIAN);
+  }
+  return res;
+}
+
+
+
+
+
+/**
+ * If there is a coalescing buffer, returns a little endian buffer
+ * on the region of it for the len bytes of the output file
+ * starting at addr, which must have been reserved by allocSpace.
+ * The caller must fill the region and then call releaseRegion.
+ * <p>
+ * The region is added at the end of the coalescing buffer if it
+ * follows the previous region, allowing for alignment padding, and
+ * fits.  Else, if no regions are open, the coalescing buffer is
+ * written out and the region starts a new one.
+ * <p>
+ * Returns null if there is no coalescing buffer, if len is longer
+ * than the buffer, or if the region doesn't follow the previous
+ * one and other regions are open: the caller then writes
+ * to outChannel.
+ */
+
+synchronized ByteBuffer coalesceRegion(
+  long addr,
+  long len)
+throws HdfException
+{
+  ByteBuffer res = null;
+  if (coalesceBuf != null && len <= coalesceBuf.capacity()) {
+    long endAddr = coalesceAddr + coalesceBuf.position();
+    boolean isNext = coalesceBuf.position() > 0
+      && addr >= endAddr
+      && addr - endAddr < 8
+      && addr + len - coalesceAddr <= coalesceBuf.capacity();
+    if (! isNext && numOpenRegion == 0) {
+      flushCoalesce();
+      coalesceAddr = addr;
+      isNext = true;
+    }
+    if (isNext) {
+      // Pad to addr, as allocSpace aligned it
+      while (coalesceAddr + coalesceBuf.position() < addr) {
+        coalesceBuf.put( (byte) 0);
+      }
+      ByteBuffer dupBuf = coalesceBuf.duplicate();
+      dupBuf.limit( dupBuf.position() + (int) len);
+      res = dupBuf.slice();
+      res.order( ByteOrder.LITTLE_ENDIAN);
+      coalesceBuf.position( coalesceBuf.position() + (int) len);
+      numOpenRegion++;
+      numCoalesceRegion++;
+    }
+  }
+  return res;
+}
+
+
+
+
+/**
+ * Returns true if there is a coalescing buffer, so writeAt may
+ * collect writes in it: made by endDefine if setCoalesceBuffer
+ * was called, or else by the first beginBatch.
+ * Callers that must not have their writes padded, such as
+ * HdfGroup.writeSlab, then write to outChannel themselves.
+ */
+
+synchronized boolean isCoalescing() {
+  return coalesceBuf != null;
+}
+
+
+
+
+/**
+ * Releases a region returned by coalesceRegion, once it's filled.
+ */
+
+synchronized void releaseRegion()
+throws HdfException
+{
+  if (numOpenRegion <= 0) throwerr("releaseRegion: no open region");
+  numOpenRegion--;
+}
+
+
+
+
+/**
+ * Writes the contents of the coalescing buffer to outChannel
+ * at coalesceAddr, and clears it.
+ * Caller must hold the lock on this, with numOpenRegion == 0.
+ */
+
+private void flushCoalesce()
+throws HdfException
+{
+  if (coalesceBuf.position() > 0) {
+    ByteBuffer dupBuf = coalesceBuf.duplicate();
+    dupBuf.flip();
+    long pos = coalesceAddr;
+    try {
+      while (dupBuf.hasRemaining()) {
+        pos += outChannel.write( dupBuf, pos);
+      }
+    }
+    catch( IOException exc) {
+      exc.printStackTrace();
+      throwerr("caught: %s", exc);
+    }
+    if (bugs >= 2)
+      prtf("HdfFileWriter.flushCoalesce: addr: %d  len: %d",
+        coalesceAddr, coalesceBuf.position());
+    numCoalesceWrite++;
+    coalesceBuf.clear();
+  }
+}
+
+
+
+
+/**
+ * Writes several chunks, of the same or different variables,
+ * by calling HdfGroup.writeData for each, with the output
+ * collected in the coalescing buffer and written in a few
+ * large writes.  For example, one time step of many variables.
+ * See beginBatch.
+ *
+ * @param vars  The variables.
+ * @param startIxs  For each variable, the startIxs for writeData.
+ * @param vdatas  For each variable, the data for writeData.
+ * @param useLinear  As for writeData.
+ */
+
+public void writeBatch(
+  HdfGroup[] vars,
+  int[][] startIxs,
+  Object[] vdatas,
+  boolean useLinear)
+throws HdfException
+{
+  if (vars.length != startIxs.length || vars.length != vdatas.length)
+    throwerr("writeBatch: vars, startIxs, vdatas have different lengths");
+  beginBatch();
+  for (int ii = 0; ii < vars.length; ii++) {
+    vars[ii].writeData( startIxs[ii], vdatas[ii], useLinear);
+  }
+  endBatch();
+}
+
+
+
+
+/**
+ * Starts a batch of writeData calls: if there is no coalescing
+ * buffer yet, makes one of DEFAULT_COALESCE_LEN bytes.
+ * Used by writeBatch and NhFileWriter.writeBatch.
+ * Not needed with OPT_MAP_DATA.
+ */
+
+public synchronized void beginBatch()
+throws HdfException
+{
+  if (fileStatus != ST_WRITEDATA) throwerr("must call endDefine first");
+  if (coalesceBuf == null && (optFlag & OPT_MAP_DATA) == 0)
+    coalesceBuf = ByteBuffer.allocateDirect(
+      coalesceLen > 0 ? coalesceLen : DEFAULT_COALESCE_LEN);
+}
+
+
+
+
+/**
+ * Ends a batch of writeData calls: writes out the coalescing buffer,
+ * unless other threads are still in writeData, in which case
+ * it's written later.
+ * Used by writeBatch and NhFileWriter.writeBatch.
+ */
+
+public synchronized void endBatch()
+throws HdfException
+{
+  if (coalesceBuf != null && numOpenRegion == 0) flushCoalesce();
+}
+
+
+
+
+/**
+ * Counts one chunk skipped by writeData because it was all fill.
+ */
+
+synchronized void noteFillChunk( long numByte)
+{
+  numFillChunk++;
+  numFillChunkByte += numByte;
+}
+
+
+
+
+
 /**
  * Recursively adds all groups in the tree headed by grp to groupList.
  * @param grp    group to start depth first tree search
@@ -33,10 +33,13 @@ package edu.ucar.ral.nujan.hdf;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.Buffer;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.Arrays;
 import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
 
 /***************** START COMMENT OUT useWavelet *******************
 import edu.ucar.ral.waveletCompression.BugSpec;
@@ -95,6 +98,39 @@ public static final int DTYPE_VLEN          = 12;
   specified by dsubTypes.  */
 public static final int DTYPE_COMPOUND      = 13;
 
+/** quantizeMode value for setQuantize: no quantization */
+public static final int QUANTIZE_NONE       =  0;
+/** quantizeMode value for setQuantize: netCDF BitGroom,
+  keeping nsd significant digits */
+public static final int QUANTIZE_BITGROOM   =  1;
+/** quantizeMode value for setQuantize: netCDF Granular BitRound,
+  keeping nsd significant digits */
+public static final int QUANTIZE_GRANULARBR =  2;
+/** quantizeMode value for setQuantize: netCDF BitRound,
+  keeping nsd significant bits */
+public static final int QUANTIZE_BITROUND   =  3;
+
+/** varDims value for addVariable: dimension 0 is unlimited,
+  and grows as records are written */
+public static final int DIM_UNLIMITED       = -1;
+
+/** specChunkDims value for addVariable: the chunk len in this
+  dimension is chosen to balance the chunk shape.
+  See HdfFileWriter.setAutoChunkBytes. */
+public static final int CHUNK_AUTO          = -1;
+/** specChunkDims value for addVariable: the chunk len in this
+  dimension is as long as the chunk size target allows. */
+public static final int CHUNK_AUTO_LONG     = -2;
+
+/** accessHint value for autoChunkDims: no preferred direction */
+public static final int ACCESS_BALANCED     =  0;
+/** accessHint value for autoChunkDims: readers mostly read
+  long runs of dimension 0, like a time series at one point */
+public static final int ACCESS_TIME_SERIES  =  1;
+/** accessHint value for autoChunkDims: readers mostly read
+  one index of dimension 0 at a time, like a map at one time */
+public static final int ACCESS_SPATIAL      =  2;
+
 /** Names of the DTYPE_* constants */
 public static final String[] dtypeNames = {
   "UNKNOWN",
@@ -214,10 +250,23 @@ int elementLen;
 
 
 /**
- * Zip compression level: 0==Uncompressed; 1 - 9 are increasing compression.
+ * The filters applied to each chunk on write, in order.
+ * Empty if the variable is not filtered.
+ */
+FilterBase[] filterChain;
+
+/**
+ * Zip compression level of the FilterDeflate in filterChain,
+ * or 0 if none.
  */
 int compressionLevel;
 
+/**
+ * Quantizes each float chunk before the filters, or null.
+ * Set by setQuantize.
+ */
+Quantizer quantizer;
+
 /**
  * List of header messages, like MsgDataType, MsgDataSpace,
  * MsgAttribute, etc., to be formatted for this group.
@@ -246,6 +295,43 @@ int[] totChunkNums;
  */
 HdfChunk[] hdfChunks;
 
+/**
+ * True if dimension 0 was specified as DIM_UNLIMITED.
+ * Then varDims[0] is 0 until HdfFileWriter.close calls
+ * settleRecords, and the chunks are kept in recordChunks,
+ * which grows as records are written.
+ */
+boolean isUnlimited = false;
+
+/**
+ * If isUnlimited, the chunks created so far, in the same
+ * order as hdfChunks.  Copied to hdfChunks by settleRecords.
+ */
+ArrayList<HdfChunk> recordChunks;
+
+/**
+ * If isUnlimited, the num records (the length of dimension 0)
+ * written so far.
+ */
+int recordLen = 0;
+
+/**
+ * If isUnlimited, the lowest end index in dimension 0 of
+ * a chunk written with fewer than specChunkDims[0] records.
+ * Only the last chunk of records may be short.
+ */
+int shortRecordEnd = Integer.MAX_VALUE;
+
+/**
+ * True if this contiguous variable is being written in slabs
+ * by writeSlab.  Then hdfChunks[0] holds the reserved file
+ * region, and slabRanges maps the start element index of each
+ * range claimed so far to its end index, adjacent ranges merged.
+ * Both are guarded by the hdfChunks[0] lock.
+ */
+boolean isSlabbed = false;
+TreeMap<Long,Long> slabRanges = new TreeMap<Long,Long>();
+
 int linkCreationOrder = 0;
 
 
@@ -348,6 +434,10 @@ throws HdfException
  *        no data.  For example a variable may have attributes
  *        without data.  If varDims is null or length 0, must have
  *        specChunkDims==null and compressionLevel==0.
+ *        varDims[0] may be DIM_UNLIMITED: then the variable
+ *        must be chunked, and dimension 0 grows as records
+ *        are written.  Its final length is set by
+ *        HdfFileWriter.close.
  * @param specChunkDims len of each side of a chunk hyperslab.
  *        Must have specChunkDims.length == varDims.length.
  *        If specChunkDims == null use contiguous storage.
@@ -370,8 +460,8 @@ throws HdfException
  * </table>
  *        <p>
  *
- * @param compressionLevel Zip compression level:
- *        0 is uncompressed; 1 - 9 are increasing compression.
+ * @param filterChain The filters applied to each chunk on write,
+ *        in order.  May be empty, for no filters.
  * @param hdfFile The global owning HdfFileWriter.
  */
 
@@ -392,8 +482,7 @@ HdfGroup(
   int[] specChunkDims,
   Object fillValue,          // null, Byte, Short, Int, Long,
                              // Float, Double, String, etc.
-  int compressionLevel,      // Zip compression level: 0==Uncompressed;
-                             // 1 - 9 are increasing compression.
+  FilterBase[] filterChain,  // filters, in the order applied on write
   HdfFileWriter hdfFile)
 throws HdfException
 {
@@ -403,7 +492,16 @@ throws HdfException
   this.parentGroup = parentGroup;
   this.dtype = dtype;
   this.stgFieldLen = stgFieldLen;
-  this.compressionLevel = compressionLevel;
+  this.filterChain = Arrays.copyOf( filterChain, filterChain.length);
+  // compressionLevel is only used as a flag: > 0 if deflated.
+  // With FilterDeflate.LEVEL_AUTO it's the starting level, and
+  // MsgFilter asks the filter for the chosen level on close.
+  this.compressionLevel = 0;
+  for (FilterBase filter : filterChain) {
+    if (filter == null) throwerr("filterChain contains null");
+    if (filter instanceof FilterDeflate)
+      compressionLevel = ((FilterDeflate) filter).getCompressionLevel();
+  }
 
   if (hdfFile.bugs >= 1) {
     prtf("HdfGroup: new dataset at path: \"" + getPath() + "\""
@@ -417,6 +515,42 @@ throws HdfException
   if (varDims == null) this.varDims = null;
   else this.varDims = Arrays.copyOf( varDims, varDims.length);
 
+  // An unlimited dimension 0 starts with no records.
+  if (varDims != null) {
+    for (int ii = 0; ii < varDims.length; ii++) {
+      if (varDims[ii] == DIM_UNLIMITED) {
+        if (ii != 0) throwerr("only dimension 0 may be unlimited");
+        if (specChunkDims == null)
+          throwerr("an unlimited dimension requires specChunkDims");
+        isUnlimited = true;
+        recordChunks = new ArrayList<HdfChunk>();
+        this.varDims[0] = 0;
+        varDims = this.varDims;
+      }
+    }
+  }
+
+  msgDataType = new MsgDataType(
+    dtype, dsubTypes, subNames, stgFieldLen, this, hdfFile);
+  elementLen = msgDataType.elementLen;
+
+  // Resolve any CHUNK_AUTO and CHUNK_AUTO_LONG values.
+  if (specChunkDims != null && varDims != null && varDims.length > 0) {
+    boolean isAuto = false;
+    for (int ii = 0; ii < specChunkDims.length; ii++) {
+      if (specChunkDims[ii] == CHUNK_AUTO
+        || specChunkDims[ii] == CHUNK_AUTO_LONG) isAuto = true;
+    }
+    if (isAuto) {
+      specChunkDims = AutoChunker.chooseChunkDims(
+        specChunkDims, varDims, isUnlimited, elementLen,
+        hdfFile.autoChunkBytes);
+      if (hdfFile.bugs >= 1)
+        prtf("HdfGroup: %s: auto specChunkDims: %s",
+          getPath(), HdfUtil.formatInts( specChunkDims));
+    }
+  }
+
   // Set up specChunkDims.
 
   int layoutClass;
@@ -433,13 +567,13 @@ throws HdfException
   if (varDims == null) {
     if (specChunkDims != null)
       throwerr("varDims == null but specChunkDims != null");
-    if (compressionLevel > 0)
+    if (isFiltered())
       throwerr("cannot use compression with null data");
   }
   else if (varDims.length == 0) {
     if (specChunkDims != null && specChunkDims.length > 0)
       throwerr("varDims len == 0 but specChunkDims != null");
-    if (compressionLevel > 0)
+    if (isFiltered())
       throwerr("cannot use compression with scalar data");
   }
   else {
@@ -472,12 +606,15 @@ throws HdfException
       throwerr("specChunkDims len != varDims len");
     for (int ii = 0; ii < varRank; ii++) {
       if (specChunkDims[ii] <= 0) throwerr("invalid specChunkDims");
-      if (specChunkDims[ii] > varDims[ii]) throwerr("specChunkDims > varDims");
+      if (specChunkDims[ii] > varDims[ii] && ! (isUnlimited && ii == 0))
+        throwerr("specChunkDims > varDims");
     }
   }
 
-  if (compressionLevel > 0 && layoutClass != MsgLayout.LY_CHUNKED)
+  if (isFiltered() && layoutClass != MsgLayout.LY_CHUNKED)
     throwerr("if compressed, must use chunked");
+  if (isFiltered() && dtype == DTYPE_STRING_VAR)
+    throwerr("compression not supported for DTYPE_STRING_VAR");
 
 
 
@@ -567,11 +704,17 @@ throws HdfException
   } // else specChunkDims != null
 
   // Initialize various messages
-  msgDataType = new MsgDataType(
-    dtype, dsubTypes, subNames, stgFieldLen, this, hdfFile);
-  elementLen = msgDataType.elementLen;
+  // FilterNbit stores only the bits given by the
+  // data type's precision and offset.
+  for (FilterBase filter : filterChain) {
+    if (filter instanceof FilterNbit) {
+      FilterNbit nbit = (FilterNbit) filter;
+      msgDataType.setPrecision( nbit.getPrecision(), nbit.getBitOffset());
+    }
+  }
 
   msgDataSpace = new MsgDataSpace( varRank, totNumEle, varDims, this, hdfFile);
+  if (isUnlimited) msgDataSpace.setUnlimited();
 
 
   msgLayout = new MsgLayout( layoutClass, compressionLevel, this, hdfFile);
@@ -592,11 +735,8 @@ throws HdfException
   hdrMsgList.add( msgLayout);
   hdrMsgList.add( msgFillValue);
   hdrMsgList.add( msgModTime);
-  if (compressionLevel > 0) {
-    msgFilter = new MsgFilter(
-      MsgFilter.FILT_DEFLATE,
-      compressionLevel,
-      this, hdfFile);
+  if (isFiltered()) {
+    msgFilter = new MsgFilter( filterChain, this, hdfFile);
     hdrMsgList.add( msgFilter);
   }
 
@@ -650,11 +790,19 @@ throws HdfException
  *        no data.  For example a variable may have attributes
  *        without data.  If varDims is null or length 0, must have
  *        specChunkDims==null and compressionLevel==0.
+ *        varDims[0] may be DIM_UNLIMITED: then the variable
+ *        must be chunked, and dimension 0 grows as records
+ *        are written.  Its final length is set by
+ *        HdfFileWriter.close.
  * @param specChunkDims len of each side of a chunk hyperslab.
  *        Must have specChunkDims.length == varDims.length.
  *        If specChunkDims == null use contiguous storage.
  *        If specChunkDims == varDims, use chunked storage with just one chunk.
  *        If varDims == null or varDims.length == 0, specChunkDims must be null.
+ *        An element may be CHUNK_AUTO or CHUNK_AUTO_LONG to have
+ *        the len chosen, aiming at chunks of
+ *        HdfFileWriter.setAutoChunkBytes bytes;
+ *        see {@link #autoChunkDims}.
  * @param fillValue Fill value of appropriate type for this variable.
  *        May be null.
  *        <p>
@@ -673,7 +821,9 @@ throws HdfException
  *        <p>
  *
  * @param compressionLevel Zip compression level:
- *        0==Uncompressed; 1 - 9 are increasing compression.
+ *        0==Uncompressed; 1 - 9 are increasing compression;
+ *        FilterDeflate.LEVEL_AUTO chooses the level by
+ *        sampling the first chunks.
  */
 
 public HdfGroup addVariable(
@@ -690,6 +840,95 @@ public HdfGroup addVariable(
   int compressionLevel)
 throws HdfException
 {
+  return addVariable( varName, dtype, stgFieldLen, varDims,
+    specChunkDims, fillValue, compressionLevel, false);
+}
+
+
+
+
+/**
+ * Creates a variable in the current group, optionally
+ * applying the HDF5 shuffle filter before compression.
+ * The shuffle filter stores the first bytes of all elements
+ * in a chunk, then the second bytes, and so on,
+ * which usually makes numeric data compress better.
+ * <p>
+ * The parameters are the same as for
+ * {@link #addVariable(String,int,int,int[],int[],Object,int) addVariable},
+ * plus:
+ *
+ * @param useShuffle If true, shuffle the bytes of each chunk
+ *        before deflating it.  Requires compressionLevel &gt; 0.
+ */
+
+public HdfGroup addVariable(
+  String varName,
+  int dtype,                 // one of DTYPE*
+  int stgFieldLen,           // string length for DTYPE_STRING_FIX.
+                             // Without null termination.
+                             // Should be 0 for all other types,
+                             // including DTYPE_STRING_VAR.
+
+  int[] varDims,             // dimension lengths
+  int[] specChunkDims,
+  Object fillValue,          // fill value or null
+  int compressionLevel,
+  boolean useShuffle)        // shuffle before deflate
+throws HdfException
+{
+  if ((compressionLevel < 0 && compressionLevel != FilterDeflate.LEVEL_AUTO)
+    || compressionLevel > 9)
+    throwerr("invalid compressionLevel: %d", compressionLevel);
+  if (useShuffle && compressionLevel == 0)
+    throwerr("shuffle requires compressionLevel > 0");
+  ArrayList<FilterBase> filterList = new ArrayList<FilterBase>();
+  if (useShuffle) filterList.add( new FilterShuffle());
+  if (compressionLevel != 0)
+    filterList.add( new FilterDeflate( compressionLevel));
+
+  return addVariable( varName, dtype, stgFieldLen, varDims,
+    specChunkDims, fillValue,
+    filterList.toArray( new FilterBase[ filterList.size()]));
+}
+
+
+
+
+/**
+ * Creates a variable in the current group, with a chain of filters
+ * applied to each chunk on write.
+ * For example, new FilterBase[] { new FilterShuffle(),
+ * new FilterDeflate( 5)} is the same as compressionLevel 5
+ * with useShuffle.
+ * FilterShuffle then FilterLz4, or FilterBitshuffle with COMPRESS_LZ4,
+ * compress faster than FilterDeflate at a lower ratio,
+ * but readers need the HDF5 LZ4 or bitshuffle plugin.
+ * <p>
+ * The parameters are the same as for
+ * {@link #addVariable(String,int,int,int[],int[],Object,int) addVariable},
+ * except:
+ *
+ * @param filterChain The filters, in the order they are applied
+ *        on write.  If not empty, specChunkDims must not be null.
+ *        May be null or empty for no filters.
+ */
+
+public HdfGroup addVariable(
+  String varName,
+  int dtype,                 // one of DTYPE*
+  int stgFieldLen,           // string length for DTYPE_STRING_FIX.
+                             // Without null termination.
+                             // Should be 0 for all other types,
+                             // including DTYPE_STRING_VAR.
+
+  int[] varDims,             // dimension lengths
+  int[] specChunkDims,
+  Object fillValue,          // fill value or null
+  FilterBase[] filterChain)  // filters, in the order applied on write
+throws HdfException
+{
+  if (filterChain == null) filterChain = new FilterBase[0];
   if (hdfFile.fileStatus != HdfFileWriter.ST_DEFINING)
     throwerr("cannot define after calling endDefine");
   if (isVariable) throwerr("cannot add a variable to a variable");
@@ -702,7 +941,7 @@ throws HdfException
   long statTimea = hdfFile.printStat( 0, "grp.addVariable.entry",
     "varName: " + varName
     + "  dtype: " + dtypeNames[dtype]
-    + "  compLev: " + compressionLevel
+    + "  filters: " + Arrays.toString( filterChain)
     + "  varDims: " + HdfUtil.formatInts( varDims)
     + "  specChunkDims: " + HdfUtil.formatInts( specChunkDims));
 
@@ -723,7 +962,7 @@ throws HdfException
     varDims,
     specChunkDims,
     fillValue,
-    compressionLevel,
+    filterChain,
     hdfFile);
 
   addSubGroup( var);
@@ -979,10 +1218,17 @@ int getNumAttribute()
  * <tr><td> DTYPE_REFERENCE    </td><td> HdfGroup (scalar) or HdfGroup[] or HdfGroup[][] or ... </td></tr>
  * </table>
  *        <p>
+ * Several threads may call writeData at once, for different
+ * chunks of the same or different variables.
+ * All calls must return before HdfFileWriter.close.
  *
  * @param startIxs  The indices of the starting point (lower left corner)
  *    of the hyperslab to be written.  For contiguous storage,
- *    startIxs should be all zeros.
+ *    either null, to write the whole variable, or the start
+ *    of a slab whose elements are consecutive in the file,
+ *    such as a block of whole rows.  The slabs may be written
+ *    in any order but must not overlap, and together must
+ *    cover the variable.
  *    Must have startIxs.length == varDims.length.
  * @param vdata  The data to be written.
  */
@@ -1012,6 +1258,206 @@ throws HdfException
 
 
 
+/**
+ * Writes one chunk of a single variable to disk, from an NIO Buffer.
+ * <p>
+ * The data are the remaining elements of vdata, from its position
+ * to its limit, in row major order.  The position of vdata
+ * is not changed, and vdata must not be changed by the caller
+ * until this call returns.
+ * <p>
+ * A ByteBuffer may be used for any numeric dtype: it holds the raw
+ * bytes of the elements in the ByteBuffer's byte order.
+ * If the ByteBuffer is little endian (as are the HDF5 data) and
+ * holds an entire chunk, the bytes are not reformatted:
+ * they go straight to the file channel, or, if the variable is
+ * compressed, straight to the first filter of the filter chain.
+ * <p>
+ * A ShortBuffer, IntBuffer, LongBuffer, FloatBuffer, or DoubleBuffer
+ * may be used for DTYPE_FIXED16, FIXED32, FIXED64, FLOAT32,
+ * or FLOAT64 respectively.
+ * <p>
+ * Several threads may call writeData at once, for different
+ * chunks of the same or different variables.
+ *
+ * @param startIxs  The indices of the starting point (lower left corner)
+ *    of the hyperslab to be written.  For contiguous storage,
+ *    either null, to write the whole variable, or the start
+ *    of a slab whose elements are consecutive in the file,
+ *    such as a block of whole rows.  The slabs may be written
+ *    in any order but must not overlap, and together must
+ *    cover the variable.
+ *    Must have startIxs.length == varDims.length.
+ * @param vdata  The data to be written.
+ * @param dataDims  The dimensions of the data in vdata.
+ *    Either the chunk dimensions, or at the high edges of the variable,
+ *    the chunk dimensions clipped to the variable dimensions.
+ *    For a slab of a contiguous variable, the slab dimensions.
+ */
+
+public void writeData(
+  int[] startIxs,
+  Buffer vdata,
+  int[] dataDims)
+throws HdfException
+{
+  if (vdata == null) throwerr("vdata is null");
+  if (varRank == 0) throwerr("Buffer data not supported for scalars");
+  if (dataDims == null || dataDims.length != varRank)
+    throwerr("dataDims rank must match the variable rank.  dataDims: %s",
+      HdfUtil.formatInts( dataDims));
+
+  int[] chunkDims = specChunkDims;
+  if (chunkDims == null) chunkDims = varDims;
+  int[] sttIxs = startIxs;
+  if (sttIxs == null) sttIxs = new int[varRank];
+  int[] wrtDims = varDims;
+  if (isUnlimited)
+    wrtDims = getRecordDims( sttIxs, chunkDims, dataDims, false);
+  if (specChunkDims == null && startIxs != null) {
+    // A slab of a contiguous variable: check it as a whole variable
+    getSlabOffset( startIxs, dataDims, false);
+    wrtDims = dataDims;
+    chunkDims = dataDims;
+    sttIxs = new int[varRank];
+  }
+  int[] dataInfo = HdfUtil.getBufferDimLen( vdata, dtype, elementLen);
+  HdfUtil.checkTypeMatch(
+    getPath(),
+    dtype,
+    dataInfo[0],
+    false,             // useLinear
+    wrtDims,
+    sttIxs,
+    chunkDims,
+    dataDims);
+
+  long dataVolume = 1;
+  for (int ii = 0; ii < varRank; ii++) {
+    dataVolume *= dataDims[ii];
+  }
+  if (dataInfo[1] != dataVolume)
+    throwerr("Buffer has %d elements, but dataDims: %s has %d",
+      dataInfo[1], HdfUtil.formatInts( dataDims), dataVolume);
+
+  writeData( startIxs, vdata, true);         // useLinear = true
+}
+
+
+
+
+
+
+
+/**
+ * Writes a hyperslab of a chunked variable that need not match
+ * its chunking, such as a scan line or a tile.
+ * Requires HdfFileWriter.setAssemblyCache.
+ * <p>
+ * The hyperslab is copied into a staging buffer for each chunk
+ * it touches, and each chunk is written, as by writeData,
+ * once all its elements have been written.
+ * The hyperslabs written to a variable must not overlap,
+ * and the chunks they touch must not also be written
+ * by writeData.  Chunks only partly written by close
+ * have the fill value in the remaining elements.
+ * <p>
+ * Only numeric dtypes are supported, and not for
+ * variables with an unlimited dimension.
+ * Several threads may call writeHyperslab at once.
+ *
+ * @param startIxs  The indices of the starting point (lower left corner)
+ *    of the hyperslab to be written.
+ *    Must have startIxs.length == varDims.length.
+ * @param vdata  The data to be written: a regular array,
+ *    such as float[][], of the same rank as the variable.
+ */
+
+public void writeHyperslab(
+  int[] startIxs,
+  Object vdata)
+throws HdfException
+{
+  if (hdfFile.bugs >= 1)
+    prtf("HdfGroup.writeHyperslab: path: %s  startIxs: %s",
+      getPath(), HdfUtil.formatInts( startIxs));
+  if (hdfFile.fileStatus != HdfFileWriter.ST_WRITEDATA)
+    throwerr("must call endDefine first");
+  if (! isVariable) throwerr("cannot write data to a group");
+  if (hdfFile.chunkAssembler == null)
+    throwerr("writeHyperslab requires HdfFileWriter.setAssemblyCache");
+  if (specChunkDims == null)
+    throwerr("writeHyperslab requires a chunked variable.  path: %s",
+      getPath());
+  if (isUnlimited)
+    throwerr("writeHyperslab not supported for unlimited variables."
+      + "  path: %s", getPath());
+  if (dtype != DTYPE_SFIXED08 && dtype != DTYPE_UFIXED08
+    && dtype != DTYPE_FIXED16 && dtype != DTYPE_FIXED32
+    && dtype != DTYPE_FIXED64 && dtype != DTYPE_FLOAT32
+    && dtype != DTYPE_FLOAT64)
+    throwerr("writeHyperslab not supported for %s.  path: %s",
+      dtypeNames[dtype], getPath());
+  if (vdata == null) throwerr("vdata is null");
+  if (startIxs == null || startIxs.length != varRank)
+    throwerr("startIxs rank must match the variable rank.  startIxs: %s",
+      HdfUtil.formatInts( startIxs));
+
+  int[] dataInfo = HdfUtil.getDimLen( vdata, false);
+  int dataDtype = dataInfo[0];
+  int dataElementLen = dataInfo[2];
+  int[] dataDims = Arrays.copyOfRange( dataInfo, 3, dataInfo.length);
+  if (dataDims.length != varRank)
+    throwerr("data rank must match the variable rank.  dataDims: %s",
+      HdfUtil.formatInts( dataDims));
+  for (int ii = 0; ii < varRank; ii++) {
+    if (startIxs[ii] < 0 || dataDims[ii] <= 0
+      || startIxs[ii] + dataDims[ii] > varDims[ii])
+      throwerr("hyperslab is outside the variable.  path: %s"
+        + "  startIxs: %s  dataDims: %s  varDims: %s",
+        getPath(), HdfUtil.formatInts( startIxs),
+        HdfUtil.formatInts( dataDims), HdfUtil.formatInts( varDims));
+  }
+
+  // Check and format the data as if the hyperslab were the whole variable
+  HdfUtil.checkTypeMatch(
+    getPath(),
+    dtype,
+    dataDtype,
+    false,             // useLinear
+    dataDims,
+    new int[varRank],
+    dataDims,
+    dataDims);
+  HBuffer slabBuf = new HBuffer( null, 0, hdfFile);
+  formatRawData(
+    "groupName: " + groupName,
+    0,               // curLev
+    new int[varRank],
+    false,           // useLinear
+    dtype,
+    stgFieldLen,
+    dataDims,        // the hyperslab is the whole variable
+    dataDims,        // and the whole chunk
+    dataDims,
+    dataElementLen,
+    null,            // startIxs
+    vdata,
+    new HdfModInt(0),    // cntr for DTYPE_COMPOUND
+    -1,                  // gcolAddr for DTYPE_STRING_VAR
+    null,                // gcol for DTYPE_STRING_VAR
+    slabBuf);
+  byte[] slabBytes = slabBuf.getBufBytes( 0, slabBuf.getPos());
+
+  hdfFile.chunkAssembler.scatter( this, startIxs, dataDims, slabBytes);
+}
+
+
+
+
+
+
+
 /**
  * Implements writeData: for doc, see {@link #writeData}.
  */
@@ -1024,7 +1470,6 @@ throws HdfException, IOException
 {
   if (varRank == 0 && startIxs != null)
     throwerr("scalar variable must have startIxs == null");
-  hdfFile.outChannel.position( HdfUtil.alignLong( 8, hdfFile.eofAddr));
 
   if (hdfFile.bugs >= 1) {
     prtf("HdfGroup.writeData entry: path: " + getPath() + "\n"
@@ -1032,7 +1477,6 @@ throws HdfException, IOException
       + HdfUtil.formatDtypeDim( dtype, varDims) + "\n"
       + "  useLinear: " + useLinear + "\n"
       + "  eofAddr: " + hdfFile.eofAddr + "\n"
-      + "  new pos: " + hdfFile.outChannel.position() + "\n"
       + "  startIxs: " + HdfUtil.formatInts( startIxs));
   }
 
@@ -1043,7 +1487,12 @@ throws HdfException, IOException
   // Find dtype and varDims of vdata
   // Use isVlen==false: variable length data arrays are not supported,
   // although variable length attributes are.
-  int[] dataInfo = HdfUtil.getDimLen( vdata, false);
+  int[] dataInfo;
+  if (vdata instanceof Buffer) {
+    if (! useLinear) throwerr("Buffer data requires useLinear");
+    dataInfo = HdfUtil.getBufferDimLen( (Buffer) vdata, dtype, elementLen);
+  }
+  else dataInfo = HdfUtil.getDimLen( vdata, false);
   int dataDtype = dataInfo[0];
   int dataTotNumEle = dataInfo[1];
   int dataElementLen = dataInfo[2];
@@ -1065,18 +1514,24 @@ throws HdfException, IOException
       + HdfUtil.formatDtypeDim( dataDtype, dataDims));
   }
 
+  // A contiguous variable may be written in slabs.
+  if (specChunkDims == null && startIxs != null) {
+    writeSlab( startIxs, vdata, useLinear, dataDtype, dataDims,
+      dataElementLen);
+    return;
+  }
+
   // Find the chunk
   int ichunk = 0;
   if (startIxs == null) {
     if (specChunkDims != null) throwerr("startIxs == null but specChunkDims != null");
     ichunk = 0;
   }
-  else {
-    if (specChunkDims == null) throwerr("startIxs != null but specChunkDims == null");
-    ichunk = calcChunkIx( startIxs);
-  }
+  else ichunk = calcChunkIx( startIxs);
 
-  HdfChunk chunk = hdfChunks[ichunk];
+  HdfChunk chunk;
+  if (isUnlimited) chunk = findRecordChunk( ichunk);
+  else chunk = hdfChunks[ichunk];
   if (hdfFile.bugs >= 1) {
     prtf("HdfGroup.writeData: ichunk: %d  chunk: %s", ichunk, chunk);
   }
@@ -1088,9 +1543,17 @@ throws HdfException, IOException
   if (chunkDims == null) chunkDims = varDims;
   int[] sttIxs = startIxs;
   if (sttIxs == null) sttIxs = new int[varRank];
+
+  // For an unlimited variable, check and format the data
+  // using the length dimension 0 has after this write.
+  int[] wrtDims = varDims;
+  if (isUnlimited)
+    wrtDims = getRecordDims( sttIxs, chunkDims, dataDims, useLinear);
+
   if (hdfFile.bugs >= 1) {
     prtf("  useLinear: %s", useLinear);
     prtf("  varDims: %s", HdfUtil.formatInts( varDims));
+    prtf("  wrtDims: %s", HdfUtil.formatInts( wrtDims));
     prtf("  specChunkDims: %s", HdfUtil.formatInts( specChunkDims));
     prtf("  chunkDims: %s", HdfUtil.formatInts( chunkDims));
     prtf("  startIxs: %s", HdfUtil.formatInts( startIxs));
@@ -1104,22 +1567,122 @@ throws HdfException, IOException
     dtype,
     dataDtype,
     useLinear,
-    varDims,
+    wrtDims,
     sttIxs,
     chunkDims,
     dataDims);
 
-  if (chunk.chunkDataAddr != 0)
-    throwerr("chunk has already been written.  path: %s  startIxs: %s",
-      getPath(), HdfUtil.formatInts( chunk.chunkStartIxs));
-
-  // As outbuf fills, it gets written to outChannel.
-  HBuffer outbuf = new HBuffer( hdfFile.outChannel, compressionLevel, hdfFile);
-
   if (dtype == HdfGroup.DTYPE_VLEN)
     throwerr("DTYPE_VLEN datasets are not supported");
 
-  // Format and the data to outbuf and write to outChannel.
+  // Claim the chunk, in case another thread is writing it.
+  synchronized (chunk) {
+    if (chunk.chunkDataAddr != 0 || chunk.chunkQueued
+      || chunk.compactData != null)
+      throwerr("chunk has already been written.  path: %s  startIxs: %s",
+        getPath(), HdfUtil.formatInts( chunk.chunkStartIxs));
+    chunk.chunkQueued = true;
+  }
+  if (isUnlimited) noteRecords( sttIxs[0], wrtDims[0]);
+
+  // For sparse variables, skip chunks that are all fill.
+  // They are left out of the chunk Btree.
+  if (isSparse() && msgFillValue.fillValue != null
+    && HdfUtil.isAllFill( vdata, msgFillValue.fillValue))
+  {
+    long numByte = elementLen;
+    for (int ii = 0; ii < varRank; ii++) {
+      numByte *= chunkDims[ii];
+    }
+    hdfFile.noteFillChunk( numByte);
+    if (hdfFile.bugs >= 1)
+      prtf("HdfGroup.writeData: skip fill chunk: %s  startIxs: %s",
+        getPath(), HdfUtil.formatInts( chunk.chunkStartIxs));
+    synchronized (chunk) {
+      chunk.chunkQueued = false;
+    }
+    return;
+  }
+
+  // If vdata is a ByteBuffer already in HDF5 format for a full chunk,
+  // we use its bytes as is, without calling formatRawData.
+  long chunkVolume = 1;
+  for (int ii = 0; ii < varRank; ii++) {
+    chunkVolume *= chunkDims[ii];
+  }
+  ByteBuffer rawChunk = getRawChunk( vdata, chunkVolume);
+  if (hdfFile.bugs >= 1)
+    prtf("  rawChunk: %s", rawChunk);
+
+  // A compact variable's data go in its layout message,
+  // formatted in HdfFileWriter.close, so we keep them in memory.
+  if (isCompact()) {
+    byte[] rawBytes = formatCompact( rawChunk, 0, startIxs, vdata,
+      useLinear, wrtDims, chunkDims, dataDims, dataElementLen);
+    if (rawBytes.length != getCompactLen())
+      throwerr("compact length mismatch.  path: %s  expected: %d"
+        + "  actual: %d", getPath(), getCompactLen(), rawBytes.length);
+    synchronized (chunk) {
+      chunk.compactData = rawBytes;
+      chunk.chunkDataSize = rawBytes.length;
+      chunk.chunkQueued = false;
+    }
+    return;
+  }
+
+  // If we have a compression pool or a write-behind pipeline,
+  // format the raw chunk to memory and hand it off.
+  // The ChunkCompressor or WritePipeline will run the filter chain,
+  // write it, and set chunkDataAddr, chunkDataSize, and filterMask.
+  boolean useCompressor =
+    isFiltered() && hdfFile.chunkCompressor != null;
+  boolean usePipeline =
+    hdfFile.writePipeline != null && dtype != DTYPE_STRING_VAR;
+  if ((useCompressor || usePipeline) && rawChunk != null) {
+    // The ChunkCompressor and WritePipeline keep rawBytes
+    // after we return, so we must copy.
+    byte[] rawBytes = new byte[ rawChunk.remaining()];
+    rawChunk.get( rawBytes);
+    if (quantizer != null) quantizer.quantize( ByteBuffer.wrap( rawBytes));
+    if (usePipeline) hdfFile.writePipeline.submit( chunk, rawBytes);
+    else hdfFile.chunkCompressor.submit( chunk, rawBytes);
+    return;
+  }
+  else if (useCompressor || usePipeline) {
+    if (dtype == DTYPE_STRING_VAR)
+      throwerr("compression not supported for DTYPE_STRING_VAR");
+    HBuffer rawBuf = new HBuffer( null, 0, hdfFile);
+    int[] curIxs = new int[varRank];
+    formatRawData(
+      "groupName: " + groupName,
+      0,               // curLev
+      curIxs,
+      useLinear,
+      dtype,
+      stgFieldLen,
+      wrtDims,
+      chunkDims,
+      dataDims,
+      dataElementLen,
+      startIxs,
+      vdata,
+      new HdfModInt(0),    // cntr for DTYPE_COMPOUND
+      -1,                  // gcolAddr for DTYPE_STRING_VAR
+      null,                // gcol for DTYPE_STRING_VAR
+      rawBuf);
+    byte[] rawBytes = rawBuf.getBufBytes( 0, rawBuf.getPos());
+    if (quantizer != null) quantizer.quantize( ByteBuffer.wrap( rawBytes));
+    if (usePipeline) hdfFile.writePipeline.submit( chunk, rawBytes);
+    else hdfFile.chunkCompressor.submit( chunk, rawBytes);
+    return;
+  }
+
+  // We never use or change outChannel's position, and only reserve
+  // file space with hdfFile.allocSpace, so several threads
+  // may be in writeData at once.
+  long chunkAddr;
+  long chunkLen;
+  int filterMask = 0;
 
   // Special case for DTYPE_STRING_VAR
   //
@@ -1131,7 +1694,7 @@ throws HdfException, IOException
 
   if (dtype == DTYPE_STRING_VAR) {
 
-    if (compressionLevel > 0)
+    if (isFiltered())
       throwerr("compression not supported for DTYPE_STRING_VAR");
 
     // Write two areas into fmtBuf:
@@ -1142,51 +1705,102 @@ throws HdfException, IOException
     //       The variables chunkDataAddr, chunkDataSize refer to this
     //       list of references.
 
-    GlobalHeap gcol = new GlobalHeap( hdfFile);
-    HBuffer refBuf = new HBuffer( null, compressionLevel, hdfFile);
-    long gcolAddr = hdfFile.outChannel.position();
-
-    if (hdfFile.bugs >= 2)
-      prtf("writeDataSub: call formatRawData for string data");
-    int[] curIxs = new int[varRank];
-    formatRawData(
-      "groupName: " + groupName,
-      0,               // curLev
-      curIxs,
-      useLinear,
-      dtype,
-      0,               // stgFieldLen for DTYPE_STRING_FIX
-      varDims,
-      chunkDims,
-      dataDims,
-      dataElementLen,
-      startIxs,
-      vdata,
-      null,            // cntr for DTYPE_COMPOUND
-      gcolAddr,        // addr where we will write this gcol
-      gcol,            // output: holds strings
-      refBuf);         // output: holds references to strings
+    // The references contain gcolAddr, which must be known before
+    // we format them, but the gcol length isn't known until after.
+    // So we hold the file lock while we format and write both.
 
-    if (hdfFile.bugs >= 5) {
-      prtf("  writeDataSub.STRING_VAR: gcol: %s", gcol);
-      prtf("  writeDataSub.STRING_VAR: refBuf: %s", refBuf);
-    }
+    synchronized (hdfFile) {
+      GlobalHeap gcol = new GlobalHeap( hdfFile);
+      HBuffer refBuf = new HBuffer( null, 0, hdfFile);
+      long gcolAddr = HdfUtil.alignLong( 8, hdfFile.eofAddr);
 
-    // Write gcol to outChannel
-    gcol.formatBuf( 0, outbuf);       // formatPass = 0
-    outbuf.flush();                   // write remaining data to outChannel
+      if (hdfFile.bugs >= 2)
+        prtf("writeDataSub: call formatRawData for string data");
+      int[] curIxs = new int[varRank];
+      formatRawData(
+        "groupName: " + groupName,
+        0,               // curLev
+        curIxs,
+        useLinear,
+        dtype,
+        0,               // stgFieldLen for DTYPE_STRING_FIX
+        wrtDims,
+        chunkDims,
+        dataDims,
+        dataElementLen,
+        startIxs,
+        vdata,
+        null,            // cntr for DTYPE_COMPOUND
+        gcolAddr,        // addr where we will write this gcol
+        gcol,            // output: holds strings
+        refBuf);         // output: holds references to strings
+
+      if (hdfFile.bugs >= 5) {
+        prtf("  writeDataSub.STRING_VAR: gcol: %s", gcol);
+        prtf("  writeDataSub.STRING_VAR: refBuf: %s", refBuf);
+      }
 
-    // Save addr; write refBuf to outChannel
-    chunk.chunkDataAddr = HdfUtil.alignLong( 8, hdfFile.outChannel.position());
-    hdfFile.outChannel.position( chunk.chunkDataAddr);
+      // Write gcol to outChannel
+      HBuffer gcolBuf = new HBuffer( null, 0, hdfFile);
+      gcol.formatBuf( 0, gcolBuf);      // formatPass = 0
+      long gcolLen = gcolBuf.getPos();
+      if (hdfFile.allocSpace( gcolLen) != gcolAddr)
+        throwerr("gcol addr mismatch");
+      gcolBuf.writeChannel( hdfFile.outChannel, gcolAddr);
+
+      // Write refBuf to outChannel
+      chunkLen = refBuf.getPos();
+      chunkAddr = hdfFile.allocSpace( chunkLen);
+      refBuf.writeChannel( hdfFile.outChannel, chunkAddr);
+    } // end synchronized
+  }
 
-    refBuf.writeChannel( hdfFile.outChannel);
+  else if (rawChunk != null) {
+    // vdata already holds the chunk in HDF5 format.
+    // Run the filter chain on it, or write it straight to outChannel.
+    // The caller's buffer must not change, so quantize a copy.
+    ByteBuffer outChunk = rawChunk;
+    if (quantizer != null) {
+      byte[] rawBytes = new byte[ rawChunk.remaining()];
+      rawChunk.get( rawBytes);
+      outChunk = ByteBuffer.wrap( rawBytes);
+      quantizer.quantize( outChunk);
+    }
+    if (isFiltered()) {
+      HdfModInt maskOut = new HdfModInt( 0);
+      outChunk = encodeChunk( outChunk, maskOut);
+      filterMask = maskOut.getValue();
+    }
+    chunkLen = outChunk.remaining();
+    chunkAddr = hdfFile.writeChunk( outChunk, filterMask, isDedup());
   }
 
   else {                   // else not DTYPE_STRING_VAR
 
-    chunk.chunkDataAddr = HdfUtil.alignLong( 8, hdfFile.eofAddr);
-    hdfFile.outChannel.position( chunk.chunkDataAddr);
+    // If filtered, the length isn't known until the chunk is
+    // encoded, so we format to memory, run the filter chain,
+    // and then reserve space.  Quantized chunks are also
+    // formatted to memory, to be quantized in place.
+    // With OPT_DEDUP_CHUNKS, chunks are formatted to memory
+    // to be hashed.
+    // Else the length is fixed: reserve the space and
+    // format directly to outChannel, as outbuf fills,
+    // or with OPT_MAP_DATA, to the mapped file.
+    boolean useMemBuf = isFiltered() || quantizer != null || isDedup();
+    HBuffer outbuf;
+    if (useMemBuf) {
+      outbuf = new HBuffer( null, 0, hdfFile);
+      chunkAddr = 0;
+      chunkLen = 0;
+    }
+    else {
+      chunkLen = elementLen;
+      for (int ii = 0; ii < varRank; ii++) {
+        chunkLen *= chunkDims[ii];
+      }
+      chunkAddr = hdfFile.allocSpace( chunkLen);
+      outbuf = new HBuffer( hdfFile.outChannel, chunkAddr, chunkLen, hdfFile);
+    }
 
     /***************** START COMMENT OUT useWavelet *******************
     boolean useWavelet = false;
@@ -1285,7 +1899,7 @@ throws HdfException, IOException
         useLinear,
         dtype,
         stgFieldLen,
-        varDims,
+        wrtDims,
         chunkDims,
         dataDims,
         dataElementLen,
@@ -1299,33 +1913,37 @@ throws HdfException, IOException
     } // else not useWavelet
     ***************** END COMMENT OUT useWavelet *******************/
 
-    outbuf.flush();        // write remaining data to outChannel
+    if (useMemBuf) {
+      ByteBuffer encBuf = outbuf.getBufView();
+      if (quantizer != null) quantizer.quantize( encBuf);
+      if (isFiltered()) {
+        HdfModInt maskOut = new HdfModInt( 0);
+        encBuf = encodeChunk( encBuf, maskOut);
+        filterMask = maskOut.getValue();
+      }
+      chunkLen = encBuf.remaining();
+      chunkAddr = hdfFile.writeChunk( encBuf, filterMask, isDedup());
+    }
+    else {
+      outbuf.flush();        // write remaining data
+      if (outbuf.getOutPos() != chunkAddr + chunkLen)
+        throwerr("chunk length mismatch.  path: %s  expected: %d  actual: %d",
+          getPath(), chunkLen, outbuf.getOutPos() - chunkAddr);
+    }
 
   } // else not DTYPE_STRING_VAR
 
-  // Set chunk.chunkDataSize.
-  // For non-compressed numeric data we could use something like ...
-  //   chunkDataSize = elementLen;
-  //   for (int ii = 0; ii < varRank; ii++) {
-  //     chunkDataSize *= chunk.specChunkDims[ii];
-  //   }
-  // However compressed data can be any length,
-  // so we just use the output length.
-
-  long endPos = hdfFile.outChannel.position();
-  chunk.chunkDataSize = endPos - chunk.chunkDataAddr;
-
-  if (hdfFile.bugs >= 2) {
-    prtf("HdfGroup.writeData exit: path: " + getPath());
-    prtf("  chunkDataAddr: %d  endPos: %d  chunkDataSize: %d",
-      chunk.chunkDataAddr, endPos, chunk.chunkDataSize);
-    prtf("  old eofAddr: %d", hdfFile.eofAddr);
+  synchronized (chunk) {
+    chunk.chunkDataAddr = chunkAddr;
+    chunk.chunkDataSize = chunkLen;
+    chunk.filterMask = filterMask;
+    chunk.chunkQueued = false;
   }
 
-  hdfFile.eofAddr = hdfFile.outChannel.position();
-
   if (hdfFile.bugs >= 2) {
-    prtf("  new eofAddr: %d", hdfFile.eofAddr);
+    prtf("HdfGroup.writeData exit: path: " + getPath());
+    prtf("  chunkDataAddr: %d  chunkDataSize: %d",
+      chunk.chunkDataAddr, chunk.chunkDataSize);
   }
 
 } // end writeDataSub
@@ -1336,7 +1954,811 @@ throws HdfException, IOException
 
 
 /**
- * Given starting indices, returns the index of the
+ * Writes one slab of a contiguous variable: data whose elements
+ * are consecutive in the file, such as a block of whole rows
+ * along dimension 0, straight to its place in the variable's
+ * file region.  The first slab reserves the region for the
+ * whole variable, so only the slab itself need be in memory.
+ * Called by writeDataSub.
+ * <p>
+ * Slabs may be written in any order, by several threads,
+ * but must not overlap, and must cover the variable
+ * by HdfFileWriter.close.
+ * <p>
+ * Slabs bypass the coalescing buffer: its alignment padding
+ * could cover a small gap between slabs that is written later.
+ */
+
+void writeSlab(
+  int[] startIxs,
+  Object vdata,
+  boolean useLinear,
+  int dataDtype,
+  int[] dataDims,
+  int dataElementLen)
+throws HdfException, IOException
+{
+  if (varRank == 0)
+    throwerr("scalar variable must have startIxs == null");
+  if (dtype == DTYPE_STRING_VAR || dtype == DTYPE_VLEN
+    || dtype == DTYPE_COMPOUND)
+    throwerr("slab writes are not supported for %s.  path: %s",
+      dtypeNames[dtype], getPath());
+  long offset = getSlabOffset( startIxs, dataDims, useLinear);
+
+  // Check the data as if the slab were the whole variable
+  HdfUtil.checkTypeMatch(
+    getPath(),
+    dtype,
+    dataDtype,
+    useLinear,
+    dataDims,
+    new int[dataDims.length],
+    dataDims,
+    dataDims);
+
+  long slabVolume = 1;
+  for (int ii = 0; ii < dataDims.length; ii++) {
+    slabVolume *= dataDims[ii];
+  }
+  long slabLen = slabVolume * elementLen;
+
+  // The first slab reserves the region for the whole variable.
+  HdfChunk chunk = hdfChunks[0];
+  long slabAddr;
+  synchronized (chunk) {
+    if (! isSlabbed) {
+      if (chunk.chunkDataAddr != 0 || chunk.chunkQueued
+        || chunk.compactData != null)
+        throwerr("variable has already been written.  path: %s",
+          getPath());
+      chunk.chunkDataSize = totNumEle * elementLen;
+      if (isCompact()) chunk.compactData = getCompactFill();
+      else chunk.chunkDataAddr = hdfFile.allocSpace( chunk.chunkDataSize);
+      isSlabbed = true;
+    }
+    // Claim the elements before writing, so an overlapping
+    // slab is rejected before it changes the file.
+    claimSlab( offset, slabVolume);
+    slabAddr = chunk.chunkDataAddr + offset * elementLen;
+  }
+  if (hdfFile.bugs >= 1)
+    prtf("HdfGroup.writeSlab: %s  startIxs: %s  dataDims: %s"
+      + "  slabAddr: %d  slabLen: %d",
+      getPath(), HdfUtil.formatInts( startIxs),
+      HdfUtil.formatInts( dataDims), slabAddr, slabLen);
+
+  // If vdata is a ByteBuffer already in HDF5 format,
+  // we use its bytes as is, without calling formatRawData.
+  // Quantized slabs are formatted to memory, to be quantized in place.
+  // Else format directly to outChannel, as outbuf fills,
+  // or with OPT_MAP_DATA, to the mapped file.
+  ByteBuffer rawSlab = getRawChunk( vdata, slabVolume);
+  if (isCompact()) {
+    // For a compact variable, slabAddr is the offset
+    // in the layout message's data.
+    byte[] rawBytes = formatCompact( rawSlab, offset, null, vdata,
+      useLinear, dataDims, dataDims, dataDims, dataElementLen);
+    if (rawBytes.length != slabLen)
+      throwerr("slab length mismatch.  path: %s  expected: %d  actual: %d",
+        getPath(), slabLen, rawBytes.length);
+    synchronized (chunk) {
+      System.arraycopy( rawBytes, 0, chunk.compactData, (int) slabAddr,
+        rawBytes.length);
+    }
+  }
+  else if (rawSlab != null && quantizer == null)
+    writeSlabBytes( rawSlab, slabAddr);
+  else if (rawSlab != null) {
+    byte[] rawBytes = new byte[ rawSlab.remaining()];
+    rawSlab.get( rawBytes);
+    ByteBuffer outSlab = ByteBuffer.wrap( rawBytes);
+    quantizer.quantize( outSlab, offset);
+    writeSlabBytes( outSlab, slabAddr);
+  }
+  else {
+    HBuffer outbuf;
+    if (quantizer != null) outbuf = new HBuffer( null, 0, hdfFile);
+    else if (hdfFile.isCoalescing())
+      outbuf = new HBuffer( hdfFile.outChannel, slabAddr, hdfFile);
+    else outbuf = new HBuffer( hdfFile.outChannel, slabAddr, slabLen, hdfFile);
+
+    int[] curIxs = new int[dataDims.length];
+    formatRawData(
+      "groupName: " + groupName,
+      0,               // curLev
+      curIxs,
+      useLinear,
+      dtype,
+      stgFieldLen,
+      dataDims,        // the slab is the whole variable
+      dataDims,        // and the whole chunk
+      dataDims,
+      dataElementLen,
+      null,            // startIxs
+      vdata,
+      new HdfModInt(0),    // cntr for DTYPE_COMPOUND
+      -1,                  // gcolAddr for DTYPE_STRING_VAR
+      null,                // gcol for DTYPE_STRING_VAR
+      outbuf);
+
+    if (quantizer != null) {
+      ByteBuffer outSlab = outbuf.getBufView();
+      quantizer.quantize( outSlab, offset);
+      writeSlabBytes( outSlab, slabAddr);
+    }
+    else {
+      outbuf.flush();        // write remaining data
+      if (outbuf.getOutPos() != slabAddr + slabLen)
+        throwerr("slab length mismatch.  path: %s  expected: %d  actual: %d",
+          getPath(), slabLen, outbuf.getOutPos() - slabAddr);
+    }
+  }
+} // end writeSlab
+
+
+
+
+
+
+/**
+ * Adds the elements startIx through startIx+numEle-1
+ * to slabRanges, or throws if any was already claimed.
+ * Caller must hold the hdfChunks[0] lock.
+ */
+
+void claimSlab(
+  long startIx,
+  long numEle)
+throws HdfException
+{
+  long endIx = startIx + numEle;
+  Map.Entry<Long,Long> lower = slabRanges.floorEntry( startIx);
+  Map.Entry<Long,Long> higher = slabRanges.ceilingEntry( startIx);
+  if ((lower != null && lower.getValue() > startIx)
+    || (higher != null && higher.getKey() < endIx))
+    throwerr("slab overlaps a slab already written.  path: %s"
+      + "  elements: %d to %d", getPath(), startIx, endIx - 1);
+
+  // Merge with the ranges just before and after
+  long newStart = startIx;
+  long newEnd = endIx;
+  if (lower != null && lower.getValue() == startIx) {
+    newStart = lower.getKey();
+    slabRanges.remove( newStart);
+  }
+  Long nextEnd = slabRanges.remove( endIx);
+  if (nextEnd != null) newEnd = nextEnd;
+  slabRanges.put( newStart, newEnd);
+}
+
+
+
+
+
+
+/**
+ * Returns the num elements written by writeSlab so far.
+ * Caller must hold the hdfChunks[0] lock.
+ */
+
+long getSlabNumEle()
+{
+  long res = 0;
+  for (Map.Entry<Long,Long> entry : slabRanges.entrySet()) {
+    res += entry.getValue() - entry.getKey();
+  }
+  return res;
+}
+
+
+
+
+
+
+/**
+ * Returns the raw data for a compact variable, or a slab of one:
+ * the bytes of rawChunk if not null, else vdata formatted by
+ * formatRawData, quantized if need be.
+ * Called by writeDataSub and writeSlab.
+ *
+ * @param offset  Row major index of the first element,
+ *    for the quantizer.
+ */
+
+byte[] formatCompact(
+  ByteBuffer rawChunk,
+  long offset,
+  int[] startIxs,
+  Object vdata,
+  boolean useLinear,
+  int[] wrtDims,
+  int[] chunkDims,
+  int[] dataDims,
+  int dataElementLen)
+throws HdfException
+{
+  ByteBuffer rawBuf = rawChunk;
+  if (rawBuf == null) {
+    HBuffer outbuf = new HBuffer( null, 0, hdfFile);
+    int[] curIxs = new int[wrtDims.length];
+    formatRawData(
+      "groupName: " + groupName,
+      0,               // curLev
+      curIxs,
+      useLinear,
+      dtype,
+      stgFieldLen,
+      wrtDims,
+      chunkDims,
+      dataDims,
+      dataElementLen,
+      startIxs,
+      vdata,
+      new HdfModInt(0),    // cntr for DTYPE_COMPOUND
+      -1,                  // gcolAddr for DTYPE_STRING_VAR
+      null,                // gcol for DTYPE_STRING_VAR
+      outbuf);
+    rawBuf = outbuf.getBufView();
+  }
+  byte[] rawBytes = new byte[ rawBuf.remaining()];
+  rawBuf.get( rawBytes);
+  if (quantizer != null)
+    quantizer.quantize( ByteBuffer.wrap( rawBytes), offset);
+  return rawBytes;
+}
+
+
+
+
+
+
+/**
+ * Writes the remaining bytes of bbuf, a slab
+ * of a contiguous variable, at file position addr.
+ * Called by writeSlab.
+ */
+
+void writeSlabBytes(
+  ByteBuffer bbuf,
+  long addr)
+throws HdfException, IOException
+{
+  if (hdfFile.isCoalescing()) {
+    while (bbuf.hasRemaining()) {
+      addr += hdfFile.outChannel.write( bbuf, addr);
+    }
+  }
+  else hdfFile.writeAt( bbuf, addr);
+}
+
+
+
+
+
+
+/**
+ * For a slab of a contiguous variable starting at startIxs,
+ * returns the row major index of its first element,
+ * after checking that its elements are consecutive
+ * and within the variable.
+ * If useLinear, dataDims is the num elements in the slab.
+ * Else after the first dimension in which dataDims is
+ * more than 1, the slab must span each dimension:
+ * startIxs is 0 and dataDims is varDims.
+ */
+
+long getSlabOffset(
+  int[] startIxs,
+  int[] dataDims,
+  boolean useLinear)
+throws HdfException
+{
+  if (startIxs.length != varRank)
+    throwerr("startIxs rank must match the variable rank.  startIxs: %s",
+      HdfUtil.formatInts( startIxs));
+  long offset = 0;
+  for (int ii = 0; ii < varRank; ii++) {
+    if (startIxs[ii] < 0 || startIxs[ii] >= varDims[ii])
+      throwerr("startIxs[%d] == %d is out of range.  varDims: %s",
+        ii, startIxs[ii], HdfUtil.formatInts( varDims));
+    offset = offset * varDims[ii] + startIxs[ii];
+  }
+
+  long slabVolume = 1;
+  if (useLinear) {
+    if (dataDims.length != 1)
+      throwerr("useLinear but dataDims rank != 1");
+    slabVolume = dataDims[0];
+  }
+  else {
+    if (dataDims.length != varRank)
+      throwerr("slab rank must match the variable rank.  dataDims: %s",
+        HdfUtil.formatInts( dataDims));
+    boolean isSpan = false;        // must span the remaining dimensions
+    for (int ii = 0; ii < varRank; ii++) {
+      if (dataDims[ii] <= 0 || startIxs[ii] + dataDims[ii] > varDims[ii])
+        throwerr("slab is outside the variable.  path: %s"
+          + "  startIxs: %s  dataDims: %s  varDims: %s",
+          getPath(), HdfUtil.formatInts( startIxs),
+          HdfUtil.formatInts( dataDims), HdfUtil.formatInts( varDims));
+      if (isSpan && (startIxs[ii] != 0 || dataDims[ii] != varDims[ii]))
+        throwerr("slab elements are not consecutive.  path: %s"
+          + "  startIxs: %s  dataDims: %s  varDims: %s",
+          getPath(), HdfUtil.formatInts( startIxs),
+          HdfUtil.formatInts( dataDims), HdfUtil.formatInts( varDims));
+      if (dataDims[ii] > 1) isSpan = true;
+      slabVolume *= dataDims[ii];
+    }
+  }
+  if (slabVolume <= 0 || offset + slabVolume > totNumEle)
+    throwerr("slab is outside the variable.  path: %s"
+      + "  startIxs: %s  dataDims: %s  varDims: %s",
+      getPath(), HdfUtil.formatInts( startIxs),
+      HdfUtil.formatInts( dataDims), HdfUtil.formatInts( varDims));
+  return offset;
+}
+
+
+
+
+
+
+/**
+ * Sets lossy quantization for a float variable, as the netCDF-C
+ * nc_def_var_quantize function does.  Before the filters run,
+ * each chunk's insignificant mantissa bits are zeroed (or set),
+ * so a following FilterDeflate compresses much better.
+ * Also adds the netCDF attribute recording the mode and nsd,
+ * such as _QuantizeBitGroomNumberOfSignificantDigits.
+ * Values equal to the fill value are not changed.
+ * <p>
+ * Must be called before HdfFileWriter.endDefine, at most once.
+ *
+ * @param quantizeMode One of QUANTIZE_BITGROOM, QUANTIZE_GRANULARBR,
+ *        or QUANTIZE_BITROUND.
+ * @param nsd For QUANTIZE_BITGROOM and QUANTIZE_GRANULARBR the num
+ *        significant decimal digits: 1 - 7 for DTYPE_FLOAT32,
+ *        1 - 15 for DTYPE_FLOAT64.
+ *        For QUANTIZE_BITROUND the num significant bits:
+ *        1 - 23 for DTYPE_FLOAT32, 1 - 52 for DTYPE_FLOAT64.
+ */
+
+public void setQuantize(
+  int quantizeMode,
+  int nsd)
+throws HdfException
+{
+  if (hdfFile.bugs >= 1)
+    prtf("HdfGroup.setQuantize: path: %s  quantizeMode: %d  nsd: %d",
+      getPath(), quantizeMode, nsd);
+  if (! isVariable) throwerr("cannot quantize a group");
+  if (hdfFile.fileStatus != HdfFileWriter.ST_DEFINING)
+    throwerr("must call setQuantize before endDefine");
+  if (quantizer != null)
+    throwerr("quantize is already set.  path: %s", getPath());
+  quantizer = new Quantizer( quantizeMode, nsd, dtype, msgFillValue.fillValue);
+  addAttribute( Quantizer.attrNames[ quantizeMode], DTYPE_FIXED32, 0,
+    Integer.valueOf( nsd), false);
+}
+
+
+
+
+/**
+ * Returns true if this variable has a filter chain.
+ */
+
+boolean isFiltered() {
+  return filterChain != null && filterChain.length > 0;
+}
+
+
+
+
+
+
+/**
+ * Runs the filter chain on one chunk.
+ * Called by writeDataSub, and by the ChunkCompressor
+ * and WritePipeline workers.
+ *
+ * @param rawChunk  The formatted chunk: the bytes from position to limit.
+ *    Not changed.
+ * @param filterMask  Output: bit ii is set if filter ii
+ *    was skipped for this chunk.
+ * @return The encoded chunk: the bytes from position to limit.
+ */
+
+ByteBuffer encodeChunk(
+  ByteBuffer rawChunk,
+  HdfModInt filterMask)
+throws HdfException
+{
+  ByteBuffer buf = rawChunk;
+  int mask = 0;
+  for (int ii = 0; ii < filterChain.length; ii++) {
+    FilterBase filter = filterChain[ii];
+    ByteBuffer res = filter.encode( buf, dtype, elementLen);
+    if (res == null) {
+      if (! filter.isOptional())
+        throwerr("non-optional filter returned null.  path: %s  filter: %s",
+          getPath(), filter);
+      mask |= 1 << ii;
+    }
+    else buf = res;
+  }
+  if (hdfFile.bugs >= 2)
+    prtf("HdfGroup.encodeChunk: %s  rawLen: %d  encLen: %d  filterMask: 0x%x",
+      getPath(), rawChunk.remaining(), buf.remaining(), mask);
+  filterMask.setValue( mask);
+  return buf;
+}
+
+
+
+
+
+
+/**
+ * If vdata is a ByteBuffer holding a full chunk of
+ * little endian data (or single byte data), returns a duplicate
+ * of it, whose remaining bytes are the chunk as it
+ * appears in the HDF5 file.  Else returns null.
+ * Called by writeDataSub.
+ */
+
+ByteBuffer getRawChunk(
+  Object vdata,
+  long chunkVolume)
+{
+  ByteBuffer res = null;
+  if (vdata instanceof ByteBuffer) {
+    ByteBuffer bbuf = (ByteBuffer) vdata;
+    if ((elementLen == 1 || bbuf.order() == ByteOrder.LITTLE_ENDIAN)
+      && bbuf.remaining() == chunkVolume * elementLen)
+    {
+      res = bbuf.duplicate();
+    }
+  }
+  return res;
+}
+
+
+
+
+
+
+/**
+ * Returns true if this is a chunked variable in a file
+ * opened with HdfFileWriter.OPT_DEDUP_CHUNKS,
+ * so identical chunks are written once.
+ */
+
+boolean isDedup()
+{
+  boolean bres = false;
+  if (isVariable
+    && (hdfFile.optFlag & HdfFileWriter.OPT_DEDUP_CHUNKS) != 0
+    && msgLayout.layoutClass == MsgLayout.LY_CHUNKED)
+  {
+    bres = true;
+  }
+  return bres;
+}
+
+
+
+
+
+
+/**
+ * Returns true if this variable uses compact storage:
+ * its raw data are kept in the layout message in its
+ * object header, rather than in a block of their own.
+ */
+
+boolean isCompact()
+{
+  return isVariable && msgLayout.layoutClass == MsgLayout.LY_COMPACT;
+}
+
+
+
+
+
+
+/**
+ * Returns the len in bytes of the raw data of a
+ * contiguous variable: for a scalar, one element.
+ */
+
+long getCompactLen()
+{
+  long len = totNumEle * elementLen;
+  if (varRank == 0) len = elementLen;
+  return len;
+}
+
+
+
+
+
+
+/**
+ * Returns the raw data of a compact variable that was
+ * never written: the fill value repeated, or zeros.
+ */
+
+byte[] getCompactFill()
+{
+  byte[] res = new byte[ (int) getCompactLen()];
+  byte[] fillBytes = msgFillValue.fillBytes;
+  if (fillBytes != null && fillBytes.length == elementLen) {
+    for (int ii = 0; ii < res.length; ii += elementLen) {
+      System.arraycopy( fillBytes, 0, res, ii, elementLen);
+    }
+  }
+  return res;
+}
+
+
+
+
+
+
+/**
+ * Called by HdfFileWriter.endDefine: switches a small
+ * contiguous variable, of at most compactMax bytes,
+ * to compact storage.
+ * Variable length types and compounds keep contiguous storage,
+ * since their raw data refer to other blocks.
+ * Like HDF5, compact variables use early allocation.
+ */
+
+void chooseCompact( int compactMax)
+{
+  if (isVariable
+    && msgLayout.layoutClass == MsgLayout.LY_CONTIGUOUS
+    && varDims != null
+    && dtype != DTYPE_STRING_VAR && dtype != DTYPE_VLEN
+    && dtype != DTYPE_COMPOUND
+    && getCompactLen() > 0 && getCompactLen() <= compactMax)
+  {
+    msgLayout.layoutClass = MsgLayout.LY_COMPACT;
+    msgFillValue.fillAllocTime = 1;
+    if (hdfFile.bugs >= 1)
+      prtf("HdfGroup.chooseCompact: %s: compact len: %d",
+        getPath(), getCompactLen());
+  }
+}
+
+
+
+
+
+
+/**
+ * Returns true if this is a chunked variable in a file
+ * opened with HdfFileWriter.OPT_SPARSE_CHUNKS,
+ * so chunks may be left unwritten.
+ */
+
+boolean isSparse()
+{
+  boolean bres = false;
+  if (isVariable
+    && (hdfFile.optFlag & HdfFileWriter.OPT_SPARSE_CHUNKS) != 0
+    && msgLayout.layoutClass == MsgLayout.LY_CHUNKED)
+  {
+    bres = true;
+  }
+  return bres;
+}
+
+
+
+
+
+
+/**
+ * Returns specChunkDims for addVariable that let the chunk
+ * shape be chosen automatically, aiming at chunks of
+ * HdfFileWriter.setAutoChunkBytes bytes.
+ * <ul>
+ *   <li> ACCESS_BALANCED: all CHUNK_AUTO.  The chunk is about
+ *        equally long in each dimension, except that short
+ *        dimensions are taken whole.
+ *   <li> ACCESS_TIME_SERIES: dimension 0 is CHUNK_AUTO_LONG,
+ *        so a chunk holds as many indices of dimension 0
+ *        as the target allows.
+ *   <li> ACCESS_SPATIAL: dimension 0 is 1, so a chunk holds
+ *        part or all of one map.
+ * </ul>
+ * Callers may replace elements of the result with
+ * fixed lens before calling addVariable.
+ *
+ * @param rank  The num dimensions of the variable.
+ * @param accessHint  One of ACCESS_*.
+ */
+
+public static int[] autoChunkDims(
+  int rank,
+  int accessHint)
+throws HdfException
+{
+  return AutoChunker.getAutoSpec( rank, accessHint);
+}
+
+
+
+
+/**
+ * Returns the chunk lens, with any CHUNK_AUTO values resolved,
+ * or null if the variable is contiguous.
+ */
+
+public int[] getChunkDims()
+{
+  int[] res = null;
+  if (specChunkDims != null)
+    res = Arrays.copyOf( specChunkDims, specChunkDims.length);
+  return res;
+}
+
+
+
+
+
+
+/**
+ * For a variable whose dimension 0 is DIM_UNLIMITED,
+ * returns the num records (the length of dimension 0)
+ * written so far, which after HdfFileWriter.close is
+ * the final length.
+ * For other variables returns the length of dimension 0.
+ */
+
+public synchronized int getRecordLen()
+{
+  int ires = 0;
+  if (isUnlimited) ires = recordLen;
+  else if (varDims != null && varDims.length > 0) ires = varDims[0];
+  return ires;
+}
+
+
+
+
+
+
+/**
+ * For an unlimited variable, returns the chunk that will be
+ * hdfChunks[ichunk] after settleRecords, first adding any
+ * missing chunks, in order, to recordChunks.
+ */
+
+synchronized HdfChunk findRecordChunk( int ichunk)
+throws HdfException
+{
+  int[] startIxs = new int[varRank];
+  while (recordChunks.size() <= ichunk) {
+    int ic = recordChunks.size();
+    for (int ii = 0; ii < varRank; ii++) {
+      startIxs[ii] = (ic / totChunkNums[ii]) * specChunkDims[ii];
+      ic %= totChunkNums[ii];
+    }
+    recordChunks.add( new HdfChunk( startIxs, this));
+  }
+  return recordChunks.get( ichunk);
+}
+
+
+
+
+
+
+/**
+ * For an unlimited variable, returns a copy of varDims with
+ * dimension 0 set to its length after writing dataDims
+ * at startIxs: startIxs[0] plus the num records in the data.
+ * If useLinear, dataDims holds the total num elements,
+ * either a full chunk or a chunk clipped at the high edges
+ * of the variable, as for other variables.
+ */
+
+int[] getRecordDims(
+  int[] startIxs,
+  int[] chunkDims,
+  int[] dataDims,
+  boolean useLinear)
+throws HdfException
+{
+  int numRec = chunkDims[0];
+  if (useLinear) {
+    // Volumes of one record of a full chunk and a clipped chunk
+    long fullVolume = 1;
+    long remVolume = 1;
+    for (int ii = 1; ii < varRank; ii++) {
+      fullVolume *= chunkDims[ii];
+      remVolume *= Math.min( chunkDims[ii], varDims[ii] - startIxs[ii]);
+    }
+    if (dataDims.length == 1 && dataDims[0] != numRec * fullVolume
+      && remVolume > 0 && dataDims[0] % remVolume == 0)
+      numRec = (int) (dataDims[0] / remVolume);
+  }
+  else if (dataDims.length == varRank) numRec = dataDims[0];
+
+  if (numRec <= 0 || numRec > chunkDims[0])
+    throwerr("invalid num records: %d  path: %s  dataDims: %s",
+      numRec, getPath(), HdfUtil.formatInts( dataDims));
+  int[] wrtDims = Arrays.copyOf( varDims, varRank);
+  wrtDims[0] = startIxs[0] + numRec;
+  return wrtDims;
+}
+
+
+
+
+
+
+/**
+ * For an unlimited variable, notes that the records
+ * startIx through endIx-1 of dimension 0 have been written.
+ */
+
+synchronized void noteRecords(
+  int startIx,
+  int endIx)
+{
+  recordLen = Math.max( recordLen, endIx);
+  if (endIx - startIx < specChunkDims[0])
+    shortRecordEnd = Math.min( shortRecordEnd, endIx);
+}
+
+
+
+
+
+
+/**
+ * Called by HdfFileWriter.close for an unlimited variable,
+ * after all data are written: sets the length of dimension 0
+ * to recordLen, and sets hdfChunks to the chunks
+ * covering the records.
+ */
+
+synchronized void settleRecords()
+throws HdfException
+{
+  if (shortRecordEnd < recordLen)
+    throwerr("only the last chunk of records may be short.  path: %s"
+      + "  short chunk end: %d  num records: %d",
+      getPath(), shortRecordEnd, recordLen);
+  varDims[0] = recordLen;
+  totNumEle = 1;
+  for (int ii : varDims) {
+    totNumEle *= ii;
+  }
+  msgDataSpace.setRecordLen( recordLen);
+
+  int numRow = (recordLen + specChunkDims[0] - 1) / specChunkDims[0];
+  int numChunk = numRow * totChunkNums[0];
+  if (numChunk > 0) findRecordChunk( numChunk - 1);
+  hdfChunks = recordChunks.subList( 0, numChunk).toArray(
+    new HdfChunk[ numChunk]);
+  if (hdfFile.bugs >= 1)
+    prtf("HdfGroup.settleRecords: %s  recordLen: %d  numChunk: %d",
+      getPath(), recordLen, hdfChunks.length);
+}
+
+
+
+
+
+
+/**
+ * Given starting indices, returns the index of the
  * appropriate chunk in hdfChunks.
  * Also checks for startIxs validity.
  */
@@ -1348,7 +2770,7 @@ throws HdfException
   for (int ii = 0; ii < varRank; ii++) {
     if (startIxs[ii] < 0)
       throwerr("startIxs[%d] == %d is < 0: %d", ii, startIxs[ii]);
-    if (startIxs[ii] >= varDims[ii])
+    if (startIxs[ii] >= varDims[ii] && ! (isUnlimited && ii == 0))
       throwerr("startIxs[%d] == %d is >= varDims[%d] == %d",
         ii, startIxs[ii], ii, varDims[ii]);
     if (specChunkDims == null) {
@@ -1363,7 +2785,8 @@ throws HdfException
       ichunk += (startIxs[ii] / specChunkDims[ii]) * totChunkNums[ii];
     }
   }
-  if (ichunk < 0 || ichunk >= hdfChunks.length) throwerr("invalid ichunk");
+  if (ichunk < 0 || (ichunk >= hdfChunks.length && ! isUnlimited))
+    throwerr("invalid ichunk");
   return ichunk;
 }
 
@@ -1650,7 +3073,8 @@ throws HdfException
   for (int ii = 0; ii < rank; ii++) {
     if (varDims[ii] <= 0)
       throwerr("invalid varDims: " + HdfUtil.formatInts( varDims));
-    if (chunkDims[ii] <= 0 || chunkDims[ii] > varDims[ii])
+    if (chunkDims[ii] <= 0
+      || (chunkDims[ii] > varDims[ii] && ! (isUnlimited && ii == 0)))
       throwerr("invalid chunkDims: " + HdfUtil.formatInts( chunkDims));
     if (curIxs[ii] < 0 || curIxs[ii] >= chunkDims[ii])
       throwerr("invalid curIxs: " + HdfUtil.formatInts( curIxs));
@@ -1948,54 +3372,50 @@ throws HdfException
         byte[] avec = (byte[]) vdataOb;
         if (hdfFile.bugs >= 2)
           prtIndent("formatRawData byte vec len: " + avec.length);
-        for (int ii = 0; ii < writeLen; ii++) {
-          fmtBuf.putBufByte("formatRawData", 0xff & avec[ linearIx + ii]);
-        }
+        fmtBuf.putBufBytes("formatRawData", avec, linearIx, writeLen);
       }
       else if (vdataOb instanceof short[]) {
         checkDtype( DTYPE_FIXED16, dtp);
         short[] avec = (short[]) vdataOb;
         if (hdfFile.bugs >= 2)
           prtIndent("formatRawData short vec len: " + avec.length);
-        for (int ii = 0; ii < writeLen; ii++) {
-          fmtBuf.putBufShort("formatRawData", avec[ linearIx + ii]);
-        }
+        fmtBuf.putBufShorts("formatRawData", avec, linearIx, writeLen);
       }
       else if (vdataOb instanceof int[]) {
         checkDtype( DTYPE_FIXED32, dtp);
         int[] avec = (int[]) vdataOb;
         if (hdfFile.bugs >= 2)
           prtIndent("formatRawData int vec len: " + avec.length);
-        for (int ii = 0; ii < writeLen; ii++) {
-          fmtBuf.putBufInt("formatRawData", avec[ linearIx + ii]);
-        }
+        fmtBuf.putBufInts("formatRawData", avec, linearIx, writeLen);
       }
       else if (vdataOb instanceof long[]) {
         checkDtype( DTYPE_FIXED64, dtp);
         long[] avec = (long[]) vdataOb;
         if (hdfFile.bugs >= 2)
           prtIndent("formatRawData long vec len: " + avec.length);
-        for (int ii = 0; ii < writeLen; ii++) {
-          fmtBuf.putBufLong("formatRawData", avec[ linearIx + ii]);
-        }
+        fmtBuf.putBufLongs("formatRawData", avec, linearIx, writeLen);
       }
       else if (vdataOb instanceof float[]) {
         checkDtype( DTYPE_FLOAT32, dtp);
         float[] avec = (float[]) vdataOb;
         if (hdfFile.bugs >= 2)
           prtIndent("formatRawData float vec len: " + avec.length);
-        for (int ii = 0; ii < writeLen; ii++) {
-          fmtBuf.putBufFloat("formatRawData", avec[ linearIx + ii]);
-        }
+        fmtBuf.putBufFloats("formatRawData", avec, linearIx, writeLen);
       }
       else if (vdataOb instanceof double[]) {
         checkDtype( DTYPE_FLOAT64, dtp);
         double[] avec = (double[]) vdataOb;
         if (hdfFile.bugs >= 2)
           prtIndent("formatRawData double vec len: " + avec.length);
-        for (int ii = 0; ii < writeLen; ii++) {
-          fmtBuf.putBufDouble("formatRawData", avec[ linearIx + ii]);
-        }
+        fmtBuf.putBufDoubles("formatRawData", avec, linearIx, writeLen);
+      }
+      else if (vdataOb instanceof Buffer) {
+        // Linear data from writeData( int[], Buffer, int[]).
+        // The dtype was checked by HdfUtil.getBufferDimLen.
+        if (hdfFile.bugs >= 2)
+          prtIndent("formatRawData Buffer: " + vdataOb);
+        fmtBuf.putBufBuffer("formatRawData", (Buffer) vdataOb,
+          dataElementLen, linearIx, writeLen);
       }
 
       else if ((vdataOb instanceof String[])
@@ -2057,9 +3477,7 @@ throws HdfException
       }
       else {
         // Write padLen elements, each padEleLen long
-        for (int ii = 0; ii < padLen * padEleLen; ii++) {
-          fmtBuf.putBufByte("formatRawData.pad", 0x77);
-        }
+        fmtBuf.putBufFill("formatRawData.pad", 0x77, padLen * padEleLen);
       }
     }
 
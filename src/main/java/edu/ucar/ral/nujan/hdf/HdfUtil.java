@@ -26,8 +26,14 @@
 
 package edu.ucar.ral.nujan.hdf;
 
+import java.nio.Buffer;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.ShortBuffer;
 import java.nio.charset.Charset;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
@@ -297,6 +303,79 @@ throws HdfException
 
 
 
+/**
+ * Returns the same information as getDimLen, for data held in
+ * the remaining elements (position to limit) of an NIO Buffer.
+ * The Buffer is treated as linear (1 dimensional) data.
+ * <p>
+ * A ByteBuffer may hold the raw bytes of any numeric specType,
+ * in the ByteBuffer's byte order.
+ * The other Buffer types must match specType:
+ * ShortBuffer for DTYPE_FIXED16, IntBuffer for DTYPE_FIXED32, etc.
+ *
+ * @param buf The Buffer to inspect.
+ * @param specType The declared type of the variable: one of HdfGroup.DTYPE_*.
+ * @param specElementLen The declared element length of the variable.
+ * @return An array containing: elementType, totNumEle, elementLen, totNumEle.
+ */
+
+static int[] getBufferDimLen(
+  Buffer buf,
+  int specType,
+  int specElementLen)
+throws HdfException
+{
+  int dtype = -1;
+  int eleLen = 0;
+  if (buf instanceof ByteBuffer) {
+    if (specType == HdfGroup.DTYPE_SFIXED08
+      || specType == HdfGroup.DTYPE_UFIXED08)
+      dtype = HdfGroup.DTYPE_UFIXED08;
+    else if (specType == HdfGroup.DTYPE_FIXED16
+      || specType == HdfGroup.DTYPE_FIXED32
+      || specType == HdfGroup.DTYPE_FIXED64
+      || specType == HdfGroup.DTYPE_FLOAT32
+      || specType == HdfGroup.DTYPE_FLOAT64)
+      dtype = specType;
+    else throwerr("ByteBuffer data not supported for type: %s",
+      HdfGroup.dtypeNames[specType]);
+    eleLen = specElementLen;
+    if (buf.remaining() % eleLen != 0)
+      throwerr("ByteBuffer remaining: %d is not a multiple of elementLen: %d",
+        buf.remaining(), eleLen);
+  }
+  else if (buf instanceof ShortBuffer) {
+    dtype = HdfGroup.DTYPE_FIXED16;
+    eleLen = 2;
+  }
+  else if (buf instanceof IntBuffer) {
+    dtype = HdfGroup.DTYPE_FIXED32;
+    eleLen = 4;
+  }
+  else if (buf instanceof LongBuffer) {
+    dtype = HdfGroup.DTYPE_FIXED64;
+    eleLen = 8;
+  }
+  else if (buf instanceof FloatBuffer) {
+    dtype = HdfGroup.DTYPE_FLOAT32;
+    eleLen = 4;
+  }
+  else if (buf instanceof DoubleBuffer) {
+    dtype = HdfGroup.DTYPE_FLOAT64;
+    eleLen = 8;
+  }
+  else throwerr("unsupported Buffer type: %s", buf.getClass());
+
+  int numEle = buf.remaining();
+  if (buf instanceof ByteBuffer) numEle /= eleLen;
+  return new int[] { dtype, numEle, eleLen, numEle};
+}
+
+
+
+
+
+
 
 /**
  * Checks that dataType == specType.
@@ -626,6 +705,195 @@ static String formatDtypeDim(
 
 
 
+/**
+ * Returns true if every element of vdata equals fillValue.
+ * <p>
+ * vdata may be a scalar (Byte, Short, ..., Character) or an
+ * array of any rank of the corresponding primitive type.
+ * Floats and doubles are compared by their bits,
+ * so a NaN fill value matches NaN data.
+ * A char, or a String of length 1 as NhVariable passes TP_CHAR data,
+ * matches a fillValue that is a String of length 1.
+ * vdata may also be an NIO Buffer: see isAllFillBuffer.
+ * For any other type of vdata, returns false.
+ *
+ * @param vdata  The data, as for HdfGroup.writeData.
+ * @param fillValue  The fill value, as for HdfGroup.addVariable.
+ */
+
+static boolean isAllFill(
+  Object vdata,
+  Object fillValue)
+{
+  if (fillValue instanceof String && ((String) fillValue).length() == 1)
+    fillValue = Character.valueOf( ((String) fillValue).charAt(0));
+
+  boolean bres = true;
+  if (vdata instanceof Object[]) {
+    Object[] vals = (Object[]) vdata;
+    for (int ii = 0; ii < vals.length; ii++) {
+      if (! isAllFill( vals[ii], fillValue)) {
+        bres = false;
+        break;
+      }
+    }
+  }
+  else if (vdata instanceof byte[] && fillValue instanceof Byte) {
+    byte[] vals = (byte[]) vdata;
+    byte fill = ((Byte) fillValue).byteValue();
+    for (int ii = 0; ii < vals.length && bres; ii++) {
+      if (vals[ii] != fill) bres = false;
+    }
+  }
+  else if (vdata instanceof short[] && fillValue instanceof Short) {
+    short[] vals = (short[]) vdata;
+    short fill = ((Short) fillValue).shortValue();
+    for (int ii = 0; ii < vals.length && bres; ii++) {
+      if (vals[ii] != fill) bres = false;
+    }
+  }
+  else if (vdata instanceof int[] && fillValue instanceof Integer) {
+    int[] vals = (int[]) vdata;
+    int fill = ((Integer) fillValue).intValue();
+    for (int ii = 0; ii < vals.length && bres; ii++) {
+      if (vals[ii] != fill) bres = false;
+    }
+  }
+  else if (vdata instanceof long[] && fillValue instanceof Long) {
+    long[] vals = (long[]) vdata;
+    long fill = ((Long) fillValue).longValue();
+    for (int ii = 0; ii < vals.length && bres; ii++) {
+      if (vals[ii] != fill) bres = false;
+    }
+  }
+  else if (vdata instanceof float[] && fillValue instanceof Float) {
+    float[] vals = (float[]) vdata;
+    int fill = Float.floatToIntBits( ((Float) fillValue).floatValue());
+    for (int ii = 0; ii < vals.length && bres; ii++) {
+      if (Float.floatToIntBits( vals[ii]) != fill) bres = false;
+    }
+  }
+  else if (vdata instanceof double[] && fillValue instanceof Double) {
+    double[] vals = (double[]) vdata;
+    long fill = Double.doubleToLongBits( ((Double) fillValue).doubleValue());
+    for (int ii = 0; ii < vals.length && bres; ii++) {
+      if (Double.doubleToLongBits( vals[ii]) != fill) bres = false;
+    }
+  }
+  else if (vdata instanceof char[] && fillValue instanceof Character) {
+    char[] vals = (char[]) vdata;
+    char fill = ((Character) fillValue).charValue();
+    for (int ii = 0; ii < vals.length && bres; ii++) {
+      if (vals[ii] != fill) bres = false;
+    }
+  }
+  else if (vdata instanceof Float && fillValue instanceof Float) {
+    bres = Float.floatToIntBits( ((Float) vdata).floatValue())
+      == Float.floatToIntBits( ((Float) fillValue).floatValue());
+  }
+  else if (vdata instanceof Double && fillValue instanceof Double) {
+    bres = Double.doubleToLongBits( ((Double) vdata).doubleValue())
+      == Double.doubleToLongBits( ((Double) fillValue).doubleValue());
+  }
+  else if (vdata instanceof Byte || vdata instanceof Short
+    || vdata instanceof Integer || vdata instanceof Long
+    || vdata instanceof Character)
+  {
+    bres = vdata.equals( fillValue);
+  }
+  else if (vdata instanceof String && fillValue instanceof Character) {
+    String stg = (String) vdata;
+    bres = stg.length() == 1
+      && stg.charAt(0) == ((Character) fillValue).charValue();
+  }
+  else if (vdata instanceof Buffer) {
+    bres = isAllFillBuffer( (Buffer) vdata, fillValue);
+  }
+  else bres = false;
+  return bres;
+}
+
+
+
+
+/**
+ * Returns true if every remaining element of buf equals fillValue.
+ * Called by isAllFill.  The position of buf is not changed.
+ * A ByteBuffer is compared to the bytes of fillValue
+ * in the ByteBuffer's byte order.
+ */
+
+static boolean isAllFillBuffer(
+  Buffer buf,
+  Object fillValue)
+{
+  boolean bres = true;
+  int ipos = buf.position();
+  int ilim = buf.limit();
+  if (buf instanceof ByteBuffer) {
+    ByteBuffer vals = (ByteBuffer) buf;
+    ByteBuffer fillBuf = ByteBuffer.allocate( 8);
+    fillBuf.order( vals.order());
+    if (fillValue instanceof Byte) fillBuf.put( ((Byte) fillValue).byteValue());
+    else if (fillValue instanceof Short)
+      fillBuf.putShort( ((Short) fillValue).shortValue());
+    else if (fillValue instanceof Integer)
+      fillBuf.putInt( ((Integer) fillValue).intValue());
+    else if (fillValue instanceof Long)
+      fillBuf.putLong( ((Long) fillValue).longValue());
+    else if (fillValue instanceof Float)
+      fillBuf.putFloat( ((Float) fillValue).floatValue());
+    else if (fillValue instanceof Double)
+      fillBuf.putDouble( ((Double) fillValue).doubleValue());
+    int fillLen = fillBuf.position();
+    byte[] fills = fillBuf.array();
+    if (fillLen == 0 || (ilim - ipos) % fillLen != 0) bres = false;
+    for (int ii = ipos; ii < ilim && bres; ii++) {
+      if (vals.get( ii) != fills[ (ii - ipos) % fillLen]) bres = false;
+    }
+  }
+  else if (buf instanceof ShortBuffer && fillValue instanceof Short) {
+    ShortBuffer vals = (ShortBuffer) buf;
+    short fill = ((Short) fillValue).shortValue();
+    for (int ii = ipos; ii < ilim && bres; ii++) {
+      if (vals.get( ii) != fill) bres = false;
+    }
+  }
+  else if (buf instanceof IntBuffer && fillValue instanceof Integer) {
+    IntBuffer vals = (IntBuffer) buf;
+    int fill = ((Integer) fillValue).intValue();
+    for (int ii = ipos; ii < ilim && bres; ii++) {
+      if (vals.get( ii) != fill) bres = false;
+    }
+  }
+  else if (buf instanceof LongBuffer && fillValue instanceof Long) {
+    LongBuffer vals = (LongBuffer) buf;
+    long fill = ((Long) fillValue).longValue();
+    for (int ii = ipos; ii < ilim && bres; ii++) {
+      if (vals.get( ii) != fill) bres = false;
+    }
+  }
+  else if (buf instanceof FloatBuffer && fillValue instanceof Float) {
+    FloatBuffer vals = (FloatBuffer) buf;
+    int fill = Float.floatToIntBits( ((Float) fillValue).floatValue());
+    for (int ii = ipos; ii < ilim && bres; ii++) {
+      if (Float.floatToIntBits( vals.get( ii)) != fill) bres = false;
+    }
+  }
+  else if (buf instanceof DoubleBuffer && fillValue instanceof Double) {
+    DoubleBuffer vals = (DoubleBuffer) buf;
+    long fill = Double.doubleToLongBits( ((Double) fillValue).doubleValue());
+    for (int ii = ipos; ii < ilim && bres; ii++) {
+      if (Double.doubleToLongBits( vals.get( ii)) != fill) bres = false;
+    }
+  }
+  else bres = false;
+  return bres;
+}
+
+
+
+
 /**
  * Formats a general Object by recursively examining it
  * if it's an array.  Calls formatObjectSub to do the real work.
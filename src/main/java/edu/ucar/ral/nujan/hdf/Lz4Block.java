@@ -0,0 +1,246 @@
+// The MIT License
+// 
+// Copyright (c) 2010 University Corporation for Atmospheric Research
+// 
+// Permission is hereby granted, free of charge, to any person
+// obtaining a copy of this software and associated documentation
+// files (the "Software"), to deal in the Software without
+// restriction, including without limitation the rights to use,
+// copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following
+// conditions:
+// 
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+// 
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+// OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT.  IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+// HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+// WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+// FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+
+
+
+package edu.ucar.ral.nujan.hdf;
+
+
+/**
+ * Compresses blocks in the LZ4 block format, in pure Java.
+ * The output is a standard LZ4 block, as made by LZ4_compress_default,
+ * and is decoded by LZ4_decompress_safe.
+ * It's not byte for byte the same as the C library's output,
+ * since the match finding differs in the details.
+ * <p>
+ * Used by FilterLz4 and FilterBitshuffle.
+ * A compress call needs a hash table from newHashTable;
+ * callers may reuse the table for later blocks in the same
+ * source array, without clearing it, since every match found
+ * through the table is verified.
+ */
+
+class Lz4Block {
+
+
+/** Min match len in the LZ4 format. */
+static final int MIN_MATCH = 4;
+
+/** The last LAST_LITERALS bytes of a block are always literals. */
+static final int LAST_LITERALS = 5;
+
+/** The last match must start at least MF_LIMIT bytes before the end. */
+static final int MF_LIMIT = 12;
+
+/** Max match offset. */
+static final int MAX_DISTANCE = 65535;
+
+/** Num bits in a hash table index, as in the default LZ4_MEMORY_USAGE. */
+static final int HASH_LOG = 12;
+
+/**
+ * After 1 << SKIP_TRIGGER misses in a row, step 2 bytes, and so on,
+ * so incompressible data goes fast.  Same as LZ4.
+ */
+static final int SKIP_TRIGGER = 6;
+
+static final int RUN_MASK = 15;       // token literal len field
+static final int ML_MASK = 15;        // token match len field
+
+
+
+
+/**
+ * Returns the max len of a compressed block for srcLen input bytes,
+ * the same as LZ4_compressBound.
+ */
+
+static int maxCompressedLen( int srcLen) {
+  return srcLen + srcLen / 255 + 16;
+}
+
+
+
+
+/**
+ * Returns a new hash table for compress.
+ */
+
+static int[] newHashTable() {
+  return new int[ 1 << HASH_LOG];
+}
+
+
+
+
+/**
+ * Compresses src[srcOff] through src[srcOff+srcLen-1] into dst,
+ * starting at dst[dstOff], and returns the compressed len.
+ * dst must have room for maxCompressedLen( srcLen) bytes.
+ *
+ * @param src  The input bytes.
+ * @param srcOff  Index of the first input byte.
+ * @param srcLen  Num input bytes.
+ * @param dst  The output buffer.
+ * @param dstOff  Index of the first output byte.
+ * @param hashTable  From newHashTable.  Holds the index in src
+ *    of the last position having each hash.
+ * @return The num bytes written to dst.
+ */
+
+static int compress(
+  byte[] src,
+  int srcOff,
+  int srcLen,
+  byte[] dst,
+  int dstOff,
+  int[] hashTable)
+{
+  int srcEnd = srcOff + srcLen;
+  int anchor = srcOff;          // start of pending literals
+  int opos = dstOff;
+
+  if (srcLen >= MF_LIMIT + 1) {
+    int mfLimit = srcEnd - MF_LIMIT;
+    int matchLimit = srcEnd - LAST_LITERALS;
+    int ipos = srcOff;
+    int numMiss = 0;
+    while (ipos < mfLimit) {
+      int seq = getInt( src, ipos);
+      int hash = (seq * -1640531535) >>> (32 - HASH_LOG);
+      int ref = hashTable[hash];
+      hashTable[hash] = ipos;
+      if (ref < srcOff || ref >= ipos || ipos - ref > MAX_DISTANCE
+        || getInt( src, ref) != seq)
+      {
+        numMiss++;
+        ipos += 1 + (numMiss >>> SKIP_TRIGGER);
+        continue;
+      }
+      numMiss = 0;
+
+      // Extend the match backwards, then forwards.
+      while (ipos > anchor && ref > srcOff && src[ipos-1] == src[ref-1]) {
+        ipos--;
+        ref--;
+      }
+      int matchLen = MIN_MATCH;
+      while (ipos + matchLen < matchLimit
+        && src[ipos + matchLen] == src[ref + matchLen])
+      {
+        matchLen++;
+      }
+
+      opos = putSequence( src, anchor, ipos - anchor,
+        ipos - ref, matchLen, dst, opos);
+      ipos += matchLen;
+      anchor = ipos;
+    } // while ipos < mfLimit
+  }
+
+  // Last literals
+  opos = putSequence( src, anchor, srcEnd - anchor, 0, 0, dst, opos);
+  return opos - dstOff;
+}
+
+
+
+
+/**
+ * Writes one LZ4 sequence: the token, the literal len,
+ * the literals, and, if matchLen > 0, the match offset and len.
+ * Returns the new dst index.
+ */
+
+static int putSequence(
+  byte[] src,
+  int litOff,
+  int litLen,
+  int offset,
+  int matchLen,
+  byte[] dst,
+  int opos)
+{
+  int tokenPos = opos++;
+  int token;
+  if (litLen >= RUN_MASK) {
+    token = RUN_MASK << 4;
+    opos = putLenBytes( litLen - RUN_MASK, dst, opos);
+  }
+  else token = litLen << 4;
+  System.arraycopy( src, litOff, dst, opos, litLen);
+  opos += litLen;
+
+  if (matchLen > 0) {
+    dst[opos++] = (byte) offset;
+    dst[opos++] = (byte) (offset >>> 8);
+    int mlen = matchLen - MIN_MATCH;
+    if (mlen >= ML_MASK) {
+      token |= ML_MASK;
+      opos = putLenBytes( mlen - ML_MASK, dst, opos);
+    }
+    else token |= mlen;
+  }
+  dst[tokenPos] = (byte) token;
+  return opos;
+}
+
+
+
+
+/**
+ * Writes the extra len bytes for a literal or match len:
+ * 255 for each full 255, then the remainder.
+ */
+
+static int putLenBytes(
+  int len,
+  byte[] dst,
+  int opos)
+{
+  while (len >= 255) {
+    dst[opos++] = (byte) 255;
+    len -= 255;
+  }
+  dst[opos++] = (byte) len;
+  return opos;
+}
+
+
+
+
+static int getInt(
+  byte[] src,
+  int pos)
+{
+  return (src[pos] & 0xff)
+    | (src[pos+1] & 0xff) << 8
+    | (src[pos+2] & 0xff) << 16
+    | (src[pos+3] & 0xff) << 24;
+}
+
+
+
+} // end class
@@ -58,8 +58,7 @@ int[] varDims;               // size of each dimension
 int rank;                    // dimensionality == num dimensions
 long totNumEle;              // total num elements, calculated from varDims
 
-// Unlimited (-1) is not implemented here but would
-// be easy: just pass in dimMaxSizes instead of copying varDims.
+// Written only if spaceFlag bit 0 is set: see setUnlimited.
 int[] dimMaxSizes;           // -1 means unlimited
 long[] dimPermuations;
 
@@ -124,6 +123,39 @@ public String toString() {
 
 
 
+/**
+ * Marks dimension 0 as unlimited: sets spaceFlag bit 0,
+ * so the maximum sizes are written, with -1 (H5S_UNLIMITED)
+ * for dimension 0.
+ */
+
+void setUnlimited()
+{
+  dimMaxSizes = Arrays.copyOf( varDims, rank);
+  dimMaxSizes[0] = -1;
+  spaceFlag |= 1;
+}
+
+
+
+
+/**
+ * Sets the current length of the unlimited dimension 0,
+ * and totNumEle.  Called at close by HdfGroup.settleRecords.
+ */
+
+void setRecordLen( int recordLen)
+{
+  varDims[0] = recordLen;
+  totNumEle = 1;
+  for (int ii : varDims) {
+    totNumEle *= ii;
+  }
+}
+
+
+
+
 /**
  * Extends abstract MsgBase:
  * formats everything after the message header into fmtBuf.
@@ -396,6 +396,38 @@ throws HdfException
 
 
 
+/**
+ * Narrows a fixed point type to precision significant bits,
+ * starting bitOffset bits above the low order bit.
+ * Called for FilterNbit, which stores only those bits.
+ */
+
+void setPrecision(
+  int precision,
+  int bitOffset)
+throws HdfException
+{
+  if (typeClass != TCLS_FIXED)
+    throwerr("precision can only be set for integer types, not %s",
+      HdfGroup.dtypeNames[dtype]);
+  if (precision < 1 || bitOffset < 0
+    || precision + bitOffset > 8 * elementLen)
+  {
+    throwerr("invalid precision: %d  bitOffset: %d  for %s",
+      precision, bitOffset, HdfGroup.dtypeNames[dtype]);
+  }
+  boolean isNarrowed = fixptPrecision != 8 * elementLen || fixptBitOffset != 0;
+  if (isNarrowed
+    && (precision != fixptPrecision || bitOffset != fixptBitOffset))
+    throwerr("conflicting precision for %s", hdfGroup.getPath());
+  fixptPrecision = precision;
+  fixptBitOffset = bitOffset;
+}
+
+
+
+
+
 /**
  * Throws HdfException if the dsubType is not allowed
  * for a member of DTYPE_VLEN or DTYPE_COMPOUND.
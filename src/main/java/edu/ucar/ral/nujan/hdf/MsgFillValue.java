@@ -54,7 +54,9 @@ final int fillVersion = 2;
 //   1  early: alloc space when dataset is created
 //   2  late: alloc space when dataset is written
 //   3  incremental: alloc space chunk by chunk
-final int fillAllocTime = 2;
+// Sparse variables (see HdfGroup.isSparse) use 3, since
+// chunks that are never written are never allocated.
+int fillAllocTime = 2;
 
 // Meanings for writeTime:
 //   0  on alloc: write fill value when space is allocated
@@ -117,6 +119,7 @@ throws HdfException
   this.dtype = dtype;
   this.isFillExtant = isFillExtant;
   this.fillValue = fillValue;
+  if (hdfGroup.isSparse()) fillAllocTime = 3;
 
   elementLen = 0;
   if (! isFillExtant) {
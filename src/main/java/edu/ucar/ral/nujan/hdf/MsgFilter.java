@@ -26,11 +26,14 @@
 
 package edu.ucar.ral.nujan.hdf;
 
+import java.util.Arrays;
+
 
 /**
  * HDF5 message type 11: MsgFilter:
- * Used to keep info on the encode/decode filter pipeline;
- * this package uses it only for the DEFLATE (compression) filter.
+ * Used to keep info on the encode/decode filter pipeline:
+ * the variable's chain of FilterBase filters,
+ * in the order they are applied on write.
  * <p>
  * Extends abstract MsgBase, so we must implement formatMsgCore -
  * see the documentation for class {@link MsgBase}.
@@ -46,29 +49,81 @@ static final int FILT_SZIP         = 4;
 static final int FILT_NBIT         = 5;
 static final int FILT_SCALEOFFSET  = 6;
 
+// Registered filter ids, from the HDF Group's list of filter plugins
+static final int FILT_LZ4          = 32004;
+static final int FILT_BITSHUFFLE   = 32008;
+
 static final String[] filtNames = {"UNKNOWN", "deflate", "shuffle",
   "fletcher32", "szip", "nbit", "scaleoffset"};
 
+/**
+ * Filter flag bit 0: the filter is optional.
+ */
+static final int FLAG_OPTIONAL     = 1;
+
+/**
+ * Max num filters in a chain, one for each bit of a chunk's filterMask.
+ */
+static final int MAX_FILTER        = 32;
+
 
 
 final int filterVersion = 1;
-int filterId;                   // one of FILT_*
-int compressionLevel;               // 0 is fastest; 9 is smallest
+int[] filterIds;                // HDF5 filter ids, such as FILT_*
+int[] filterFlags;              // each is 0 or FLAG_OPTIONAL
+String[] filterNames;           // each may be null
+int[][] clientVals;             // client values for each filter
+FilterBase[] filterChain;
+
 
 
+/**
+ * @param filterChain  The filters, in the order
+ *    they are applied on write.
+ */
+
 MsgFilter(
-  int filterId,
-  int compressionLevel,
+  FilterBase[] filterChain,
   HdfGroup hdfGroup,              // the owning group
   HdfFileWriter hdfFile)
 throws HdfException
 {
   super( TP_FILTER, hdfGroup, hdfFile);
-  this.filterId = filterId;
-  this.compressionLevel = compressionLevel;
-  if (filterId != FILT_DEFLATE) throwerr("unsupported filterId");
-  if (compressionLevel < 0 || compressionLevel > 9)
-    throwerr("invalid compressionLevel");
+  this.filterChain = filterChain;
+  int numFilter = filterChain.length;
+  if (numFilter == 0 || numFilter > MAX_FILTER)
+    throwerr("invalid num filters: %d", numFilter);
+  filterIds = new int[ numFilter];
+  filterFlags = new int[ numFilter];
+  filterNames = new String[ numFilter];
+  clientVals = new int[ numFilter][];
+
+  for (int ii = 0; ii < numFilter; ii++) {
+    FilterBase filter = filterChain[ii];
+    filterIds[ii] = filter.getFilterId();
+    if (filterIds[ii] <= 0 || filterIds[ii] > 65535)
+      throwerr("invalid filterId: %d", filterIds[ii]);
+    if (filter.isOptional()) filterFlags[ii] = FLAG_OPTIONAL;
+    filterNames[ii] = filter.getFilterName();
+    clientVals[ii] = getClientVals( filter);
+  }
+}
+
+
+
+/**
+ * Returns a copy of a filter's client values.
+ */
+
+int[] getClientVals( FilterBase filter)
+throws HdfException
+{
+  int[] vals = filter.getClientValues(
+    hdfGroup.dtype, hdfGroup.elementLen, hdfGroup.specChunkDims);
+  if (vals == null) vals = new int[0];
+  if (vals.length > 65535)
+    throwerr("too many client values: %d", vals.length);
+  return Arrays.copyOf( vals, vals.length);
 }
 
 
@@ -76,8 +131,10 @@ throws HdfException
 
 public String toString() {
   String res = super.toString();
-  res += "  filterId: " + filterId;
-  res += "  compressionLevel: " + compressionLevel;
+  for (int ii = 0; ii < filterIds.length; ii++) {
+    res += "  filter " + filterIds[ii] + " \"" + filterNames[ii] + "\": "
+      + HdfUtil.formatInts( clientVals[ii]);
+  }
   return res;
 }
 
@@ -91,29 +148,54 @@ public String toString() {
 void formatMsgCore( int formatPass, HBuffer fmtBuf)
 throws HdfException
 {
+  // All chunks are encoded by pass 2, so get the client values
+  // again, in case a filter tuned itself to the data.
+  // The message len can't change.
+  if (formatPass == 2) {
+    for (int ii = 0; ii < filterChain.length; ii++) {
+      int[] vals = getClientVals( filterChain[ii]);
+      if (vals.length != clientVals[ii].length)
+        throwerr("num client values changed.  filter: %s", filterChain[ii]);
+      clientVals[ii] = vals;
+    }
+  }
+
   // Filter message
   fmtBuf.putBufByte("MsgFilter: filterVersion", filterVersion);
-  fmtBuf.putBufByte("MsgFilter: numFilter", 1);
+  fmtBuf.putBufByte("MsgFilter: numFilter", filterIds.length);
   fmtBuf.putBufShort("MsgFilter: reserved", 0);
   fmtBuf.putBufInt("MsgFilter: reserved", 0);
 
-  // Single filter description
-  String name = filtNames[ filterId];
-  byte[] bytes = HdfUtil.encodeString( name, true, hdfGroup);
-  int encLen = bytes.length;        // includes null termination
-
-  fmtBuf.putBufShort("MsgFilter: filterId", filterId);
-  fmtBuf.putBufShort("MsgFilter: name len", encLen);
-
-  // Flags: if bit 0 is set, filter is optional.
-  fmtBuf.putBufShort("MsgFilter: flags", 0);
-
-  fmtBuf.putBufShort("MsgFilter: num client vals", 1);
-  fmtBuf.putBufBytes("MsgFilter: name", bytes);
-
-  // Client values for deflate
-  fmtBuf.putBufInt("MsgFilter: compressionLevel", compressionLevel);
-  fmtBuf.putBufInt("MsgFilter: reserved", 0);
+  for (int ii = 0; ii < filterIds.length; ii++) {
+    int filterId = filterIds[ii];
+
+    // Filter description.
+    // In version 1 the name is null terminated and
+    // padded to a multiple of 8 bytes.  It is optional.
+    byte[] bytes = new byte[0];
+    if (filterNames[ii] != null)
+      bytes = HdfUtil.encodeString( filterNames[ii], true, hdfGroup);
+    int encLen = 8 * ((bytes.length + 7) / 8);
+
+    fmtBuf.putBufShort("MsgFilter: filterId", filterId);
+    fmtBuf.putBufShort("MsgFilter: name len", encLen);
+
+    // Flags: if bit 0 is set, filter is optional.
+    fmtBuf.putBufShort("MsgFilter: flags", filterFlags[ii]);
+
+    int numVal = clientVals[ii].length;
+    fmtBuf.putBufShort("MsgFilter: num client vals", numVal);
+    fmtBuf.putBufBytes("MsgFilter: name", bytes);
+    for (int jj = bytes.length; jj < encLen; jj++) {
+      fmtBuf.putBufByte("MsgFilter: name pad", 0);
+    }
+
+    // Client values, padded to a multiple of 8 bytes
+    for (int jj = 0; jj < numVal; jj++) {
+      fmtBuf.putBufInt("MsgFilter: client val", clientVals[ii][jj]);
+    }
+    if (numVal % 2 != 0) fmtBuf.putBufInt("MsgFilter: reserved", 0);
+  }
 }
 
 
@@ -38,8 +38,11 @@ package edu.ucar.ral.nujan.hdf;
  *
  * <pre>
  * The leafK and internalK values control group b-trees.
- * The storageK value controls chunk b-trees.
- * There are no separate leaf nodes for chunk b-trees.
+ * The storageK value controls chunk b-trees, for both
+ * leaf and internal nodes.
+ * We don't use group b-trees, so leafK and internalK
+ * get the HDF5 defaults.
+ * storageK is hdfFile.btreeChunkK: see HdfFileWriter.setBtreeChunkK.
  *
  * The max num children in the node is 2 * kvalue.
  *
@@ -83,16 +86,13 @@ public String toString() {
 void formatMsgCore( int formatPass, HBuffer fmtBuf)
 throws HdfException
 {
-  //prtf("MsgKvalue: formatPass: %d  maxNumBtreeKid: %d",
-  //  formatPass, hdfFile.maxNumBtreeKid);
-
-  // This is twice as big as we need.
-  int kvalue = hdfFile.maxNumBtreeKid;
+  //prtf("MsgKvalue: formatPass: %d  btreeChunkK: %d",
+  //  formatPass, hdfFile.btreeChunkK);
 
   fmtBuf.putBufByte("MsgKvalue: kvalueVersion", kvalueVersion);
-  fmtBuf.putBufShort("MsgKvalue: storageK", kvalue);
-  fmtBuf.putBufShort("MsgKvalue: internalK", kvalue);
-  fmtBuf.putBufShort("MsgKvalue: leafK", kvalue);
+  fmtBuf.putBufShort("MsgKvalue: storageK", hdfFile.btreeChunkK);
+  fmtBuf.putBufShort("MsgKvalue: internalK", 16);
+  fmtBuf.putBufShort("MsgKvalue: leafK", 4);
 }
 
 } // end class
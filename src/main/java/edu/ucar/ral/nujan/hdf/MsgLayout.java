@@ -29,7 +29,8 @@ package edu.ucar.ral.nujan.hdf;
 
 /**
  * HDF5 message type 8: MsgLayout:
- * Specifies the raw data addr or the Btree that describes the raw data.
+ * Specifies the raw data addr or the Btree that describes the raw data,
+ * or for a compact variable holds the raw data itself.
  */
 
 class MsgLayout extends MsgBase {
@@ -98,11 +99,17 @@ throws HdfException
   fmtBuf.putBufByte("MsgLayout: layoutClass", layoutClass);
 
   if (layoutClass == LY_COMPACT) {     // if compact
-    throwerr("compact not yet implemented");
-    //fmtBuf.putBufShort("MsgLayout: compactSize", compactSize);
-    //for (int ii = 0; ii < compactSize; ii++) {
-    //  fmtBuf.putBufByte("MsgLayout: compactData", compactData[ii]);
-    //}
+    // The len is fixed when the variable is defined,
+    // so pass 1 formats the fill bytes, and pass 2 the data.
+    int compactSize = (int) hdfGroup.getCompactLen();
+    byte[] compactData = hdfGroup.hdfChunks[0].compactData;
+    if (compactData == null)
+      compactData = hdfGroup.getCompactFill();
+    if (compactData.length != compactSize)
+      throwerr("compact len mismatch.  path: %s  expected: %d  actual: %d",
+        hdfGroup.getPath(), compactSize, compactData.length);
+    fmtBuf.putBufShort("MsgLayout: compactSize", compactSize);
+    fmtBuf.putBufBytes("MsgLayout: compactData", compactData);
   }
   else if (layoutClass == LY_CONTIGUOUS) {     // if contiguous
     // Data block
@@ -114,10 +121,13 @@ throws HdfException
   else if (layoutClass == LY_CHUNKED) {     // if chunked
     fmtBuf.putBufByte("MsgLayout: chunk rank+1", hdfGroup.varRank + 1);
 
-    // External block
+    // External block.
+    // For an unlimited variable the Btree is formatted at close,
+    // after the raw data: see HdfFileWriter.formatRecordBtrees.
     fmtBuf.putBufLong(
       "MsgLayout: chunkBtree.pos", chunkBtree.blkPosition);
-    if (formatPass != 0) hdfFile.addWork("MsgLayout", chunkBtree);
+    if (formatPass != 0 && ! hdfGroup.isUnlimited)
+      hdfFile.addWork("MsgLayout", chunkBtree);
 
     for (int ii = 0; ii < hdfGroup.varRank; ii++) {
       fmtBuf.putBufInt("MsgLayout: chunk dim",
@@ -0,0 +1,338 @@
+// The MIT License
+// 
+// Copyright (c) 2010 University Corporation for Atmospheric Research
+// 
+// Permission is hereby granted, free of charge, to any person
+// obtaining a copy of this software and associated documentation
+// files (the "Software"), to deal in the Software without
+// restriction, including without limitation the rights to use,
+// copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following
+// conditions:
+// 
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+// 
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+// OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT.  IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+// HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+// WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+// FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+
+
+
+package edu.ucar.ral.nujan.hdf;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+
+/**
+ * Lossy quantization of float32 and float64 chunks,
+ * the same as the netCDF-C library's nc_def_var_quantize.
+ * Zeroes the mantissa bits that don't contribute to the
+ * requested precision, so the chunk compresses better.
+ * The result is still ordinary IEEE floats, readable by any reader.
+ * <p>
+ * The modes are HdfGroup.QUANTIZE_*:
+ * <ul>
+ *   <li> BITGROOM: keep nsd significant decimal digits.
+ *        Alternate values have their insignificant bits
+ *        cleared and set, so the errors average out.
+ *   <li> GRANULARBR: keep nsd significant decimal digits,
+ *        choosing the num bits for each value, and round.
+ *   <li> BITROUND: keep nsd significant bits, and round.
+ * </ul>
+ * Values equal to the fill value, and NaN and infinite values,
+ * are not changed.
+ */
+
+class Quantizer {
+
+
+/**
+ * Names of the netCDF attributes recording the mode and nsd,
+ * indexed by HdfGroup.QUANTIZE_*.
+ */
+static final String[] attrNames = {
+  null,
+  "_QuantizeBitGroomNumberOfSignificantDigits",
+  "_QuantizeGranularBitRoundNumberOfSignificantDigits",
+  "_QuantizeBitRoundNumberOfSignificantBits"};
+
+/** Netcdf default fill value for floats, NC_FILL_FLOAT. */
+static final float NC_FILL_FLOAT = 9.9692099683868690e+36f;
+
+/** Netcdf default fill value for doubles, NC_FILL_DOUBLE. */
+static final double NC_FILL_DOUBLE = 9.9692099683868690e+36;
+
+/** Num explicit mantissa bits in a float32. */
+static final int MANT_BITS_32 = 23;
+
+/** Num explicit mantissa bits in a float64. */
+static final int MANT_BITS_64 = 52;
+
+static final double BIT_PER_DGT = Math.log( 10) / Math.log( 2);
+static final double DGT_PER_BIT = Math.log10( 2);
+
+
+int quantizeMode;         // one of HdfGroup.QUANTIZE_*
+int nsd;                  // num significant digits, or bits for BITROUND
+int dtype;                // DTYPE_FLOAT32 or DTYPE_FLOAT64
+
+int fillBits32;           // bits of the fill value, for DTYPE_FLOAT32
+long fillBits64;          // bits of the fill value, for DTYPE_FLOAT64
+
+// Masks for BITGROOM and BITROUND
+int maskZero32;           // AND mask: zeros in the bits to be cleared
+int maskOne32;            // OR mask: ones in the bits to be cleared
+int maskHalf32;           // the high bit of the bits to be cleared
+long maskZero64;
+long maskOne64;
+long maskHalf64;
+
+
+
+/**
+ * @param quantizeMode One of HdfGroup.QUANTIZE_* except QUANTIZE_NONE.
+ * @param nsd Num significant decimal digits for BITGROOM and GRANULARBR:
+ *    1 - 7 for float32, 1 - 15 for float64.
+ *    Num significant bits for BITROUND:
+ *    1 - 23 for float32, 1 - 52 for float64.
+ * @param dtype DTYPE_FLOAT32 or DTYPE_FLOAT64.
+ * @param fillValue The variable's fill value, or null
+ *    to use the netCDF default fill value.
+ */
+
+Quantizer(
+  int quantizeMode,
+  int nsd,
+  int dtype,
+  Object fillValue)
+throws HdfException
+{
+  this.quantizeMode = quantizeMode;
+  this.nsd = nsd;
+  this.dtype = dtype;
+
+  if (dtype != HdfGroup.DTYPE_FLOAT32 && dtype != HdfGroup.DTYPE_FLOAT64)
+    throwerr("quantize requires DTYPE_FLOAT32 or DTYPE_FLOAT64");
+  boolean isFloat = dtype == HdfGroup.DTYPE_FLOAT32;
+
+  int maxNsd;
+  if (quantizeMode == HdfGroup.QUANTIZE_BITGROOM
+    || quantizeMode == HdfGroup.QUANTIZE_GRANULARBR)
+    maxNsd = isFloat ? 7 : 15;
+  else if (quantizeMode == HdfGroup.QUANTIZE_BITROUND)
+    maxNsd = isFloat ? MANT_BITS_32 : MANT_BITS_64;
+  else {
+    throwerr("invalid quantizeMode: %d", quantizeMode);
+    maxNsd = 0;
+  }
+  if (nsd < 1 || nsd > maxNsd)
+    throwerr("invalid nsd: %d  for quantizeMode: %d", nsd, quantizeMode);
+
+  if (isFloat) {
+    float fill = NC_FILL_FLOAT;
+    if (fillValue instanceof Float) fill = ((Float) fillValue).floatValue();
+    fillBits32 = Float.floatToRawIntBits( fill);
+  }
+  else {
+    double fill = NC_FILL_DOUBLE;
+    if (fillValue instanceof Double)
+      fill = ((Double) fillValue).doubleValue();
+    fillBits64 = Double.doubleToRawLongBits( fill);
+  }
+
+  // Num low mantissa bits to clear
+  int numZero = 0;
+  if (quantizeMode == HdfGroup.QUANTIZE_BITGROOM) {
+    // Round up the binary digits needed, plus one,
+    // since corner cases prevent using the implicit bit.
+    // The same as netCDF-C: for float32 and nsd 3, 23 - 11 = 12.
+    int numKeep = (int) Math.ceil( nsd * BIT_PER_DGT) + 1;
+    numZero = (isFloat ? MANT_BITS_32 : MANT_BITS_64) - numKeep;
+  }
+  else if (quantizeMode == HdfGroup.QUANTIZE_BITROUND)
+    numZero = (isFloat ? MANT_BITS_32 : MANT_BITS_64) - nsd;
+  numZero = Math.max( 0, numZero);
+
+  maskZero32 = -1 << numZero;
+  maskOne32 = ~maskZero32;
+  maskHalf32 = maskOne32 & (maskZero32 >>> 1);
+  maskZero64 = -1L << numZero;
+  maskOne64 = ~maskZero64;
+  maskHalf64 = maskOne64 & (maskZero64 >>> 1);
+}
+
+
+
+
+public String toString() {
+  return "quantizeMode: " + quantizeMode + "  nsd: " + nsd
+    + "  dtype: " + HdfGroup.dtypeNames[dtype];
+}
+
+
+
+
+/**
+ * Quantizes, in place, the little endian elements in buf
+ * from position to limit.  Doesn't change position or limit.
+ */
+
+void quantize( ByteBuffer buf) {
+  quantize( buf, 0);
+}
+
+
+
+
+/**
+ * Quantizes, in place, the little endian elements in buf
+ * from position to limit, where the first is element startIx
+ * of the chunk, as for a slab of a contiguous variable.
+ * BitGroom alternates by element index, so a slab
+ * is quantized the same as the whole variable.
+ * Doesn't change position or limit.
+ */
+
+void quantize(
+  ByteBuffer buf,
+  long startIx)
+{
+  ByteBuffer lbuf = buf.duplicate().order( ByteOrder.LITTLE_ENDIAN);
+  int pos = buf.position();
+  int ixOffset = (int) (startIx % 2);     // only the parity is used
+  if (dtype == HdfGroup.DTYPE_FLOAT32) {
+    int numEle = buf.remaining() / 4;
+    for (int ii = 0; ii < numEle; ii++) {
+      int ipos = pos + 4 * ii;
+      int bits = lbuf.getInt( ipos);
+      int exp = (bits >>> MANT_BITS_32) & 0xff;
+      if (bits != fillBits32 && exp != 0xff)
+        lbuf.putInt( ipos, quantize32( bits, ixOffset + ii));
+    }
+  }
+  else {
+    int numEle = buf.remaining() / 8;
+    for (int ii = 0; ii < numEle; ii++) {
+      int ipos = pos + 8 * ii;
+      long bits = lbuf.getLong( ipos);
+      int exp = (int) (bits >>> MANT_BITS_64) & 0x7ff;
+      if (bits != fillBits64 && exp != 0x7ff)
+        lbuf.putLong( ipos, quantize64( bits, ixOffset + ii));
+    }
+  }
+}
+
+
+
+
+/**
+ * Returns the quantized bits of one finite float32.
+ * @param ix The element's index in the chunk.
+ */
+
+int quantize32(
+  int bits,
+  int ix)
+{
+  int res = bits;
+  if (quantizeMode == HdfGroup.QUANTIZE_BITGROOM) {
+    if (ix % 2 == 0) res &= maskZero32;         // shave
+    else if (bits != 0) res |= maskOne32;       // set; never set zero
+  }
+  else if (quantizeMode == HdfGroup.QUANTIZE_BITROUND) {
+    res += maskHalf32;
+    res &= maskZero32;
+  }
+  else {                   // GRANULARBR
+    int numZero = granularZero( Float.intBitsToFloat( bits), MANT_BITS_32);
+    if (numZero > 0) {
+      int maskZero = -1 << numZero;
+      int maskHalf = ~maskZero & (maskZero >>> 1);
+      res += maskHalf;
+      res &= maskZero;
+    }
+  }
+  return res;
+}
+
+
+
+
+/**
+ * Returns the quantized bits of one finite float64.
+ * @param ix The element's index in the chunk.
+ */
+
+long quantize64(
+  long bits,
+  int ix)
+{
+  long res = bits;
+  if (quantizeMode == HdfGroup.QUANTIZE_BITGROOM) {
+    if (ix % 2 == 0) res &= maskZero64;         // shave
+    else if (bits != 0) res |= maskOne64;       // set; never set zero
+  }
+  else if (quantizeMode == HdfGroup.QUANTIZE_BITROUND) {
+    res += maskHalf64;
+    res &= maskZero64;
+  }
+  else {                   // GRANULARBR
+    int numZero = granularZero( Double.longBitsToDouble( bits), MANT_BITS_64);
+    if (numZero > 0) {
+      long maskZero = -1L << numZero;
+      long maskHalf = ~maskZero & (maskZero >>> 1);
+      res += maskHalf;
+      res &= maskZero;
+    }
+  }
+  return res;
+}
+
+
+
+
+/**
+ * For GRANULARBR, returns the num low mantissa bits of val
+ * that don't contribute to nsd decimal digits,
+ * using the netCDF-C formulas.  Returns 0 for zero.
+ */
+
+int granularZero(
+  double val,
+  int mantBits)
+{
+  int res = 0;
+  if (val != 0) {
+    int exp2 = Math.getExponent( val) + 1;      // val = mnt * 2^exp2,
+    double mntFabs = Math.abs( val) / Math.scalb( 1.0, exp2);  // 0.5 <= mnt < 1
+    double mntLog10 = Math.log10( mntFabs);
+    int numDgt = (int) Math.floor( exp2 * DGT_PER_BIT + mntLog10) + 1;
+    int qntPwr = (int) Math.floor( BIT_PER_DGT * (numDgt - nsd));
+    int numKeep = Math.abs(
+      (int) Math.floor( exp2 - BIT_PER_DGT * mntLog10) - qntPwr);
+    numKeep--;           // as netCDF-C: one bit less passes all tests
+    res = Math.max( 0, Math.min( mantBits, mantBits - numKeep));
+  }
+  return res;
+}
+
+
+
+
+static void throwerr( String msg, Object... args)
+throws HdfException
+{
+  throw new HdfException( String.format( msg, args));
+}
+
+
+
+} // end class
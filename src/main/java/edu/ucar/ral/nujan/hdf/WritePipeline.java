@@ -0,0 +1,446 @@
+// The MIT License
+// 
+// Copyright (c) 2010 University Corporation for Atmospheric Research
+// 
+// Permission is hereby granted, free of charge, to any person
+// obtaining a copy of this software and associated documentation
+// files (the "Software"), to deal in the Software without
+// restriction, including without limitation the rights to use,
+// copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following
+// conditions:
+// 
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+// 
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+// OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT.  IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+// HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+// WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+// FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+
+
+package edu.ucar.ral.nujan.hdf;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Asynchronous write-behind pipeline for chunk data.
+ * <p>
+ * There are three stages:<ul>
+ *   <li> Encode: HdfGroup.writeData formats the caller's array into
+ *     a byte array on the caller's thread, and calls submit.
+ *     Once submit returns, the caller may reuse its array.
+ *   <li> Compress: chunks of filtered (compressed) variables are
+ *     passed through their filter chains by a pool of
+ *     numCompressThread workers.
+ *   <li> Write: a single writer thread reserves file space
+ *     with hdfFile.allocSpace and writes each chunk,
+ *     in the order the chunks arrive.
+ * </ul>
+ * <p>
+ * The stages are connected by queues.  The total raw length of
+ * all chunks submitted but not yet written is limited to maxByte:
+ * when the limit is reached, submit waits (stalls) until
+ * the writer catches up.  A single chunk larger than maxByte
+ * is accepted when the pipeline is empty.
+ * <p>
+ * close calls drain, which waits for all chunks to be written.
+ * An error in a worker is reported by the next call to submit or drain.
+ * <p>
+ * Used when HdfFileWriter.setWriteBehind was called.
+ */
+
+class WritePipeline {
+
+
+/**
+ * Number of compress threads.
+ */
+int numCompressThread;
+
+/**
+ * Max total raw bytes of chunks submitted but not yet written.
+ */
+long maxByte;
+
+/**
+ * The global owning HdfFileWriter.
+ */
+HdfFileWriter hdfFile;
+
+private ExecutorService compressPool;
+private Thread writerThread;
+private LinkedBlockingQueue<WriteJob> writeQueue;
+
+/**
+ * Put on writeQueue by drain, to stop the writer thread.
+ */
+private final WriteJob endJob = new WriteJob( null, null);
+
+/**
+ * The first exception caught by a worker, or null.
+ */
+private Throwable failure = null;
+
+
+// The following are all guarded by this.
+
+// Current state
+long numJobInFlight;       // num chunks submitted but not yet written
+long numByteInFlight;      // their total raw length
+int numCompressQueued;     // num chunks waiting for or in compression
+int numWriteQueued;        // num chunks waiting for or being written
+
+// Statistics
+long numChunk;             // num chunks written
+long numRawByte;           // total raw bytes submitted
+long numWriteByte;         // total bytes written to the file
+long maxByteInFlight;      // high water mark of numByteInFlight
+int maxCompressQueued;     // high water mark of numCompressQueued
+int maxWriteQueued;        // high water mark of numWriteQueued
+long numStall;             // num times submit waited for the budget
+long stallNanos;           // total time submit waited
+long writerIdleNanos;      // total time the writer waited for work
+
+
+
+/**
+ * A single chunk moving through the pipeline.
+ */
+
+class WriteJob implements Runnable {
+
+  HdfChunk chunk;
+  ByteBuffer encBuf;             // raw, then filtered
+  int rawLen;
+  int filterMask;
+
+  WriteJob(
+    HdfChunk chunk,
+    byte[] rawBytes)
+  {
+    this.chunk = chunk;
+    if (rawBytes != null) {
+      this.encBuf = ByteBuffer.wrap( rawBytes);
+      this.rawLen = rawBytes.length;
+    }
+  }
+
+  /**
+   * Compress stage: runs the filter chain
+   * and passes the job to the writer.
+   */
+  public void run() {
+    try {
+      HdfModInt maskOut = new HdfModInt( 0);
+      encBuf = chunk.hdfGroup.encodeChunk( encBuf, maskOut);
+      filterMask = maskOut.getValue();
+      synchronized (WritePipeline.this) {
+        numCompressQueued--;
+      }
+      queueWrite( this);
+    }
+    catch( Throwable exc) {
+      fail( exc);
+    }
+  }
+} // end inner class WriteJob
+
+
+
+
+
+/**
+ * Creates the compress pool and starts the writer thread.
+ * @param numCompressThread  Number of compress threads; at least 1.
+ * @param maxByte  Max total raw bytes of chunks in the pipeline.
+ * @param hdfFile The global owning HdfFileWriter.
+ */
+
+WritePipeline(
+  int numCompressThread,
+  long maxByte,
+  HdfFileWriter hdfFile)
+throws HdfException
+{
+  if (numCompressThread <= 0)
+    throwerr("invalid numCompressThread: %d", numCompressThread);
+  if (maxByte <= 0) throwerr("invalid maxByte: %d", maxByte);
+  this.numCompressThread = numCompressThread;
+  this.maxByte = maxByte;
+  this.hdfFile = hdfFile;
+
+  compressPool = Executors.newFixedThreadPool( numCompressThread,
+    new ThreadFactory() {
+      int threadNum = 0;
+      public synchronized Thread newThread( Runnable runner) {
+        Thread thread = new Thread( runner, "nujan-compress-" + threadNum++);
+        thread.setDaemon( true);
+        return thread;
+      }
+    });
+
+  writeQueue = new LinkedBlockingQueue<WriteJob>();
+  writerThread = new Thread( "nujan-writer") {
+    public void run() {
+      runWriter();
+    }
+  };
+  writerThread.setDaemon( true);
+  writerThread.start();
+
+  if (hdfFile.bugs >= 1)
+    prtf("WritePipeline: numCompressThread: %d  maxByte: %d",
+      numCompressThread, maxByte);
+}
+
+
+
+
+public synchronized String toString() {
+  String res = "numCompressThread: " + numCompressThread
+    + "  maxByte: " + maxByte
+    + "  numJobInFlight: " + numJobInFlight
+    + "  numByteInFlight: " + numByteInFlight
+    + "  compressQueue: " + numCompressQueued
+    + "  writeQueue: " + numWriteQueued
+    + "  maxByteInFlight: " + maxByteInFlight
+    + "  maxCompressQueue: " + maxCompressQueued
+    + "  maxWriteQueue: " + maxWriteQueued
+    + "  numStall: " + numStall
+    + "  stallMillis: " + stallNanos / 1000000
+    + "  writerIdleMillis: " + writerIdleNanos / 1000000
+    + "  numChunk: " + numChunk
+    + "  numRawByte: " + numRawByte
+    + "  numWriteByte: " + numWriteByte;
+  return res;
+}
+
+
+
+
+
+/**
+ * Hands one encoded chunk to the pipeline.
+ * If the pipeline already holds maxByte, first waits
+ * for the writer to make room.
+ *
+ * @param chunk  The chunk being written.
+ * @param rawBytes  The formatted, unfiltered chunk data.
+ *    Must not be changed by the caller after this call.
+ *    If the chunk's variable is filtered, the compress stage
+ *    runs its filter chain.
+ */
+
+void submit(
+  HdfChunk chunk,
+  byte[] rawBytes)
+throws HdfException
+{
+  WriteJob job = new WriteJob( chunk, rawBytes);
+  boolean isFiltered = chunk.hdfGroup.isFiltered();
+  synchronized (this) {
+    checkFailure();
+    long timea = 0;
+    while (numJobInFlight > 0 && numByteInFlight + job.rawLen > maxByte
+      && failure == null)
+    {
+      if (timea == 0) timea = System.nanoTime();
+      try { wait(); }
+      catch( InterruptedException exc) {
+        Thread.currentThread().interrupt();
+        throwerr("interrupted while waiting for the writer");
+      }
+    }
+    if (timea != 0) {
+      numStall++;
+      stallNanos += System.nanoTime() - timea;
+    }
+    checkFailure();
+
+    numJobInFlight++;
+    numByteInFlight += job.rawLen;
+    maxByteInFlight = Math.max( maxByteInFlight, numByteInFlight);
+    numRawByte += job.rawLen;
+    if (isFiltered) {
+      numCompressQueued++;
+      maxCompressQueued = Math.max( maxCompressQueued, numCompressQueued);
+    }
+  }
+
+  if (hdfFile.bugs >= 2)
+    prtf("WritePipeline.submit: %s  startIxs: %s  rawLen: %d",
+      chunk.hdfGroup.getPath(), HdfUtil.formatInts( chunk.chunkStartIxs),
+      rawBytes.length);
+  if (isFiltered) compressPool.execute( job);
+  else queueWrite( job);
+}
+
+
+
+
+
+/**
+ * Passes a job to the writer thread.
+ */
+
+private void queueWrite( WriteJob job)
+{
+  synchronized (this) {
+    numWriteQueued++;
+    maxWriteQueued = Math.max( maxWriteQueued, numWriteQueued);
+  }
+  writeQueue.add( job);
+}
+
+
+
+
+
+/**
+ * The writer thread: writes each job as it arrives,
+ * until it gets endJob.
+ */
+
+private void runWriter()
+{
+  try {
+    while (true) {
+      long timea = System.nanoTime();
+      WriteJob job = writeQueue.take();
+      long idle = System.nanoTime() - timea;
+      if (job == endJob) break;
+
+      int len = job.encBuf.remaining();
+      long addr = hdfFile.writeChunk(
+        job.encBuf, job.filterMask, job.chunk.hdfGroup.isDedup());
+      synchronized (job.chunk) {
+        job.chunk.chunkDataAddr = addr;
+        job.chunk.chunkDataSize = len;
+        job.chunk.filterMask = job.filterMask;
+        job.chunk.chunkQueued = false;
+      }
+
+      if (hdfFile.bugs >= 2)
+        prtf("WritePipeline.write: %s  startIxs: %s"
+          + "  chunkDataAddr: %d  chunkDataSize: %d",
+          job.chunk.hdfGroup.getPath(),
+          HdfUtil.formatInts( job.chunk.chunkStartIxs),
+          job.chunk.chunkDataAddr, job.chunk.chunkDataSize);
+
+      synchronized (this) {
+        writerIdleNanos += idle;
+        numWriteQueued--;
+        numJobInFlight--;
+        numByteInFlight -= job.rawLen;
+        numChunk++;
+        numWriteByte += len;
+        notifyAll();
+      }
+    }
+  }
+  catch( Throwable exc) {
+    fail( exc);
+  }
+}
+
+
+
+
+
+/**
+ * Records the first failure, and wakes up any waiting clients.
+ */
+
+private synchronized void fail( Throwable exc)
+{
+  if (failure == null) {
+    exc.printStackTrace();
+    failure = exc;
+  }
+  notifyAll();
+}
+
+
+
+
+
+/**
+ * Throws an HdfException if a worker has failed.
+ */
+
+private synchronized void checkFailure()
+throws HdfException
+{
+  if (failure != null) throwerr("write pipeline failed: %s", failure);
+}
+
+
+
+
+
+/**
+ * Waits for all chunks to be written, and stops the threads.
+ * Called by HdfFileWriter.close.
+ */
+
+void drain()
+throws HdfException
+{
+  try {
+    synchronized (this) {
+      while (numJobInFlight > 0 && failure == null) {
+        try { wait(); }
+        catch( InterruptedException exc) {
+          Thread.currentThread().interrupt();
+          throwerr("interrupted while draining the write pipeline");
+        }
+      }
+    }
+  }
+  finally {
+    writeQueue.add( endJob);
+    compressPool.shutdownNow();
+    try {
+      writerThread.join();
+      compressPool.awaitTermination( 60, TimeUnit.SECONDS);
+    }
+    catch( InterruptedException exc) {
+      Thread.currentThread().interrupt();
+    }
+  }
+  checkFailure();
+  if (hdfFile.bugs >= 1) prtf("WritePipeline.drain: %s", this);
+}
+
+
+
+
+
+static void prtf( String msg, Object... args) {
+  System.out.printf( msg + "\n", args);
+}
+
+
+
+
+static void throwerr( String msg, Object... args)
+throws HdfException
+{
+  throw new HdfException( String.format( msg, args));
+}
+
+
+
+} // end class
@@ -26,6 +26,7 @@
 
 package edu.ucar.ral.nujan.netcdf;
 
+import edu.ucar.ral.nujan.hdf.FilterDeflate;
 import edu.ucar.ral.nujan.hdf.HdfException;
 import edu.ucar.ral.nujan.hdf.HdfUtil;
 import ucar.ma2.Array;
@@ -88,7 +89,8 @@ public class NhCopy {
     prtf("Error: " + msg);
     prtf("Parms:");
     prtf("  -bugs       debug level.  Default is 0.");
-    prtf("  -compress   compressionLevel for outFile.  0: none,  9: max");
+    prtf("  -compress   compressionLevel for outFile.  0: none,  9: max,");
+    prtf("              auto: choose by sampling each variable");
     prtf("  -inFile     input file name.");
     prtf("  -outFile    output file name.");
     prtf("");
@@ -135,6 +137,7 @@ public class NhCopy {
     String logDir = null;
     String statTag = null;
     int compressionLevel = -1;
+    boolean haveCompress = false;
     String inFile = null;
     String outFile = null;
     int numFieldSpec = 0;
@@ -151,9 +154,13 @@ public class NhCopy {
       String val = args[iarg++];
       if (key.equals("-bugs")) bugs = parseInt( "-bugs", val);
       else if (key.equals("-compress")) {
-        compressionLevel = parseInt( "-compress", val);
-        if (compressionLevel < 0 || compressionLevel > 9)
-          badparms( bugs, "invalid compress: " + compressionLevel);
+        if (val.equals("auto")) compressionLevel = FilterDeflate.LEVEL_AUTO;
+        else {
+          compressionLevel = parseInt( "-compress", val);
+          if (compressionLevel < 0 || compressionLevel > 9)
+            badparms( bugs, "invalid compress: " + compressionLevel);
+        }
+        haveCompress = true;
       }
       else if (key.equals("-inFile")) inFile = val;
       else if (key.equals("-outFile")) outFile = val;
@@ -220,7 +227,7 @@ public class NhCopy {
 
       else badparms( bugs, "unknown parm: \"" + key + "\"");
     }
-    if (compressionLevel < 0) badparms( bugs, "parm not specified: -compress");
+    if (! haveCompress) badparms( bugs, "parm not specified: -compress");
     if (inFile == null) badparms( bugs, "parm not specified: -inFile");
     if (outFile == null) badparms( bugs, "parm not specified: -outFile");
 
@@ -859,7 +866,11 @@ public class NhCopy {
       prtf( tmsg);
     } // if bugs >= 0
 
-    Object rawData = decodeArray( arr, useLinear, bugs);
+    // With useArray, NhVariable.writeData reads arr directly,
+    // so we only need decodeArray for scaling.
+    Object rawData = null;
+    if (fspec.iscale != SCALE_MISSING || ! useArray)
+      rawData = decodeArray( arr, useLinear, bugs);
 
     int[] strts = null;      // startIxs for chunks
     if (inVar.getRank() > 0) strts = new int[ inVar.getRank()];
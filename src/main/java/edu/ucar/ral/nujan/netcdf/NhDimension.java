@@ -38,8 +38,16 @@ import edu.ucar.ral.nujan.hdf.HdfGroup;
 
 public class NhDimension {
 
+/**
+ * dimLen value for NhGroup.addDimension: the dimension is
+ * unlimited, like the netCDF NC_UNLIMITED.
+ * So a dimLen of 0 means unlimited, not a length of 0.
+ */
+public static final int UNLIMITED = 0;
+
 String dimName;
-int dimLen;
+int dimLen;                  // 0 if isUnlimited
+boolean isUnlimited;
 NhGroup parentGroup;
 
 // If this dimension is represented by a coordinate variable,
@@ -63,6 +71,9 @@ throws NhException
   this.dimName = dimName;
   this.dimLen = dimLen;
   this.parentGroup = parentGroup;
+  if (dimLen == UNLIMITED) isUnlimited = true;
+  else if (dimLen < 0)
+    throwerr("dimension \"%s\" has illegal length: %d", dimName, dimLen);
 } // end constructor
 
 
@@ -87,10 +98,31 @@ public String getName() {
 
 /**
  * Returns the numeric length of this dimension.
+ * For an unlimited dimension, returns the num records
+ * written so far: the max length of dimension 0 of
+ * the variables using it.  After NhFileWriter.close
+ * this is the final length.
  */
 
 public int getLength() {
-  return dimLen;
+  int ires = dimLen;
+  if (isUnlimited) {
+    for (NhVariable nhvar : refList) {
+      ires = Math.max( ires, nhvar.hdfVar.getRecordLen());
+    }
+  }
+  return ires;
+}
+
+
+
+/**
+ * Returns true if this dimension was created with
+ * length UNLIMITED.
+ */
+
+public boolean isUnlimited() {
+  return isUnlimited;
 }
 
 
@@ -51,6 +51,33 @@ public class NhFileWriter {
 
 public static final int OPT_OVERWRITE = 1;
 
+/**
+ * Specify sparse chunked variables for the
+ * optFlag parameter in the constructor.
+ * Chunks that are never written, and chunks written with
+ * only the fill value, are not stored in the file:
+ * readers see the fill value.
+ */
+
+public static final int OPT_SPARSE_CHUNKS = 2;
+
+/**
+ * Specify memory mapped output of variable data for the
+ * optFlag parameter in the constructor.
+ * See {@link HdfFileWriter#OPT_MAP_DATA}.
+ */
+
+public static final int OPT_MAP_DATA = 4;
+
+/**
+ * Specify deduplicated chunks for the
+ * optFlag parameter in the constructor:
+ * identical chunks are written once.
+ * See {@link HdfFileWriter#OPT_DEDUP_CHUNKS}.
+ */
+
+public static final int OPT_DEDUP_CHUNKS = 8;
+
 
 
 // Define constants for fileStatus
@@ -75,6 +102,12 @@ public static final int ST_CLOSED    = 3;
 public static final String[] statusNames = {
   "UNKNOWN", "DEFINING", "WRITEDATA", "CLOSED"};
 
+/**
+ * Chunk length of the HDF5 variable representing an unlimited
+ * dimension that has no coordinate variable.
+ */
+static final int UNLIMITED_DIM_CHUNK_LEN = 1024;
+
 
 String path;
 int optFlag;                    // zero or more OPT_* bit options
@@ -183,6 +216,12 @@ throws NhException
     int hdfOptFlag = 0;
     if ((optFlag & OPT_OVERWRITE) != 0)
       hdfOptFlag |= HdfFileWriter.OPT_ALLOW_OVERWRITE;
+    if ((optFlag & OPT_SPARSE_CHUNKS) != 0)
+      hdfOptFlag |= HdfFileWriter.OPT_SPARSE_CHUNKS;
+    if ((optFlag & OPT_MAP_DATA) != 0)
+      hdfOptFlag |= HdfFileWriter.OPT_MAP_DATA;
+    if ((optFlag & OPT_DEDUP_CHUNKS) != 0)
+      hdfOptFlag |= HdfFileWriter.OPT_DEDUP_CHUNKS;
     hdfFile = new HdfFileWriter(
       path, hdfOptFlag, hdfDebugLevel, utcModTime, logDir, statTag);
     rootGroup = new NhGroup( "", null, this);
@@ -241,6 +280,199 @@ public void setHdfDebugLevel( int bugs) {
 }
 
 
+/**
+ * Sets the number of worker threads used to compress the chunks
+ * of variables having compressionLevel &gt; 0.
+ * If 0 (the default), chunks are compressed by the thread
+ * calling writeData.
+ * Must be called before endDefine.
+ */
+
+public void setCompressThreads( int numThread)
+throws NhException
+{
+  if (fileStatus != ST_DEFINING)
+    throwerr("must call setCompressThreads before endDefine");
+  try { hdfFile.setCompressThreads( numThread); }
+  catch( HdfException exc) {
+    exc.printStackTrace();
+    throwerr("caught: " + exc);
+  }
+}
+
+
+
+/**
+ * Enables asynchronous write-behind: writeData copies the data
+ * and returns, while background threads compress the chunks
+ * and a writer thread writes them.  close waits for them.
+ * The chunks in flight are limited to maxByte of raw data;
+ * when the limit is reached writeData waits.
+ * Must be called before endDefine.
+ * See {@link HdfFileWriter#setWriteBehind}.
+ *
+ * @param numCompressThread  Number of compress threads; at least 1.
+ * @param maxByte  Memory budget in bytes for chunks in flight.
+ */
+
+public void setWriteBehind(
+  int numCompressThread,
+  long maxByte)
+throws NhException
+{
+  if (fileStatus != ST_DEFINING)
+    throwerr("must call setWriteBehind before endDefine");
+  try { hdfFile.setWriteBehind( numCompressThread, maxByte); }
+  catch( HdfException exc) {
+    exc.printStackTrace();
+    throwerr("caught: " + exc);
+  }
+}
+
+
+/**
+ * Returns a one line summary of the write-behind queue depths
+ * and stall times, or null if write-behind is not in use.
+ * See {@link HdfFileWriter#getWriteBehindStatus}.
+ */
+
+public String getWriteBehindStatus() {
+  return hdfFile.getWriteBehindStatus();
+}
+
+
+/**
+ * With OPT_DEDUP_CHUNKS, returns the number of chunks
+ * not written because an identical chunk was already written.
+ * See {@link HdfFileWriter#getNumDedupChunk}.
+ */
+
+public long getNumDedupChunk() {
+  return hdfFile.getNumDedupChunk();
+}
+
+
+/**
+ * With OPT_DEDUP_CHUNKS, returns the bytes saved by
+ * not writing duplicate chunks.
+ * See {@link HdfFileWriter#getNumDedupByte}.
+ */
+
+public long getNumDedupByte() {
+  return hdfFile.getNumDedupByte();
+}
+
+
+/**
+ * Sets the length of a coalescing buffer that collects the
+ * output of successive writeData calls, to be written
+ * in large writes.  0, the default, means none.
+ * Must be called before endDefine.
+ * See {@link HdfFileWriter#setCoalesceBuffer}.
+ *
+ * @param numByte  Length of the buffer, or 0 for none.
+ */
+
+public void setCoalesceBuffer( int numByte)
+throws NhException
+{
+  if (fileStatus != ST_DEFINING)
+    throwerr("must call setCoalesceBuffer before endDefine");
+  try { hdfFile.setCoalesceBuffer( numByte); }
+  catch( HdfException exc) {
+    exc.printStackTrace();
+    throwerr("caught: " + exc);
+  }
+}
+
+
+/**
+ * Sets the target chunk len in bytes for variables whose
+ * chunkLens contain NhVariable.CHUNK_AUTO or CHUNK_AUTO_LONG.
+ * Applies to variables added afterwards.
+ * Must be called before endDefine.
+ * See {@link HdfFileWriter#setAutoChunkBytes}.
+ *
+ * @param numByte  Target len of a chunk.
+ */
+
+public void setAutoChunkBytes( long numByte)
+throws NhException
+{
+  if (fileStatus != ST_DEFINING)
+    throwerr("must call setAutoChunkBytes before endDefine");
+  try { hdfFile.setAutoChunkBytes( numByte); }
+  catch( HdfException exc) {
+    exc.printStackTrace();
+    throwerr("caught: " + exc);
+  }
+}
+
+
+/**
+ * Sets the max len of the raw data of variables stored
+ * with compact layout, in the variable's header.
+ * Applies to small contiguous variables, including the
+ * dimension scales written for dimensions without
+ * coordinate variables.
+ * Must be called before endDefine.
+ * See {@link HdfFileWriter#setCompactMax}.
+ *
+ * @param numByte  Max len, or 0 for none.
+ */
+
+public void setCompactMax( int numByte)
+throws NhException
+{
+  if (fileStatus != ST_DEFINING)
+    throwerr("must call setCompactMax before endDefine");
+  try { hdfFile.setCompactMax( numByte); }
+  catch( HdfException exc) {
+    exc.printStackTrace();
+    throwerr("caught: " + exc);
+  }
+}
+
+
+/**
+ * Writes one chunk each of several variables, for example
+ * one time step of many variables, by calling
+ * {@link NhVariable#writeData} for each.
+ * The output is collected in the coalescing buffer
+ * (one of {@link HdfFileWriter#DEFAULT_COALESCE_LEN} bytes
+ * if setCoalesceBuffer was not called) and written
+ * in a few large writes.
+ *
+ * @param vars  The variables.
+ * @param startIxs  For each variable, the startIxs for writeData.
+ * @param rawDatas  For each variable, the data for writeData.
+ */
+
+public void writeBatch(
+  NhVariable[] vars,
+  int[][] startIxs,
+  Object[] rawDatas)
+throws NhException
+{
+  if (fileStatus != ST_WRITEDATA) throwerr("must call endDefine first");
+  if (vars.length != startIxs.length || vars.length != rawDatas.length)
+    throwerr("writeBatch: vars, startIxs, rawDatas have different lengths");
+  try { hdfFile.beginBatch(); }
+  catch( HdfException exc) {
+    exc.printStackTrace();
+    throwerr("caught: " + exc);
+  }
+  for (int ii = 0; ii < vars.length; ii++) {
+    vars[ii].writeData( startIxs[ii], rawDatas[ii]);
+  }
+  try { hdfFile.endBatch(); }
+  catch( HdfException exc) {
+    exc.printStackTrace();
+    throwerr("caught: " + exc);
+  }
+}
+
+
 /**
  * Returns the full path name for this file.
  */
@@ -318,12 +550,20 @@ throws NhException
 
       try {
         if (dim.coordVar == null) {    // If not a coordinate variable
+          // An unlimited dimension must be chunked, like the
+          // variables using it.  Its length is set in close.
+          int[] dimVarDims = new int[] {dim.dimLen};
+          int[] dimChunkDims = null;
+          if (dim.isUnlimited) {
+            dimVarDims = new int[] {HdfGroup.DIM_UNLIMITED};
+            dimChunkDims = new int[] {UNLIMITED_DIM_CHUNK_LEN};
+          }
           dim.hdfDimVar = dim.parentGroup.hdfGroup.addVariable(
             dim.dimName,               // varName
             HdfGroup.DTYPE_FLOAT32,    // dtype
             0,                         // string length, incl null termination
-            new int[] {dim.dimLen},    // varDims
-            null,                      // chunkDims
+            dimVarDims,                // varDims
+            dimChunkDims,              // chunkDims
             new Float(0),              // fillValue
             0);                        // compressionLevel
 
@@ -476,7 +716,7 @@ throws NhException
 {
   int[] startIxs = null;
   for (NhDimension nhdim : nhGroup.dimensionList) {
-    if (nhdim.coordVar == null) {
+    if (nhdim.coordVar == null && ! nhdim.isUnlimited) {
       float[] dimData = new float[ nhdim.dimLen];
       try { nhdim.hdfDimVar.writeData( startIxs, dimData, false); }
       catch( HdfException exc) {
@@ -494,9 +734,44 @@ throws NhException
 
 
 
+// Write the data for all unlimited dimension variables
+// in the entire tree, except coordinate variables,
+// up to the final length of each dimension.
+
+void writeTreeRecordDimData( NhGroup nhGroup)
+throws NhException
+{
+  for (NhDimension nhdim : nhGroup.dimensionList) {
+    if (nhdim.coordVar == null && nhdim.isUnlimited) {
+      int dimLen = nhdim.getLength();
+      for (int istart = 0; istart < dimLen;
+        istart += UNLIMITED_DIM_CHUNK_LEN)
+      {
+        float[] dimData = new float[
+          Math.min( UNLIMITED_DIM_CHUNK_LEN, dimLen - istart)];
+        try {
+          nhdim.hdfDimVar.writeData( new int[] {istart}, dimData, false);
+        }
+        catch( HdfException exc) {
+          exc.printStackTrace();
+          throwerr("caught: " + exc);
+        }
+      }
+    }
+  }
+  for (NhGroup subGroup : nhGroup.subGroupList) {
+    writeTreeRecordDimData( subGroup);
+  }
+} // end writeTreeRecordDimData
+
+
+
+
 /**
  * Closes the file.  After calling close no further
  * operations are possible.
+ * The length of each unlimited dimension is set to
+ * the max num records written to the variables using it.
  */
 
 public void close()
@@ -512,6 +787,9 @@ throws NhException
   else if (fileStatus != ST_WRITEDATA) throwerr("invalid fileStatus");
   fileStatus = ST_CLOSED;
 
+  // The lengths of unlimited dimensions are known now
+  writeTreeRecordDimData( rootGroup);
+
   try { hdfFile.close(); }
   catch( HdfException exc) {
     exc.printStackTrace();
@@ -27,8 +27,10 @@
 package edu.ucar.ral.nujan.netcdf;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.regex.Pattern;
 
+import edu.ucar.ral.nujan.hdf.FilterBase;
 import edu.ucar.ral.nujan.hdf.HdfException;
 import edu.ucar.ral.nujan.hdf.HdfGroup;
 
@@ -286,8 +288,22 @@ throws NhException
 
 /**
  * Adds a dimension to this group.
+ * <p>
+ * If dimLen is NhDimension.UNLIMITED, the dimension grows as
+ * records are written, and its length is settled by
+ * NhFileWriter.close.  It must be the first dimension of
+ * each variable using it, and those variables must be chunked.
+ * Records are appended a chunk at a time:
+ * writeData with startIxs[0] a multiple of the chunk length,
+ * and only the last chunk of records may be short.
+ * <p>
+ * Note: since NhDimension.UNLIMITED is 0, a dimLen of 0 now makes
+ * an unlimited dimension, where it used to make a dimension
+ * of length 0.
+ *
  * @param dimName The name of the new dimension.
- * @param dimLen The length of the new dimension.
+ * @param dimLen The length of the new dimension,
+ *   or NhDimension.UNLIMITED.
  * @return The newly created dimension.
  */
 
@@ -349,12 +365,17 @@ throws NhException
  *        If chunkLens == nhDims values,
  *          use chunked storage with just one chunk.
  *        If nhDims == null or nhDims.length == 0, chunkLens must be null.
+ *        An element may be NhVariable.CHUNK_AUTO or CHUNK_AUTO_LONG
+ *        to have the len chosen; see NhVariable.autoChunkLens
+ *        and NhFileWriter.setAutoChunkBytes.
  * @param fillValue The fill value.  The type must agree with nhType
  *    as shown in the table above.
  *    May be null.
  *    Must be null for scalar or TP_STRING.
  * @param compressionLevel  Desired level of compression.  0 is no
- *    compression; 1 through 9 are increasing compression.
+ *    compression; 1 through 9 are increasing compression;
+ *    FilterDeflate.LEVEL_AUTO chooses the level by sampling
+ *    the first chunks.
  *    Scalar data (nhDims == new int[0]) must have compressionLevel = 0.
  * @return The newly created dimension.
  */
@@ -367,6 +388,98 @@ public NhVariable addVariable(
   Object fillValue,
   int compressionLevel)      // 0: no compression;  9: max compression
 throws NhException
+{
+  return addVariable( varName, nhType, nhDims, chunkLens,
+    fillValue, compressionLevel, false);
+}
+
+
+
+
+/**
+ * Adds a variable to this group, optionally applying the
+ * shuffle filter before compression, as the Netcdf
+ * nc_def_var_deflate function does with shuffle = 1.
+ * Shuffling usually makes numeric data compress better.
+ * <p>
+ * The parameters are the same as for
+ * {@link #addVariable(String,int,NhDimension[],int[],Object,int)
+ * addVariable}, plus:
+ *
+ * @param useShuffle If true, shuffle the bytes of each chunk
+ *    before compressing it.  Requires compressionLevel &gt; 0.
+ * @return The newly created variable.
+ */
+
+public NhVariable addVariable(
+  String varName,
+  int nhType,
+  NhDimension[] nhDims,
+  int[] chunkLens,
+  Object fillValue,
+  int compressionLevel,      // 0: no compression;  9: max compression
+  boolean useShuffle)        // shuffle before compression
+throws NhException
+{
+  return addVariableSub( varName, nhType, nhDims, chunkLens,
+    fillValue, compressionLevel, useShuffle, null);
+}
+
+
+
+
+/**
+ * Adds a variable to this group, with a chain of HDF5 filters
+ * applied to each chunk on write.
+ * For example, new FilterBase[] { new FilterShuffle(),
+ * new FilterDeflate( 5)} is the same as compressionLevel 5
+ * with useShuffle.
+ * Readers must support every filter in the chain.
+ * FilterShuffle then FilterLz4, or FilterBitshuffle with COMPRESS_LZ4,
+ * compress faster than FilterDeflate at a lower ratio,
+ * but readers need the HDF5 LZ4 or bitshuffle plugin.
+ * <p>
+ * The parameters are the same as for
+ * {@link #addVariable(String,int,NhDimension[],int[],Object,int)
+ * addVariable}, except:
+ *
+ * @param filterChain The filters, in the order they are applied
+ *    on write.  If not empty, chunkLens must not be null.
+ * @return The newly created variable.
+ */
+
+public NhVariable addVariable(
+  String varName,
+  int nhType,
+  NhDimension[] nhDims,
+  int[] chunkLens,
+  Object fillValue,
+  FilterBase[] filterChain)  // filters, in the order applied on write
+throws NhException
+{
+  if (filterChain == null) filterChain = new FilterBase[0];
+  return addVariableSub( varName, nhType, nhDims, chunkLens,
+    fillValue, 0, false, filterChain);
+}
+
+
+
+
+/**
+ * Adds a variable: called by the addVariable methods.
+ * If filterChain is null, uses compressionLevel and useShuffle.
+ */
+
+private NhVariable addVariableSub(
+  String varName,
+  int nhType,
+  NhDimension[] nhDims,
+  int[] chunkLens,
+  Object fillValue,
+  int compressionLevel,      // 0: no compression;  9: max compression
+  boolean useShuffle,        // shuffle before compression
+  FilterBase[] filterChain)  // filters, or null
+throws NhException
 {
   if (nhFile.bugs >= 1) {
     prtf("NhGroup.addVariable: this: \"" + getPath() + "\""
@@ -387,6 +500,9 @@ throws NhException
     prtf("  chunkLens: " + formatInts( chunkLens));
     prtf("  fill: " + fillValue);
     prtf("  compressionLevel: " + compressionLevel);
+    prtf("  useShuffle: " + useShuffle);
+    if (filterChain != null)
+      prtf("  filterChain: " + Arrays.toString( filterChain));
   }
 
   checkName( varName, "variable in group \"" + groupName + "\"");
@@ -410,6 +526,8 @@ throws NhException
     chunkLens,
     fillValue,
     compressionLevel,
+    useShuffle,
+    filterChain,
     this,
     nhFile);
   variableList.add( nhVar);
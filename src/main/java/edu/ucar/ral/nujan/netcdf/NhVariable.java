@@ -26,8 +26,12 @@
 
 package edu.ucar.ral.nujan.netcdf;
 
+import java.nio.Buffer;
 import java.util.Arrays;
 import ucar.ma2.Array;
+import edu.ucar.ral.nujan.hdf.FilterBase;
+import edu.ucar.ral.nujan.hdf.FilterDeflate;
+import edu.ucar.ral.nujan.hdf.FilterShuffle;
 import edu.ucar.ral.nujan.hdf.HdfException;
 import edu.ucar.ral.nujan.hdf.HdfGroup;
 
@@ -147,6 +151,29 @@ public static final String[] nhTypeNames = {
   "UNKNOWN", "SBYTE", "UBYTE", "SHORT", "INT",
   "LONG", "FLOAT", "DOUBLE", "CHAR", "STRING_VAR"};
 
+/** quantizeMode for setQuantize: netCDF NC_QUANTIZE_BITGROOM */
+public static final int QUANTIZE_BITGROOM   = HdfGroup.QUANTIZE_BITGROOM;
+/** quantizeMode for setQuantize: netCDF NC_QUANTIZE_GRANULARBR */
+public static final int QUANTIZE_GRANULARBR = HdfGroup.QUANTIZE_GRANULARBR;
+/** quantizeMode for setQuantize: netCDF NC_QUANTIZE_BITROUND */
+public static final int QUANTIZE_BITROUND   = HdfGroup.QUANTIZE_BITROUND;
+
+/** chunkLens value for addVariable: the chunk len in this
+  dimension is chosen automatically.  See autoChunkLens. */
+public static final int CHUNK_AUTO          = HdfGroup.CHUNK_AUTO;
+/** chunkLens value for addVariable: the chunk len in this
+  dimension is as long as the chunk size target allows. */
+public static final int CHUNK_AUTO_LONG     = HdfGroup.CHUNK_AUTO_LONG;
+
+/** accessHint for autoChunkLens: no preferred direction */
+public static final int ACCESS_BALANCED     = HdfGroup.ACCESS_BALANCED;
+/** accessHint for autoChunkLens: long runs of the first dimension,
+  like a time series at one point */
+public static final int ACCESS_TIME_SERIES  = HdfGroup.ACCESS_TIME_SERIES;
+/** accessHint for autoChunkLens: one index of the first dimension,
+  like a map at one time */
+public static final int ACCESS_SPATIAL      = HdfGroup.ACCESS_SPATIAL;
+
 
 
 String varName;            // variable name
@@ -155,12 +182,16 @@ int nhType;                // one of TP_*
 NhDimension[] nhDims;      // shared dimensions
 Object fillValue;
 int compressionLevel;      // 0: no compression;  9: max compression
+boolean useShuffle;        // shuffle before compression
+FilterBase[] filterChain;  // filters, or null to use compressionLevel
+                           //   and useShuffle
 NhGroup parentGroup;
 NhFileWriter nhFile;
 
 int rank;
 int dtype;                 // one of HdfGroup.DTYPE_*
 int[] dimLens;             // len of each nhDims element
+int[] chunkLens;           // chunk lens, or null if contiguous
 
 HdfGroup hdfVar;
 
@@ -175,6 +206,9 @@ NhVariable(
   int[] chunkLens,
   Object fillValue,
   int compressionLevel,      // 0: no compression;  9: max compression
+  boolean useShuffle,        // shuffle before compression
+  FilterBase[] filterChain,  // filters, or null to use compressionLevel
+                             //   and useShuffle
   NhGroup parentGroup,
   NhFileWriter nhFile)
 throws NhException
@@ -185,6 +219,17 @@ throws NhException
   else this.nhDims = Arrays.copyOf( nhDims, nhDims.length);
   this.fillValue = fillValue;
   this.compressionLevel = compressionLevel;
+  this.useShuffle = useShuffle;
+  if (filterChain != null) {
+    this.filterChain = Arrays.copyOf( filterChain, filterChain.length);
+    for (FilterBase filter : filterChain) {
+      if (filter instanceof FilterDeflate)
+        this.compressionLevel = ((FilterDeflate) filter).getCompressionLevel();
+      if (filter instanceof FilterShuffle) this.useShuffle = true;
+    }
+  }
+  boolean isFiltered = this.compressionLevel != 0
+    || (filterChain != null && filterChain.length > 0);
   this.parentGroup = parentGroup;
   this.nhFile = nhFile;
 
@@ -202,12 +247,15 @@ throws NhException
     msg += "\n";
     msg += "  chunkLens: " + NhGroup.formatInts( chunkLens) + "\n";
     msg += "  fill: " + fillValue + "\n";
-    msg += "  compressionLevel: " + compressionLevel;
+    msg += "  compressionLevel: " + compressionLevel + "\n";
+    msg += "  useShuffle: " + useShuffle;
     prtf( msg);
   }
 
   if (nhDims == null) rank = 0;
   else rank = nhDims.length;
+  if (chunkLens == null) this.chunkLens = null;
+  else this.chunkLens = Arrays.copyOf( chunkLens, chunkLens.length);
 
   // Translate nhType to dtype
   // Note: fixed len strings are not supported by the Netcdf API.
@@ -253,13 +301,29 @@ throws NhException
       if (tdim != nhDims[ii])
         throwerr("dimension not found.  var: %s  dim: %s", varName, nhDims[ii]);
       
-      int dlen = nhDims[ii].dimLen;
-      if (dlen <= 0 || dlen >= Integer.MAX_VALUE) {
-        throwerr("NhVariable: variable \"%s\", dimension %d,"
-          + " has illegal value: %d",
-          varName, ii, dlen);
+      // An unlimited dimension must be the first,
+      // and HdfGroup grows it as records are written.
+      if (nhDims[ii].isUnlimited) {
+        if (ii != 0)
+          throwerr("NhVariable: variable \"%s\": only the first dimension"
+            + " may be unlimited", varName);
+        if (chunkLens == null)
+          throwerr("NhVariable: variable \"%s\" has an unlimited"
+            + " dimension, so must have chunkLens", varName);
+        if (nhType == TP_CHAR)
+          throwerr("NhVariable: variable \"%s\": unlimited dimensions"
+            + " are not supported for TP_CHAR", varName);
+        dimLens[ii] = HdfGroup.DIM_UNLIMITED;
+      }
+      else {
+        int dlen = nhDims[ii].dimLen;
+        if (dlen <= 0 || dlen >= Integer.MAX_VALUE) {
+          throwerr("NhVariable: variable \"%s\", dimension %d,"
+            + " has illegal value: %d",
+            varName, ii, dlen);
+        }
+        dimLens[ii] = dlen;
       }
-      dimLens[ii] = dlen;
     }
   }
 
@@ -281,28 +345,47 @@ throws NhException
   // It turns out that HDF5 compresses the references to
   // variable length strings, but not the strings themselves.
   // The strings remain in the global heap GCOL, uncompressed.
-  if (compressionLevel > 0 && nhType == TP_STRING_VAR)
+  if (isFiltered && nhType == TP_STRING_VAR)
     throwerr("cannot use compression with TP_STRING_*");
 
   // Scalars cannot be compressed or chunked.
-  if ((dimLens == null || dimLens.length == 0) && compressionLevel > 0)
+  if ((dimLens == null || dimLens.length == 0) && isFiltered)
     throwerr("cannot use compression with scalar data");
 
+  if (filterChain == null && useShuffle && compressionLevel == 0)
+    throwerr("shuffle requires compressionLevel > 0");
+
   try {
-    hdfVar = parentGroup.hdfGroup.addVariable(
-      varName,
-      dtype,
-      stgFieldLen,          // max stg len, including null termination
-      dimLens,              // dimension lengths
-      chunkLens,
-      hdfFillValue,
-      compressionLevel);
+    if (filterChain != null) {
+      hdfVar = parentGroup.hdfGroup.addVariable(
+        varName,
+        dtype,
+        stgFieldLen,          // max stg len, including null termination
+        dimLens,              // dimension lengths
+        chunkLens,
+        hdfFillValue,
+        filterChain);
+    }
+    else {
+      hdfVar = parentGroup.hdfGroup.addVariable(
+        varName,
+        dtype,
+        stgFieldLen,          // max stg len, including null termination
+        dimLens,              // dimension lengths
+        chunkLens,
+        hdfFillValue,
+        compressionLevel,
+        useShuffle);
+    }
   }
   catch( HdfException exc) {
     exc.printStackTrace();
     throwerr("caught: " + exc);
   }
 
+  // HdfGroup resolves any CHUNK_AUTO values.
+  if (this.chunkLens != null) this.chunkLens = hdfVar.getChunkDims();
+
   // Add us to each dimension's refList
   if (nhDims != null) {
     for (NhDimension nhDim : nhDims) {
@@ -339,6 +422,58 @@ public int getType() { return nhType; }
  */
 public NhDimension[] getDimensions() { return nhDims; }
 
+/**
+ * Returns true if arr can be written directly from its 1D storage:
+ * it has a primitive numeric element type, and exactly the shape
+ * of the chunk starting at startIxs, or for a contiguous variable,
+ * of a slab whose elements are consecutive.
+ * Otherwise writeData uses copyToNDJavaArray, and HdfGroup
+ * reports any mismatch.
+ */
+
+boolean isDirectArray(
+  int[] startIxs,
+  Array arr)
+{
+  Class<?> eleType = arr.getElementType();
+  boolean bres = false;
+  if (eleType == byte.class || eleType == short.class
+    || eleType == int.class || eleType == long.class
+    || eleType == float.class || eleType == double.class)
+  {
+    bres = true;
+    int[] shape = arr.getShape();
+    if (shape.length != rank) bres = false;
+    boolean isSpan = false;        // slab must span the remaining dims
+    for (int ii = 0; bres && ii < rank; ii++) {
+      int chunkLen = dimLens[ii];
+      int startIx = 0;
+      if (startIxs != null) startIx = startIxs[ii];
+      if (chunkLens != null) {
+        // The last chunk of records may be short
+        if (dimLens[ii] == HdfGroup.DIM_UNLIMITED)
+          chunkLen = Math.min( chunkLens[ii], shape[ii]);
+        else chunkLen = Math.min( chunkLens[ii], dimLens[ii] - startIx);
+      }
+      else if (startIxs != null) {
+        // A slab of a contiguous variable, written as a linear run:
+        // its elements must be consecutive.
+        chunkLen = shape[ii];
+        if (startIx + shape[ii] > dimLens[ii]) bres = false;
+        if (isSpan && (startIx != 0 || shape[ii] != dimLens[ii]))
+          bres = false;
+        if (shape[ii] > 1) isSpan = true;
+      }
+      if (shape[ii] != chunkLen) bres = false;
+    }
+  }
+  return bres;
+}
+
+
+
+
+
 /**
  * Returns the fill value specified in the constructor.
  */
@@ -349,6 +484,89 @@ public Object getFillValue() { return fillValue; }
  */
 public int getCompressionLevel() { return compressionLevel; }
 
+/**
+ * Returns true if the shuffle filter is applied before compression.
+ */
+public boolean getUseShuffle() { return useShuffle; }
+
+/**
+ * Returns the chunk lens, with any CHUNK_AUTO values resolved,
+ * or null if the variable is contiguous.
+ */
+public int[] getChunkLens() {
+  int[] res = null;
+  if (chunkLens != null) res = Arrays.copyOf( chunkLens, chunkLens.length);
+  return res;
+}
+
+/**
+ * Returns chunkLens for NhGroup.addVariable that let the
+ * chunk shape be chosen automatically, aiming at chunks of
+ * NhFileWriter.setAutoChunkBytes bytes.
+ * See {@link HdfGroup#autoChunkDims HdfGroup.autoChunkDims}.
+ *
+ * @param rank  The num dimensions of the variable.
+ * @param accessHint  One of ACCESS_*.
+ */
+
+public static int[] autoChunkLens(
+  int rank,
+  int accessHint)
+throws NhException
+{
+  int[] res = null;
+  try { res = HdfGroup.autoChunkDims( rank, accessHint); }
+  catch( HdfException exc) {
+    exc.printStackTrace();
+    throwerr("caught: " + exc);
+  }
+  return res;
+}
+
+/**
+ * Sets lossy quantization of a TP_FLOAT or TP_DOUBLE variable,
+ * like the netCDF-C nc_def_var_quantize function,
+ * and adds the matching _Quantize* attribute.
+ * Must be called before NhFileWriter.endDefine.
+ * See {@link HdfGroup#setQuantize HdfGroup.setQuantize}.
+ *
+ * @param quantizeMode One of QUANTIZE_BITGROOM, QUANTIZE_GRANULARBR,
+ *    or QUANTIZE_BITROUND.
+ * @param nsd Num significant decimal digits, or for
+ *    QUANTIZE_BITROUND, num significant bits.
+ */
+
+public void setQuantize(
+  int quantizeMode,
+  int nsd)
+throws NhException
+{
+  if (nhFile.bugs >= 1)
+    prtf("NhVariable.setQuantize: var: \"" + varName + "\""
+      + "  quantizeMode: " + quantizeMode + "  nsd: " + nsd);
+  try {
+    hdfVar.setQuantize( quantizeMode, nsd);
+  }
+  catch( HdfException exc) {
+    exc.printStackTrace();
+    throwerr("caught: " + exc);
+  }
+}
+
+
+
+
+/**
+ * Returns the filter chain specified in the constructor, or null
+ * if the variable was defined by compressionLevel and useShuffle.
+ */
+public FilterBase[] getFilterChain() {
+  FilterBase[] res = null;
+  if (filterChain != null)
+    res = Arrays.copyOf( filterChain, filterChain.length);
+  return res;
+}
+
 /**
  * Returns the group containing this variable.
  */
@@ -472,9 +690,15 @@ throws NhException
  * See {@link HdfGroup#addVariable} for documentation on the legal
  * types of rawData.
  * <p>
+ * Several threads may call writeData at once, for different
+ * chunks of the same or different variables.
+ * All calls must return before {@link NhFileWriter#close}.
+ * <p>
  * @param startIxs  The indices of the starting point (lower left corner)
  *    of the hyperslab to be written.  For contiguous storage,
- *    startIxs should be all zeros.
+ *    either null, to write the whole variable, or the start
+ *    of a slab whose elements are consecutive in the file,
+ *    such as a block of whole rows.
  *    Must have startIxs.length == varDims.length.
  * @param rawData the data array or Object (for a scalar variable)
  *  to be written.
@@ -497,9 +721,15 @@ throws NhException
  * See {@link HdfGroup#addVariable} for documentation on the legal
  * types of rawData.
  * <p>
+ * Several threads may call writeData at once, for different
+ * chunks of the same or different variables.
+ * All calls must return before {@link NhFileWriter#close}.
+ * <p>
  * @param startIxs  The indices of the starting point (lower left corner)
  *    of the hyperslab to be written.  For contiguous storage,
- *    startIxs should be all zeros.
+ *    either null, to write the whole variable, or the start
+ *    of a slab whose elements are consecutive in the file,
+ *    such as a block of whole rows.
  *    Must have startIxs.length == varDims.length.
  * @param rawData the data array or Object (for a scalar variable)
  *  to be written.
@@ -534,6 +764,14 @@ throws NhException
       // copyTo1DJavaArray just calls cp = Array.copy(), cp.getStorage().
       rawData = arr.copyTo1DJavaArray();
     }
+    else if (isDirectArray( startIxs, arr)) {
+      // Pass the Array's 1D storage to HdfGroup as linear data,
+      // rather than building a nested Java array.
+      // get1DJavaArray returns the storage itself if it's
+      // in canonical order, else a 1D copy.
+      rawData = arr.get1DJavaArray( arr.getElementType());
+      useLinear = true;
+    }
     else {
       rawData = ((Array) rawData).copyToNDJavaArray();
     }
@@ -567,6 +805,61 @@ throws NhException
 
 
 
+/**
+ * Writes one chunk of this variable to disk, from an NIO Buffer.
+ * <p>
+ * See {@link HdfGroup#writeData(int[], java.nio.Buffer, int[])}
+ * for documentation on the legal types of rawData.
+ * A little endian ByteBuffer holding a full chunk is
+ * written without reformatting.
+ * Not supported for TP_CHAR or TP_STRING_VAR.
+ * <p>
+ * Several threads may call writeData at once, for different
+ * chunks of the same or different variables.
+ * All calls must return before {@link NhFileWriter#close}.
+ * <p>
+ * @param startIxs  The indices of the starting point (lower left corner)
+ *    of the hyperslab to be written.  For contiguous storage,
+ *    either null, to write the whole variable, or the start
+ *    of a slab whose elements are consecutive in the file,
+ *    such as a block of whole rows.
+ *    Must have startIxs.length == varDims.length.
+ * @param rawData the data: the remaining elements of the Buffer,
+ *    in row major order.
+ * @param dataDims the dimensions of the data in rawData:
+ *    the chunk lengths, clipped at the high edges of the variable,
+ *    or for contiguous storage, the slab lengths.
+ */
+
+public void writeData(
+  int[] startIxs,
+  Buffer rawData,
+  int[] dataDims)
+throws NhException
+{
+  if (nhFile.bugs >= 1) {
+    prtf("NhVariable.writeData: nhType: "
+      + NhVariable.nhTypeNames[nhType] + "\n"
+      + "  startIxs: " + NhGroup.formatInts( startIxs) + "\n"
+      + "  dataDims: " + NhGroup.formatInts( dataDims) + "\n"
+      + "  rawData: " + rawData);
+  }
+  if (rawData == null) throwerr("rawData is null");
+  if (nhType == TP_CHAR || nhType == TP_STRING_VAR)
+    throwerr("Buffer data not supported for type: "
+      + NhVariable.nhTypeNames[nhType]);
+
+  try { hdfVar.writeData( startIxs, rawData, dataDims); }
+  catch( HdfException exc) {
+    exc.printStackTrace();
+    throwerr("caught: " + exc);
+  }
+}
+
+
+
+
+
 // Caution ...
 // In Netcdf attributes are handled differently than variables,
 // in particular for char[].
@@ -0,0 +1,1233 @@
+// The MIT License
+// 
+// Copyright (c) 2010 University Corporation for Atmospheric Research
+// 
+// Permission is hereby granted, free of charge, to any person
+// obtaining a copy of this software and associated documentation
+// files (the "Software"), to deal in the Software without
+// restriction, including without limitation the rights to use,
+// copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following
+// conditions:
+// 
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+// 
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+// OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT.  IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+// HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+// WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+// FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+
+
+package edu.ucar.ral.nujan.hdfTest;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import edu.ucar.ral.nujan.hdf.HdfException;
+
+
+// Minimal HDF5 reader for the unit tests, so the files written
+// by nujan can be checked without the HDF5 library.
+//
+// Reads only what nujan writes: superblock version 2,
+// version 2 object headers, hard links, and for variables the
+// dataspace, datatype, fill value, layout (compact, contiguous,
+// or chunked with a version 1 B-tree), filter pipeline,
+// and attribute names.
+//
+// The chunk decoders are written from the HDF5 and plugin
+// file format descriptions, independently of the nujan encoders:
+// deflate, shuffle, fletcher32, nbit, scaleoffset, lz4 (32004),
+// and bitshuffle (32008).
+//
+// Typical use:
+//   HdfReadBack rdr = new HdfReadBack( fileName);
+//   HdfReadBack.VarInfo var = rdr.getVar("/grp/var");
+//   ByteBuffer data = rdr.readData( var);     // little endian
+
+
+public class HdfReadBack {
+
+
+public static final long UNDEFINED_ADDR = -1;
+
+// Layout classes
+public static final int LY_COMPACT = 0;
+public static final int LY_CONTIGUOUS = 1;
+public static final int LY_CHUNKED = 2;
+
+// Datatype classes
+public static final int TCLS_FIXED = 0;
+public static final int TCLS_FLOAT = 1;
+public static final int TCLS_STRING = 3;
+
+// Filter ids
+public static final int FILT_DEFLATE = 1;
+public static final int FILT_SHUFFLE = 2;
+public static final int FILT_FLETCHER32 = 3;
+public static final int FILT_NBIT = 5;
+public static final int FILT_SCALEOFFSET = 6;
+public static final int FILT_LZ4 = 32004;
+public static final int FILT_BITSHUFFLE = 32008;
+
+// Object header message types
+static final int TP_DATASPACE = 1;
+static final int TP_DATATYPE = 3;
+static final int TP_FILL_VALUE = 5;
+static final int TP_LINKIT = 6;
+static final int TP_LAYOUT = 8;
+static final int TP_FILTER = 11;
+static final int TP_ATTRIBUTE = 12;
+static final int TP_OBJ_HDR_CONTIN = 16;
+static final int TP_K_VALUES = 19;
+
+
+
+/**
+ * One message in an object header.
+ */
+
+public static class HdrMsg {
+  public int msgType;
+  public int msgPos;         // file position of the message body
+  public int msgSize;
+}
+
+
+
+/**
+ * One entry of a chunk B-tree leaf.
+ */
+
+public static class ChunkInfo {
+  public long[] startIxs;    // element index of the chunk origin
+  public int filterMask;     // bit i set: filter i was skipped
+  public long chunkAddr;
+  public int chunkSize;      // bytes as stored, after the filters
+}
+
+
+
+/**
+ * The shape of a chunk B-tree, found by walkBtree.
+ */
+
+public static class BtreeInfo {
+  public int numLevel;       // 1 if the root is a leaf
+  public int numNode;
+  public int maxEntry;       // max entries used in any node
+  public int[] numNodeByLevel;         // index 0 is the leaves
+  public ArrayList<ChunkInfo> chunks = new ArrayList<ChunkInfo>();
+}
+
+
+
+/**
+ * What we know about one variable (dataset).
+ */
+
+public static class VarInfo {
+  public String path;
+  public long objAddr;
+  public ArrayList<HdrMsg> msgs;
+
+  public long[] dims;                  // length 0 for a scalar
+  public long[] maxDims;               // null if not present
+  public int typeClass;
+  public boolean isSigned;
+  public int elementLen;
+  public int fixPrecision;             // for TCLS_FIXED
+  public int fixBitOffset;             // for TCLS_FIXED
+
+  public int fillAllocTime;
+  public byte[] fillBytes;             // null if not defined
+
+  public int layoutClass;
+  public byte[] compactData;           // LY_COMPACT
+  public long dataAddr;                // LY_CONTIGUOUS
+  public long dataSize;                // LY_CONTIGUOUS
+  public long btreeAddr;               // LY_CHUNKED
+  public int[] chunkDims;              // LY_CHUNKED
+
+  public int[] filterIds = new int[0];
+  public int[] filterFlags = new int[0];
+  public int[][] clientVals = new int[0][];
+
+  public ArrayList<String> attrNames = new ArrayList<String>();
+  public ArrayList<byte[]> attrValues = new ArrayList<byte[]>();
+
+  public long getNumEle() {
+    long res = 1;
+    for (long dim : dims) {
+      res *= dim;
+    }
+    return res;
+  }
+
+  public int getFilterIndex( int filterId) {
+    int res = -1;
+    for (int ii = 0; ii < filterIds.length; ii++) {
+      if (filterIds[ii] == filterId) res = ii;
+    }
+    return res;
+  }
+
+  public byte[] getAttrValue( String name) {
+    byte[] res = null;
+    int ix = attrNames.indexOf( name);
+    if (ix >= 0) res = attrValues.get( ix);
+    return res;
+  }
+} // end class VarInfo
+
+
+
+String fileName;
+ByteBuffer fbuf;           // the whole file, little endian
+long extenAddr;
+long eofAddr;
+long rootAddr;
+
+
+
+public HdfReadBack( String fileName)
+throws HdfException, IOException
+{
+  this.fileName = fileName;
+  File fil = new File( fileName);
+  byte[] bytes = new byte[ (int) fil.length()];
+  FileInputStream fin = new FileInputStream( fil);
+  try {
+    int pos = 0;
+    while (pos < bytes.length) {
+      int ilen = fin.read( bytes, pos, bytes.length - pos);
+      if (ilen < 0) throwerr("premature eof: %s", fileName);
+      pos += ilen;
+    }
+  }
+  finally {
+    fin.close();
+  }
+  fbuf = ByteBuffer.wrap( bytes);
+  fbuf.order( ByteOrder.LITTLE_ENDIAN);
+
+  byte[] signa = { (byte) 0x89, 'H', 'D', 'F', '\r', '\n', 0x1a, '\n'};
+  for (int ii = 0; ii < signa.length; ii++) {
+    if (fbuf.get( ii) != signa[ii]) throwerr("not HDF5: %s", fileName);
+  }
+  if (fbuf.get( 8) != 2)
+    throwerr("superblock version %d not supported", fbuf.get( 8));
+  if (fbuf.get( 9) != 8 || fbuf.get( 10) != 8)
+    throwerr("offset and length sizes must be 8");
+  extenAddr = fbuf.getLong( 20);
+  eofAddr = fbuf.getLong( 28);
+  rootAddr = fbuf.getLong( 36);
+  if (eofAddr != bytes.length)
+    throwerr("eofAddr %d != file len %d", eofAddr, bytes.length);
+}
+
+
+
+public long getFileLen() {
+  return fbuf.capacity();
+}
+
+
+
+/**
+ * Returns the storage K from the superblock extension:
+ * chunk B-tree nodes have at most 2*K entries.
+ */
+
+public int getStorageK()
+throws HdfException
+{
+  int res = 32;                       // HDF5 default
+  if (extenAddr != UNDEFINED_ADDR) {
+    for (HdrMsg msg : readObjHdr( extenAddr)) {
+      if (msg.msgType == TP_K_VALUES)
+        res = fbuf.getShort( msg.msgPos + 1) & 0xffff;
+    }
+  }
+  return res;
+}
+
+
+
+/**
+ * Returns the names of the links in the group at path,
+ * in the order written.
+ */
+
+public String[] getLinkNames( String path)
+throws HdfException
+{
+  ArrayList<String> names = new ArrayList<String>();
+  for (HdrMsg msg : readObjHdr( findObj( path))) {
+    if (msg.msgType == TP_LINKIT) names.add( getLinkName( msg));
+  }
+  return names.toArray( new String[0]);
+}
+
+
+
+/**
+ * Returns the variable at path, like "/grp/var".
+ */
+
+public VarInfo getVar( String path)
+throws HdfException
+{
+  VarInfo var = new VarInfo();
+  var.path = path;
+  var.objAddr = findObj( path);
+  var.msgs = readObjHdr( var.objAddr);
+  boolean hasLayout = false;
+  for (HdrMsg msg : var.msgs) {
+    int pos = msg.msgPos;
+    if (msg.msgType == TP_DATASPACE) {
+      if (fbuf.get( pos) != 2) throwerr("dataspace version");
+      int rank = fbuf.get( pos + 1);
+      int flag = fbuf.get( pos + 2);
+      pos += 4;
+      var.dims = new long[ rank];
+      for (int ii = 0; ii < rank; ii++) {
+        var.dims[ii] = fbuf.getLong( pos);
+        pos += 8;
+      }
+      if ((flag & 1) != 0) {
+        var.maxDims = new long[ rank];
+        for (int ii = 0; ii < rank; ii++) {
+          var.maxDims[ii] = fbuf.getLong( pos);
+          pos += 8;
+        }
+      }
+    }
+    else if (msg.msgType == TP_DATATYPE) {
+      var.typeClass = fbuf.get( pos) & 0xf;
+      var.isSigned = (fbuf.get( pos + 1) & 8) != 0;
+      var.elementLen = fbuf.getInt( pos + 4);
+      if (var.typeClass == TCLS_FIXED) {
+        var.fixBitOffset = fbuf.getShort( pos + 8) & 0xffff;
+        var.fixPrecision = fbuf.getShort( pos + 10) & 0xffff;
+      }
+    }
+    else if (msg.msgType == TP_FILL_VALUE) {
+      if (fbuf.get( pos) != 2) throwerr("fill value version");
+      var.fillAllocTime = fbuf.get( pos + 1);
+      if (fbuf.get( pos + 3) == 1) {
+        int len = fbuf.getInt( pos + 4);
+        var.fillBytes = getBytes( pos + 8, len);
+      }
+    }
+    else if (msg.msgType == TP_LAYOUT) {
+      hasLayout = true;
+      if (fbuf.get( pos) != 3) throwerr("layout version");
+      var.layoutClass = fbuf.get( pos + 1);
+      pos += 2;
+      if (var.layoutClass == LY_COMPACT) {
+        int len = fbuf.getShort( pos) & 0xffff;
+        var.compactData = getBytes( pos + 2, len);
+      }
+      else if (var.layoutClass == LY_CONTIGUOUS) {
+        var.dataAddr = fbuf.getLong( pos);
+        var.dataSize = fbuf.getLong( pos + 8);
+      }
+      else if (var.layoutClass == LY_CHUNKED) {
+        int rank = fbuf.get( pos) - 1;
+        var.btreeAddr = fbuf.getLong( pos + 1);
+        var.chunkDims = new int[ rank];
+        for (int ii = 0; ii < rank; ii++) {
+          var.chunkDims[ii] = fbuf.getInt( pos + 9 + 4 * ii);
+        }
+      }
+      else throwerr("unknown layout class: %d", var.layoutClass);
+    }
+    else if (msg.msgType == TP_FILTER) {
+      if (fbuf.get( pos) != 1) throwerr("filter version");
+      int numFilter = fbuf.get( pos + 1);
+      pos += 8;
+      var.filterIds = new int[ numFilter];
+      var.filterFlags = new int[ numFilter];
+      var.clientVals = new int[ numFilter][];
+      for (int ifilt = 0; ifilt < numFilter; ifilt++) {
+        var.filterIds[ifilt] = fbuf.getShort( pos) & 0xffff;
+        int nameLen = fbuf.getShort( pos + 2) & 0xffff;
+        var.filterFlags[ifilt] = fbuf.getShort( pos + 4) & 0xffff;
+        int numVal = fbuf.getShort( pos + 6) & 0xffff;
+        pos += 8 + nameLen;
+        var.clientVals[ifilt] = new int[ numVal];
+        for (int ii = 0; ii < numVal; ii++) {
+          var.clientVals[ifilt][ii] = fbuf.getInt( pos);
+          pos += 4;
+        }
+        if (numVal % 2 != 0) pos += 4;
+      }
+    }
+    else if (msg.msgType == TP_ATTRIBUTE) {
+      int nameLen = fbuf.getShort( pos + 2) & 0xffff;
+      int typeLen = fbuf.getShort( pos + 4) & 0xffff;
+      int spaceLen = fbuf.getShort( pos + 6) & 0xffff;
+      int namePos = pos + 9;
+      var.attrNames.add( new String( getBytes( namePos, nameLen - 1)));
+      int dataPos = namePos + nameLen + typeLen + spaceLen;
+      var.attrValues.add(
+        getBytes( dataPos, pos + msg.msgSize - dataPos));
+    }
+  }
+  if (var.dims == null || ! hasLayout) throwerr("not a variable: %s", path);
+  return var;
+}
+
+
+
+/**
+ * Returns all the data of var, in row major order, little endian:
+ * the decoded chunks, with the fill value, or zeros,
+ * where no chunk was written.
+ */
+
+public ByteBuffer readData( VarInfo var)
+throws HdfException
+{
+  int totLen = (int) (var.getNumEle() * var.elementLen);
+  byte[] res = new byte[ totLen];
+  if (var.fillBytes != null) {
+    for (int ii = 0; ii < totLen; ii++) {
+      res[ii] = var.fillBytes[ ii % var.elementLen];
+    }
+  }
+
+  if (var.layoutClass == LY_COMPACT) {
+    if (var.compactData.length != totLen)
+      throwerr("compact len %d != %d", var.compactData.length, totLen);
+    System.arraycopy( var.compactData, 0, res, 0, totLen);
+  }
+  else if (var.layoutClass == LY_CONTIGUOUS) {
+    if (var.dataAddr != UNDEFINED_ADDR) {
+      if (var.dataSize != totLen)
+        throwerr("contiguous len %d != %d", var.dataSize, totLen);
+      System.arraycopy( fbuf.array(), (int) var.dataAddr, res, 0, totLen);
+    }
+  }
+  else {
+    BtreeInfo binfo = walkBtree( var);
+    int rank = var.dims.length;
+    int chunkEle = 1;
+    for (int dim : var.chunkDims) {
+      chunkEle *= dim;
+    }
+    for (ChunkInfo chunk : binfo.chunks) {
+      byte[] cbytes = decodeChunk( var, chunk);
+      if (cbytes.length != chunkEle * var.elementLen)
+        throwerr("decoded chunk len %d != %d",
+          cbytes.length, chunkEle * var.elementLen);
+      // Copy each element that falls inside the variable.
+      for (int iele = 0; iele < chunkEle; iele++) {
+        int rem = iele;
+        long dstIx = 0;
+        boolean inside = true;
+        for (int ii = rank - 1; ii >= 0; ii--) {
+          long ix = chunk.startIxs[ii] + rem % var.chunkDims[ii];
+          rem /= var.chunkDims[ii];
+          if (ix >= var.dims[ii]) inside = false;
+        }
+        if (inside) {
+          rem = iele;
+          long mult = 1;
+          for (int ii = rank - 1; ii >= 0; ii--) {
+            long ix = chunk.startIxs[ii] + rem % var.chunkDims[ii];
+            rem /= var.chunkDims[ii];
+            dstIx += ix * mult;
+            mult *= var.dims[ii];
+          }
+          System.arraycopy( cbytes, iele * var.elementLen,
+            res, (int) dstIx * var.elementLen, var.elementLen);
+        }
+      }
+    }
+  }
+  ByteBuffer bbuf = ByteBuffer.wrap( res);
+  bbuf.order( ByteOrder.LITTLE_ENDIAN);
+  return bbuf;
+}
+
+
+
+/**
+ * Walks the chunk B-tree of var, checking node levels,
+ * entry counts against 2*K, key order, and sibling links.
+ * Returns the tree shape and the chunks, in key order.
+ */
+
+public BtreeInfo walkBtree( VarInfo var)
+throws HdfException
+{
+  if (var.layoutClass != LY_CHUNKED) throwerr("not chunked: %s", var.path);
+  int twoK = 2 * getStorageK();
+  BtreeInfo binfo = new BtreeInfo();
+
+  // Breadth first, so the nodes of each level are in order.
+  ArrayList<Long> levelAddrs = new ArrayList<Long>();
+  levelAddrs.add( var.btreeAddr);
+  int expectLevel = -1;
+  ArrayList<Integer> levelCounts = new ArrayList<Integer>();
+  while (! levelAddrs.isEmpty()) {
+    ArrayList<Long> nextAddrs = new ArrayList<Long>();
+    int level = -1;
+    for (int inode = 0; inode < levelAddrs.size(); inode++) {
+      long addr = levelAddrs.get( inode);
+      int pos = (int) addr;
+      if (fbuf.get( pos) != 'T' || fbuf.get( pos + 1) != 'R'
+        || fbuf.get( pos + 2) != 'E' || fbuf.get( pos + 3) != 'E')
+        throwerr("bad btree signature at %d", addr);
+      if (fbuf.get( pos + 4) != 1) throwerr("not a chunk btree node");
+      level = fbuf.get( pos + 5);
+      if (expectLevel < 0) {
+        expectLevel = level;
+        binfo.numLevel = level + 1;
+      }
+      if (level != expectLevel)
+        throwerr("node level %d, expected %d", level, expectLevel);
+      // A sparse variable with no chunks written has an empty root.
+      int numEntry = fbuf.getShort( pos + 6) & 0xffff;
+      int minEntry = addr == var.btreeAddr ? 0 : 1;
+      if (numEntry < minEntry || numEntry > twoK)
+        throwerr("node numEntry %d not in %d .. %d",
+          numEntry, minEntry, twoK);
+      binfo.maxEntry = Math.max( binfo.maxEntry, numEntry);
+      binfo.numNode++;
+
+      long leftAddr = fbuf.getLong( pos + 8);
+      long rightAddr = fbuf.getLong( pos + 16);
+      long expectLeft = inode == 0 ? UNDEFINED_ADDR
+        : levelAddrs.get( inode - 1);
+      long expectRight = inode == levelAddrs.size() - 1 ? UNDEFINED_ADDR
+        : levelAddrs.get( inode + 1);
+      if (leftAddr != expectLeft || rightAddr != expectRight)
+        throwerr("bad sibling links at %d: %d %d, expected %d %d",
+          addr, leftAddr, rightAddr, expectLeft, expectRight);
+
+      int keyLen = 8 + 8 * (var.dims.length + 1);
+      pos += 24;
+      for (int ient = 0; ient < numEntry; ient++) {
+        ChunkInfo chunk = readKey( var, pos);
+        long childAddr = fbuf.getLong( pos + keyLen);
+        pos += keyLen + 8;
+        if (level == 0) {
+          chunk.chunkAddr = childAddr;
+          if (! binfo.chunks.isEmpty())
+            checkKeyOrder( binfo.chunks.get( binfo.chunks.size() - 1),
+              chunk);
+          binfo.chunks.add( chunk);
+        }
+        else nextAddrs.add( childAddr);
+      }
+    }
+    levelCounts.add( levelAddrs.size());
+    if (level == 0 || nextAddrs.isEmpty()) {
+      if (! nextAddrs.isEmpty()) throwerr("leaf has children");
+      break;
+    }
+    levelAddrs = nextAddrs;
+    expectLevel = level - 1;
+  }
+  binfo.numNodeByLevel = new int[ levelCounts.size()];
+  for (int ii = 0; ii < levelCounts.size(); ii++) {
+    binfo.numNodeByLevel[ii] = levelCounts.get( levelCounts.size() - 1 - ii);
+  }
+  return binfo;
+}
+
+
+
+/**
+ * Returns the decoded bytes of one chunk: the stored bytes
+ * passed back through the filters, last first, skipping
+ * those in its filterMask.
+ */
+
+public byte[] decodeChunk(
+  VarInfo var,
+  ChunkInfo chunk)
+throws HdfException
+{
+  byte[] bytes = getBytes( (int) chunk.chunkAddr, chunk.chunkSize);
+  int chunkEle = 1;
+  for (int dim : var.chunkDims) {
+    chunkEle *= dim;
+  }
+  int rawLen = chunkEle * var.elementLen;
+  for (int ifilt = var.filterIds.length - 1; ifilt >= 0; ifilt--) {
+    if ((chunk.filterMask & (1 << ifilt)) == 0) {
+      bytes = decodeFilter( var.filterIds[ifilt], var.clientVals[ifilt],
+        bytes, rawLen, var.elementLen);
+    }
+  }
+  return bytes;
+}
+
+
+
+/**
+ * Decodes one filter's output.
+ * @param rawLen The len of the unfiltered chunk.
+ */
+
+public static byte[] decodeFilter(
+  int filterId,
+  int[] clientVals,
+  byte[] inBytes,
+  int rawLen,
+  int elementLen)
+throws HdfException
+{
+  byte[] res = null;
+  if (filterId == FILT_DEFLATE) res = inflate( inBytes);
+  else if (filterId == FILT_SHUFFLE)
+    res = unshuffle( inBytes, clientVals[0]);
+  else if (filterId == FILT_FLETCHER32) res = checkFletcher32( inBytes);
+  else if (filterId == FILT_NBIT) res = unpackNbit( inBytes, clientVals);
+  else if (filterId == FILT_SCALEOFFSET)
+    res = decodeScaleOffset( inBytes, clientVals);
+  else if (filterId == FILT_LZ4) res = decodeLz4Filter( inBytes);
+  else if (filterId == FILT_BITSHUFFLE)
+    res = decodeBitshuffle( inBytes, clientVals, rawLen);
+  else throwerr("unknown filter id: %d", filterId);
+  return res;
+}
+
+
+
+/**
+ * Inflates a zlib stream.
+ */
+
+public static byte[] inflate( byte[] inBytes)
+throws HdfException
+{
+  Inflater inflater = new Inflater();
+  inflater.setInput( inBytes);
+  byte[] res = new byte[ Math.max( 64, 4 * inBytes.length)];
+  int len = 0;
+  try {
+    while (! inflater.finished()) {
+      if (len == res.length) res = Arrays.copyOf( res, 2 * res.length);
+      int ilen = inflater.inflate( res, len, res.length - len);
+      if (ilen == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+        throwerr("truncated deflate stream");
+      len += ilen;
+    }
+  }
+  catch( DataFormatException exc) {
+    throwerr("caught: %s", exc);
+  }
+  finally {
+    inflater.end();
+  }
+  return Arrays.copyOf( res, len);
+}
+
+
+
+/**
+ * Undoes the HDF5 shuffle filter: the input has the first bytes
+ * of all elements, then the second bytes, and so on,
+ * followed by any leftover bytes.
+ */
+
+public static byte[] unshuffle(
+  byte[] inBytes,
+  int eleLen)
+{
+  int len = inBytes.length;
+  int numEle = len / eleLen;
+  byte[] res = new byte[ len];
+  for (int iele = 0; iele < numEle; iele++) {
+    for (int ib = 0; ib < eleLen; ib++) {
+      res[iele * eleLen + ib] = inBytes[ib * numEle + iele];
+    }
+  }
+  for (int ii = numEle * eleLen; ii < len; ii++) {
+    res[ii] = inBytes[ii];
+  }
+  return res;
+}
+
+
+
+/**
+ * Verifies and strips the little endian Fletcher32 checksum
+ * at the end of inBytes, as in H5Z_filter_fletcher32.
+ */
+
+public static byte[] checkFletcher32( byte[] inBytes)
+throws HdfException
+{
+  int len = inBytes.length - 4;
+  if (len < 0) throwerr("chunk too short for a checksum");
+  int stored = ByteBuffer.wrap( inBytes, len, 4)
+    .order( ByteOrder.LITTLE_ENDIAN).getInt();
+  int calc = fletcher32( inBytes, len);
+  if (stored != calc)
+    throwerr("fletcher32 mismatch: stored: 0x%08x  calc: 0x%08x",
+      stored, calc);
+  return Arrays.copyOf( inBytes, len);
+}
+
+
+
+/**
+ * The HDF5 Fletcher32 checksum of the first len bytes,
+ * as H5_checksum_fletcher32: big endian 16 bit words,
+ * sums reduced every 360 words, an odd last byte taken
+ * as the high byte of a word.
+ */
+
+public static int fletcher32(
+  byte[] bytes,
+  int len)
+{
+  long sum1 = 0;
+  long sum2 = 0;
+  int numWord = len / 2;
+  int ipos = 0;
+  while (numWord > 0) {
+    int tlen = Math.min( numWord, 360);
+    numWord -= tlen;
+    for (int ii = 0; ii < tlen; ii++) {
+      sum1 += ((bytes[ipos] & 0xff) << 8) | (bytes[ipos+1] & 0xff);
+      sum2 += sum1;
+      ipos += 2;
+    }
+    sum1 = (sum1 & 0xffff) + (sum1 >> 16);
+    sum2 = (sum2 & 0xffff) + (sum2 >> 16);
+  }
+  if (len % 2 != 0) {
+    sum1 += (bytes[ipos] & 0xff) << 8;
+    sum2 += sum1;
+    sum1 = (sum1 & 0xffff) + (sum1 >> 16);
+    sum2 = (sum2 & 0xffff) + (sum2 >> 16);
+  }
+  sum1 = (sum1 & 0xffff) + (sum1 >> 16);
+  sum2 = (sum2 & 0xffff) + (sum2 >> 16);
+  return (int) ((sum2 << 16) | sum1);
+}
+
+
+
+/**
+ * Undoes the N-bit filter for an atomic integer type.
+ * Client values: numParm, noCompress, numEle, class, size,
+ * order, precision, offset.
+ * The precision bits of each element are packed most
+ * significant bit first; the other bits are returned as 0,
+ * as H5Z_filter_nbit does.
+ */
+
+public static byte[] unpackNbit(
+  byte[] inBytes,
+  int[] clientVals)
+throws HdfException
+{
+  int numEle = clientVals[2];
+  int eleLen = clientVals[4];
+  int precision = clientVals[6];
+  int offset = clientVals[7];
+  if (clientVals[1] != 0) return inBytes;       // stored as is
+  if (clientVals[3] != 1 || clientVals[5] != 0)
+    throwerr("nbit: only little endian atomic types");
+  long[] codes = unpackBits( inBytes, 0, numEle, precision);
+  ByteBuffer res = ByteBuffer.allocate( numEle * eleLen);
+  res.order( ByteOrder.LITTLE_ENDIAN);
+  for (int ii = 0; ii < numEle; ii++) {
+    putEle( res, ii * eleLen, eleLen, codes[ii] << offset);
+  }
+  return res.array();
+}
+
+
+
+/**
+ * Undoes the scale-offset filter.
+ * Client values as H5Z_set_local_scaleoffset: scaleType, scaleFactor,
+ * numEle, class, size, sign, order, fillAvail, fill value.
+ * The chunk is a 21 byte header, holding minbits and the min value,
+ * then the codes packed most significant bit first.
+ */
+
+public static byte[] decodeScaleOffset(
+  byte[] inBytes,
+  int[] clientVals)
+throws HdfException
+{
+  int scaleType = clientVals[0];
+  int scaleFactor = clientVals[1];
+  int numEle = clientVals[2];
+  int typeClass = clientVals[3];
+  int eleLen = clientVals[4];
+  boolean isSigned = clientVals[5] == 1;
+  boolean hasFill = clientVals[7] == 1;
+  long fillBits = (clientVals[8] & 0xffffffffL);
+  if (eleLen == 8) fillBits |= ((long) clientVals[9]) << 32;
+  if (clientVals[6] != 0) throwerr("scaleoffset: only little endian");
+
+  ByteBuffer hbuf = ByteBuffer.wrap( inBytes).order( ByteOrder.LITTLE_ENDIAN);
+  int minbits = hbuf.getInt( 0);
+  int minvalLen = inBytes[4];
+  long minval = 0;
+  for (int ii = 0; ii < minvalLen; ii++) {
+    minval |= (inBytes[5 + ii] & 0xffL) << (8 * ii);
+  }
+  int fullBits = 8 * eleLen;
+
+  ByteBuffer res = ByteBuffer.allocate( numEle * eleLen);
+  res.order( ByteOrder.LITTLE_ENDIAN);
+  if (minbits == fullBits) {
+    System.arraycopy( inBytes, 21, res.array(), 0, numEle * eleLen);
+    return res.array();
+  }
+  long[] codes;
+  if (minbits == 0) codes = new long[ numEle];
+  else codes = unpackBits( inBytes, 21, numEle, minbits);
+  long fillCode = minbits == 0 ? -1 : (1L << minbits) - 1;
+
+  for (int ii = 0; ii < numEle; ii++) {
+    boolean isFill = hasFill && codes[ii] == fillCode;
+    if (typeClass == 0) {                  // integer
+      if (scaleType != 2) throwerr("scaleoffset: integer needs SO_INT");
+      long val;
+      if (isFill) val = fillBits;
+      else {
+        long min = minval;
+        if (isSigned) min = signExtend( minval, fullBits);
+        val = codes[ii] + min;
+      }
+      putEle( res, ii * eleLen, eleLen, val);
+    }
+    else {                                 // float
+      if (scaleType != 0) throwerr("scaleoffset: float needs D scale");
+      if (eleLen == 4) {
+        float min = Float.intBitsToFloat( (int) minval);
+        float val = isFill ? Float.intBitsToFloat( (int) fillBits)
+          : (float) (codes[ii] / Math.pow( 10, scaleFactor) + min);
+        res.putFloat( ii * 4, val);
+      }
+      else {
+        double min = Double.longBitsToDouble( minval);
+        double val = isFill ? Double.longBitsToDouble( fillBits)
+          : codes[ii] / Math.pow( 10, scaleFactor) + min;
+        res.putDouble( ii * 8, val);
+      }
+    }
+  }
+  return res.array();
+}
+
+
+
+/**
+ * Undoes the LZ4 filter, id 32004: the original len as
+ * a big endian long, the block size as a big endian int,
+ * then each block as a big endian compressed len and the block.
+ * A block whose compressed len equals its len is stored raw.
+ */
+
+public static byte[] decodeLz4Filter( byte[] inBytes)
+throws HdfException
+{
+  ByteBuffer bbuf = ByteBuffer.wrap( inBytes);        // big endian
+  long origLen = bbuf.getLong( 0);
+  int blockSize = bbuf.getInt( 8);
+  byte[] res = new byte[ (int) origLen];
+  int ipos = 12;
+  int opos = 0;
+  while (opos < origLen) {
+    int curLen = (int) Math.min( blockSize, origLen - opos);
+    int compLen = bbuf.getInt( ipos);
+    ipos += 4;
+    if (compLen == curLen)
+      System.arraycopy( inBytes, ipos, res, opos, curLen);
+    else {
+      int len = decodeLz4Block( inBytes, ipos, compLen, res, opos);
+      if (len != curLen)
+        throwerr("lz4 block len %d != %d", len, curLen);
+    }
+    ipos += compLen;
+    opos += curLen;
+  }
+  if (ipos != inBytes.length)
+    throwerr("lz4: %d extra bytes", inBytes.length - ipos);
+  return res;
+}
+
+
+
+/**
+ * Decodes one LZ4 block, from the LZ4 block format description:
+ * sequences of a token, literal len, literals, little endian
+ * 2 byte match offset, and match len; the last sequence
+ * has literals only.  Returns the num bytes written.
+ */
+
+public static int decodeLz4Block(
+  byte[] src,
+  int srcOff,
+  int srcLen,
+  byte[] dst,
+  int dstOff)
+throws HdfException
+{
+  int ipos = srcOff;
+  int iend = srcOff + srcLen;
+  int opos = dstOff;
+  while (true) {
+    int token = src[ipos++] & 0xff;
+    int litLen = token >>> 4;
+    if (litLen == 15) {
+      int bt;
+      do {
+        bt = src[ipos++] & 0xff;
+        litLen += bt;
+      } while (bt == 255);
+    }
+    if (ipos + litLen > iend) throwerr("lz4: literals past end");
+    System.arraycopy( src, ipos, dst, opos, litLen);
+    ipos += litLen;
+    opos += litLen;
+    if (ipos == iend) break;               // last sequence
+
+    int offset = (src[ipos] & 0xff) | (src[ipos+1] & 0xff) << 8;
+    ipos += 2;
+    if (offset == 0 || offset > opos - dstOff)
+      throwerr("lz4: bad match offset %d", offset);
+    int matchLen = token & 15;
+    if (matchLen == 15) {
+      int bt;
+      do {
+        bt = src[ipos++] & 0xff;
+        matchLen += bt;
+      } while (bt == 255);
+    }
+    matchLen += 4;
+    for (int ii = 0; ii < matchLen; ii++) {
+      dst[opos] = dst[opos - offset];
+      opos++;
+    }
+  }
+  return opos - dstOff;
+}
+
+
+
+/**
+ * Undoes the bitshuffle filter, id 32008.
+ * Client values: major and minor version, element len,
+ * block size in elements (0 for the default), and compression
+ * (0 none, 2 LZ4).
+ * With LZ4 the chunk starts with the original len as a big endian
+ * long and the block len in bytes as a big endian int,
+ * and each block has a big endian compressed len.
+ * The last numEle % 8 elements are not bitshuffled.
+ */
+
+public static byte[] decodeBitshuffle(
+  byte[] inBytes,
+  int[] clientVals,
+  int rawLen)
+throws HdfException
+{
+  int eleLen = clientVals[2];
+  int blockEle = clientVals[3];
+  int compression = clientVals[4];
+  if (blockEle == 0) {
+    blockEle = (8192 / eleLen) / 8 * 8;
+    blockEle = Math.max( blockEle, 128);
+  }
+
+  byte[] shufBytes;
+  int ipos = 0;
+  if (compression == 0) {
+    if (inBytes.length != rawLen) throwerr("bitshuffle: bad len");
+    shufBytes = inBytes;
+  }
+  else if (compression == 2) {
+    ByteBuffer bbuf = ByteBuffer.wrap( inBytes);      // big endian
+    rawLen = (int) bbuf.getLong( 0);
+    int blockBytes = bbuf.getInt( 8);
+    blockEle = blockBytes / eleLen;
+    shufBytes = new byte[ rawLen];
+    int numEle = rawLen / eleLen;
+    int shufLen = (numEle - numEle % 8) * eleLen;
+    ipos = 12;
+    int opos = 0;
+    while (opos < shufLen) {
+      int curLen = Math.min( blockBytes, shufLen - opos);
+      int compLen = bbuf.getInt( ipos);
+      ipos += 4;
+      int len = decodeLz4Block( inBytes, ipos, compLen, shufBytes, opos);
+      if (len != curLen) throwerr("bitshuffle lz4 block len %d", len);
+      ipos += compLen;
+      opos += curLen;
+    }
+    System.arraycopy( inBytes, ipos, shufBytes, opos, rawLen - opos);
+    if (ipos + rawLen - opos != inBytes.length)
+      throwerr("bitshuffle: bad compressed len");
+  }
+  else throw new HdfException("bitshuffle: unknown compression");
+
+  int numEle = rawLen / eleLen;
+  byte[] res = new byte[ rawLen];
+  int done = 0;
+  while (numEle - done >= 8) {
+    int curEle = Math.min( blockEle, numEle - done);
+    curEle -= curEle % 8;
+    int base = done * eleLen;
+    int rowLen = curEle / 8;
+    for (int iele = 0; iele < curEle; iele++) {
+      for (int ib = 0; ib < eleLen; ib++) {
+        int val = 0;
+        for (int kk = 0; kk < 8; kk++) {
+          int row = 8 * ib + kk;
+          int bt = shufBytes[base + row * rowLen + iele / 8];
+          val |= ((bt >>> (iele % 8)) & 1) << kk;
+        }
+        res[base + iele * eleLen + ib] = (byte) val;
+      }
+    }
+    done += curEle;
+  }
+  System.arraycopy( shufBytes, done * eleLen, res, done * eleLen,
+    rawLen - done * eleLen);
+  return res;
+}
+
+
+
+/**
+ * Returns numEle codes of numBits bits each, packed most
+ * significant bit first starting at inBytes[off].
+ */
+
+public static long[] unpackBits(
+  byte[] inBytes,
+  int off,
+  int numEle,
+  int numBits)
+{
+  long[] res = new long[ numEle];
+  long bitPos = 8L * off;
+  for (int ii = 0; ii < numEle; ii++) {
+    long val = 0;
+    for (int jj = 0; jj < numBits; jj++) {
+      int bt = inBytes[ (int) (bitPos >>> 3)] & 0xff;
+      int bit = (bt >>> (7 - (int) (bitPos & 7))) & 1;
+      val = (val << 1) | bit;
+      bitPos++;
+    }
+    res[ii] = val;
+  }
+  return res;
+}
+
+
+
+public static long signExtend(
+  long val,
+  int numBits)
+{
+  int shift = 64 - numBits;
+  return (val << shift) >> shift;
+}
+
+
+
+static void putEle(
+  ByteBuffer bbuf,
+  int pos,
+  int eleLen,
+  long val)
+{
+  for (int ii = 0; ii < eleLen; ii++) {
+    bbuf.put( pos + ii, (byte) (val >>> (8 * ii)));
+  }
+}
+
+
+
+//================================================================
+
+
+/**
+ * Returns the address of the object at path, following
+ * hard links from the root group.
+ */
+
+long findObj( String path)
+throws HdfException
+{
+  long addr = rootAddr;
+  for (String name : path.split("/")) {
+    if (name.length() == 0) continue;
+    long found = UNDEFINED_ADDR;
+    for (HdrMsg msg : readObjHdr( addr)) {
+      if (msg.msgType == TP_LINKIT && getLinkName( msg).equals( name))
+        found = getLinkAddr( msg);
+    }
+    if (found == UNDEFINED_ADDR)
+      throwerr("not found: \"%s\" in path \"%s\"", name, path);
+    addr = found;
+  }
+  return addr;
+}
+
+
+
+/**
+ * Reads a version 2 object header and returns its messages.
+ */
+
+ArrayList<HdrMsg> readObjHdr( long addr)
+throws HdfException
+{
+  int pos = (int) addr;
+  if (fbuf.get( pos) != 'O' || fbuf.get( pos + 1) != 'H'
+    || fbuf.get( pos + 2) != 'D' || fbuf.get( pos + 3) != 'R')
+    throwerr("bad object header signature at %d", addr);
+  if (fbuf.get( pos + 4) != 2) throwerr("object header version");
+  int flag = fbuf.get( pos + 5) & 0xff;
+  pos += 6;
+  if ((flag & 32) != 0) pos += 16;          // times
+  if ((flag & 16) != 0) pos += 4;           // attr phase change
+  int lenMask = flag & 3;
+  long chunkLen;
+  if (lenMask == 0) chunkLen = fbuf.get( pos) & 0xff;
+  else if (lenMask == 1) chunkLen = fbuf.getShort( pos) & 0xffff;
+  else if (lenMask == 2) chunkLen = fbuf.getInt( pos) & 0xffffffffL;
+  else chunkLen = fbuf.getLong( pos);
+  pos += 1 << lenMask;
+
+  int hdrLen = (flag & 4) != 0 ? 6 : 4;
+  int endPos = pos + (int) chunkLen;
+  ArrayList<HdrMsg> msgs = new ArrayList<HdrMsg>();
+  while (endPos - pos >= hdrLen) {
+    HdrMsg msg = new HdrMsg();
+    msg.msgType = fbuf.get( pos) & 0xff;
+    msg.msgSize = fbuf.getShort( pos + 1) & 0xffff;
+    msg.msgPos = pos + hdrLen;
+    if (msg.msgType == TP_OBJ_HDR_CONTIN)
+      throwerr("object header continuation not supported");
+    msgs.add( msg);
+    pos = msg.msgPos + msg.msgSize;
+  }
+  if (pos > endPos) throwerr("object header overrun at %d", addr);
+  return msgs;
+}
+
+
+
+String getLinkName( HdrMsg msg)
+throws HdfException
+{
+  int pos = msg.msgPos;
+  int flag = fbuf.get( pos + 1);
+  if ((flag & 3) != 3 || (flag & 8) != 0)
+    throwerr("unsupported link flag: 0x%x", flag);
+  pos += 2;
+  if ((flag & 4) != 0) pos += 8;            // creation order
+  int nameLen = (int) fbuf.getLong( pos);
+  return new String( getBytes( pos + 8, nameLen));
+}
+
+
+
+long getLinkAddr( HdrMsg msg)
+throws HdfException
+{
+  int pos = msg.msgPos;
+  int flag = fbuf.get( pos + 1);
+  pos += 2;
+  if ((flag & 4) != 0) pos += 8;
+  int nameLen = (int) fbuf.getLong( pos);
+  return fbuf.getLong( pos + 8 + nameLen);
+}
+
+
+
+ChunkInfo readKey(
+  VarInfo var,
+  int pos)
+throws HdfException
+{
+  int rank = var.dims.length;
+  ChunkInfo chunk = new ChunkInfo();
+  chunk.chunkSize = fbuf.getInt( pos);
+  chunk.filterMask = fbuf.getInt( pos + 4);
+  chunk.startIxs = new long[ rank];
+  for (int ii = 0; ii < rank; ii++) {
+    chunk.startIxs[ii] = fbuf.getLong( pos + 8 + 8 * ii);
+    if (chunk.startIxs[ii] % var.chunkDims[ii] != 0)
+      throwerr("chunk start %d not on a chunk boundary",
+        chunk.startIxs[ii]);
+  }
+  if (fbuf.getLong( pos + 8 + 8 * rank) != 0)
+    throwerr("key element offset not 0");
+  return chunk;
+}
+
+
+
+void checkKeyOrder(
+  ChunkInfo prev,
+  ChunkInfo chunk)
+throws HdfException
+{
+  int cmp = 0;
+  for (int ii = 0; ii < prev.startIxs.length && cmp == 0; ii++) {
+    cmp = Long.compare( prev.startIxs[ii], chunk.startIxs[ii]);
+  }
+  if (cmp >= 0)
+    throwerr("chunk keys out of order: %s then %s",
+      Arrays.toString( prev.startIxs), Arrays.toString( chunk.startIxs));
+}
+
+
+
+byte[] getBytes(
+  int pos,
+  int len)
+{
+  byte[] res = new byte[ len];
+  System.arraycopy( fbuf.array(), pos, res, 0, len);
+  return res;
+}
+
+
+
+static void throwerr( String msg, Object... args)
+throws HdfException
+{
+  throw new HdfException( String.format( msg, args));
+}
+
+
+
+static void prtf( String msg, Object... args) {
+  System.out.printf( msg + "\n", args);
+}
+
+
+} // end class
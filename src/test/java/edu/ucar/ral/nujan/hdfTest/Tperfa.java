@@ -0,0 +1,513 @@
+// The MIT License
+// 
+// Copyright (c) 2010 University Corporation for Atmospheric Research
+// 
+// Permission is hereby granted, free of charge, to any person
+// obtaining a copy of this software and associated documentation
+// files (the "Software"), to deal in the Software without
+// restriction, including without limitation the rights to use,
+// copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following
+// conditions:
+// 
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+// 
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+// OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT.  IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+// HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+// WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+// FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+
+
+package edu.ucar.ral.nujan.hdfTest;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Random;
+
+import edu.ucar.ral.nujan.hdf.FilterBase;
+import edu.ucar.ral.nujan.hdf.FilterBitshuffle;
+import edu.ucar.ral.nujan.hdf.FilterDeflate;
+import edu.ucar.ral.nujan.hdf.FilterFletcher32;
+import edu.ucar.ral.nujan.hdf.FilterLz4;
+import edu.ucar.ral.nujan.hdf.FilterNbit;
+import edu.ucar.ral.nujan.hdf.FilterScaleOffset;
+import edu.ucar.ral.nujan.hdf.FilterShuffle;
+import edu.ucar.ral.nujan.hdf.HdfException;
+import edu.ucar.ral.nujan.hdf.HdfFileWriter;
+import edu.ucar.ral.nujan.hdf.HdfGroup;
+
+
+/**
+ * Performance test program: times HdfGroup.writeData
+ * for each numeric dtype and prints the throughput in MB/sec.
+ * <p>
+ * Each variable is 2 dimensional, nrow by ncol,
+ * and is written either contiguous or in chunks of whole rows.
+ */
+
+
+public class Tperfa {
+
+
+static void badparms( String msg) {
+  prtf("Error: %s", msg);
+  prtf("parms:");
+  prtf("  -dtype        all, or one of: sfixed08 fixed16/32/64 float32/64");
+  prtf("  -dims         <nrow,ncol>");
+  prtf("  -chunkRows    <int>  num rows per chunk, or 0 for contiguous");
+  prtf("  -compress     compression level: 0==none, 1 - 9, or auto");
+  prtf("  -shuffle     true/false: shuffle before compression;");
+  prtf("                default false");
+  prtf("  -adaptive    true/false: store chunks that don't compress");
+  prtf("                raw; default false");
+  prtf("  -fletcher32  true/false: append a Fletcher32 checksum");
+  prtf("                to each chunk; default false");
+  prtf("  -noise       true/false: fill the second half of the rows");
+  prtf("                with random bits; default false");
+  prtf("  -quantize    none, bitgroom, granularbr, or bitround;");
+  prtf("                default none.  Float types only.");
+  prtf("  -nsd         <int>  num significant digits (bits for bitround)");
+  prtf("  -scaleOffset <int>  scale-offset filter: decimal digits for");
+  prtf("                float types, min bits (0 == auto) for integer");
+  prtf("                types; default -1 == none");
+  prtf("  -nbit        <int>  N-bit filter precision for integer types;");
+  prtf("                default 0 == none");
+  prtf("  -lz4         true/false: LZ4 compress, after any shuffle;");
+  prtf("                default false.  Use with -compress 0.");
+  prtf("  -bitshuffle  none, plain, or lz4: bitshuffle, with or without");
+  prtf("                LZ4; default none.  Use with -compress 0.");
+  prtf("  -compressThreads <int>  num deflate threads; 0 == none");
+  prtf("  -writeBehindMB <int>  write-behind budget in MB; 0 == none");
+  prtf("                With -writeBehindMB, -compressThreads is the");
+  prtf("                num pipeline compress threads (default 1).");
+  prtf("  -dedup        true/false: write identical chunks once;");
+  prtf("                default false");
+  prtf("  -repeatRows   <int>  repeat the data every <int> rows;");
+  prtf("                default 0 == no repeat");
+  prtf("  -mapData      true/false: write data through mapped windows;");
+  prtf("                default false");
+  prtf("  -coalesceKB   <int>  coalescing buffer len in KB; default 0 == none");
+  prtf("  -numIter      <int>  num files to write per dtype");
+  prtf("  -outFile      <fname>  scratch file; deleted at the end");
+  System.exit(1);
+}
+
+
+
+public static void main( String[] args) {
+  try { runit( args); }
+  catch( Exception exc) {
+    exc.printStackTrace();
+    prtf("main: caught: %s", exc);
+    System.exit(1);
+  }
+}
+
+
+
+
+
+static void runit( String[] args)
+throws HdfException
+{
+  String dtypeStg = null;
+  int[] dims = null;
+  int chunkRows = -1;
+  int compressLevel = -1;
+  boolean haveCompress = false;
+  boolean useShuffle = false;
+  boolean useAdaptive = false;
+  boolean useFletcher = false;
+  boolean useNoise = false;
+  int quantizeMode = HdfGroup.QUANTIZE_NONE;
+  int nsd = 0;
+  int scaleOffset = -1;
+  int nbit = 0;
+  boolean useLz4 = false;
+  int bitshuffle = -1;
+  int compressThreads = 0;
+  int writeBehindMB = 0;
+  boolean useDedup = false;
+  int repeatRows = 0;
+  boolean mapData = false;
+  int coalesceKB = 0;
+  int numIter = -1;
+  String outFile = null;
+
+  if (args.length % 2 != 0) badparms("parms must be key/value pairs");
+  for (int iarg = 0; iarg < args.length; iarg += 2) {
+    String key = args[iarg];
+    String val = args[iarg+1];
+    if (key.equals("-dtype")) dtypeStg = val;
+    else if (key.equals("-dims")) dims = Thdfa.parseInts("dimension", val);
+    else if (key.equals("-chunkRows")) chunkRows = Integer.parseInt( val);
+    else if (key.equals("-compress")) {
+      if (val.equals("auto")) compressLevel = FilterDeflate.LEVEL_AUTO;
+      else compressLevel = Integer.parseInt( val);
+      haveCompress = true;
+    }
+    else if (key.equals("-shuffle")) useShuffle = parseBoolean( val);
+    else if (key.equals("-adaptive")) useAdaptive = parseBoolean( val);
+    else if (key.equals("-fletcher32")) useFletcher = parseBoolean( val);
+    else if (key.equals("-noise")) useNoise = parseBoolean( val);
+    else if (key.equals("-quantize")) {
+      if (val.equals("none")) quantizeMode = HdfGroup.QUANTIZE_NONE;
+      else if (val.equals("bitgroom"))
+        quantizeMode = HdfGroup.QUANTIZE_BITGROOM;
+      else if (val.equals("granularbr"))
+        quantizeMode = HdfGroup.QUANTIZE_GRANULARBR;
+      else if (val.equals("bitround"))
+        quantizeMode = HdfGroup.QUANTIZE_BITROUND;
+      else badparms("unknown quantize: " + val);
+    }
+    else if (key.equals("-nsd")) nsd = Integer.parseInt( val);
+    else if (key.equals("-scaleOffset"))
+      scaleOffset = Integer.parseInt( val);
+    else if (key.equals("-nbit")) nbit = Integer.parseInt( val);
+    else if (key.equals("-lz4")) useLz4 = parseBoolean( val);
+    else if (key.equals("-bitshuffle")) {
+      if (val.equals("none")) bitshuffle = -1;
+      else if (val.equals("plain"))
+        bitshuffle = FilterBitshuffle.COMPRESS_NONE;
+      else if (val.equals("lz4"))
+        bitshuffle = FilterBitshuffle.COMPRESS_LZ4;
+      else badparms("unknown bitshuffle: " + val);
+    }
+    else if (key.equals("-compressThreads"))
+      compressThreads = Integer.parseInt( val);
+    else if (key.equals("-writeBehindMB"))
+      writeBehindMB = Integer.parseInt( val);
+    else if (key.equals("-dedup")) useDedup = parseBoolean( val);
+    else if (key.equals("-repeatRows")) repeatRows = Integer.parseInt( val);
+    else if (key.equals("-mapData")) mapData = parseBoolean( val);
+    else if (key.equals("-coalesceKB")) coalesceKB = Integer.parseInt( val);
+    else if (key.equals("-numIter")) numIter = Integer.parseInt( val);
+    else if (key.equals("-outFile")) outFile = val;
+    else badparms("unkown parm: " + key);
+  }
+
+  if (dtypeStg == null) badparms("missing parm: -dtype");
+  if (dims == null) badparms("missing parm: -dims");
+  if (dims.length != 2) badparms("dims must be nrow,ncol");
+  if (chunkRows < 0) badparms("missing parm: -chunkRows");
+  if (! haveCompress) badparms("missing parm: -compress");
+  if (numIter <= 0) badparms("missing parm: -numIter");
+  if (outFile == null) badparms("missing parm: -outFile");
+  if (chunkRows > dims[0]) badparms("chunkRows > nrow");
+  if (compressLevel != 0 && chunkRows == 0)
+    badparms("compression requires chunkRows > 0");
+  if (useShuffle && compressLevel == 0 && ! useLz4)
+    badparms("shuffle requires compress > 0 or lz4");
+  if (useAdaptive && compressLevel == 0)
+    badparms("adaptive requires compress > 0");
+  if (quantizeMode != HdfGroup.QUANTIZE_NONE && nsd <= 0)
+    badparms("quantize requires nsd > 0");
+  if (useFletcher && chunkRows == 0)
+    badparms("fletcher32 requires chunkRows > 0");
+  if (scaleOffset >= 0 && chunkRows == 0)
+    badparms("scaleOffset requires chunkRows > 0");
+  if (nbit > 0 && chunkRows == 0)
+    badparms("nbit requires chunkRows > 0");
+  if ((useLz4 || bitshuffle >= 0) && chunkRows == 0)
+    badparms("lz4 and bitshuffle require chunkRows > 0");
+
+  int[] dtypes;
+  if (dtypeStg.equals("all")) {
+    dtypes = new int[] {
+      HdfGroup.DTYPE_SFIXED08, HdfGroup.DTYPE_FIXED16,
+      HdfGroup.DTYPE_FIXED32, HdfGroup.DTYPE_FIXED64,
+      HdfGroup.DTYPE_FLOAT32, HdfGroup.DTYPE_FLOAT64};
+  }
+  else if (dtypeStg.equals("sfixed08"))
+    dtypes = new int[] { HdfGroup.DTYPE_SFIXED08};
+  else if (dtypeStg.equals("fixed16"))
+    dtypes = new int[] { HdfGroup.DTYPE_FIXED16};
+  else if (dtypeStg.equals("fixed32"))
+    dtypes = new int[] { HdfGroup.DTYPE_FIXED32};
+  else if (dtypeStg.equals("fixed64"))
+    dtypes = new int[] { HdfGroup.DTYPE_FIXED64};
+  else if (dtypeStg.equals("float32"))
+    dtypes = new int[] { HdfGroup.DTYPE_FLOAT32};
+  else if (dtypeStg.equals("float64"))
+    dtypes = new int[] { HdfGroup.DTYPE_FLOAT64};
+  else {
+    badparms("unknown dtype: " + dtypeStg);
+    dtypes = null;
+  }
+
+  prtf("Tperfa: dims: %s  chunkRows: %d  compress: %d  shuffle: %s"
+    + "  adaptive: %s  fletcher32: %s  noise: %s  quantize: %d  nsd: %d"
+    + "  scaleOffset: %d  nbit: %d  lz4: %s  bitshuffle: %d"
+    + "  compressThreads: %d  writeBehindMB: %d"
+    + "  dedup: %s  repeatRows: %d  mapData: %s  coalesceKB: %d  numIter: %d",
+    Thdfa.formatInts( dims), chunkRows, compressLevel, useShuffle,
+    useAdaptive, useFletcher, useNoise, quantizeMode, nsd, scaleOffset,
+    nbit, useLz4, bitshuffle, compressThreads,
+    writeBehindMB, useDedup, repeatRows, mapData, coalesceKB, numIter);
+  prtf("%-10s  %10s  %10s  %10s  %10s",
+    "dtype", "MB", "secs", "MB/sec", "fileMB");
+
+  for (int dtype : dtypes) {
+    int eleLen = 0;
+    if (dtype == HdfGroup.DTYPE_SFIXED08) eleLen = 1;
+    else if (dtype == HdfGroup.DTYPE_FIXED16) eleLen = 2;
+    else if (dtype == HdfGroup.DTYPE_FIXED32) eleLen = 4;
+    else if (dtype == HdfGroup.DTYPE_FIXED64) eleLen = 8;
+    else if (dtype == HdfGroup.DTYPE_FLOAT32) eleLen = 4;
+    else if (dtype == HdfGroup.DTYPE_FLOAT64) eleLen = 8;
+
+    Object allData = genData( dtype, dims[0], dims[1], useNoise);
+
+    if (repeatRows > 0) {
+      Object[] allRows = (Object[]) allData;
+      for (int irow = repeatRows; irow < allRows.length; irow++) {
+        allRows[irow] = allRows[irow % repeatRows];
+      }
+    }
+
+    // Warm up, then time numIter files.
+    String status = writeFile( outFile, dtype, dims, chunkRows,
+      compressLevel, useShuffle, useAdaptive, useFletcher, quantizeMode, nsd,
+      scaleOffset, nbit, useLz4, bitshuffle, compressThreads, writeBehindMB,
+      useDedup, mapData, coalesceKB, allData);
+    long timea = System.nanoTime();
+    for (int iter = 0; iter < numIter; iter++) {
+      status = writeFile( outFile, dtype, dims, chunkRows, compressLevel,
+        useShuffle, useAdaptive, useFletcher, quantizeMode, nsd,
+        scaleOffset, nbit, useLz4, bitshuffle, compressThreads,
+        writeBehindMB, useDedup, mapData, coalesceKB, allData);
+    }
+    double secs = 1.e-9 * (System.nanoTime() - timea);
+    double mbytes = numIter * (double) dims[0] * dims[1] * eleLen / 1.e6;
+    double fileMbytes = new File( outFile).length() / 1.e6;
+    prtf("%-10s  %10.1f  %10.3f  %10.1f  %10.3f",
+      HdfGroup.dtypeNames[dtype], mbytes, secs, mbytes / secs, fileMbytes);
+    if (status != null) prtf("  %s", status);
+  }
+  new File( outFile).delete();
+}
+
+
+
+
+/**
+ * Writes a single file containing one variable,
+ * either contiguous (chunkRows == 0) or chunked by rows.
+ * With -compress auto, returns FilterDeflate.getAutoStatus,
+ * and with -dedup, the dedup counts, else null.
+ */
+
+static String writeFile(
+  String outFile,
+  int dtype,
+  int[] dims,
+  int chunkRows,
+  int compressLevel,
+  boolean useShuffle,
+  boolean useAdaptive,
+  boolean useFletcher,
+  int quantizeMode,
+  int nsd,
+  int scaleOffset,
+  int nbit,
+  boolean useLz4,
+  int bitshuffle,
+  int compressThreads,
+  int writeBehindMB,
+  boolean useDedup,
+  boolean mapData,
+  int coalesceKB,
+  Object allData)
+throws HdfException
+{
+  int optFlag = HdfFileWriter.OPT_ALLOW_OVERWRITE;
+  if (mapData) optFlag |= HdfFileWriter.OPT_MAP_DATA;
+  if (useDedup) optFlag |= HdfFileWriter.OPT_DEDUP_CHUNKS;
+  HdfFileWriter hfile = new HdfFileWriter( outFile, optFlag);
+  if (writeBehindMB > 0) {
+    hfile.setWriteBehind(
+      Math.max( 1, compressThreads), writeBehindMB * 1000000L);
+  }
+  else hfile.setCompressThreads( compressThreads);
+  hfile.setCoalesceBuffer( 1024 * coalesceKB);
+  HdfGroup rootGroup = hfile.getRootGroup();
+
+  int[] chunks = null;
+  if (chunkRows > 0) chunks = new int[] { chunkRows, dims[1]};
+  ArrayList<FilterBase> filterList = new ArrayList<FilterBase>();
+  if (scaleOffset >= 0) {
+    if (dtype == HdfGroup.DTYPE_FLOAT32 || dtype == HdfGroup.DTYPE_FLOAT64) {
+      filterList.add( new FilterScaleOffset(
+        FilterScaleOffset.SO_FLOAT_DSCALE, scaleOffset));
+    }
+    else {
+      filterList.add( new FilterScaleOffset(
+        FilterScaleOffset.SO_INT, scaleOffset));
+    }
+  }
+  if (nbit > 0) filterList.add( new FilterNbit( nbit, 0));
+  if (useShuffle) filterList.add( new FilterShuffle());
+  if (bitshuffle >= 0) filterList.add( new FilterBitshuffle( bitshuffle));
+  if (useLz4) filterList.add( new FilterLz4());
+  FilterDeflate deflateFilter = null;
+  if (compressLevel != 0) {
+    deflateFilter = new FilterDeflate( compressLevel, useAdaptive);
+    filterList.add( deflateFilter);
+  }
+  if (useFletcher) filterList.add( new FilterFletcher32());
+  HdfGroup vara = rootGroup.addVariable(
+    "perfVar",
+    dtype,
+    0,                // stgFieldLen
+    dims,
+    chunks,
+    null,             // fillValue
+    filterList.toArray( new FilterBase[ filterList.size()]));
+  if (quantizeMode != HdfGroup.QUANTIZE_NONE)
+    vara.setQuantize( quantizeMode, nsd);
+  hfile.endDefine();
+
+  if (chunks == null) vara.writeData( null, allData, false);
+  else {
+    for (int irow = 0; irow < dims[0]; irow += chunkRows) {
+      int nrow = Math.min( chunkRows, dims[0] - irow);
+      Object[] allRows = (Object[]) allData;
+      Object[] chunkData = (Object[]) java.lang.reflect.Array.newInstance(
+        allRows.getClass().getComponentType(), nrow);
+      System.arraycopy( allRows, irow, chunkData, 0, nrow);
+      vara.writeData( new int[] { irow, 0}, chunkData, false);
+    }
+  }
+  String pipeStatus = hfile.getWriteBehindStatus();
+  hfile.close();
+  if (pipeStatus != null) prtf("  writeBehind before close: %s", pipeStatus);
+
+  String status = null;
+  if (deflateFilter != null) status = deflateFilter.getAutoStatus();
+  if (useDedup) {
+    String msg = String.format("dedup chunks: %d  bytes: %d",
+      hfile.getNumDedupChunk(), hfile.getNumDedupByte());
+    status = status == null ? msg : status + "  " + msg;
+  }
+  return status;
+}
+
+
+
+
+/**
+ * Returns a smooth test field of type dtype, as [nrow][ncol].
+ * If useNoise, the second half of the rows are random bits instead.
+ */
+
+static Object genData(
+  int dtype,
+  int nrow,
+  int ncol,
+  boolean useNoise)
+{
+  Object res = null;
+  if (dtype == HdfGroup.DTYPE_SFIXED08) {
+    byte[][] vals = new byte[nrow][ncol];
+    for (int ii = 0; ii < nrow; ii++) {
+      for (int jj = 0; jj < ncol; jj++) {
+        vals[ii][jj] = (byte) (ii + jj);
+      }
+    }
+    res = vals;
+  }
+  else if (dtype == HdfGroup.DTYPE_FIXED16) {
+    short[][] vals = new short[nrow][ncol];
+    for (int ii = 0; ii < nrow; ii++) {
+      for (int jj = 0; jj < ncol; jj++) {
+        vals[ii][jj] = (short) (ii + jj);
+      }
+    }
+    res = vals;
+  }
+  else if (dtype == HdfGroup.DTYPE_FIXED32) {
+    int[][] vals = new int[nrow][ncol];
+    for (int ii = 0; ii < nrow; ii++) {
+      for (int jj = 0; jj < ncol; jj++) {
+        vals[ii][jj] = ii * ncol + jj;
+      }
+    }
+    res = vals;
+  }
+  else if (dtype == HdfGroup.DTYPE_FIXED64) {
+    long[][] vals = new long[nrow][ncol];
+    for (int ii = 0; ii < nrow; ii++) {
+      for (int jj = 0; jj < ncol; jj++) {
+        vals[ii][jj] = ii * (long) ncol + jj;
+      }
+    }
+    res = vals;
+  }
+  else if (dtype == HdfGroup.DTYPE_FLOAT32) {
+    float[][] vals = new float[nrow][ncol];
+    for (int ii = 0; ii < nrow; ii++) {
+      for (int jj = 0; jj < ncol; jj++) {
+        vals[ii][jj] = (float) Math.sin( 0.01 * ii) * (float) Math.cos( 0.01 * jj);
+      }
+    }
+    res = vals;
+  }
+  else if (dtype == HdfGroup.DTYPE_FLOAT64) {
+    double[][] vals = new double[nrow][ncol];
+    for (int ii = 0; ii < nrow; ii++) {
+      for (int jj = 0; jj < ncol; jj++) {
+        vals[ii][jj] = Math.sin( 0.01 * ii) * Math.cos( 0.01 * jj);
+      }
+    }
+    res = vals;
+  }
+
+  if (useNoise) {
+    Random rand = new Random( 1);
+    for (int ii = nrow / 2; ii < nrow; ii++) {
+      for (int jj = 0; jj < ncol; jj++) {
+        if (dtype == HdfGroup.DTYPE_SFIXED08)
+          ((byte[][]) res)[ii][jj] = (byte) rand.nextInt();
+        else if (dtype == HdfGroup.DTYPE_FIXED16)
+          ((short[][]) res)[ii][jj] = (short) rand.nextInt();
+        else if (dtype == HdfGroup.DTYPE_FIXED32)
+          ((int[][]) res)[ii][jj] = rand.nextInt();
+        else if (dtype == HdfGroup.DTYPE_FIXED64)
+          ((long[][]) res)[ii][jj] = rand.nextLong();
+        else if (dtype == HdfGroup.DTYPE_FLOAT32)
+          ((float[][]) res)[ii][jj] = Float.intBitsToFloat( rand.nextInt());
+        else if (dtype == HdfGroup.DTYPE_FLOAT64)
+          ((double[][]) res)[ii][jj] = Double.longBitsToDouble(
+            rand.nextLong());
+      }
+    }
+  }
+  return res;
+}
+
+
+
+
+static boolean parseBoolean( String val) {
+  boolean bres = false;
+  if (val.equals("false")) bres = false;
+  else if (val.equals("true")) bres = true;
+  else badparms("unknown boolean value: " + val);
+  return bres;
+}
+
+
+
+
+static void prtf( String msg, Object... args) {
+  System.out.printf( msg, args);
+  System.out.printf("\n");
+}
+
+} // end class
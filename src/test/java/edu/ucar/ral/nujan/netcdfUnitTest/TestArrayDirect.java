@@ -0,0 +1,180 @@
+// The MIT License
+// 
+// Copyright (c) 2010 University Corporation for Atmospheric Research
+// 
+// Permission is hereby granted, free of charge, to any person
+// obtaining a copy of this software and associated documentation
+// files (the "Software"), to deal in the Software without
+// restriction, including without limitation the rights to use,
+// copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following
+// conditions:
+// 
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+// 
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+// OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT.  IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+// HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+// WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+// FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+
+
+package edu.ucar.ral.nujan.netcdfUnitTest;
+
+import java.io.File;
+import junit.framework.TestCase;
+import ucar.ma2.Array;
+
+import edu.ucar.ral.nujan.hdf.HdfGroup;
+import edu.ucar.ral.nujan.netcdf.NhDimension;
+import edu.ucar.ral.nujan.netcdf.NhException;
+import edu.ucar.ral.nujan.netcdf.NhFileWriter;
+import edu.ucar.ral.nujan.netcdf.NhGroup;
+import edu.ucar.ral.nujan.netcdf.NhVariable;
+
+
+// Checks NhVariable.writeData with ucar.ma2.Array data passed
+// straight from its 1D storage: whole contiguous variables,
+// slabs of whole rows, and chunks including clipped edge chunks.
+// An Array whose element type does not match the variable
+// must be rejected without claiming the chunk.
+
+
+public class TestArrayDirect extends TestCase {
+
+
+
+public static void main( String[] args)
+throws Exception
+{
+  new TestArrayDirect().testIt();
+  System.out.println("TestArrayDirect: all done");
+}
+
+
+
+public void testIt()
+throws Exception
+{
+  new File( TestPrimitivePuts.TARGET_DIR).mkdirs();
+  String fname = TestPrimitivePuts.TARGET_DIR + "/arrayDirect.nc";
+  NhFileWriter nhfile = new NhFileWriter(
+    fname, NhFileWriter.OPT_OVERWRITE);
+  NhGroup rootGroup = nhfile.getRootGroup();
+  NhDimension[] evenDims = {
+    rootGroup.addDimension( "na", 6),
+    rootGroup.addDimension( "nb", 8)};
+  NhDimension[] oddDims = {
+    rootGroup.addDimension( "nc", 7),
+    rootGroup.addDimension( "nd", 9)};
+  int[] chunkLens = { 3, 4};
+
+  NhVariable contigVar = rootGroup.addVariable( "contig",
+    NhVariable.TP_INT, evenDims, null, null, 0);
+  NhVariable slabVar = rootGroup.addVariable( "slab",
+    NhVariable.TP_DOUBLE, evenDims, null, null, 0);
+  NhVariable chunkVar = rootGroup.addVariable( "chunk",
+    NhVariable.TP_FLOAT, oddDims, chunkLens, null, 0);
+  NhVariable compVar = rootGroup.addVariable( "comp",
+    NhVariable.TP_SHORT, oddDims, chunkLens, null, 3);
+  nhfile.endDefine();
+
+  int[] evenLens = { 6, 8};
+  int[] oddLens = { 7, 9};
+
+  // Element type mismatch: the variable is TP_INT.
+  checkReject( contigVar, null, makeArray(
+    HdfGroup.DTYPE_FLOAT64, evenLens, new int[] { 0, 0}));
+  checkReject( chunkVar, new int[] { 0, 0}, makeArray(
+    HdfGroup.DTYPE_FIXED64, chunkLens, new int[] { 0, 0}));
+
+  contigVar.writeData( null,
+    makeArray( HdfGroup.DTYPE_FIXED32, evenLens, new int[] { 0, 0}));
+
+  // Two slabs of whole rows
+  int[][] slabStarts = { { 0, 0}, { 2, 0}};
+  int[][] slabLens = { { 2, 8}, { 4, 8}};
+  for (int ii = 0; ii < slabStarts.length; ii++) {
+    slabVar.writeData( slabStarts[ii], makeArray(
+      HdfGroup.DTYPE_FLOAT64, slabLens[ii], slabStarts[ii]));
+  }
+
+  writeChunks( chunkVar, HdfGroup.DTYPE_FLOAT32, oddLens, chunkLens);
+  writeChunks( compVar, HdfGroup.DTYPE_FIXED16, oddLens, chunkLens);
+  nhfile.close();
+
+  TestPrimitivePuts.checkAll(
+    fname, "/contig", HdfGroup.DTYPE_FIXED32, evenLens);
+  TestPrimitivePuts.checkAll(
+    fname, "/slab", HdfGroup.DTYPE_FLOAT64, evenLens);
+  TestPrimitivePuts.checkAll(
+    fname, "/chunk", HdfGroup.DTYPE_FLOAT32, oddLens);
+  TestPrimitivePuts.checkAll(
+    fname, "/comp", HdfGroup.DTYPE_FIXED16, oddLens);
+}
+
+
+
+void checkReject(
+  NhVariable var,
+  int[] startIxs,
+  Array arr)
+{
+  try {
+    var.writeData( startIxs, arr);
+    fail("accepted Array of " + arr.getElementType()
+      + " for " + var.getName());
+  }
+  catch( NhException exc) {}
+}
+
+
+
+/**
+ * Writes every chunk of a 2 dimensional variable as an Array,
+ * clipped at the edges.
+ */
+
+static void writeChunks(
+  NhVariable var,
+  int dtype,
+  int[] varLens,
+  int[] chunkLens)
+throws NhException
+{
+  for (int ia = 0; ia < varLens[0]; ia += chunkLens[0]) {
+    for (int ib = 0; ib < varLens[1]; ib += chunkLens[1]) {
+      int[] startIxs = { ia, ib};
+      int[] dataLens = {
+        Math.min( chunkLens[0], varLens[0] - ia),
+        Math.min( chunkLens[1], varLens[1] - ib)};
+      var.writeData( startIxs, makeArray( dtype, dataLens, startIxs));
+    }
+  }
+}
+
+
+
+/**
+ * Returns an Array of shape dataLens over 1D storage holding
+ * TestPrimitivePuts.value at each element, offset by startIxs.
+ */
+
+static Array makeArray(
+  int dtype,
+  int[] dataLens,
+  int[] startIxs)
+{
+  Object storage = TestPrimitivePuts.genData(
+    dtype, dataLens, startIxs, true);
+  return Array.factory( storage.getClass().getComponentType(),
+    dataLens, storage);
+}
+
+
+} // end class
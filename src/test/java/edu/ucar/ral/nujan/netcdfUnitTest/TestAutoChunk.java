@@ -0,0 +1,275 @@
+// The MIT License
+// 
+// Copyright (c) 2010 University Corporation for Atmospheric Research
+// 
+// Permission is hereby granted, free of charge, to any person
+// obtaining a copy of this software and associated documentation
+// files (the "Software"), to deal in the Software without
+// restriction, including without limitation the rights to use,
+// copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following
+// conditions:
+// 
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+// 
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+// OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT.  IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+// HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+// WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+// FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+
+
+package edu.ucar.ral.nujan.netcdfUnitTest;
+
+import java.io.File;
+import junit.framework.TestCase;
+
+import edu.ucar.ral.nujan.hdf.HdfException;
+import edu.ucar.ral.nujan.hdf.HdfFileWriter;
+import edu.ucar.ral.nujan.hdf.HdfGroup;
+import edu.ucar.ral.nujan.hdfTest.HdfReadBack;
+import edu.ucar.ral.nujan.netcdf.NhDimension;
+import edu.ucar.ral.nujan.netcdf.NhFileWriter;
+import edu.ucar.ral.nujan.netcdf.NhGroup;
+import edu.ucar.ral.nujan.netcdf.NhVariable;
+
+
+// Checks CHUNK_AUTO and CHUNK_AUTO_LONG: the chunk dims chosen
+// for known shapes, the same dims in the layout message
+// of the file, and data written with them read back.
+
+
+public class TestAutoChunk extends TestCase {
+
+
+static final int U = HdfGroup.DIM_UNLIMITED;
+static final int A = HdfGroup.CHUNK_AUTO;
+static final int L = HdfGroup.CHUNK_AUTO_LONG;
+
+// Each case: varDims, specChunkDims, expected chunk dims,
+// all for FLOAT32 with a target of 4000 bytes: 1000 elements.
+static final int[][][] CASES = {
+  // Equal shares of 31, evened out to 4 and 7 chunks
+  { { 100, 200}, { A, A}, { 25, 29}},
+  // The long dimension takes all it can
+  { { 50, 300}, { L, A}, { 50, 20}},
+  { { 5000, 300}, { L, A}, { 1000, 1}},
+  // A fixed len leaves 1000 / 7 elements: 8 chunks of 125
+  { { 100, 1000}, { 7, A}, { 7, 125}},
+  // A dimension shorter than its share is taken whole
+  { { 10, 20, 400}, { 1, A, A}, { 1, 20, 50}},
+  // An unlimited dimension takes what is left
+  { { U, 40}, { A, A}, { 25, 40}},
+  // Small enough to be one chunk
+  { { 10, 10}, { A, A}, { 10, 10}}};
+
+
+
+public static void main( String[] args)
+throws Exception
+{
+  new TestAutoChunk().testIt();
+  System.out.println("TestAutoChunk: all done");
+}
+
+
+
+public void testIt()
+throws Exception
+{
+  new File( TestPrimitivePuts.TARGET_DIR).mkdirs();
+  checkCases();
+  checkDefault();
+  checkNh();
+  checkErrors();
+}
+
+
+
+void checkCases()
+throws Exception
+{
+  String fname = TestPrimitivePuts.TARGET_DIR + "/autoChunk.cases.h5";
+  HdfFileWriter hfile = new HdfFileWriter(
+    fname, HdfFileWriter.OPT_ALLOW_OVERWRITE);
+  hfile.setAutoChunkBytes( 4000);
+  HdfGroup[] vars = new HdfGroup[ CASES.length];
+  for (int icase = 0; icase < CASES.length; icase++) {
+    vars[icase] = hfile.getRootGroup().addVariable( "var" + icase,
+      HdfGroup.DTYPE_FLOAT32, 0, CASES[icase][0], CASES[icase][1],
+      null, 0);
+    checkDims( "case " + icase, CASES[icase][2], vars[icase].getChunkDims());
+  }
+  hfile.endDefine();
+
+  // Write the fixed variables chunk by chunk,
+  // and one record of the unlimited one.
+  for (int icase = 0; icase < CASES.length; icase++) {
+    int[] varDims = CASES[icase][0];
+    int[] chunkDims = vars[icase].getChunkDims();
+    if (varDims[0] == U)
+      vars[icase].writeData( new int[] { 0, 0}, new float[1][varDims[1]],
+        false);
+    else if (varDims.length == 2)
+      TestPrimitivePuts.writeAll( vars[icase], HdfGroup.DTYPE_FLOAT32,
+        varDims, chunkDims, true);
+    else {
+      for (int ia = 0; ia < varDims[0]; ia += chunkDims[0]) {
+        for (int ic = 0; ic < varDims[2]; ic += chunkDims[2]) {
+          vars[icase].writeData( new int[] { ia, 0, ic},
+            new float[ chunkDims[0] * chunkDims[1] * chunkDims[2]], true);
+        }
+      }
+    }
+  }
+  hfile.close();
+
+  HdfReadBack rdr = new HdfReadBack( fname);
+  for (int icase = 0; icase < CASES.length; icase++) {
+    HdfReadBack.VarInfo info = rdr.getVar( "/var" + icase);
+    assertEquals( fname, HdfReadBack.LY_CHUNKED, info.layoutClass);
+    checkDims( fname + " case " + icase, CASES[icase][2], info.chunkDims);
+    int[] varDims = CASES[icase][0];
+    if (varDims.length == 2 && varDims[0] != U)
+      TestPrimitivePuts.checkAll(
+        fname, "/var" + icase, HdfGroup.DTYPE_FLOAT32, varDims);
+  }
+}
+
+
+
+/**
+ * Without setAutoChunkBytes the target is
+ * DEFAULT_AUTO_CHUNK_BYTES, 1 MB: 128 K doubles.
+ */
+
+void checkDefault()
+throws Exception
+{
+  String fname = TestPrimitivePuts.TARGET_DIR + "/autoChunk.default.h5";
+  HdfFileWriter hfile = new HdfFileWriter(
+    fname, HdfFileWriter.OPT_ALLOW_OVERWRITE);
+  int[] varDims = { 400, 400};
+  String[] names = { "balanced", "series", "spatial"};
+  int[] hints = { HdfGroup.ACCESS_BALANCED, HdfGroup.ACCESS_TIME_SERIES,
+    HdfGroup.ACCESS_SPATIAL};
+  // balanced: shares of 362, evened out to 2 chunks of 200.
+  // series: all 400 records, leaving 327: 2 chunks of 200.
+  int[][] expects = { { 200, 200}, { 400, 200}, { 1, 400}};
+  HdfGroup[] vars = new HdfGroup[ names.length];
+  for (int ivar = 0; ivar < vars.length; ivar++) {
+    vars[ivar] = hfile.getRootGroup().addVariable( names[ivar],
+      HdfGroup.DTYPE_FLOAT64, 0, varDims,
+      HdfGroup.autoChunkDims( 2, hints[ivar]), null, 0);
+    checkDims( fname + " " + names[ivar], expects[ivar],
+      vars[ivar].getChunkDims());
+  }
+  hfile.endDefine();
+  for (int ivar = 0; ivar < vars.length; ivar++) {
+    TestPrimitivePuts.writeAll( vars[ivar], HdfGroup.DTYPE_FLOAT64,
+      varDims, expects[ivar], true);
+  }
+  hfile.close();
+  for (int ivar = 0; ivar < vars.length; ivar++) {
+    HdfReadBack.VarInfo info = TestPrimitivePuts.checkAll(
+      fname, "/" + names[ivar], HdfGroup.DTYPE_FLOAT64, varDims);
+    checkDims( fname + " " + names[ivar], expects[ivar], info.chunkDims);
+  }
+}
+
+
+
+/**
+ * Through NhFileWriter: autoChunkLens and getChunkLens.
+ */
+
+void checkNh()
+throws Exception
+{
+  String fname = TestPrimitivePuts.TARGET_DIR + "/autoChunk.nh.nc";
+  NhFileWriter nhfile = new NhFileWriter(
+    fname, NhFileWriter.OPT_OVERWRITE);
+  nhfile.setAutoChunkBytes( 4000);
+  NhGroup rootGroup = nhfile.getRootGroup();
+  NhDimension[] dims = {
+    rootGroup.addDimension( "na", 100),
+    rootGroup.addDimension( "nb", 200)};
+  NhVariable var = rootGroup.addVariable( "var", NhVariable.TP_FLOAT, dims,
+    NhVariable.autoChunkLens( 2, NhVariable.ACCESS_BALANCED), null, 0);
+  int[] chunkLens = var.getChunkLens();
+  checkDims( fname, CASES[0][2], chunkLens);
+  nhfile.endDefine();
+  int[] varDims = CASES[0][0];
+  for (int ia = 0; ia < varDims[0]; ia += chunkLens[0]) {
+    for (int ib = 0; ib < varDims[1]; ib += chunkLens[1]) {
+      int[] startIxs = { ia, ib};
+      int[] dataDims = {
+        Math.min( chunkLens[0], varDims[0] - ia),
+        Math.min( chunkLens[1], varDims[1] - ib)};
+      var.writeData( startIxs, TestPrimitivePuts.genData(
+        HdfGroup.DTYPE_FLOAT32, dataDims, startIxs, false));
+    }
+  }
+  nhfile.close();
+  HdfReadBack.VarInfo info = TestPrimitivePuts.checkAll(
+    fname, "/var", HdfGroup.DTYPE_FLOAT32, varDims);
+  checkDims( fname, CASES[0][2], info.chunkDims);
+}
+
+
+
+void checkErrors()
+throws Exception
+{
+  String fname = TestPrimitivePuts.TARGET_DIR + "/autoChunk.err.h5";
+  HdfFileWriter hfile = new HdfFileWriter(
+    fname, HdfFileWriter.OPT_ALLOW_OVERWRITE);
+  try {
+    hfile.setAutoChunkBytes( 0);
+    fail("accepted numByte 0");
+  }
+  catch( HdfException exc) {}
+  try {
+    hfile.getRootGroup().addVariable( "var", HdfGroup.DTYPE_FLOAT32, 0,
+      new int[] { 10, 10}, new int[] { A, -3}, null, 0);
+    fail("accepted chunk len -3");
+  }
+  catch( HdfException exc) {}
+  try {
+    HdfGroup.autoChunkDims( 2, 99);
+    fail("accepted accessHint 99");
+  }
+  catch( HdfException exc) {}
+  HdfGroup var = hfile.getRootGroup().addVariable( "var",
+    HdfGroup.DTYPE_FLOAT32, 0, new int[] { 10, 10}, new int[] { A, A},
+    null, 0);
+  hfile.endDefine();
+  try {
+    hfile.setAutoChunkBytes( 1000);
+    fail("setAutoChunkBytes worked after endDefine");
+  }
+  catch( HdfException exc) {}
+  var.writeData( new int[] { 0, 0}, new float[10][10], false);
+  hfile.close();
+}
+
+
+
+static void checkDims(
+  String msg,
+  int[] expect,
+  int[] actual)
+{
+  assertEquals( msg + ": rank", expect.length, actual.length);
+  for (int ii = 0; ii < expect.length; ii++) {
+    assertEquals( msg + ": dim " + ii, expect[ii], actual[ii]);
+  }
+}
+
+
+} // end class
@@ -0,0 +1,119 @@
+// The MIT License
+// 
+// Copyright (c) 2010 University Corporation for Atmospheric Research
+// 
+// Permission is hereby granted, free of charge, to any person
+// obtaining a copy of this software and associated documentation
+// files (the "Software"), to deal in the Software without
+// restriction, including without limitation the rights to use,
+// copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following
+// conditions:
+// 
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+// 
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+// OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT.  IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+// HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+// WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+// FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+
+
+package edu.ucar.ral.nujan.netcdfUnitTest;
+
+import java.io.File;
+import junit.framework.TestCase;
+
+import edu.ucar.ral.nujan.hdf.HdfFileWriter;
+import edu.ucar.ral.nujan.hdf.HdfGroup;
+import edu.ucar.ral.nujan.hdfTest.HdfReadBack;
+
+
+// Checks the chunk B-trees: K is sized to the largest variable,
+// variables with more than 2*K chunks get multi-level trees
+// with sibling links, and a variable with more than 65535
+// chunks, the old limit, reads back.
+
+
+public class TestBtree extends TestCase {
+
+
+
+public static void main( String[] args)
+throws Exception
+{
+  new TestBtree().testIt();
+  System.out.println("TestBtree: all done");
+}
+
+
+
+public void testIt()
+throws Exception
+{
+  new File( TestPrimitivePuts.TARGET_DIR).mkdirs();
+
+  // Few chunks: K is just large enough, and the root is a leaf.
+  checkOne( "btree.small", new int[] { 10, 15}, new int[] { 5, 5},
+    3, 1);
+
+  // More than 2 * MAX_BTREE_CHUNK_K chunks: two levels.
+  checkOne( "btree.twoLevel", new int[] { 20, 100}, new int[] { 2, 10},
+    32, 2);
+
+  // One chunk more than a full two level tree: three levels.
+  checkOne( "btree.threeLevel", new int[] { 1, 64 * 64 + 1},
+    new int[] { 1, 1}, 32, 3);
+
+  // More than 65535 chunks.
+  checkOne( "btree.big", new int[] { 280, 250}, new int[] { 1, 1},
+    32, 3);
+}
+
+
+
+void checkOne(
+  String tag,
+  int[] varDims,
+  int[] chunkDims,
+  int expectK,
+  int expectLevel)
+throws Exception
+{
+  String fname = TestPrimitivePuts.TARGET_DIR + "/" + tag + ".h5";
+  int dtype = HdfGroup.DTYPE_FIXED32;
+  HdfFileWriter hfile = new HdfFileWriter(
+    fname, HdfFileWriter.OPT_ALLOW_OVERWRITE);
+  HdfGroup var = hfile.getRootGroup().addVariable(
+    "var", dtype, 0, varDims, chunkDims, null, 0);
+  hfile.endDefine();
+  TestPrimitivePuts.writeAll( var, dtype, varDims, chunkDims, true);
+  hfile.close();
+
+  HdfReadBack.VarInfo info = TestPrimitivePuts.checkAll(
+    fname, "/var", dtype, varDims);
+  HdfReadBack rdr = new HdfReadBack( fname);
+  assertEquals( fname, expectK, rdr.getStorageK());
+
+  // walkBtree checks the levels, entry counts, key order,
+  // and sibling links.
+  HdfReadBack.BtreeInfo binfo = rdr.walkBtree( info);
+  int numChunk = 1;
+  for (int ii = 0; ii < varDims.length; ii++) {
+    numChunk *= (varDims[ii] + chunkDims[ii] - 1) / chunkDims[ii];
+  }
+  assertEquals( fname, numChunk, binfo.chunks.size());
+  assertEquals( fname, expectLevel, binfo.numLevel);
+  assertTrue( fname, binfo.maxEntry <= 2 * expectK);
+  assertEquals( fname, 1, binfo.numNodeByLevel[ expectLevel - 1]);
+  int numLeaf = (numChunk + 2 * expectK - 1) / (2 * expectK);
+  assertEquals( fname, numLeaf, binfo.numNodeByLevel[0]);
+}
+
+
+} // end class
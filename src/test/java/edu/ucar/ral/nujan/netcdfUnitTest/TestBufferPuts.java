@@ -0,0 +1,263 @@
+// The MIT License
+// 
+// Copyright (c) 2010 University Corporation for Atmospheric Research
+// 
+// Permission is hereby granted, free of charge, to any person
+// obtaining a copy of this software and associated documentation
+// files (the "Software"), to deal in the Software without
+// restriction, including without limitation the rights to use,
+// copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following
+// conditions:
+// 
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+// 
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+// OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT.  IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+// HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+// WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+// FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+
+
+package edu.ucar.ral.nujan.netcdfUnitTest;
+
+import java.io.File;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.ShortBuffer;
+import junit.framework.TestCase;
+
+import edu.ucar.ral.nujan.hdf.HdfException;
+import edu.ucar.ral.nujan.hdf.HdfFileWriter;
+import edu.ucar.ral.nujan.hdf.HdfGroup;
+
+
+// Checks writeData from NIO Buffers: typed buffers and little and
+// big endian ByteBuffers, for contiguous, chunked (including clipped
+// edge chunks) and deflated variables, read back with HdfReadBack.
+// The buffers start past a few leading elements, to check that
+// only the remaining elements are written and the position is kept.
+
+
+public class TestBufferPuts extends TestCase {
+
+
+static final int BUF_TYPED = 0;
+static final int BUF_LITTLE = 1;
+static final int BUF_BIG = 2;
+static final String[] bufNames = { "typed", "little", "big"};
+
+static final int NUM_PAD = 3;       // leading elements before position
+
+
+
+public static void main( String[] args)
+throws Exception
+{
+  new TestBufferPuts().testIt();
+  System.out.println("TestBufferPuts: all done");
+}
+
+
+
+public void testIt()
+throws Exception
+{
+  new File( TestPrimitivePuts.TARGET_DIR).mkdirs();
+  int[] varDims = { 7, 9};
+  int[][] chunkDimsList = { null, { 3, 4}};
+  for (int dtype : TestPrimitivePuts.DTYPES) {
+    for (int[] chunkDims : chunkDimsList) {
+      for (int bufKind = 0; bufKind < bufNames.length; bufKind++) {
+        checkOne( dtype, varDims, chunkDims, bufKind, 0);
+        if (chunkDims != null)
+          checkOne( dtype, varDims, chunkDims, bufKind, 2);
+      }
+    }
+  }
+  checkErrors();
+}
+
+
+
+void checkOne(
+  int dtype,
+  int[] varDims,
+  int[] chunkDims,
+  int bufKind,
+  int compressionLevel)
+throws Exception
+{
+  String fname = TestPrimitivePuts.TARGET_DIR + "/buffer."
+    + HdfGroup.dtypeNames[dtype]
+    + "." + (chunkDims == null ? "contig" : "chunk" + chunkDims[1])
+    + "." + bufNames[bufKind] + "." + compressionLevel + ".h5";
+  HdfFileWriter hfile = new HdfFileWriter(
+    fname, HdfFileWriter.OPT_ALLOW_OVERWRITE);
+  HdfGroup var = hfile.getRootGroup().addVariable(
+    "var", dtype, 0, varDims, chunkDims, null, compressionLevel);
+  hfile.endDefine();
+
+  if (chunkDims == null) {
+    writeBuffer( var, dtype, null, varDims, bufKind);
+  }
+  else {
+    for (int ia = 0; ia < varDims[0]; ia += chunkDims[0]) {
+      for (int ib = 0; ib < varDims[1]; ib += chunkDims[1]) {
+        int[] dataDims = {
+          Math.min( chunkDims[0], varDims[0] - ia),
+          Math.min( chunkDims[1], varDims[1] - ib)};
+        writeBuffer( var, dtype, new int[] { ia, ib}, dataDims, bufKind);
+      }
+    }
+  }
+  hfile.close();
+
+  TestPrimitivePuts.checkAll( fname, "/var", dtype, varDims);
+}
+
+
+
+void writeBuffer(
+  HdfGroup var,
+  int dtype,
+  int[] startIxs,
+  int[] dataDims,
+  int bufKind)
+throws HdfException
+{
+  Buffer buf = makeBuffer( dtype, dataDims, startIxs, bufKind);
+  int pos = buf.position();
+  var.writeData( startIxs, buf, dataDims);
+  assertEquals( "position", pos, buf.position());
+}
+
+
+
+/**
+ * Buffer data of the wrong length or type must be rejected.
+ */
+
+void checkErrors()
+throws Exception
+{
+  String fname = TestPrimitivePuts.TARGET_DIR + "/buffer.err.h5";
+  HdfFileWriter hfile = new HdfFileWriter(
+    fname, HdfFileWriter.OPT_ALLOW_OVERWRITE);
+  int[] varDims = { 6, 8};
+  int[] chunkDims = { 3, 4};
+  HdfGroup var = hfile.getRootGroup().addVariable(
+    "var", HdfGroup.DTYPE_FIXED32, 0, varDims, chunkDims, null, 0);
+  hfile.endDefine();
+
+  int[] startIxs = { 0, 0};
+  IntBuffer shortBuf = IntBuffer.allocate( 11);
+  DoubleBuffer typeBuf = DoubleBuffer.allocate( 12);
+  Buffer[] bufs = { shortBuf, typeBuf};
+  for (Buffer buf : bufs) {
+    try {
+      var.writeData( startIxs, buf, chunkDims);
+      fail("accepted " + buf);
+    }
+    catch( HdfException exc) {}
+  }
+}
+
+
+
+/**
+ * Returns a Buffer holding TestPrimitivePuts.value for each
+ * element of a block of dims at startIxs, after NUM_PAD elements
+ * of padding that are skipped by the position.
+ */
+
+static Buffer makeBuffer(
+  int dtype,
+  int[] dims,
+  int[] startIxs,
+  int bufKind)
+{
+  Object vals = TestPrimitivePuts.genData( dtype, dims, startIxs, true);
+  int num = dims[0] * dims[1];
+  Buffer res;
+  if (bufKind == BUF_TYPED && dtype != HdfGroup.DTYPE_SFIXED08) {
+    if (dtype == HdfGroup.DTYPE_FIXED16) {
+      ShortBuffer sbuf = ShortBuffer.allocate( NUM_PAD + num);
+      sbuf.position( NUM_PAD);
+      sbuf.put( (short[]) vals);
+      res = sbuf;
+    }
+    else if (dtype == HdfGroup.DTYPE_FIXED32) {
+      IntBuffer ibuf = IntBuffer.allocate( NUM_PAD + num);
+      ibuf.position( NUM_PAD);
+      ibuf.put( (int[]) vals);
+      res = ibuf;
+    }
+    else if (dtype == HdfGroup.DTYPE_FIXED64) {
+      LongBuffer lbuf = LongBuffer.allocate( NUM_PAD + num);
+      lbuf.position( NUM_PAD);
+      lbuf.put( (long[]) vals);
+      res = lbuf;
+    }
+    else if (dtype == HdfGroup.DTYPE_FLOAT32) {
+      FloatBuffer fbuf = FloatBuffer.allocate( NUM_PAD + num);
+      fbuf.position( NUM_PAD);
+      fbuf.put( (float[]) vals);
+      res = fbuf;
+    }
+    else {
+      DoubleBuffer dbuf = DoubleBuffer.allocate( NUM_PAD + num);
+      dbuf.position( NUM_PAD);
+      dbuf.put( (double[]) vals);
+      res = dbuf;
+    }
+  }
+  else {
+    int eleLen = getEleLen( dtype);
+    ByteBuffer bbuf = ByteBuffer.allocate( (NUM_PAD + num) * eleLen);
+    bbuf.order( bufKind == BUF_BIG
+      ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+    bbuf.position( NUM_PAD * eleLen);
+    for (int ii = 0; ii < num; ii++) {
+      if (dtype == HdfGroup.DTYPE_SFIXED08) bbuf.put( ((byte[]) vals)[ii]);
+      else if (dtype == HdfGroup.DTYPE_FIXED16)
+        bbuf.putShort( ((short[]) vals)[ii]);
+      else if (dtype == HdfGroup.DTYPE_FIXED32)
+        bbuf.putInt( ((int[]) vals)[ii]);
+      else if (dtype == HdfGroup.DTYPE_FIXED64)
+        bbuf.putLong( ((long[]) vals)[ii]);
+      else if (dtype == HdfGroup.DTYPE_FLOAT32)
+        bbuf.putFloat( ((float[]) vals)[ii]);
+      else bbuf.putDouble( ((double[]) vals)[ii]);
+    }
+    res = bbuf;
+  }
+  res.position( NUM_PAD * (res instanceof ByteBuffer
+    ? getEleLen( dtype) : 1));
+  return res;
+}
+
+
+
+static int getEleLen( int dtype) {
+  int res;
+  if (dtype == HdfGroup.DTYPE_SFIXED08) res = 1;
+  else if (dtype == HdfGroup.DTYPE_FIXED16) res = 2;
+  else if (dtype == HdfGroup.DTYPE_FIXED32
+    || dtype == HdfGroup.DTYPE_FLOAT32) res = 4;
+  else res = 8;
+  return res;
+}
+
+
+} // end class
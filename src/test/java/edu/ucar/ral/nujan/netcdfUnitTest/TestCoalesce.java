@@ -0,0 +1,307 @@
+// The MIT License
+// 
+// Copyright (c) 2010 University Corporation for Atmospheric Research
+// 
+// Permission is hereby granted, free of charge, to any person
+// obtaining a copy of this software and associated documentation
+// files (the "Software"), to deal in the Software without
+// restriction, including without limitation the rights to use,
+// copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following
+// conditions:
+// 
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+// 
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+// OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT.  IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+// HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+// WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+// FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+
+
+package edu.ucar.ral.nujan.netcdfUnitTest;
+
+import java.io.File;
+import java.util.Arrays;
+import junit.framework.TestCase;
+
+import edu.ucar.ral.nujan.hdf.HdfException;
+import edu.ucar.ral.nujan.hdf.HdfFileWriter;
+import edu.ucar.ral.nujan.hdf.HdfGroup;
+import edu.ucar.ral.nujan.netcdf.NhDimension;
+import edu.ucar.ral.nujan.netcdf.NhFileWriter;
+import edu.ucar.ral.nujan.netcdf.NhGroup;
+import edu.ucar.ral.nujan.netcdf.NhVariable;
+
+
+// Checks the coalescing buffer and writeBatch: the same chunks
+// written plainly, through a small coalescing buffer (with chunks
+// both smaller and larger than it), and in batches, give byte for
+// byte identical files that read back.
+
+
+public class TestCoalesce extends TestCase {
+
+
+static final int MODE_PLAIN = 0;
+static final int MODE_BUFFER = 1;
+static final int MODE_BATCH = 2;
+static final String[] modeNames = { "plain", "buffer", "batch"};
+
+static final int[] VAR_DIMS = { 8, 60};
+static final int[] SMALL_CHUNK = { 2, 3};     // 24 bytes as FIXED32
+static final int[] BIG_CHUNK = { 8, 60};      // 3840 bytes as FLOAT64
+static final int COALESCE_LEN = 1024;
+static final int[] SLAB_DIMS = { 7, 9};       // rows of 18 bytes as FIXED16
+
+
+
+public static void main( String[] args)
+throws Exception
+{
+  new TestCoalesce().testIt();
+  System.out.println("TestCoalesce: all done");
+}
+
+
+
+public void testIt()
+throws Exception
+{
+  new File( TestPrimitivePuts.TARGET_DIR).mkdirs();
+  byte[] plainBytes = null;
+  for (int mode = 0; mode < modeNames.length; mode++) {
+    String fname = writeFile( mode);
+    byte[] fileBytes = TestMapData.readFile( fname);
+    if (mode == MODE_PLAIN) plainBytes = fileBytes;
+    else assertTrue( fname + " differs from plain",
+      Arrays.equals( plainBytes, fileBytes));
+
+    TestPrimitivePuts.checkAll(
+      fname, "/small", HdfGroup.DTYPE_FIXED32, VAR_DIMS);
+    TestPrimitivePuts.checkAll(
+      fname, "/comp", HdfGroup.DTYPE_FIXED16, VAR_DIMS);
+    TestPrimitivePuts.checkAll(
+      fname, "/big", HdfGroup.DTYPE_FLOAT64, VAR_DIMS);
+  }
+  checkNhBatch();
+  checkBatchSlabs();
+  checkSlabOverlap();
+}
+
+
+
+String writeFile( int mode)
+throws Exception
+{
+  String fname = TestPrimitivePuts.TARGET_DIR + "/coalesce."
+    + modeNames[mode] + ".h5";
+  HdfFileWriter hfile = new HdfFileWriter( fname,
+    HdfFileWriter.OPT_ALLOW_OVERWRITE, 0, TestMapData.MOD_TIME, null, null);
+  if (mode == MODE_BUFFER) hfile.setCoalesceBuffer( COALESCE_LEN);
+  HdfGroup rootGroup = hfile.getRootGroup();
+  HdfGroup smallVar = rootGroup.addVariable( "small",
+    HdfGroup.DTYPE_FIXED32, 0, VAR_DIMS, SMALL_CHUNK, null, 0);
+  HdfGroup compVar = rootGroup.addVariable( "comp",
+    HdfGroup.DTYPE_FIXED16, 0, VAR_DIMS, SMALL_CHUNK, null, 1);
+  HdfGroup bigVar = rootGroup.addVariable( "big",
+    HdfGroup.DTYPE_FLOAT64, 0, VAR_DIMS, BIG_CHUNK, null, 0);
+  hfile.endDefine();
+
+  // One "time step" is the same chunk of small and comp,
+  // with the one chunk of big in the middle of the file.
+  HdfGroup[] vars = { smallVar, compVar};
+  int[] dtypes = { HdfGroup.DTYPE_FIXED32, HdfGroup.DTYPE_FIXED16};
+  int istep = 0;
+  for (int ia = 0; ia < VAR_DIMS[0]; ia += SMALL_CHUNK[0]) {
+    for (int ib = 0; ib < VAR_DIMS[1]; ib += SMALL_CHUNK[1]) {
+      int[] startIxs = { ia, ib};
+      Object[] vdatas = new Object[ vars.length];
+      for (int ii = 0; ii < vars.length; ii++) {
+        vdatas[ii] = TestPrimitivePuts.genData(
+          dtypes[ii], SMALL_CHUNK, startIxs, true);
+      }
+      if (mode == MODE_BATCH)
+        hfile.writeBatch( vars,
+          new int[][] { startIxs, startIxs}, vdatas, true);
+      else {
+        for (int ii = 0; ii < vars.length; ii++) {
+          vars[ii].writeData( startIxs, vdatas[ii], true);
+        }
+      }
+      if (istep++ == 30)
+        TestPrimitivePuts.writeAll( bigVar, HdfGroup.DTYPE_FLOAT64,
+          VAR_DIMS, BIG_CHUNK, false);
+    }
+  }
+  hfile.close();
+  return fname;
+}
+
+
+
+/**
+ * NhFileWriter.writeBatch, one row of records per batch.
+ */
+
+void checkNhBatch()
+throws Exception
+{
+  String fname = TestPrimitivePuts.TARGET_DIR + "/coalesce.nh.nc";
+  NhFileWriter nhfile = new NhFileWriter(
+    fname, NhFileWriter.OPT_OVERWRITE);
+  nhfile.setCoalesceBuffer( COALESCE_LEN);
+  NhGroup rootGroup = nhfile.getRootGroup();
+  NhDimension[] dims = {
+    rootGroup.addDimension( "na", VAR_DIMS[0]),
+    rootGroup.addDimension( "nb", VAR_DIMS[1])};
+  int[] chunkLens = { 1, VAR_DIMS[1]};
+  NhVariable[] vars = {
+    rootGroup.addVariable( "va", NhVariable.TP_INT, dims, chunkLens,
+      null, 0),
+    rootGroup.addVariable( "vb", NhVariable.TP_DOUBLE, dims, chunkLens,
+      null, 2)};
+  int[] dtypes = { HdfGroup.DTYPE_FIXED32, HdfGroup.DTYPE_FLOAT64};
+  nhfile.endDefine();
+
+  for (int ia = 0; ia < VAR_DIMS[0]; ia++) {
+    int[] startIxs = { ia, 0};
+    Object[] rawDatas = new Object[ vars.length];
+    for (int ii = 0; ii < vars.length; ii++) {
+      rawDatas[ii] = TestPrimitivePuts.genData(
+        dtypes[ii], chunkLens, startIxs, false);
+    }
+    nhfile.writeBatch( vars, new int[][] { startIxs, startIxs}, rawDatas);
+  }
+  nhfile.close();
+
+  TestPrimitivePuts.checkAll( fname, "/va", dtypes[0], VAR_DIMS);
+  TestPrimitivePuts.checkAll( fname, "/vb", dtypes[1], VAR_DIMS);
+}
+
+
+/**
+ * Slabs of a contiguous variable written inside a batch, with
+ * no setCoalesceBuffer: beginBatch makes the coalescing buffer,
+ * and the slabs must bypass it.  Else a slab following a gap of
+ * under 8 bytes is padded to in the buffer, and the padding
+ * overwrites the slab in the gap, written earlier.
+ */
+
+void checkBatchSlabs()
+throws Exception
+{
+  // Linear slabs: start element and num elements.
+  // The 1 element slab is the gap between the next two.
+  int numEle = SLAB_DIMS[0] * SLAB_DIMS[1];
+  int[][] slabs = { { 9, 1}, { 0, 9}, { 10, 20}, { 30, numEle - 30}};
+  byte[] plainBytes = null;
+  for (int ibatch = 0; ibatch < 2; ibatch++) {
+    String fname = TestPrimitivePuts.TARGET_DIR + "/coalesce.slabs."
+      + (ibatch == 1 ? "batch" : "plain") + ".h5";
+    HdfFileWriter hfile = new HdfFileWriter( fname,
+      HdfFileWriter.OPT_ALLOW_OVERWRITE, 0, TestMapData.MOD_TIME,
+      null, null);
+    HdfGroup rootGroup = hfile.getRootGroup();
+    HdfGroup slabVar = rootGroup.addVariable( "slab",
+      HdfGroup.DTYPE_FIXED16, 0, SLAB_DIMS, null, null, 0);
+    HdfGroup smallVar = rootGroup.addVariable( "small",
+      HdfGroup.DTYPE_FIXED32, 0, VAR_DIMS, SMALL_CHUNK, null, 0);
+    hfile.endDefine();
+    if (ibatch == 1) hfile.beginBatch();
+
+    for (int[] slab : slabs) {
+      short[] vals = new short[ slab[1]];
+      for (int ii = 0; ii < vals.length; ii++) {
+        int ix = slab[0] + ii;
+        vals[ii] = (short) TestPrimitivePuts.value(
+          ix / SLAB_DIMS[1], ix % SLAB_DIMS[1]);
+      }
+      int[] startIxs = { slab[0] / SLAB_DIMS[1], slab[0] % SLAB_DIMS[1]};
+      slabVar.writeData( startIxs, vals, true);
+    }
+    TestPrimitivePuts.writeAll( smallVar, HdfGroup.DTYPE_FIXED32,
+      VAR_DIMS, SMALL_CHUNK, true);
+    if (ibatch == 1) hfile.endBatch();
+    hfile.close();
+
+    TestPrimitivePuts.checkAll(
+      fname, "/slab", HdfGroup.DTYPE_FIXED16, SLAB_DIMS);
+    TestPrimitivePuts.checkAll(
+      fname, "/small", HdfGroup.DTYPE_FIXED32, VAR_DIMS);
+    byte[] fileBytes = TestMapData.readFile( fname);
+    if (ibatch == 0) plainBytes = fileBytes;
+    else assertTrue( fname + " differs from plain",
+      Arrays.equals( plainBytes, fileBytes));
+  }
+}
+
+
+/**
+ * Slabs must not overlap and must cover the variable.
+ * An overlapping slab is rejected before it is written, and a
+ * gap fails close, even when overlap and gap are the same size.
+ */
+
+void checkSlabOverlap()
+throws Exception
+{
+  for (int iwrite = 0; iwrite < 2; iwrite++) {
+    String fname = TestPrimitivePuts.TARGET_DIR + "/coalesce.overlap."
+      + iwrite + ".h5";
+    HdfFileWriter hfile = new HdfFileWriter(
+      fname, HdfFileWriter.OPT_ALLOW_OVERWRITE);
+    HdfGroup var = hfile.getRootGroup().addVariable( "var",
+      HdfGroup.DTYPE_FIXED32, 0, SLAB_DIMS, null, null, 0);
+    hfile.endDefine();
+    writeRows( var, 0, 3);
+    // Rows 2 and 3 overlap the first slab at row 2
+    try {
+      writeRows( var, 2, 4);
+      fail("accepted an overlapping slab");
+    }
+    catch( HdfException exc) {}
+    writeRows( var, 5, 7);
+    if (iwrite == 0) {
+      // Rows 3 and 4 are a gap of one row.
+      try {
+        hfile.close();
+        fail("close accepted slabs with a gap");
+      }
+      catch( HdfException exc) {
+        assertTrue( exc.toString(),
+          exc.getMessage().indexOf( "slabs written: 45 of 63") >= 0);
+      }
+    }
+    else {
+      // Filling the gap completes the variable,
+      // and the rejected slab changed nothing.
+      writeRows( var, 3, 5);
+      hfile.close();
+      TestPrimitivePuts.checkAll(
+        fname, "/var", HdfGroup.DTYPE_FIXED32, SLAB_DIMS);
+    }
+  }
+}
+
+
+
+static void writeRows(
+  HdfGroup var,
+  int startRow,
+  int endRow)
+throws Exception
+{
+  int[] startIxs = { startRow, 0};
+  var.writeData( startIxs, TestPrimitivePuts.genData(
+    HdfGroup.DTYPE_FIXED32, new int[] { endRow - startRow, SLAB_DIMS[1]},
+    startIxs, false), false);
+}
+
+
+} // end class
@@ -0,0 +1,128 @@
+// The MIT License
+// 
+// Copyright (c) 2010 University Corporation for Atmospheric Research
+// 
+// Permission is hereby granted, free of charge, to any person
+// obtaining a copy of this software and associated documentation
+// files (the "Software"), to deal in the Software without
+// restriction, including without limitation the rights to use,
+// copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following
+// conditions:
+// 
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+// 
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+// OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT.  IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+// HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+// WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+// FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+
+
+package edu.ucar.ral.nujan.netcdfUnitTest;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import junit.framework.TestCase;
+
+import edu.ucar.ral.nujan.hdf.HdfFileWriter;
+import edu.ucar.ral.nujan.hdf.HdfGroup;
+import edu.ucar.ral.nujan.hdfTest.HdfReadBack;
+
+
+// Checks setCompactMax: small contiguous variables are stored
+// in their object headers, written whole, in slabs, or never,
+// when they keep their fill value; larger and chunked
+// variables are not affected.
+
+
+public class TestCompact extends TestCase {
+
+
+static final int[] VAR_DIMS = { 7, 9};
+static final float FILL = -5;
+
+
+
+public static void main( String[] args)
+throws Exception
+{
+  new TestCompact().testIt();
+  System.out.println("TestCompact: all done");
+}
+
+
+
+public void testIt()
+throws Exception
+{
+  new File( TestPrimitivePuts.TARGET_DIR).mkdirs();
+  String fname = TestPrimitivePuts.TARGET_DIR + "/compact.h5";
+  HdfFileWriter hfile = new HdfFileWriter(
+    fname, HdfFileWriter.OPT_ALLOW_OVERWRITE);
+  hfile.setCompactMax( 1000);
+  HdfGroup rootGroup = hfile.getRootGroup();
+  HdfGroup wholeVar = rootGroup.addVariable( "whole",
+    HdfGroup.DTYPE_FIXED32, 0, VAR_DIMS, null, null, 0);
+  HdfGroup slabVar = rootGroup.addVariable( "slab",
+    HdfGroup.DTYPE_FLOAT64, 0, VAR_DIMS, null, null, 0);
+  HdfGroup fillVar = rootGroup.addVariable( "fill",
+    HdfGroup.DTYPE_FLOAT32, 0, new int[] { 10}, null, new Float( FILL), 0);
+  HdfGroup zeroVar = rootGroup.addVariable( "zero",
+    HdfGroup.DTYPE_FIXED16, 0, new int[] { 10}, null, null, 0);
+  HdfGroup bigVar = rootGroup.addVariable( "big",
+    HdfGroup.DTYPE_FLOAT64, 0, new int[] { 20, 30}, null, null, 0);
+  HdfGroup chunkVar = rootGroup.addVariable( "chunk",
+    HdfGroup.DTYPE_FIXED32, 0, VAR_DIMS, new int[] { 3, 4}, null, 0);
+  hfile.endDefine();
+
+  TestPrimitivePuts.writeAll( wholeVar, HdfGroup.DTYPE_FIXED32,
+    VAR_DIMS, null, false);
+  for (int ia = VAR_DIMS[0] - 1; ia >= 0; ia--) {
+    int[] startIxs = { ia, 0};
+    slabVar.writeData( startIxs, TestPrimitivePuts.genData(
+      HdfGroup.DTYPE_FLOAT64, new int[] { 1, VAR_DIMS[1]}, startIxs, true),
+      true);
+  }
+  TestPrimitivePuts.writeAll( bigVar, HdfGroup.DTYPE_FLOAT64,
+    new int[] { 20, 30}, null, false);
+  TestPrimitivePuts.writeAll( chunkVar, HdfGroup.DTYPE_FIXED32,
+    VAR_DIMS, new int[] { 3, 4}, false);
+  // fillVar and zeroVar are never written.
+  hfile.close();
+
+  HdfReadBack.VarInfo info = TestPrimitivePuts.checkAll(
+    fname, "/whole", HdfGroup.DTYPE_FIXED32, VAR_DIMS);
+  assertEquals( fname, HdfReadBack.LY_COMPACT, info.layoutClass);
+  info = TestPrimitivePuts.checkAll(
+    fname, "/slab", HdfGroup.DTYPE_FLOAT64, VAR_DIMS);
+  assertEquals( fname, HdfReadBack.LY_COMPACT, info.layoutClass);
+  info = TestPrimitivePuts.checkAll(
+    fname, "/big", HdfGroup.DTYPE_FLOAT64, new int[] { 20, 30});
+  assertEquals( fname, HdfReadBack.LY_CONTIGUOUS, info.layoutClass);
+  info = TestPrimitivePuts.checkAll(
+    fname, "/chunk", HdfGroup.DTYPE_FIXED32, VAR_DIMS);
+  assertEquals( fname, HdfReadBack.LY_CHUNKED, info.layoutClass);
+
+  HdfReadBack rdr = new HdfReadBack( fname);
+  info = rdr.getVar( "/fill");
+  assertEquals( fname, HdfReadBack.LY_COMPACT, info.layoutClass);
+  ByteBuffer bbuf = rdr.readData( info);
+  for (int ii = 0; ii < 10; ii++) {
+    assertEquals( fname + " fill at " + ii, FILL, bbuf.getFloat( 4 * ii), 0);
+  }
+  info = rdr.getVar( "/zero");
+  assertEquals( fname, HdfReadBack.LY_COMPACT, info.layoutClass);
+  bbuf = rdr.readData( info);
+  for (int ii = 0; ii < 10; ii++) {
+    assertEquals( fname + " zero at " + ii, 0, bbuf.getShort( 2 * ii));
+  }
+}
+
+
+} // end class
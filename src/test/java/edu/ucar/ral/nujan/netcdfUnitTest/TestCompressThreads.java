@@ -0,0 +1,100 @@
+// The MIT License
+// 
+// Copyright (c) 2010 University Corporation for Atmospheric Research
+// 
+// Permission is hereby granted, free of charge, to any person
+// obtaining a copy of this software and associated documentation
+// files (the "Software"), to deal in the Software without
+// restriction, including without limitation the rights to use,
+// copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following
+// conditions:
+// 
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+// 
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+// OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT.  IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+// HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+// WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+// FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+
+
+package edu.ucar.ral.nujan.netcdfUnitTest;
+
+import java.io.File;
+import junit.framework.TestCase;
+
+import edu.ucar.ral.nujan.hdf.HdfFileWriter;
+import edu.ucar.ral.nujan.hdf.HdfGroup;
+import edu.ucar.ral.nujan.hdfTest.HdfReadBack;
+
+
+// Checks the worker pool for deflating chunks (setCompressThreads):
+// the chunks, appended in the order they finish, must
+// inflate back to the data written, with and without the pool.
+
+
+public class TestCompressThreads extends TestCase {
+
+
+
+public static void main( String[] args)
+throws Exception
+{
+  new TestCompressThreads().testIt();
+  System.out.println("TestCompressThreads: all done");
+}
+
+
+
+public void testIt()
+throws Exception
+{
+  new File( TestPrimitivePuts.TARGET_DIR).mkdirs();
+  int[] threadCounts = { 0, 1, 4};
+  for (int numThread : threadCounts) {
+    checkOne( numThread, HdfGroup.DTYPE_FIXED32);
+    checkOne( numThread, HdfGroup.DTYPE_FLOAT64);
+  }
+}
+
+
+
+void checkOne(
+  int numThread,
+  int dtype)
+throws Exception
+{
+  String fname = TestPrimitivePuts.TARGET_DIR + "/compThreads."
+    + numThread + "." + HdfGroup.dtypeNames[dtype] + ".h5";
+  int[] varDims = { 45, 50};
+  int[] chunkDims = { 8, 10};
+  HdfFileWriter hfile = new HdfFileWriter(
+    fname, HdfFileWriter.OPT_ALLOW_OVERWRITE);
+  hfile.setCompressThreads( numThread);
+  HdfGroup vara = hfile.getRootGroup().addVariable(
+    "vara", dtype, 0, varDims, chunkDims, null, 5);
+  HdfGroup varb = hfile.getRootGroup().addVariable(
+    "varb", dtype, 0, varDims, chunkDims, null, 1);
+  hfile.endDefine();
+  TestPrimitivePuts.writeAll( vara, dtype, varDims, chunkDims, false);
+  TestPrimitivePuts.writeAll( varb, dtype, varDims, chunkDims, true);
+  hfile.close();
+
+  for (String path : new String[] { "/vara", "/varb"}) {
+    HdfReadBack.VarInfo info = TestPrimitivePuts.checkAll(
+      fname, path, dtype, varDims);
+    assertEquals( fname, 1, info.filterIds.length);
+    assertEquals( fname, HdfReadBack.FILT_DEFLATE, info.filterIds[0]);
+    HdfReadBack.BtreeInfo binfo = new HdfReadBack( fname).walkBtree( info);
+    assertEquals( fname, 6 * 5, binfo.chunks.size());
+  }
+}
+
+
+} // end class
@@ -0,0 +1,215 @@
+// The MIT License
+// 
+// Copyright (c) 2010 University Corporation for Atmospheric Research
+// 
+// Permission is hereby granted, free of charge, to any person
+// obtaining a copy of this software and associated documentation
+// files (the "Software"), to deal in the Software without
+// restriction, including without limitation the rights to use,
+// copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following
+// conditions:
+// 
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+// 
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+// OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT.  IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+// HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+// WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+// FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+
+
+package edu.ucar.ral.nujan.netcdfUnitTest;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicInteger;
+import junit.framework.TestCase;
+
+import edu.ucar.ral.nujan.hdf.HdfException;
+import edu.ucar.ral.nujan.hdf.HdfFileWriter;
+import edu.ucar.ral.nujan.hdf.HdfGroup;
+import edu.ucar.ral.nujan.hdfTest.HdfReadBack;
+
+
+// Checks writeData called by several threads at once:
+// one thread per variable, several threads sharing the chunks
+// of one variable, and several threads racing to write the same
+// chunks, of which exactly one may win each chunk.
+// The chunks read back, and their file regions do not overlap.
+
+
+public class TestConcurrentWrites extends TestCase {
+
+
+static final int NUM_THREAD = 4;
+static final int[] VAR_DIMS = { 40, 50};
+static final int[] CHUNK_DIMS = { 5, 10};
+static final int[] LEVELS = { 0, 3, 0, 1};
+
+
+
+public static void main( String[] args)
+throws Exception
+{
+  new TestConcurrentWrites().testIt();
+  System.out.println("TestConcurrentWrites: all done");
+}
+
+
+
+public void testIt()
+throws Exception
+{
+  new File( TestPrimitivePuts.TARGET_DIR).mkdirs();
+  for (int ntp = 0; ntp <= 2; ntp += 2) {
+    for (int iter = 0; iter < 3; iter++) {
+      checkOne( ntp, iter);
+    }
+  }
+}
+
+
+
+void checkOne(
+  int compressThreads,
+  int iter)
+throws Exception
+{
+  String fname = TestPrimitivePuts.TARGET_DIR + "/concurrent."
+    + compressThreads + "." + iter + ".h5";
+  HdfFileWriter hfile = new HdfFileWriter(
+    fname, HdfFileWriter.OPT_ALLOW_OVERWRITE);
+  hfile.setCompressThreads( compressThreads);
+  HdfGroup rootGroup = hfile.getRootGroup();
+
+  final HdfGroup[] ownVars = new HdfGroup[ NUM_THREAD];
+  for (int ii = 0; ii < NUM_THREAD; ii++) {
+    ownVars[ii] = rootGroup.addVariable( "own" + ii,
+      HdfGroup.DTYPE_FIXED32, 0, VAR_DIMS, CHUNK_DIMS, null, LEVELS[ii]);
+  }
+  final HdfGroup sharedVar = rootGroup.addVariable( "shared",
+    HdfGroup.DTYPE_FLOAT64, 0, VAR_DIMS, CHUNK_DIMS, null, 2);
+  final HdfGroup raceVar = rootGroup.addVariable( "race",
+    HdfGroup.DTYPE_FIXED16, 0, VAR_DIMS, CHUNK_DIMS, null, 0);
+  hfile.endDefine();
+
+  final int[][] chunkStarts = getChunkStarts();
+  final AtomicInteger numWon = new AtomicInteger();
+  final Throwable[] errors = new Throwable[ NUM_THREAD];
+  Thread[] threads = new Thread[ NUM_THREAD];
+  for (int ii = 0; ii < NUM_THREAD; ii++) {
+    final int ithread = ii;
+    threads[ii] = new Thread() {
+      public void run() {
+        try {
+          TestPrimitivePuts.writeAll( ownVars[ithread],
+            HdfGroup.DTYPE_FIXED32, VAR_DIMS, CHUNK_DIMS, ithread % 2 == 0);
+          for (int ichunk = 0; ichunk < chunkStarts.length; ichunk++) {
+            if (ichunk % NUM_THREAD == ithread)
+              writeChunk( sharedVar, HdfGroup.DTYPE_FLOAT64,
+                chunkStarts[ichunk]);
+          }
+          for (int[] startIxs : chunkStarts) {
+            try {
+              writeChunk( raceVar, HdfGroup.DTYPE_FIXED16, startIxs);
+              numWon.incrementAndGet();
+            }
+            catch( HdfException exc) {
+              if (! exc.getMessage().contains("already been written"))
+                throw exc;
+            }
+          }
+        }
+        catch( Throwable exc) {
+          errors[ithread] = exc;
+        }
+      }
+    };
+  }
+  for (Thread thread : threads) {
+    thread.start();
+  }
+  for (Thread thread : threads) {
+    thread.join();
+  }
+  for (Throwable exc : errors) {
+    if (exc != null) throw new Exception( "thread failed: " + exc, exc);
+  }
+  assertEquals( fname, chunkStarts.length, numWon.get());
+  hfile.close();
+
+  String[] names = new String[ NUM_THREAD + 2];
+  int[] dtypes = new int[ NUM_THREAD + 2];
+  for (int ii = 0; ii < NUM_THREAD; ii++) {
+    names[ii] = "/own" + ii;
+    dtypes[ii] = HdfGroup.DTYPE_FIXED32;
+  }
+  names[NUM_THREAD] = "/shared";
+  dtypes[NUM_THREAD] = HdfGroup.DTYPE_FLOAT64;
+  names[NUM_THREAD + 1] = "/race";
+  dtypes[NUM_THREAD + 1] = HdfGroup.DTYPE_FIXED16;
+
+  HdfReadBack rdr = new HdfReadBack( fname);
+  ArrayList<HdfReadBack.ChunkInfo> allChunks
+    = new ArrayList<HdfReadBack.ChunkInfo>();
+  for (int ii = 0; ii < names.length; ii++) {
+    TestPrimitivePuts.checkAll( fname, names[ii], dtypes[ii], VAR_DIMS);
+    HdfReadBack.BtreeInfo binfo = rdr.walkBtree( rdr.getVar( names[ii]));
+    assertEquals( fname, chunkStarts.length, binfo.chunks.size());
+    allChunks.addAll( binfo.chunks);
+  }
+
+  // Each thread reserved its own region for each chunk.
+  Collections.sort( allChunks, new Comparator<HdfReadBack.ChunkInfo>() {
+    public int compare(
+      HdfReadBack.ChunkInfo cka,
+      HdfReadBack.ChunkInfo ckb)
+    {
+      return Long.valueOf( cka.chunkAddr).compareTo( ckb.chunkAddr);
+    }
+  });
+  for (int ii = 1; ii < allChunks.size(); ii++) {
+    HdfReadBack.ChunkInfo prev = allChunks.get( ii - 1);
+    assertTrue( fname + ": overlapping chunks at " + prev.chunkAddr,
+      prev.chunkAddr + prev.chunkSize <= allChunks.get( ii).chunkAddr);
+  }
+}
+
+
+
+/**
+ * Returns the start indices of every chunk of a variable.
+ */
+
+static int[][] getChunkStarts() {
+  ArrayList<int[]> res = new ArrayList<int[]>();
+  for (int ia = 0; ia < VAR_DIMS[0]; ia += CHUNK_DIMS[0]) {
+    for (int ib = 0; ib < VAR_DIMS[1]; ib += CHUNK_DIMS[1]) {
+      res.add( new int[] { ia, ib});
+    }
+  }
+  return res.toArray( new int[ res.size()][]);
+}
+
+
+
+static void writeChunk(
+  HdfGroup var,
+  int dtype,
+  int[] startIxs)
+throws HdfException
+{
+  var.writeData( startIxs,
+    TestPrimitivePuts.genData( dtype, CHUNK_DIMS, startIxs, false), false);
+}
+
+
+} // end class
@@ -0,0 +1,186 @@
+// The MIT License
+// 
+// Copyright (c) 2010 University Corporation for Atmospheric Research
+// 
+// Permission is hereby granted, free of charge, to any person
+// obtaining a copy of this software and associated documentation
+// files (the "Software"), to deal in the Software without
+// restriction, including without limitation the rights to use,
+// copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following
+// conditions:
+// 
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+// 
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+// OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT.  IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+// HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+// WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+// FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+
+
+package edu.ucar.ral.nujan.netcdfUnitTest;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.HashSet;
+import junit.framework.TestCase;
+
+import edu.ucar.ral.nujan.hdf.HdfFileWriter;
+import edu.ucar.ral.nujan.hdf.HdfGroup;
+import edu.ucar.ral.nujan.hdfTest.HdfReadBack;
+
+
+// Checks OPT_DEDUP_CHUNKS: identical chunks, within a variable
+// and across variables, share one address, the counts of
+// chunks and bytes saved add up, and the data read back.
+
+
+public class TestDedup extends TestCase {
+
+
+static final int[] VAR_DIMS = { 20, 30};
+static final int[] CHUNK_DIMS = { 5, 10};
+static final int NUM_PATTERN = 3;
+static final String[] VAR_NAMES = { "plain", "deflate", "copy"};
+
+
+
+public static void main( String[] args)
+throws Exception
+{
+  new TestDedup().testIt();
+  System.out.println("TestDedup: all done");
+}
+
+
+
+public void testIt()
+throws Exception
+{
+  new File( TestPrimitivePuts.TARGET_DIR).mkdirs();
+  checkOne( true);
+  checkOne( false);
+}
+
+
+
+/**
+ * Pattern of the chunk holding ia, ib: chunks with the same
+ * pattern hold the same values.
+ */
+
+static int pattern(
+  int ia,
+  int ib)
+{
+  return (ia / CHUNK_DIMS[0] + ib / CHUNK_DIMS[1]) % NUM_PATTERN;
+}
+
+
+
+static float value(
+  int ia,
+  int ib)
+{
+  return 100 * pattern( ia, ib)
+    + (ia % CHUNK_DIMS[0]) * CHUNK_DIMS[1] + ib % CHUNK_DIMS[1];
+}
+
+
+
+/**
+ * Writes "plain" and "deflate" with NUM_PATTERN distinct chunks
+ * each, and "copy", the same as "plain".
+ */
+
+void checkOne( boolean useDedup)
+throws Exception
+{
+  String fname = TestPrimitivePuts.TARGET_DIR + "/dedup." + useDedup + ".h5";
+  int optFlag = HdfFileWriter.OPT_ALLOW_OVERWRITE;
+  if (useDedup) optFlag |= HdfFileWriter.OPT_DEDUP_CHUNKS;
+  HdfFileWriter hfile = new HdfFileWriter( fname, optFlag);
+  int[] levels = { 0, 5, 0};
+  HdfGroup[] vars = new HdfGroup[ VAR_NAMES.length];
+  for (int ivar = 0; ivar < vars.length; ivar++) {
+    vars[ivar] = hfile.getRootGroup().addVariable( VAR_NAMES[ivar],
+      HdfGroup.DTYPE_FLOAT32, 0, VAR_DIMS, CHUNK_DIMS, null, levels[ivar]);
+  }
+  hfile.endDefine();
+
+  for (HdfGroup var : vars) {
+    for (int ia = 0; ia < VAR_DIMS[0]; ia += CHUNK_DIMS[0]) {
+      for (int ib = 0; ib < VAR_DIMS[1]; ib += CHUNK_DIMS[1]) {
+        float[][] vals = new float[CHUNK_DIMS[0]][CHUNK_DIMS[1]];
+        for (int ja = 0; ja < CHUNK_DIMS[0]; ja++) {
+          for (int jb = 0; jb < CHUNK_DIMS[1]; jb++) {
+            vals[ja][jb] = value( ia + ja, ib + jb);
+          }
+        }
+        var.writeData( new int[] { ia, ib}, vals, false);
+      }
+    }
+  }
+  long numDedupChunk = hfile.getNumDedupChunk();
+  long numDedupByte = hfile.getNumDedupByte();
+  hfile.close();
+
+  // Bytes saved: the size of every chunk beyond
+  // the first at its address.
+  HdfReadBack rdr = new HdfReadBack( fname);
+  HashMap<Long,Integer> sizeMap = new HashMap<Long,Integer>();
+  int numChunk = 0;
+  long totSize = 0;
+  HashSet<Long> plainAddrs = null;
+  for (String name : VAR_NAMES) {
+    HdfReadBack.VarInfo info = rdr.getVar( "/" + name);
+    HdfReadBack.BtreeInfo binfo = rdr.walkBtree( info);
+    HashSet<Long> addrs = new HashSet<Long>();
+    for (HdfReadBack.ChunkInfo chunk : binfo.chunks) {
+      Integer oldSize = sizeMap.put( chunk.chunkAddr, chunk.chunkSize);
+      if (oldSize != null)
+        assertEquals( fname, oldSize.intValue(), chunk.chunkSize);
+      addrs.add( chunk.chunkAddr);
+      numChunk++;
+      totSize += chunk.chunkSize;
+    }
+    int expectNum = useDedup ? NUM_PATTERN : binfo.chunks.size();
+    assertEquals( fname + " " + name, expectNum, addrs.size());
+    if (name.equals("plain")) plainAddrs = addrs;
+    if (name.equals("copy"))
+      assertEquals( fname, useDedup, plainAddrs.equals( addrs));
+
+    ByteBuffer bbuf = rdr.readData( info);
+    for (int ia = 0; ia < VAR_DIMS[0]; ia++) {
+      for (int ib = 0; ib < VAR_DIMS[1]; ib++) {
+        assertEquals( fname + " " + name + " at " + ia + "," + ib,
+          value( ia, ib), bbuf.getFloat( 4 * (ia * VAR_DIMS[1] + ib)), 0);
+      }
+    }
+  }
+
+  long distinctSize = 0;
+  for (int size : sizeMap.values()) {
+    distinctSize += size;
+  }
+  if (useDedup) {
+    assertEquals( fname, 2 * NUM_PATTERN, sizeMap.size());
+    assertEquals( fname, numChunk - sizeMap.size(), numDedupChunk);
+    assertEquals( fname, totSize - distinctSize, numDedupByte);
+  }
+  else {
+    assertEquals( fname, numChunk, sizeMap.size());
+    assertEquals( fname, 0, numDedupChunk);
+    assertEquals( fname, 0, numDedupByte);
+  }
+}
+
+
+} // end class
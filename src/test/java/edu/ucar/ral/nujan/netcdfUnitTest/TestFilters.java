@@ -0,0 +1,1249 @@
+// The MIT License
+// 
+// Copyright (c) 2010 University Corporation for Atmospheric Research
+// 
+// Permission is hereby granted, free of charge, to any person
+// obtaining a copy of this software and associated documentation
+// files (the "Software"), to deal in the Software without
+// restriction, including without limitation the rights to use,
+// copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following
+// conditions:
+// 
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+// 
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+// OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT.  IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+// HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+// WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+// FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+
+
+package edu.ucar.ral.nujan.netcdfUnitTest;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Random;
+import junit.framework.TestCase;
+
+import edu.ucar.ral.nujan.hdf.FilterBase;
+import edu.ucar.ral.nujan.hdf.FilterBitshuffle;
+import edu.ucar.ral.nujan.hdf.FilterDeflate;
+import edu.ucar.ral.nujan.hdf.FilterFletcher32;
+import edu.ucar.ral.nujan.hdf.FilterLz4;
+import edu.ucar.ral.nujan.hdf.FilterNbit;
+import edu.ucar.ral.nujan.hdf.FilterScaleOffset;
+import edu.ucar.ral.nujan.hdf.FilterShuffle;
+import edu.ucar.ral.nujan.hdf.HdfException;
+import edu.ucar.ral.nujan.hdf.HdfFileWriter;
+import edu.ucar.ral.nujan.hdf.HdfGroup;
+import edu.ucar.ral.nujan.hdfTest.HdfReadBack;
+
+
+// Checks each filter two ways: encode called directly on known
+// input and undone with the HdfReadBack decoders, and a file
+// written through the filter chain and read back.
+
+
+public class TestFilters extends TestCase {
+
+
+static final int[] VAR_DIMS = { 7, 9};
+static final int[] CHUNK_DIMS = { 3, 4};
+
+
+
+public static void main( String[] args)
+throws Exception
+{
+  new TestFilters().testIt();
+  System.out.println("TestFilters: all done");
+}
+
+
+
+public void testIt()
+throws Exception
+{
+  new File( TestPrimitivePuts.TARGET_DIR).mkdirs();
+  checkShuffle();
+  checkChain();
+  checkFletcher32();
+  checkAdaptive();
+  checkAutoLevel();
+  checkQuantize();
+  checkScaleOffset();
+  checkNbit();
+  checkLz4();
+  checkBitshuffle();
+}
+
+
+
+void checkShuffle()
+throws Exception
+{
+  FilterShuffle filter = new FilterShuffle();
+  assertEquals( HdfReadBack.FILT_SHUFFLE, filter.getFilterId());
+  assertTrue( filter.isOptional());
+  assertTrue( Arrays.equals( new int[] { 8}, filter.getClientValues(
+    HdfGroup.DTYPE_FLOAT64, 8, CHUNK_DIMS)));
+
+  // Two 4 byte elements: the first bytes, then the second bytes, ...
+  byte[] known = { 1, 2, 3, 4, 5, 6, 7, 8};
+  byte[] expect = { 1, 5, 2, 6, 3, 7, 4, 8};
+  checkEncoded( "shuffle known", expect,
+    filter.encode( ByteBuffer.wrap( known), HdfGroup.DTYPE_FIXED32, 4));
+
+  // Array backed at an offset, and direct, for each element len
+  int[] eleLens = { 1, 2, 4, 8};
+  for (int eleLen : eleLens) {
+    byte[] raw = randomBytes( 12 * eleLen, eleLen);
+    ByteBuffer[] inBufs = { offsetBuffer( raw), directBuffer( raw)};
+    for (ByteBuffer inBuf : inBufs) {
+      ByteBuffer outBuf = filter.encode( inBuf, HdfGroup.DTYPE_UNKNOWN,
+        eleLen);
+      checkUnchanged( "shuffle", raw, inBuf);
+      checkEncoded( "shuffle eleLen " + eleLen, raw,
+        HdfReadBack.unshuffle( getBytes( outBuf), eleLen));
+    }
+  }
+
+  // Shuffle then deflate, through a file
+  for (int dtype : TestPrimitivePuts.DTYPES) {
+    HdfReadBack.VarInfo info = checkFile( "shuffle", dtype,
+      new FilterBase[] {
+        new FilterShuffle(), new FilterDeflate( 4)});
+    assertEquals( HdfReadBack.FILT_SHUFFLE, info.filterIds[0]);
+    assertEquals( info.elementLen, info.clientVals[0][0]);
+    assertEquals( HdfReadBack.FILT_DEFLATE, info.filterIds[1]);
+  }
+
+  // The useShuffle form of addVariable
+  String fname = TestPrimitivePuts.TARGET_DIR + "/filter.useShuffle.h5";
+  HdfFileWriter hfile = new HdfFileWriter(
+    fname, HdfFileWriter.OPT_ALLOW_OVERWRITE);
+  HdfGroup var = hfile.getRootGroup().addVariable( "var",
+    HdfGroup.DTYPE_FIXED32, 0, VAR_DIMS, CHUNK_DIMS, null, 2, true);
+  hfile.endDefine();
+  TestPrimitivePuts.writeAll(
+    var, HdfGroup.DTYPE_FIXED32, VAR_DIMS, CHUNK_DIMS, true);
+  hfile.close();
+  HdfReadBack.VarInfo info = TestPrimitivePuts.checkAll(
+    fname, "/var", HdfGroup.DTYPE_FIXED32, VAR_DIMS);
+  assertTrue( fname, Arrays.equals( new int[] {
+    HdfReadBack.FILT_SHUFFLE, HdfReadBack.FILT_DEFLATE}, info.filterIds));
+}
+
+
+
+void checkFletcher32()
+throws Exception
+{
+  FilterFletcher32 filter = new FilterFletcher32();
+  assertEquals( HdfReadBack.FILT_FLETCHER32, filter.getFilterId());
+  assertFalse( filter.isOptional());
+  assertEquals( 0, filter.getClientValues(
+    HdfGroup.DTYPE_FIXED32, 4, CHUNK_DIMS).length);
+
+  // Big endian words 0x0102, 0x0304: sum1 0x0406, sum2 0x0508.
+  // An odd last byte is the high byte of a word.
+  checkEncoded( "fletcher32 even", new byte[] {
+      1, 2, 3, 4,   0x06, 0x04, 0x08, 0x05},
+    filter.encode( ByteBuffer.wrap( new byte[] { 1, 2, 3, 4}),
+      HdfGroup.DTYPE_SFIXED08, 1));
+  checkEncoded( "fletcher32 odd", new byte[] {
+      1, 2, 3,   0x02, 0x04, 0x04, 0x05},
+    filter.encode( ByteBuffer.wrap( new byte[] { 1, 2, 3}),
+      HdfGroup.DTYPE_SFIXED08, 1));
+
+  // Lengths around the 360 word block, and all 0xff bytes,
+  // which give the largest sums.
+  int[] lens = { 0, 1, 2, 7, 8, 9, 719, 720, 721, 722, 1441, 5000, 65537};
+  for (int len : lens) {
+    byte[] ones = new byte[ len];
+    Arrays.fill( ones, (byte) 0xff);
+    byte[][] raws = { randomBytes( len, 1), ones};
+    for (byte[] raw : raws) {
+      ByteBuffer[] inBufs = { offsetBuffer( raw), directBuffer( raw)};
+      for (ByteBuffer inBuf : inBufs) {
+        byte[] outBytes = getBytes( filter.encode(
+          inBuf, HdfGroup.DTYPE_SFIXED08, 1));
+        checkUnchanged( "fletcher32", raw, inBuf);
+        assertEquals( "fletcher32 len " + len,
+          HdfReadBack.fletcher32( raw, len),
+          ByteBuffer.wrap( outBytes, len, 4)
+            .order( ByteOrder.LITTLE_ENDIAN).getInt());
+        checkEncoded( "fletcher32 len " + len, raw,
+          HdfReadBack.checkFletcher32( outBytes));
+        if (len > 0) {
+          outBytes[ len / 2] ^= 0x10;
+          try {
+            HdfReadBack.checkFletcher32( outBytes);
+            fail("fletcher32 missed a changed byte, len " + len);
+          }
+          catch( HdfException exc) {}
+        }
+      }
+    }
+  }
+
+  // Alone, and last after shuffle and deflate, through a file
+  for (int dtype : TestPrimitivePuts.DTYPES) {
+    HdfReadBack.VarInfo info = checkFile( "fletcher32", dtype,
+      new FilterBase[] { new FilterFletcher32()});
+    assertEquals( HdfReadBack.FILT_FLETCHER32, info.filterIds[0]);
+    info = checkFile( "fletcher32.chain", dtype,
+      new FilterBase[] {
+        new FilterShuffle(), new FilterDeflate( 5), new FilterFletcher32()});
+    assertEquals( HdfReadBack.FILT_FLETCHER32, info.filterIds[2]);
+  }
+}
+
+
+
+/**
+ * Adaptive deflate stores chunks of noise raw, with the filter's
+ * mask bit set, and deflates the others.  Chunks of 16 KB and up
+ * are judged by a sample, smaller ones by the full deflate.
+ */
+
+void checkAdaptive()
+throws Exception
+{
+  FilterDeflate filter = new FilterDeflate( 5, true);
+  assertTrue( filter.isOptional());
+  assertFalse( new FilterDeflate( 5).isOptional());
+  int[] lens = { 1000, 64 * 1024};
+  for (int len : lens) {
+    byte[] noise = new byte[ len];
+    new Random( len).nextBytes( noise);
+    assertNull( "noise len " + len, filter.encode(
+      offsetBuffer( noise), HdfGroup.DTYPE_SFIXED08, 1));
+    ByteBuffer forced = new FilterDeflate( 5).encode(
+      ByteBuffer.wrap( noise), HdfGroup.DTYPE_SFIXED08, 1);
+    assertTrue( "noise len " + len, forced.remaining() > len);
+
+    byte[] smooth = randomBytes( len, 4);
+    ByteBuffer[] inBufs = { offsetBuffer( smooth), directBuffer( smooth)};
+    for (ByteBuffer inBuf : inBufs) {
+      byte[] outBytes = getBytes( filter.encode(
+        inBuf, HdfGroup.DTYPE_FIXED32, 4));
+      checkUnchanged( "adaptive", smooth, inBuf);
+      assertTrue( "smooth len " + len, outBytes.length < len);
+      checkEncoded( "adaptive len " + len, smooth,
+        HdfReadBack.inflate( outBytes));
+    }
+  }
+
+  // Rows of 32 KB: even rows noise, odd rows small values.
+  String fname = TestPrimitivePuts.TARGET_DIR + "/filter.adaptive.h5";
+  int[] varDims = { 6, 8192};
+  int[] chunkDims = { 1, 8192};
+  HdfFileWriter hfile = new HdfFileWriter(
+    fname, HdfFileWriter.OPT_ALLOW_OVERWRITE);
+  HdfGroup var = hfile.getRootGroup().addVariable( "var",
+    HdfGroup.DTYPE_FIXED32, 0, varDims, chunkDims, null,
+    new FilterBase[] { new FilterShuffle(), new FilterDeflate( 4, true)});
+  hfile.endDefine();
+  Random rand = new Random( 99);
+  int[][] vals = new int[ varDims[0]][ varDims[1]];
+  for (int ia = 0; ia < varDims[0]; ia++) {
+    for (int ib = 0; ib < varDims[1]; ib++) {
+      vals[ia][ib] = ia % 2 == 0 ? rand.nextInt() : ib % 100;
+    }
+    var.writeData( new int[] { ia, 0}, vals[ia], true);
+  }
+  hfile.close();
+
+  HdfReadBack rdr = new HdfReadBack( fname);
+  HdfReadBack.VarInfo info = rdr.getVar( "/var");
+  assertEquals( fname, 1, info.filterFlags[1] & 1);     // optional
+  ByteBuffer bbuf = rdr.readData( info);
+  for (int ia = 0; ia < varDims[0]; ia++) {
+    for (int ib = 0; ib < varDims[1]; ib++) {
+      assertEquals( fname + " at " + ia + "," + ib, vals[ia][ib],
+        bbuf.getInt( 4 * (ia * varDims[1] + ib)));
+    }
+  }
+  for (HdfReadBack.ChunkInfo chunk : rdr.walkBtree( info).chunks) {
+    int ia = (int) chunk.startIxs[0];
+    int rawLen = 4 * chunkDims[1];
+    if (ia % 2 == 0) {
+      assertEquals( fname + " row " + ia, 2, chunk.filterMask);
+      assertEquals( fname + " row " + ia, rawLen, chunk.chunkSize);
+    }
+    else {
+      assertEquals( fname + " row " + ia, 0, chunk.filterMask);
+      assertTrue( fname + " row " + ia, chunk.chunkSize < rawLen / 4);
+    }
+  }
+}
+
+
+
+/**
+ * With LEVEL_AUTO the level is chosen from the first chunks,
+ * and the level in the filter message is the chosen one,
+ * also when chunks are deflated by the compress pool.
+ */
+
+void checkAutoLevel()
+throws Exception
+{
+  for (int ntp = 0; ntp <= 3; ntp += 3) {
+    FilterDeflate[] filters = {
+      new FilterDeflate( FilterDeflate.LEVEL_AUTO),
+      new FilterDeflate( FilterDeflate.LEVEL_AUTO),
+      new FilterDeflate( FilterDeflate.LEVEL_AUTO)};
+    filters[1].setAutoTolerance( 10);        // all levels qualify
+    filters[2].setAutoMinSpeed( 1.e12);      // no level is fast enough
+    assertEquals( 6, filters[0].getCompressionLevel());
+
+    String fname = TestPrimitivePuts.TARGET_DIR + "/filter.autoLevel."
+      + ntp + ".h5";
+    HdfFileWriter hfile = new HdfFileWriter(
+      fname, HdfFileWriter.OPT_ALLOW_OVERWRITE);
+    hfile.setCompressThreads( ntp);
+    HdfGroup[] vars = new HdfGroup[ filters.length + 1];
+    for (int ii = 0; ii < filters.length; ii++) {
+      vars[ii] = hfile.getRootGroup().addVariable( "var" + ii,
+        HdfGroup.DTYPE_FIXED32, 0, VAR_DIMS, CHUNK_DIMS, null,
+        new FilterBase[] { new FilterShuffle(), filters[ii]});
+    }
+    vars[filters.length] = hfile.getRootGroup().addVariable(
+      "var" + filters.length, HdfGroup.DTYPE_FIXED32, 0, VAR_DIMS,
+      CHUNK_DIMS, null, FilterDeflate.LEVEL_AUTO);
+    hfile.endDefine();
+    for (HdfGroup var : vars) {
+      TestPrimitivePuts.writeAll(
+        var, HdfGroup.DTYPE_FIXED32, VAR_DIMS, CHUNK_DIMS, false);
+    }
+    hfile.close();
+
+    for (int ii = 0; ii < vars.length; ii++) {
+      HdfReadBack.VarInfo info = TestPrimitivePuts.checkAll(
+        fname, "/var" + ii, HdfGroup.DTYPE_FIXED32, VAR_DIMS);
+      int ifilt = info.filterIds.length - 1;
+      assertEquals( fname, HdfReadBack.FILT_DEFLATE, info.filterIds[ifilt]);
+      int level = info.clientVals[ifilt][0];
+      if (ii < filters.length) {
+        String status = filters[ii].getAutoStatus();
+        assertTrue( status, status.contains( "done: true"));
+        assertEquals( fname + ": " + status,
+          filters[ii].getCompressionLevel(), level);
+      }
+      if (ii == 1 || ii == 2) assertEquals( fname + " var" + ii, 1, level);
+      else assertTrue( fname + " level " + level, level >= 1 && level <= 9);
+    }
+  }
+}
+
+
+
+/**
+ * Quantization keeps the requested precision, clears (or for
+ * bit grooming, clears or sets) the other mantissa bits,
+ * leaves the fill value, NaN and infinity alone,
+ * and records the netCDF attribute.
+ */
+
+void checkQuantize()
+throws Exception
+{
+  int[] modes = { HdfGroup.QUANTIZE_BITGROOM, HdfGroup.QUANTIZE_GRANULARBR,
+    HdfGroup.QUANTIZE_BITROUND};
+  String[] attrNames = { "_QuantizeBitGroomNumberOfSignificantDigits",
+    "_QuantizeGranularBitRoundNumberOfSignificantDigits",
+    "_QuantizeBitRoundNumberOfSignificantBits"};
+  int[] nsds = { 3, 3, 10};
+  int[] dtypes = { HdfGroup.DTYPE_FLOAT32, HdfGroup.DTYPE_FLOAT64};
+  int[][] chunkDimsList = { null, CHUNK_DIMS};
+  double fill = -1.5e30;
+  int numEle = VAR_DIMS[0] * VAR_DIMS[1];
+
+  for (int imode = 0; imode < modes.length; imode++) {
+    for (int dtype : dtypes) {
+      for (int[] chunkDims : chunkDimsList) {
+        boolean isFloat = dtype == HdfGroup.DTYPE_FLOAT32;
+        double[] vals = new double[ numEle];
+        for (int ii = 0; ii < numEle; ii++) {
+          vals[ii] = (ii - 20) * 1234.56789 + 0.000123;
+        }
+        vals[3] = fill;
+        vals[4] = Double.NaN;
+        vals[5] = Double.NEGATIVE_INFINITY;
+        Object vdata;
+        if (isFloat) {
+          float[] fvals = new float[ numEle];
+          for (int ii = 0; ii < numEle; ii++) {
+            fvals[ii] = (float) vals[ii];
+          }
+          vdata = fvals;
+        }
+        else vdata = vals.clone();
+
+        String fname = TestPrimitivePuts.TARGET_DIR + "/filter.quantize."
+          + imode + "." + HdfGroup.dtypeNames[dtype] + "."
+          + (chunkDims == null ? "contig" : "chunk") + ".h5";
+        HdfFileWriter hfile = new HdfFileWriter(
+          fname, HdfFileWriter.OPT_ALLOW_OVERWRITE);
+        Object fillValue = isFloat ? (Object) Float.valueOf( (float) fill)
+          : (Object) Double.valueOf( fill);
+        HdfGroup var = hfile.getRootGroup().addVariable( "var", dtype, 0,
+          VAR_DIMS, chunkDims, fillValue, chunkDims == null ? 0 : 4);
+        var.setQuantize( modes[imode], nsds[imode]);
+        try {
+          var.setQuantize( modes[imode], nsds[imode]);
+          fail("setQuantize accepted twice");
+        }
+        catch( HdfException exc) {}
+        hfile.endDefine();
+        if (chunkDims == null) var.writeData( null, vdata, true);
+        else {
+          // Linear data for one chunk at a time
+          for (int ia = 0; ia < VAR_DIMS[0]; ia += chunkDims[0]) {
+            for (int ib = 0; ib < VAR_DIMS[1]; ib += chunkDims[1]) {
+              int na = Math.min( chunkDims[0], VAR_DIMS[0] - ia);
+              int nb = Math.min( chunkDims[1], VAR_DIMS[1] - ib);
+              Object cdata = isFloat ? (Object) new float[ na * nb]
+                : (Object) new double[ na * nb];
+              for (int ja = 0; ja < na; ja++) {
+                System.arraycopy( vdata, (ia + ja) * VAR_DIMS[1] + ib,
+                  cdata, ja * nb, nb);
+              }
+              var.writeData( new int[] { ia, ib}, cdata, true);
+            }
+          }
+        }
+        hfile.close();
+
+        // The caller's data are not changed
+        if (isFloat) assertEquals( fname, (float) vals[0],
+          ((float[]) vdata)[0], 0);
+        else assertEquals( fname, vals[0], ((double[]) vdata)[0], 0);
+
+        HdfReadBack rdr = new HdfReadBack( fname);
+        HdfReadBack.VarInfo info = rdr.getVar( "/var");
+        byte[] attrBytes = info.getAttrValue( attrNames[imode]);
+        assertNotNull( fname, attrBytes);
+        assertEquals( fname, nsds[imode], ByteBuffer.wrap( attrBytes)
+          .order( ByteOrder.LITTLE_ENDIAN).getInt());
+        ByteBuffer bbuf = rdr.readData( info);
+        // netCDF-C BitGroom with nsd 3 keeps 11 mantissa bits:
+        // it clears the low 12 bits of a float32, 41 of a float64,
+        // shaving even elements and setting odd ones.
+        long groomMask = isFloat ? 0xfffL : (1L << 41) - 1;
+        boolean isGroom = modes[imode] == HdfGroup.QUANTIZE_BITGROOM
+          && chunkDims == null;
+        if (isGroom) assertEquals( 3, nsds[imode]);
+        int numChanged = 0;
+        for (int ii = 0; ii < numEle; ii++) {
+          String msg = fname + " at " + ii;
+          if (isFloat) {
+            float orig = ((float[]) vdata)[ii];
+            float qval = bbuf.getFloat( 4 * ii);
+            if ((ii < 3 || ii > 5) && qval != orig) numChanged++;
+            if (ii >= 3 && ii <= 5)
+              assertEquals( msg, Float.floatToRawIntBits( orig),
+                Float.floatToRawIntBits( qval));
+            else checkQuantized( msg, modes[imode], nsds[imode], orig,
+              qval, Float.floatToRawIntBits( qval), 23);
+            int obits = Float.floatToRawIntBits( orig);
+            if (isGroom && (ii < 3 || ii > 5))
+              assertEquals( msg, ii % 2 == 0 ? obits & ~(int) groomMask
+                : obits | (int) groomMask, Float.floatToRawIntBits( qval));
+          }
+          else {
+            double orig = ((double[]) vdata)[ii];
+            double qval = bbuf.getDouble( 8 * ii);
+            if ((ii < 3 || ii > 5) && qval != orig) numChanged++;
+            if (ii >= 3 && ii <= 5)
+              assertEquals( msg, Double.doubleToRawLongBits( orig),
+                Double.doubleToRawLongBits( qval));
+            else checkQuantized( msg, modes[imode], nsds[imode], orig,
+              qval, Double.doubleToRawLongBits( qval), 52);
+            long obits = Double.doubleToRawLongBits( orig);
+            if (isGroom && (ii < 3 || ii > 5))
+              assertEquals( msg, ii % 2 == 0 ? obits & ~groomMask
+                : obits | groomMask, Double.doubleToRawLongBits( qval));
+          }
+        }
+        assertTrue( fname + ": changed: " + numChanged,
+          numChanged > numEle / 2);
+      }
+    }
+  }
+
+  String fname = TestPrimitivePuts.TARGET_DIR + "/filter.quantize.err.h5";
+  HdfFileWriter hfile = new HdfFileWriter(
+    fname, HdfFileWriter.OPT_ALLOW_OVERWRITE);
+  HdfGroup intVar = hfile.getRootGroup().addVariable( "intVar",
+    HdfGroup.DTYPE_FIXED32, 0, VAR_DIMS, CHUNK_DIMS, null, 4);
+  HdfGroup floatVar = hfile.getRootGroup().addVariable( "floatVar",
+    HdfGroup.DTYPE_FLOAT32, 0, VAR_DIMS, CHUNK_DIMS, null, 4);
+  int[][] badParms = {
+    { HdfGroup.QUANTIZE_BITGROOM, 0}, { HdfGroup.QUANTIZE_BITGROOM, 8},
+    { HdfGroup.QUANTIZE_BITROUND, 24}, { HdfGroup.QUANTIZE_NONE, 3}};
+  for (int[] parms : badParms) {
+    try {
+      floatVar.setQuantize( parms[0], parms[1]);
+      fail("setQuantize accepted mode " + parms[0] + " nsd " + parms[1]);
+    }
+    catch( HdfException exc) {}
+  }
+  try {
+    intVar.setQuantize( HdfGroup.QUANTIZE_BITGROOM, 3);
+    fail("setQuantize accepted an int variable");
+  }
+  catch( HdfException exc) {}
+}
+
+
+
+/**
+ * Checks one quantized value: the relative error is within the
+ * precision kept, and for BITGROOM and BITROUND the dropped
+ * mantissa bits are all clear (or for BITGROOM all set).
+ */
+
+static void checkQuantized(
+  String msg,
+  int mode,
+  int nsd,
+  double orig,
+  double qval,
+  long qbits,
+  int mantBits)
+{
+  double maxErr;
+  if (mode == HdfGroup.QUANTIZE_BITROUND) maxErr = Math.pow( 2, -nsd);
+  else maxErr = 0.5 * Math.pow( 10, 1 - nsd);
+  assertTrue( msg + ": " + orig + " -> " + qval,
+    Math.abs( qval - orig) <= maxErr * Math.abs( orig));
+
+  int numDrop = 0;
+  if (mode == HdfGroup.QUANTIZE_BITROUND) numDrop = mantBits - nsd;
+  else if (mode == HdfGroup.QUANTIZE_BITGROOM)
+    numDrop = mantBits - ((int) Math.ceil( nsd * Math.log( 10)
+      / Math.log( 2)) + 1);
+  long dropMask = (1L << numDrop) - 1;
+  long low = qbits & dropMask;
+  assertTrue( msg + ": low bits 0x" + Long.toHexString( low),
+    low == 0 || (mode == HdfGroup.QUANTIZE_BITGROOM && low == dropMask));
+}
+
+
+
+void checkScaleOffset()
+throws Exception
+{
+  // int32 10, 12, 11, 15: min 10, span 6 needs 3 bits,
+  // codes 000 010 001 101 packed most significant bit first.
+  FilterScaleOffset filter = new FilterScaleOffset(
+    FilterScaleOffset.SO_INT, FilterScaleOffset.SO_INT_MINBITS_DEFAULT);
+  assertEquals( HdfReadBack.FILT_SCALEOFFSET, filter.getFilterId());
+  byte[] expect = new byte[23];
+  expect[0] = 3;                      // minbits
+  expect[4] = 8;                      // len of minval
+  expect[5] = 10;                     // minval
+  expect[21] = 0x08;
+  expect[22] = (byte) 0xd0;
+  checkEncoded( "scaleoffset known", expect, filter.encode(
+    intBuffer( new long[] { 10, 12, 11, 15}, 4),
+    HdfGroup.DTYPE_FIXED32, 4));
+
+  // Integers: each size, with and without a distant fill value,
+  // a constant chunk (0 bits), the full range (stored as is),
+  // and a fixed num bits.
+  int[] dtypes = { HdfGroup.DTYPE_SFIXED08, HdfGroup.DTYPE_FIXED16,
+    HdfGroup.DTYPE_FIXED32, HdfGroup.DTYPE_FIXED64};
+  int[] eleLens = { 1, 2, 4, 8};
+  Object[] fills = { Byte.valueOf( (byte) -128), Short.valueOf( (short) -9999),
+    Integer.valueOf( -99999), Long.valueOf( -999999999999L)};
+  for (int itype = 0; itype < dtypes.length; itype++) {
+    int eleLen = eleLens[itype];
+    long fill = ((Number) fills[itype]).longValue();
+    long[][] valSets = {
+      { -5, 3, 0, 100, 7, -5, fill, 42},
+      { 17, 17, 17, 17},
+      { eleLen == 8 ? Long.MIN_VALUE : -(1L << (8 * eleLen - 1)),
+        eleLen == 8 ? Long.MAX_VALUE : (1L << (8 * eleLen - 1)) - 1, 0}};
+    for (long[] vals : valSets) {
+      for (int ifill = 0; ifill < 2; ifill++) {
+        Object fillValue = ifill == 0 ? null : fills[itype];
+        int[] scaleFactors = { FilterScaleOffset.SO_INT_MINBITS_DEFAULT,
+          8 * eleLen};
+        for (int scaleFactor : scaleFactors) {
+          checkScaleOffsetInt( dtypes[itype], eleLen, vals, scaleFactor,
+            fillValue);
+        }
+      }
+    }
+  }
+
+  // Floats, rounded to 2 decimal digits, with a fill value
+  int[] floatTypes = { HdfGroup.DTYPE_FLOAT32, HdfGroup.DTYPE_FLOAT64};
+  for (int dtype : floatTypes) {
+    boolean isDouble = dtype == HdfGroup.DTYPE_FLOAT64;
+    int eleLen = isDouble ? 8 : 4;
+    double[] vals = { 12.345, -3.14159, 0, 99.999, -999, 7.5};
+    Object fillValue = isDouble ? (Object) Double.valueOf( -999)
+      : (Object) Float.valueOf( -999);
+    FilterScaleOffset ffilt = new FilterScaleOffset(
+      FilterScaleOffset.SO_FLOAT_DSCALE, 2, fillValue);
+    ByteBuffer inBuf = ByteBuffer.allocate( vals.length * eleLen);
+    inBuf.order( ByteOrder.LITTLE_ENDIAN);
+    for (int ii = 0; ii < vals.length; ii++) {
+      if (isDouble) inBuf.putDouble( 8 * ii, vals[ii]);
+      else inBuf.putFloat( 4 * ii, (float) vals[ii]);
+    }
+    int[] clientVals = ffilt.getClientValues(
+      dtype, eleLen, new int[] { vals.length});
+    ByteBuffer dbuf = ByteBuffer.wrap( HdfReadBack.decodeScaleOffset(
+      getBytes( ffilt.encode( inBuf, dtype, eleLen)), clientVals))
+      .order( ByteOrder.LITTLE_ENDIAN);
+    for (int ii = 0; ii < vals.length; ii++) {
+      double val = isDouble ? dbuf.getDouble( 8 * ii) : dbuf.getFloat( 4 * ii);
+      if (vals[ii] == -999) assertEquals( "scaleoffset fill", -999, val, 0);
+      else assertEquals( "scaleoffset float " + ii, vals[ii], val, 0.0051);
+    }
+  }
+
+  try {
+    new FilterScaleOffset( FilterScaleOffset.SO_FLOAT_DSCALE, 2)
+      .getClientValues( HdfGroup.DTYPE_FIXED32, 4, CHUNK_DIMS);
+    fail("accepted SO_FLOAT_DSCALE for an int type");
+  }
+  catch( HdfException exc) {}
+
+  // Through files, followed by deflate
+  for (int dtype : TestPrimitivePuts.DTYPES) {
+    FilterScaleOffset sofilt;
+    if (dtype == HdfGroup.DTYPE_FLOAT32 || dtype == HdfGroup.DTYPE_FLOAT64)
+      sofilt = new FilterScaleOffset( FilterScaleOffset.SO_FLOAT_DSCALE, 0);
+    else sofilt = new FilterScaleOffset( FilterScaleOffset.SO_INT,
+      FilterScaleOffset.SO_INT_MINBITS_DEFAULT);
+    HdfReadBack.VarInfo info = checkFile( "scaleoffset", dtype,
+      new FilterBase[] { sofilt, new FilterDeflate( 2)});
+    assertEquals( HdfReadBack.FILT_SCALEOFFSET, info.filterIds[0]);
+    assertEquals( CHUNK_DIMS[0] * CHUNK_DIMS[1], info.clientVals[0][2]);
+  }
+}
+
+
+
+/**
+ * Encodes integer vals, decodes them with HdfReadBack,
+ * and checks they're unchanged.
+ */
+
+static void checkScaleOffsetInt(
+  int dtype,
+  int eleLen,
+  long[] vals,
+  int scaleFactor,
+  Object fillValue)
+throws Exception
+{
+  String msg = "scaleoffset " + HdfGroup.dtypeNames[dtype]
+    + " " + Arrays.toString( vals) + " bits " + scaleFactor
+    + " fill " + fillValue;
+  FilterScaleOffset filter = new FilterScaleOffset(
+    FilterScaleOffset.SO_INT, scaleFactor, fillValue);
+  int[] clientVals = filter.getClientValues(
+    dtype, eleLen, new int[] { vals.length});
+  assertEquals( msg, fillValue == null ? 0 : 1, clientVals[7]);
+  byte[] raw = getBytes( intBuffer( vals, eleLen));
+  ByteBuffer inBuf = offsetBuffer( raw);
+  byte[] encBytes = getBytes( filter.encode( inBuf, dtype, eleLen));
+  checkUnchanged( msg, raw, inBuf);
+  checkEncoded( msg, raw,
+    HdfReadBack.decodeScaleOffset( encBytes, clientVals));
+}
+
+
+
+/**
+ * Returns vals as little endian integers of eleLen bytes.
+ */
+
+static ByteBuffer intBuffer(
+  long[] vals,
+  int eleLen)
+{
+  ByteBuffer bbuf = ByteBuffer.allocate( vals.length * eleLen);
+  for (int ii = 0; ii < vals.length; ii++) {
+    for (int ib = 0; ib < eleLen; ib++) {
+      bbuf.put( ii * eleLen + ib, (byte) (vals[ii] >> (8 * ib)));
+    }
+  }
+  return bbuf;
+}
+
+
+
+/**
+ * N-bit keeps the precision bits above bitOffset.  HDF5 returns
+ * the other bits as 0, so values are compared after sign extension.
+ */
+
+void checkNbit()
+throws Exception
+{
+  // int16 5, -3, 7 in 4 bits: 0101 1101 0111
+  FilterNbit filter = new FilterNbit( 4, 0);
+  assertEquals( HdfReadBack.FILT_NBIT, filter.getFilterId());
+  assertTrue( filter.isOptional());
+  checkEncoded( "nbit known", new byte[] { 0x5d, 0x70},
+    filter.encode( intBuffer( new long[] { 5, -3, 7}, 2),
+      HdfGroup.DTYPE_FIXED16, 2));
+
+  int[] dtypes = { HdfGroup.DTYPE_SFIXED08, HdfGroup.DTYPE_FIXED16,
+    HdfGroup.DTYPE_FIXED32, HdfGroup.DTYPE_FIXED64};
+  int[] eleLens = { 1, 2, 4, 8};
+  Random rand = new Random( 5);
+  for (int itype = 0; itype < dtypes.length; itype++) {
+    int eleLen = eleLens[itype];
+    int fullBits = 8 * eleLen;
+    int[] precs = { 1, 3, fullBits / 2 + 1, fullBits - 2, 33, 40, 61};
+    int[] offsets = { 0, 2};
+    for (int prec : precs) {
+      for (int offset : offsets) {
+        if (prec + offset > fullBits) continue;
+        long[] vals = new long[ 37];       // not a multiple of 8 bits
+        for (int ii = 0; ii < vals.length; ii++) {
+          long val = HdfReadBack.signExtend( rand.nextLong(), prec);
+          if (ii == 0) val = HdfReadBack.signExtend( 1L << (prec - 1), prec);
+          if (ii == 1) val = (1L << (prec - 1)) - 1;
+          vals[ii] = val << offset;
+        }
+        checkNbitOne( dtypes[itype], eleLen, prec, offset, vals);
+      }
+    }
+    // Full precision is stored as is.
+    FilterNbit full = new FilterNbit( fullBits, 0);
+    int[] clientVals = full.getClientValues(
+      dtypes[itype], eleLen, new int[] { 3});
+    assertEquals( 1, clientVals[1]);
+    byte[] raw = randomBytes( 3 * eleLen, eleLen);
+    checkEncoded( "nbit full", raw, full.encode(
+      ByteBuffer.wrap( raw), dtypes[itype], eleLen));
+  }
+
+  try {
+    new FilterNbit( 12, 0).getClientValues(
+      HdfGroup.DTYPE_FLOAT32, 4, CHUNK_DIMS);
+    fail("nbit accepted a float type");
+  }
+  catch( HdfException exc) {}
+  try {
+    new FilterNbit( 12, 6).getClientValues(
+      HdfGroup.DTYPE_FIXED16, 2, CHUNK_DIMS);
+    fail("nbit accepted precision + bitOffset > 16");
+  }
+  catch( HdfException exc) {}
+
+  // Through files: the datatype gets the precision and offset.
+  int[][] fileParms = {
+    { HdfGroup.DTYPE_FIXED16, 12, 0}, { HdfGroup.DTYPE_FIXED32, 20, 3},
+    { HdfGroup.DTYPE_FIXED64, 40, 0}};
+  for (int[] parms : fileParms) {
+    int dtype = parms[0];
+    int prec = parms[1];
+    int offset = parms[2];
+    String fname = TestPrimitivePuts.TARGET_DIR + "/filter.nbit."
+      + HdfGroup.dtypeNames[dtype] + ".h5";
+    HdfFileWriter hfile = new HdfFileWriter(
+      fname, HdfFileWriter.OPT_ALLOW_OVERWRITE);
+    HdfGroup var = hfile.getRootGroup().addVariable( "var", dtype, 0,
+      VAR_DIMS, CHUNK_DIMS, null,
+      new FilterBase[] { new FilterNbit( prec, offset), new FilterDeflate( 1)});
+    hfile.endDefine();
+    for (int ia = 0; ia < VAR_DIMS[0]; ia += CHUNK_DIMS[0]) {
+      for (int ib = 0; ib < VAR_DIMS[1]; ib += CHUNK_DIMS[1]) {
+        int[] startIxs = { ia, ib};
+        int[] dataDims = {
+          Math.min( CHUNK_DIMS[0], VAR_DIMS[0] - ia),
+          Math.min( CHUNK_DIMS[1], VAR_DIMS[1] - ib)};
+        Object vdata = TestPrimitivePuts.genData(
+          dtype, dataDims, startIxs, true);
+        for (int ii = 0; ii < dataDims[0] * dataDims[1]; ii++) {
+          if (dtype == HdfGroup.DTYPE_FIXED16)
+            ((short[]) vdata)[ii] <<= offset;
+          else if (dtype == HdfGroup.DTYPE_FIXED32)
+            ((int[]) vdata)[ii] <<= offset;
+          else ((long[]) vdata)[ii] <<= offset;
+        }
+        var.writeData( startIxs, vdata, true);
+      }
+    }
+    hfile.close();
+
+    HdfReadBack rdr = new HdfReadBack( fname);
+    HdfReadBack.VarInfo info = rdr.getVar( "/var");
+    assertEquals( fname, prec, info.fixPrecision);
+    assertEquals( fname, offset, info.fixBitOffset);
+    assertEquals( fname, prec, info.clientVals[0][6]);
+    assertEquals( fname, offset, info.clientVals[0][7]);
+    ByteBuffer bbuf = rdr.readData( info);
+    int eleLen = info.elementLen;
+    for (int ia = 0; ia < VAR_DIMS[0]; ia++) {
+      for (int ib = 0; ib < VAR_DIMS[1]; ib++) {
+        int ix = ia * VAR_DIMS[1] + ib;
+        long raw = HdfReadBack.signExtend(
+          getLittle( bbuf, ix * eleLen, eleLen) >>> offset, prec);
+        assertEquals( fname + " at " + ia + "," + ib,
+          (long) TestPrimitivePuts.value( ia, ib), raw);
+      }
+    }
+  }
+}
+
+
+
+/**
+ * Encodes vals with FilterNbit and checks the decoded values
+ * match after sign extension.
+ */
+
+static void checkNbitOne(
+  int dtype,
+  int eleLen,
+  int prec,
+  int offset,
+  long[] vals)
+throws Exception
+{
+  String msg = "nbit " + HdfGroup.dtypeNames[dtype] + " precision " + prec
+    + " offset " + offset;
+  FilterNbit filter = new FilterNbit( prec, offset);
+  int[] clientVals = filter.getClientValues(
+    dtype, eleLen, new int[] { vals.length});
+  byte[] raw = getBytes( intBuffer( vals, eleLen));
+  ByteBuffer inBuf = directBuffer( raw);
+  byte[] encBytes = getBytes( filter.encode( inBuf, dtype, eleLen));
+  checkUnchanged( msg, raw, inBuf);
+  assertEquals( msg, (int) ((long) vals.length * prec / 8) + 1,
+    encBytes.length);
+  ByteBuffer dbuf = ByteBuffer.wrap(
+    HdfReadBack.unpackNbit( encBytes, clientVals));
+  for (int ii = 0; ii < vals.length; ii++) {
+    long val = HdfReadBack.signExtend(
+      getLittle( dbuf, ii * eleLen, eleLen) >>> offset, prec) << offset;
+    long expect = HdfReadBack.signExtend( vals[ii], 8 * eleLen);
+    assertEquals( msg + " at " + ii, expect, val);
+  }
+}
+
+
+
+/**
+ * Returns the little endian integer of eleLen bytes at pos,
+ * not sign extended.
+ */
+
+static long getLittle(
+  ByteBuffer bbuf,
+  int pos,
+  int eleLen)
+{
+  long res = 0;
+  for (int ib = 0; ib < eleLen; ib++) {
+    res |= (bbuf.get( pos + ib) & 0xffL) << (8 * ib);
+  }
+  return res;
+}
+
+
+
+/**
+ * LZ4 splits the chunk into blocks of blockSize bytes and stores
+ * a block raw when it doesn't compress.
+ */
+
+void checkLz4()
+throws Exception
+{
+  FilterLz4 filter = new FilterLz4();
+  assertEquals( HdfReadBack.FILT_LZ4, filter.getFilterId());
+  assertEquals( 0, filter.getClientValues(
+    HdfGroup.DTYPE_FIXED32, 4, CHUNK_DIMS)[0]);
+  // An empty chunk is only the header: len 0, block len 0.
+  checkEncoded( "lz4 empty", new byte[12], filter.encode(
+    ByteBuffer.wrap( new byte[0]), HdfGroup.DTYPE_SFIXED08, 1));
+  try {
+    new FilterLz4( -1);
+    fail("lz4 accepted a negative blockSize");
+  }
+  catch( HdfException exc) {}
+
+  // Noise doesn't compress, so each block is stored raw.
+  Random rand = new Random( 7);
+  byte[] noise = new byte[ 1000];
+  rand.nextBytes( noise);
+  byte[] encBytes = getBytes( new FilterLz4( 300).encode(
+    directBuffer( noise), HdfGroup.DTYPE_SFIXED08, 1));
+  assertEquals( "lz4 noise len", 12 + 4 * 4 + noise.length, encBytes.length);
+  ByteBuffer encBuf = ByteBuffer.wrap( encBytes);     // big endian
+  assertEquals( noise.length, encBuf.getLong( 0));
+  assertEquals( 300, encBuf.getInt( 8));
+  assertEquals( 300, encBuf.getInt( 12));
+  assertEquals( 100, encBuf.getInt( 12 + 3 * 304));
+  checkEncoded( "lz4 noise", noise, HdfReadBack.decodeLz4Filter( encBytes));
+
+  // Smooth data, in one block and in many, some partial.
+  int[] lens = { 2, 14, 1000, 4096, 100000};
+  int[] blockSizes = { 0, 64, 1000, 4099};
+  for (int len : lens) {
+    byte[] raw = randomBytes( len, 2);
+    for (int blockSize : blockSizes) {
+      String msg = "lz4 len " + len + " blockSize " + blockSize;
+      ByteBuffer[] inBufs = { offsetBuffer( raw), directBuffer( raw)};
+      for (ByteBuffer inBuf : inBufs) {
+        encBytes = getBytes( new FilterLz4( blockSize).encode(
+          inBuf, HdfGroup.DTYPE_FIXED16, 2));
+        checkUnchanged( msg, raw, inBuf);
+        int blkLen = blockSize == 0 ? len : Math.min( blockSize, len);
+        assertEquals( msg, blkLen, ByteBuffer.wrap( encBytes).getInt( 8));
+        checkEncoded( msg, raw, HdfReadBack.decodeLz4Filter( encBytes));
+      }
+    }
+  }
+  byte[] zeros = new byte[ 100000];
+  encBytes = getBytes( filter.encode(
+    ByteBuffer.wrap( zeros), HdfGroup.DTYPE_SFIXED08, 1));
+  assertTrue( "lz4 zeros len " + encBytes.length, encBytes.length < 1000);
+  checkEncoded( "lz4 zeros", zeros, HdfReadBack.decodeLz4Filter( encBytes));
+
+  for (int dtype : TestPrimitivePuts.DTYPES) {
+    HdfReadBack.VarInfo info = checkFile( "lz4", dtype,
+      new FilterBase[] { new FilterLz4()});
+    assertEquals( HdfReadBack.FILT_LZ4, info.filterIds[0]);
+    checkFile( "lz4.block", dtype,
+      new FilterBase[] { new FilterShuffle(), new FilterLz4( 16)});
+  }
+}
+
+
+
+/**
+ * Bitshuffle transposes the bits of each block of elements, leaving
+ * the last numEle % 8 elements as is, and may LZ4 each block.
+ */
+
+void checkBitshuffle()
+throws Exception
+{
+  FilterBitshuffle filter = new FilterBitshuffle(
+    FilterBitshuffle.COMPRESS_NONE);
+  assertEquals( HdfReadBack.FILT_BITSHUFFLE, filter.getFilterId());
+  int[] clientVals = filter.getClientValues(
+    HdfGroup.DTYPE_FIXED16, 2, CHUNK_DIMS);
+  assertEquals( 5, clientVals.length);
+  assertEquals( 2, clientVals[2]);
+  assertEquals( FilterBitshuffle.COMPRESS_NONE, clientVals[4]);
+
+  // Byte elements: row k holds bit k of each element, element 0
+  // in the low bit.  The 2 leftover elements are copied.
+  checkEncoded( "bitshuffle known",
+    new byte[] { 0x01, 0x01, 0, 0, 0, 0, 0, (byte) 0x80,   9, 10},
+    filter.encode( ByteBuffer.wrap( new byte[] {
+      3, 0, 0, 0, 0, 0, 0, (byte) 0x80,   9, 10}),
+    HdfGroup.DTYPE_SFIXED08, 1));
+  try {
+    new FilterBitshuffle( 1);
+    fail("bitshuffle accepted compression 1");
+  }
+  catch( HdfException exc) {}
+  try {
+    new FilterBitshuffle( FilterBitshuffle.COMPRESS_NONE, 12);
+    fail("bitshuffle accepted blockSize 12");
+  }
+  catch( HdfException exc) {}
+  try {
+    filter.encode( ByteBuffer.wrap( new byte[ 7]),
+      HdfGroup.DTYPE_FIXED16, 2);
+    fail("bitshuffle accepted a partial element");
+  }
+  catch( HdfException exc) {}
+
+  // Element counts with and without leftovers, in one block
+  // and in several, some partial.
+  int[] eleLens = { 1, 2, 4, 8};
+  int[] numEles = { 1, 7, 8, 13, 64, 1000, 5003};
+  int[] blockSizes = { 0, 8, 64};
+  int[] compressions = {
+    FilterBitshuffle.COMPRESS_NONE, FilterBitshuffle.COMPRESS_LZ4};
+  for (int eleLen : eleLens) {
+    for (int numEle : numEles) {
+      byte[] raw = randomBytes( numEle * eleLen, eleLen);
+      for (int blockSize : blockSizes) {
+        for (int compression : compressions) {
+          String msg = "bitshuffle eleLen " + eleLen + " numEle " + numEle
+            + " blockSize " + blockSize + " compression " + compression;
+          filter = new FilterBitshuffle( compression, blockSize);
+          clientVals = filter.getClientValues( 0, eleLen, CHUNK_DIMS);
+          ByteBuffer[] inBufs = { offsetBuffer( raw), directBuffer( raw)};
+          for (ByteBuffer inBuf : inBufs) {
+            byte[] encBytes = getBytes( filter.encode( inBuf, 0, eleLen));
+            checkUnchanged( msg, raw, inBuf);
+            int leftLen = (numEle % 8) * eleLen;
+            for (int ii = 0; ii < leftLen; ii++) {
+              assertEquals( msg + ": leftover " + ii,
+                raw[raw.length - leftLen + ii],
+                encBytes[encBytes.length - leftLen + ii]);
+            }
+            checkEncoded( msg, raw, HdfReadBack.decodeBitshuffle(
+              encBytes, clientVals, raw.length));
+          }
+        }
+      }
+    }
+  }
+
+  for (int dtype : TestPrimitivePuts.DTYPES) {
+    for (int compression : compressions) {
+      HdfReadBack.VarInfo info = checkFile( "bitshuffle." + compression,
+        dtype, new FilterBase[] { new FilterBitshuffle( compression)});
+      assertEquals( HdfReadBack.FILT_BITSHUFFLE, info.filterIds[0]);
+      assertEquals( compression, info.clientVals[0][4]);
+    }
+  }
+}
+
+
+
+/**
+ * A user filter in a chain, shared by two variables: its id, flags
+ * and per-variable client values go to the filter message, a chunk
+ * it skips has its filterMask bit set, and close is called once.
+ */
+
+void checkChain()
+throws Exception
+{
+  SkipFilter skipFilter = new SkipFilter();
+  FilterDeflate deflate = new FilterDeflate( 3);
+  FilterBase[] chain = { skipFilter, deflate};
+  String fname = TestPrimitivePuts.TARGET_DIR + "/filter.chain.h5";
+  HdfFileWriter hfile = new HdfFileWriter(
+    fname, HdfFileWriter.OPT_ALLOW_OVERWRITE);
+  int[] dtypes = { HdfGroup.DTYPE_FIXED16, HdfGroup.DTYPE_FLOAT64};
+  HdfGroup[] vars = new HdfGroup[ dtypes.length];
+  for (int ii = 0; ii < dtypes.length; ii++) {
+    vars[ii] = hfile.getRootGroup().addVariable( "var" + ii,
+      dtypes[ii], 0, VAR_DIMS, CHUNK_DIMS, null, chain);
+  }
+  try {
+    hfile.getRootGroup().addVariable( "contig",
+      HdfGroup.DTYPE_FIXED32, 0, VAR_DIMS, null, null, chain);
+    fail("accepted filters on a contiguous variable");
+  }
+  catch( HdfException exc) {}
+  hfile.endDefine();
+  for (int ii = 0; ii < dtypes.length; ii++) {
+    TestPrimitivePuts.writeAll(
+      vars[ii], dtypes[ii], VAR_DIMS, CHUNK_DIMS, false);
+  }
+  hfile.close();
+  assertEquals( "close calls", 1, skipFilter.numClose);
+
+  HdfReadBack rdr = new HdfReadBack( fname);
+  for (int ii = 0; ii < dtypes.length; ii++) {
+    String path = "/var" + ii;
+    HdfReadBack.VarInfo info = TestPrimitivePuts.checkAll(
+      fname, path, dtypes[ii], VAR_DIMS);
+    assertTrue( path, Arrays.equals( new int[] {
+      SkipFilter.FILTER_ID, HdfReadBack.FILT_DEFLATE}, info.filterIds));
+    assertEquals( path, 1, info.filterFlags[0] & 1);    // optional
+    assertEquals( path, 0, info.filterFlags[1] & 1);
+    assertTrue( path, Arrays.equals( new int[] {
+      dtypes[ii], info.elementLen, CHUNK_DIMS[0] * CHUNK_DIMS[1]},
+      info.clientVals[0]));
+    assertTrue( path, Arrays.equals( new int[] { 3}, info.clientVals[1]));
+    for (HdfReadBack.ChunkInfo chunk
+      : rdr.walkBtree( rdr.getVar( path)).chunks)
+    {
+      assertEquals( path, 1, chunk.filterMask);
+    }
+  }
+}
+
+
+
+/**
+ * An optional user filter that skips every chunk.
+ */
+
+static class SkipFilter extends FilterBase {
+
+  static final int FILTER_ID = 300;
+  int numClose = 0;
+
+  public int getFilterId() {
+    return FILTER_ID;
+  }
+
+  public String getFilterName() {
+    return "skip";
+  }
+
+  public boolean isOptional() {
+    return true;
+  }
+
+  public int[] getClientValues(
+    int dtype,
+    int elementLen,
+    int[] chunkDims)
+  {
+    return new int[] { dtype, elementLen, chunkDims[0] * chunkDims[1]};
+  }
+
+  public ByteBuffer encode(
+    ByteBuffer inBuf,
+    int dtype,
+    int elementLen)
+  {
+    return null;
+  }
+
+  public synchronized void close() {
+    numClose++;
+  }
+} // end class SkipFilter
+
+
+
+/**
+ * Writes a variable of dtype through filterChain, chunk by chunk,
+ * reads it back and checks the values.
+ */
+
+static HdfReadBack.VarInfo checkFile(
+  String tag,
+  int dtype,
+  FilterBase[] filterChain)
+throws Exception
+{
+  String fname = TestPrimitivePuts.TARGET_DIR + "/filter." + tag + "."
+    + HdfGroup.dtypeNames[dtype] + ".h5";
+  HdfFileWriter hfile = new HdfFileWriter(
+    fname, HdfFileWriter.OPT_ALLOW_OVERWRITE);
+  HdfGroup var = hfile.getRootGroup().addVariable(
+    "var", dtype, 0, VAR_DIMS, CHUNK_DIMS, null, filterChain);
+  hfile.endDefine();
+  TestPrimitivePuts.writeAll( var, dtype, VAR_DIMS, CHUNK_DIMS, false);
+  hfile.close();
+
+  HdfReadBack.VarInfo info = TestPrimitivePuts.checkAll(
+    fname, "/var", dtype, VAR_DIMS);
+  assertEquals( fname, filterChain.length, info.filterIds.length);
+  return info;
+}
+
+
+
+/**
+ * Returns len random bytes, each element of eleLen bytes
+ * a small value, as numeric data usually are.
+ */
+
+static byte[] randomBytes(
+  int len,
+  int eleLen)
+{
+  Random rand = new Random( 1234 + len);
+  ByteBuffer bbuf = ByteBuffer.allocate( len);
+  bbuf.order( ByteOrder.LITTLE_ENDIAN);
+  for (int ii = 0; ii < len; ii += eleLen) {
+    long val = rand.nextInt( 1000) - 500;
+    for (int ib = 0; ib < eleLen; ib++) {
+      bbuf.put( ii + ib, (byte) (val >> (8 * ib)));
+    }
+  }
+  return bbuf.array();
+}
+
+
+
+/**
+ * Returns raw in an array backed buffer whose position
+ * and array offset are both past some unrelated bytes.
+ */
+
+static ByteBuffer offsetBuffer( byte[] raw) {
+  byte[] big = new byte[ raw.length + 10];
+  Arrays.fill( big, (byte) 0x5a);
+  System.arraycopy( raw, 0, big, 7, raw.length);
+  ByteBuffer bbuf = ByteBuffer.wrap( big, 3, raw.length + 4).slice();
+  bbuf.position( 4);
+  bbuf.limit( 4 + raw.length);
+  return bbuf;
+}
+
+
+
+static ByteBuffer directBuffer( byte[] raw) {
+  ByteBuffer bbuf = ByteBuffer.allocateDirect( raw.length);
+  bbuf.put( raw);
+  bbuf.flip();
+  return bbuf;
+}
+
+
+
+/**
+ * Returns the bytes from position to limit, leaving bbuf unchanged.
+ */
+
+static byte[] getBytes( ByteBuffer bbuf) {
+  byte[] res = new byte[ bbuf.remaining()];
+  bbuf.duplicate().get( res);
+  return res;
+}
+
+
+
+static void checkUnchanged(
+  String msg,
+  byte[] raw,
+  ByteBuffer inBuf)
+{
+  assertEquals( msg + ": inBuf remaining", raw.length, inBuf.remaining());
+  assertTrue( msg + ": inBuf changed", Arrays.equals( raw, getBytes( inBuf)));
+}
+
+
+
+static void checkEncoded(
+  String msg,
+  byte[] expect,
+  ByteBuffer actual)
+{
+  checkEncoded( msg, expect, getBytes( actual));
+}
+
+
+
+static void checkEncoded(
+  String msg,
+  byte[] expect,
+  byte[] actual)
+{
+  assertEquals( msg + ": len", expect.length, actual.length);
+  for (int ii = 0; ii < expect.length; ii++) {
+    assertEquals( msg + ": byte " + ii, expect[ii], actual[ii]);
+  }
+}
+
+
+} // end class
@@ -0,0 +1,339 @@
+// The MIT License
+// 
+// Copyright (c) 2010 University Corporation for Atmospheric Research
+// 
+// Permission is hereby granted, free of charge, to any person
+// obtaining a copy of this software and associated documentation
+// files (the "Software"), to deal in the Software without
+// restriction, including without limitation the rights to use,
+// copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following
+// conditions:
+// 
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+// 
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+// OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT.  IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+// HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+// WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+// FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+
+
+package edu.ucar.ral.nujan.netcdfUnitTest;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import junit.framework.TestCase;
+
+import edu.ucar.ral.nujan.hdf.HdfException;
+import edu.ucar.ral.nujan.hdf.HdfFileWriter;
+import edu.ucar.ral.nujan.hdf.HdfGroup;
+import edu.ucar.ral.nujan.hdfTest.HdfReadBack;
+
+
+// Checks writeHyperslab and the chunk assembly cache: scan lines
+// and tiles that cross chunk boundaries, with a cache large enough
+// and one small enough to spill, partial chunks filled by close,
+// several threads, and the getAssemblyStatus counts.
+
+
+public class TestHyperslab extends TestCase {
+
+
+static final int[] VAR_DIMS = { 20, 30};
+static final int[] CHUNK_DIMS = { 5, 10};     // 400 bytes as FLOAT64
+static final int CHUNK_LEN = 400;
+static final int NUM_CHUNK = 12;
+static final double FILL = -999;
+
+
+
+public static void main( String[] args)
+throws Exception
+{
+  new TestHyperslab().testIt();
+  System.out.println("TestHyperslab: all done");
+}
+
+
+
+public void testIt()
+throws Exception
+{
+  new File( TestPrimitivePuts.TARGET_DIR).mkdirs();
+  checkLines( 1 << 20, 0, VAR_DIMS[0]);
+  checkLines( 1000, 0, VAR_DIMS[0]);
+  checkLines( 1 << 20, 2, 18);
+  checkTiles( 1);
+  checkTiles( 3);
+  checkOverlap();
+  checkErrors();
+}
+
+
+
+/**
+ * Writes rows startRow through endRow-1 one at a time,
+ * each touching 3 chunks, with a cache of maxByte.
+ * The other rows keep the fill value.  Every chunk must be
+ * touched: close rejects chunks never written.
+ */
+
+void checkLines(
+  long maxByte,
+  int startRow,
+  int endRow)
+throws Exception
+{
+  String fname = TestPrimitivePuts.TARGET_DIR + "/hyperslab.lines."
+    + maxByte + "." + startRow + "." + endRow + ".h5";
+  HdfFileWriter hfile = new HdfFileWriter(
+    fname, HdfFileWriter.OPT_ALLOW_OVERWRITE);
+  hfile.setAssemblyCache( maxByte, TestPrimitivePuts.TARGET_DIR);
+  assertNull( hfile.getAssemblyStatus());
+  HdfGroup var = hfile.getRootGroup().addVariable( "var",
+    HdfGroup.DTYPE_FLOAT64, 0, VAR_DIMS, CHUNK_DIMS, new Double( FILL), 0);
+  hfile.endDefine();
+
+  int[] lineDims = { 1, VAR_DIMS[1]};
+  for (int ia = startRow; ia < endRow; ia++) {
+    int[] startIxs = { ia, 0};
+    var.writeHyperslab( startIxs, TestPrimitivePuts.genData(
+      HdfGroup.DTYPE_FLOAT64, lineDims, startIxs, false));
+  }
+  hfile.close();
+  String status = hfile.getAssemblyStatus();
+
+  // Chunk rows touched but not covered are partial.
+  int numRow = VAR_DIMS[0] / CHUNK_DIMS[0];
+  int numCol = VAR_DIMS[1] / CHUNK_DIMS[1];
+  int numFull = 0;
+  int numPart = 0;
+  for (int irow = 0; irow < numRow; irow++) {
+    int lo = Math.max( startRow, irow * CHUNK_DIMS[0]);
+    int hi = Math.min( endRow, (irow + 1) * CHUNK_DIMS[0]);
+    if (hi - lo == CHUNK_DIMS[0]) numFull += numCol;
+    else if (hi > lo) numPart += numCol;
+  }
+  assertEquals( fname + ": " + status, numFull,
+    TestWriteBehind.getStatusValue( status, "numChunk"));
+  assertEquals( fname + ": " + status, numPart,
+    TestWriteBehind.getStatusValue( status, "numPartialChunk"));
+  assertEquals( fname + ": " + status, 0,
+    TestWriteBehind.getStatusValue( status, "numStaged"));
+  assertEquals( fname + ": " + status, 0,
+    TestWriteBehind.getStatusValue( status, "numSpilled"));
+  assertEquals( fname + ": " + status, 0,
+    TestWriteBehind.getStatusValue( status, "numStageByte"));
+  long maxStage = TestWriteBehind.getStatusValue( status, "maxStageByte");
+  long numSpill = TestWriteBehind.getStatusValue( status, "numSpill");
+  if (maxByte < 3 * CHUNK_LEN) {
+    // A line touches 3 chunks, so some are spilled and reloaded.
+    assertTrue( fname + ": " + status, maxStage <= maxByte);
+    assertTrue( fname + ": " + status, numSpill > 0);
+    assertEquals( fname + ": " + status, numSpill,
+      TestWriteBehind.getStatusValue( status, "numReload"));
+  }
+  else {
+    // Partial chunks stay staged until close.
+    assertEquals( fname + ": " + status,
+      Math.max( numPart, 3) * CHUNK_LEN, maxStage);
+    assertEquals( fname + ": " + status, 0, numSpill);
+  }
+
+  HdfReadBack rdr = new HdfReadBack( fname);
+  HdfReadBack.VarInfo info = rdr.getVar( "/var");
+  ByteBuffer bbuf = rdr.readData( info);
+  for (int ia = 0; ia < VAR_DIMS[0]; ia++) {
+    for (int ib = 0; ib < VAR_DIMS[1]; ib++) {
+      double expect = ia >= startRow && ia < endRow
+        ? TestPrimitivePuts.value( ia, ib) : FILL;
+      assertEquals( fname + " at " + ia + "," + ib, expect,
+        bbuf.getDouble( 8 * (ia * VAR_DIMS[1] + ib)), 0);
+    }
+  }
+}
+
+
+
+/**
+ * Writes 4 by 7 tiles, clipped at the edges, to a deflated
+ * variable, split among numThread threads.
+ */
+
+void checkTiles( int numThread)
+throws Exception
+{
+  String fname = TestPrimitivePuts.TARGET_DIR + "/hyperslab.tiles."
+    + numThread + ".h5";
+  HdfFileWriter hfile = new HdfFileWriter(
+    fname, HdfFileWriter.OPT_ALLOW_OVERWRITE);
+  hfile.setAssemblyCache( 1000, null);
+  final HdfGroup var = hfile.getRootGroup().addVariable( "var",
+    HdfGroup.DTYPE_FIXED32, 0, VAR_DIMS, CHUNK_DIMS, null, 3);
+  hfile.endDefine();
+
+  final int[] tileDims = { 4, 7};
+  final int numThreadF = numThread;
+  final Exception[] excs = new Exception[ numThread];
+  Thread[] threads = new Thread[ numThread];
+  for (int ithread = 0; ithread < numThread; ithread++) {
+    final int ithreadF = ithread;
+    threads[ithread] = new Thread() {
+      public void run() {
+        try {
+          int itile = 0;
+          for (int ia = 0; ia < VAR_DIMS[0]; ia += tileDims[0]) {
+            for (int ib = 0; ib < VAR_DIMS[1]; ib += tileDims[1]) {
+              if (itile++ % numThreadF != ithreadF) continue;
+              int[] startIxs = { ia, ib};
+              int[] dataDims = {
+                Math.min( tileDims[0], VAR_DIMS[0] - ia),
+                Math.min( tileDims[1], VAR_DIMS[1] - ib)};
+              var.writeHyperslab( startIxs, TestPrimitivePuts.genData(
+                HdfGroup.DTYPE_FIXED32, dataDims, startIxs, false));
+            }
+          }
+        }
+        catch( Exception exc) {
+          excs[ithreadF] = exc;
+        }
+      }
+    };
+    threads[ithread].start();
+  }
+  for (Thread thread : threads) {
+    thread.join();
+  }
+  for (Exception exc : excs) {
+    if (exc != null) throw exc;
+  }
+  hfile.close();
+
+  String status = hfile.getAssemblyStatus();
+  assertEquals( fname + ": " + status, NUM_CHUNK,
+    TestWriteBehind.getStatusValue( status, "numChunk"));
+  assertEquals( fname + ": " + status, 0,
+    TestWriteBehind.getStatusValue( status, "numPartialChunk"));
+  HdfReadBack.VarInfo info = TestPrimitivePuts.checkAll(
+    fname, "/var", HdfGroup.DTYPE_FIXED32, VAR_DIMS);
+  assertEquals( fname, HdfReadBack.FILT_DEFLATE, info.filterIds[0]);
+}
+
+
+
+/**
+ * A hyperslab that overlaps only in its second chunk is
+ * rejected before its first chunk is changed, so the first
+ * chunk can still be completed and written whole.
+ */
+
+void checkOverlap()
+throws Exception
+{
+  String fname = TestPrimitivePuts.TARGET_DIR + "/hyperslab.overlap.h5";
+  HdfFileWriter hfile = new HdfFileWriter(
+    fname, HdfFileWriter.OPT_ALLOW_OVERWRITE);
+  hfile.setAssemblyCache( 1 << 20, null);
+  HdfGroup var = hfile.getRootGroup().addVariable( "var",
+    HdfGroup.DTYPE_FLOAT64, 0, VAR_DIMS, CHUNK_DIMS, new Double( FILL), 0);
+  hfile.endDefine();
+
+  writeBlock( var, 0, 10, 3, 10);       // part of chunk 0,10
+  try {
+    // Chunk 0,0 is fine, but chunk 0,10 overlaps.
+    writeBlock( var, 0, 0, 5, 15);
+    fail("accepted overlapping hyperslabs");
+  }
+  catch( HdfException exc) {}
+  writeBlock( var, 0, 0, 5, 10);        // all of chunk 0,0
+  writeBlock( var, 3, 10, 2, 10);       // the rest of chunk 0,10
+  writeBlock( var, 0, 20, 5, 10);
+  writeBlock( var, 5, 0, 15, 30);
+  hfile.close();
+
+  String status = hfile.getAssemblyStatus();
+  assertEquals( fname + ": " + status, NUM_CHUNK,
+    TestWriteBehind.getStatusValue( status, "numChunk"));
+  assertEquals( fname + ": " + status, 0,
+    TestWriteBehind.getStatusValue( status, "numPartialChunk"));
+  TestPrimitivePuts.checkAll(
+    fname, "/var", HdfGroup.DTYPE_FLOAT64, VAR_DIMS);
+}
+
+
+
+static void writeBlock(
+  HdfGroup var,
+  int ia,
+  int ib,
+  int na,
+  int nb)
+throws Exception
+{
+  int[] startIxs = { ia, ib};
+  var.writeHyperslab( startIxs, TestPrimitivePuts.genData(
+    HdfGroup.DTYPE_FLOAT64, new int[] { na, nb}, startIxs, false));
+}
+
+
+
+void checkErrors()
+throws Exception
+{
+  String fname = TestPrimitivePuts.TARGET_DIR + "/hyperslab.err.h5";
+  HdfFileWriter hfile = new HdfFileWriter(
+    fname, HdfFileWriter.OPT_ALLOW_OVERWRITE);
+  try {
+    hfile.setAssemblyCache( 0, null);
+    fail("accepted maxByte 0");
+  }
+  catch( HdfException exc) {}
+  HdfGroup var = hfile.getRootGroup().addVariable( "var",
+    HdfGroup.DTYPE_FIXED32, 0, VAR_DIMS, CHUNK_DIMS, null, 0);
+  hfile.endDefine();
+  int[] startIxs = { 0, 0};
+  try {
+    var.writeHyperslab( startIxs, new int[2][3]);
+    fail("writeHyperslab worked without setAssemblyCache");
+  }
+  catch( HdfException exc) {}
+  try {
+    hfile.setAssemblyCache( 1000, null);
+    fail("setAssemblyCache worked after endDefine");
+  }
+  catch( HdfException exc) {}
+  TestPrimitivePuts.writeAll( var, HdfGroup.DTYPE_FIXED32, VAR_DIMS,
+    CHUNK_DIMS, false);
+  hfile.close();
+
+  // A chunk written by writeData can't also be assembled.
+  fname = TestPrimitivePuts.TARGET_DIR + "/hyperslab.err2.h5";
+  hfile = new HdfFileWriter( fname, HdfFileWriter.OPT_ALLOW_OVERWRITE);
+  hfile.setAssemblyCache( 1000, null);
+  var = hfile.getRootGroup().addVariable( "var",
+    HdfGroup.DTYPE_FIXED32, 0, VAR_DIMS, CHUNK_DIMS, null, 0);
+  HdfGroup contigVar = hfile.getRootGroup().addVariable( "contig",
+    HdfGroup.DTYPE_FIXED32, 0, VAR_DIMS, null, null, 0);
+  hfile.endDefine();
+  try {
+    contigVar.writeHyperslab( startIxs, new int[2][3]);
+    fail("writeHyperslab worked on a contiguous variable");
+  }
+  catch( HdfException exc) {}
+  TestPrimitivePuts.writeAll( var, HdfGroup.DTYPE_FIXED32, VAR_DIMS,
+    CHUNK_DIMS, false);
+  try {
+    var.writeHyperslab( startIxs, new int[2][3]);
+    fail("writeHyperslab worked on a chunk already written");
+  }
+  catch( HdfException exc) {}
+}
+
+
+} // end class
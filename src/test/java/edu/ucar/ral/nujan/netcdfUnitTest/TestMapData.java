@@ -0,0 +1,161 @@
+// The MIT License
+// 
+// Copyright (c) 2010 University Corporation for Atmospheric Research
+// 
+// Permission is hereby granted, free of charge, to any person
+// obtaining a copy of this software and associated documentation
+// files (the "Software"), to deal in the Software without
+// restriction, including without limitation the rights to use,
+// copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following
+// conditions:
+// 
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+// 
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+// OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT.  IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+// HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+// WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+// FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+
+
+package edu.ucar.ral.nujan.netcdfUnitTest;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import junit.framework.TestCase;
+
+import edu.ucar.ral.nujan.hdf.HdfFileWriter;
+import edu.ucar.ral.nujan.hdf.HdfGroup;
+
+
+// Checks OPT_MAP_DATA: a file written through mapped windows
+// is byte for byte the same as one written through the channel,
+// for contiguous, slab, chunked, deflated and ByteBuffer writes,
+// and reads back when the deflate pool is used.
+
+
+public class TestMapData extends TestCase {
+
+
+static final long MOD_TIME = 1300000000000L;
+
+static final int[] VAR_DIMS = { 7, 9};
+static final int[] CHUNK_DIMS = { 3, 4};
+
+
+
+public static void main( String[] args)
+throws Exception
+{
+  new TestMapData().testIt();
+  System.out.println("TestMapData: all done");
+}
+
+
+
+public void testIt()
+throws Exception
+{
+  new File( TestPrimitivePuts.TARGET_DIR).mkdirs();
+  String plainName = writeFile( 0, 0);
+  String mapName = writeFile( HdfFileWriter.OPT_MAP_DATA, 0);
+  byte[] plainBytes = readFile( plainName);
+  byte[] mapBytes = readFile( mapName);
+  assertTrue( mapName + " differs from " + plainName,
+    Arrays.equals( plainBytes, mapBytes));
+  checkFile( plainName);
+  checkFile( mapName);
+
+  checkFile( writeFile( HdfFileWriter.OPT_MAP_DATA, 2));
+}
+
+
+
+String writeFile(
+  int optFlag,
+  int compressThreads)
+throws Exception
+{
+  String fname = TestPrimitivePuts.TARGET_DIR + "/mapData." + optFlag
+    + "." + compressThreads + ".h5";
+  HdfFileWriter hfile = new HdfFileWriter( fname,
+    HdfFileWriter.OPT_ALLOW_OVERWRITE | optFlag, 0, MOD_TIME, null, null);
+  hfile.setCompressThreads( compressThreads);
+  HdfGroup rootGroup = hfile.getRootGroup();
+  HdfGroup contigVar = rootGroup.addVariable( "contig",
+    HdfGroup.DTYPE_FIXED32, 0, VAR_DIMS, null, null, 0);
+  HdfGroup slabVar = rootGroup.addVariable( "slab",
+    HdfGroup.DTYPE_FLOAT32, 0, VAR_DIMS, null, null, 0);
+  HdfGroup chunkVar = rootGroup.addVariable( "chunk",
+    HdfGroup.DTYPE_FLOAT64, 0, VAR_DIMS, CHUNK_DIMS, null, 0);
+  HdfGroup compVar = rootGroup.addVariable( "comp",
+    HdfGroup.DTYPE_FIXED16, 0, VAR_DIMS, CHUNK_DIMS, null, 5);
+  HdfGroup bufVar = rootGroup.addVariable( "buf",
+    HdfGroup.DTYPE_FIXED64, 0, VAR_DIMS, CHUNK_DIMS, null, 0);
+  hfile.endDefine();
+
+  TestPrimitivePuts.writeAll(
+    contigVar, HdfGroup.DTYPE_FIXED32, VAR_DIMS, null, false);
+  int[][] slabStarts = { { 4, 0}, { 0, 0}};
+  int[][] slabDims = { { 3, 9}, { 4, 9}};
+  for (int ii = 0; ii < slabStarts.length; ii++) {
+    slabVar.writeData( slabStarts[ii], TestPrimitivePuts.genData(
+      HdfGroup.DTYPE_FLOAT32, slabDims[ii], slabStarts[ii], true), true);
+  }
+  TestPrimitivePuts.writeAll(
+    chunkVar, HdfGroup.DTYPE_FLOAT64, VAR_DIMS, CHUNK_DIMS, false);
+  TestPrimitivePuts.writeAll(
+    compVar, HdfGroup.DTYPE_FIXED16, VAR_DIMS, CHUNK_DIMS, true);
+  for (int ia = 0; ia < VAR_DIMS[0]; ia += CHUNK_DIMS[0]) {
+    for (int ib = 0; ib < VAR_DIMS[1]; ib += CHUNK_DIMS[1]) {
+      int[] startIxs = { ia, ib};
+      int[] dataDims = {
+        Math.min( CHUNK_DIMS[0], VAR_DIMS[0] - ia),
+        Math.min( CHUNK_DIMS[1], VAR_DIMS[1] - ib)};
+      bufVar.writeData( startIxs, TestBufferPuts.makeBuffer(
+        HdfGroup.DTYPE_FIXED64, dataDims, startIxs,
+        TestBufferPuts.BUF_LITTLE), dataDims);
+    }
+  }
+  hfile.close();
+  return fname;
+}
+
+
+
+void checkFile( String fname)
+throws Exception
+{
+  TestPrimitivePuts.checkAll(
+    fname, "/contig", HdfGroup.DTYPE_FIXED32, VAR_DIMS);
+  TestPrimitivePuts.checkAll(
+    fname, "/slab", HdfGroup.DTYPE_FLOAT32, VAR_DIMS);
+  TestPrimitivePuts.checkAll(
+    fname, "/chunk", HdfGroup.DTYPE_FLOAT64, VAR_DIMS);
+  TestPrimitivePuts.checkAll(
+    fname, "/comp", HdfGroup.DTYPE_FIXED16, VAR_DIMS);
+  TestPrimitivePuts.checkAll(
+    fname, "/buf", HdfGroup.DTYPE_FIXED64, VAR_DIMS);
+}
+
+
+
+static byte[] readFile( String fname)
+throws Exception
+{
+  RandomAccessFile raf = new RandomAccessFile( fname, "r");
+  byte[] res = new byte[ (int) raf.length()];
+  raf.readFully( res);
+  raf.close();
+  return res;
+}
+
+
+} // end class
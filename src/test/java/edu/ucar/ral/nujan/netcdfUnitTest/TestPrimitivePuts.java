@@ -0,0 +1,267 @@
+// The MIT License
+// 
+// Copyright (c) 2010 University Corporation for Atmospheric Research
+// 
+// Permission is hereby granted, free of charge, to any person
+// obtaining a copy of this software and associated documentation
+// files (the "Software"), to deal in the Software without
+// restriction, including without limitation the rights to use,
+// copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following
+// conditions:
+// 
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+// 
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+// OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT.  IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+// HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+// WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+// FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+
+
+package edu.ucar.ral.nujan.netcdfUnitTest;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import junit.framework.TestCase;
+
+import edu.ucar.ral.nujan.hdf.HdfFileWriter;
+import edu.ucar.ral.nujan.hdf.HdfGroup;
+import edu.ucar.ral.nujan.hdfTest.HdfReadBack;
+
+
+// Checks the bulk primitive array puts used by writeData:
+// each numeric type, nested and linear arrays, contiguous
+// and chunked (including partial edge chunks), read back
+// with HdfReadBack.
+
+
+public class TestPrimitivePuts extends TestCase {
+
+
+static final String TARGET_DIR = "target/testReadBack";
+
+static final int[] DTYPES = {
+  HdfGroup.DTYPE_SFIXED08, HdfGroup.DTYPE_FIXED16, HdfGroup.DTYPE_FIXED32,
+  HdfGroup.DTYPE_FIXED64, HdfGroup.DTYPE_FLOAT32, HdfGroup.DTYPE_FLOAT64};
+
+
+
+public static void main( String[] args)
+throws Exception
+{
+  new TestPrimitivePuts().testIt();
+  System.out.println("TestPrimitivePuts: all done");
+}
+
+
+
+public void testIt()
+throws Exception
+{
+  new File( TARGET_DIR).mkdirs();
+  int[] varDims = { 7, 9};
+  int[][] chunkDimsList = { null, { 7, 9}, { 3, 4}};
+  for (int dtype : DTYPES) {
+    for (int[] chunkDims : chunkDimsList) {
+      for (int ilin = 0; ilin < 2; ilin++) {
+        checkOne( dtype, varDims, chunkDims, ilin == 1);
+      }
+    }
+  }
+}
+
+
+
+void checkOne(
+  int dtype,
+  int[] varDims,
+  int[] chunkDims,
+  boolean useLinear)
+throws Exception
+{
+  String fname = TARGET_DIR + "/puts." + HdfGroup.dtypeNames[dtype]
+    + "." + (chunkDims == null ? "contig" : "chunk" + chunkDims[1])
+    + "." + useLinear + ".h5";
+  HdfFileWriter hfile = new HdfFileWriter(
+    fname, HdfFileWriter.OPT_ALLOW_OVERWRITE);
+  HdfGroup var = hfile.getRootGroup().addVariable(
+    "var", dtype, 0, varDims, chunkDims, null, 0);
+  hfile.endDefine();
+
+  writeAll( var, dtype, varDims, chunkDims, useLinear);
+  hfile.close();
+
+  HdfReadBack.VarInfo info = checkAll( fname, "/var", dtype, varDims);
+  assertEquals( fname, chunkDims == null ? HdfReadBack.LY_CONTIGUOUS
+    : HdfReadBack.LY_CHUNKED, info.layoutClass);
+}
+
+
+
+/**
+ * Writes all of a 2 dimensional variable, value( ia, ib) at
+ * each element, in one call if chunkDims is null, else by chunk.
+ */
+
+static void writeAll(
+  HdfGroup var,
+  int dtype,
+  int[] varDims,
+  int[] chunkDims,
+  boolean useLinear)
+throws Exception
+{
+  if (chunkDims == null)
+    var.writeData( null, genData( dtype, varDims, null, useLinear),
+      useLinear);
+  else {
+    for (int ia = 0; ia < varDims[0]; ia += chunkDims[0]) {
+      for (int ib = 0; ib < varDims[1]; ib += chunkDims[1]) {
+        int[] startIxs = { ia, ib};
+        int[] dataDims = {
+          Math.min( chunkDims[0], varDims[0] - ia),
+          Math.min( chunkDims[1], varDims[1] - ib)};
+        var.writeData( startIxs,
+          genData( dtype, dataDims, startIxs, useLinear), useLinear);
+      }
+    }
+  }
+}
+
+
+
+/**
+ * Reads back the 2 dimensional variable at path
+ * and checks it has value( ia, ib) at each element.
+ */
+
+static HdfReadBack.VarInfo checkAll(
+  String fname,
+  String path,
+  int dtype,
+  int[] varDims)
+throws Exception
+{
+  HdfReadBack rdr = new HdfReadBack( fname);
+  HdfReadBack.VarInfo info = rdr.getVar( path);
+  assertEquals( fname, varDims.length, info.dims.length);
+  for (int ii = 0; ii < varDims.length; ii++) {
+    assertEquals( fname, varDims[ii], info.dims[ii]);
+  }
+  ByteBuffer bbuf = rdr.readData( info);
+  for (int ia = 0; ia < varDims[0]; ia++) {
+    for (int ib = 0; ib < varDims[1]; ib++) {
+      int ix = ia * varDims[1] + ib;
+      assertEquals( fname + " at " + ia + "," + ib,
+        value( ia, ib), getValue( bbuf, dtype, ix), 0);
+    }
+  }
+  return info;
+}
+
+
+
+static double value(
+  int ia,
+  int ib)
+{
+  return 10 * ia + ib - 30;
+}
+
+
+
+/**
+ * Returns the data for a block starting at startIxs, or for
+ * the whole variable if startIxs is null:
+ * a nested array, or a linear one if useLinear.
+ */
+
+static Object genData(
+  int dtype,
+  int[] dims,
+  int[] startIxs,
+  boolean useLinear)
+{
+  int na = dims[0];
+  int nb = dims[1];
+  int offa = startIxs == null ? 0 : startIxs[0];
+  int offb = startIxs == null ? 0 : startIxs[1];
+  Object res;
+  if (useLinear) {
+    int num = na * nb;
+    if (dtype == HdfGroup.DTYPE_SFIXED08) res = new byte[num];
+    else if (dtype == HdfGroup.DTYPE_FIXED16) res = new short[num];
+    else if (dtype == HdfGroup.DTYPE_FIXED32) res = new int[num];
+    else if (dtype == HdfGroup.DTYPE_FIXED64) res = new long[num];
+    else if (dtype == HdfGroup.DTYPE_FLOAT32) res = new float[num];
+    else res = new double[num];
+    for (int ia = 0; ia < na; ia++) {
+      for (int ib = 0; ib < nb; ib++) {
+        setValue( res, ia * nb + ib, dtype,
+          value( offa + ia, offb + ib));
+      }
+    }
+  }
+  else {
+    Object[] rows;
+    if (dtype == HdfGroup.DTYPE_SFIXED08) rows = new byte[na][nb];
+    else if (dtype == HdfGroup.DTYPE_FIXED16) rows = new short[na][nb];
+    else if (dtype == HdfGroup.DTYPE_FIXED32) rows = new int[na][nb];
+    else if (dtype == HdfGroup.DTYPE_FIXED64) rows = new long[na][nb];
+    else if (dtype == HdfGroup.DTYPE_FLOAT32) rows = new float[na][nb];
+    else rows = new double[na][nb];
+    for (int ia = 0; ia < na; ia++) {
+      for (int ib = 0; ib < nb; ib++) {
+        setValue( rows[ia], ib, dtype, value( offa + ia, offb + ib));
+      }
+    }
+    res = rows;
+  }
+  return res;
+}
+
+
+
+static void setValue(
+  Object arr,
+  int ix,
+  int dtype,
+  double val)
+{
+  if (dtype == HdfGroup.DTYPE_SFIXED08) ((byte[]) arr)[ix] = (byte) val;
+  else if (dtype == HdfGroup.DTYPE_FIXED16) ((short[]) arr)[ix] = (short) val;
+  else if (dtype == HdfGroup.DTYPE_FIXED32) ((int[]) arr)[ix] = (int) val;
+  else if (dtype == HdfGroup.DTYPE_FIXED64) ((long[]) arr)[ix] = (long) val;
+  else if (dtype == HdfGroup.DTYPE_FLOAT32) ((float[]) arr)[ix] = (float) val;
+  else ((double[]) arr)[ix] = val;
+}
+
+
+
+/**
+ * Returns element ix of little endian data read back.
+ */
+
+static double getValue(
+  ByteBuffer bbuf,
+  int dtype,
+  int ix)
+{
+  double res;
+  if (dtype == HdfGroup.DTYPE_SFIXED08) res = bbuf.get( ix);
+  else if (dtype == HdfGroup.DTYPE_FIXED16) res = bbuf.getShort( 2 * ix);
+  else if (dtype == HdfGroup.DTYPE_FIXED32) res = bbuf.getInt( 4 * ix);
+  else if (dtype == HdfGroup.DTYPE_FIXED64) res = bbuf.getLong( 8 * ix);
+  else if (dtype == HdfGroup.DTYPE_FLOAT32) res = bbuf.getFloat( 4 * ix);
+  else res = bbuf.getDouble( 8 * ix);
+  return res;
+}
+
+
+} // end class
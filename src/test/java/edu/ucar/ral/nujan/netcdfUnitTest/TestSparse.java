@@ -0,0 +1,220 @@
+// The MIT License
+// 
+// Copyright (c) 2010 University Corporation for Atmospheric Research
+// 
+// Permission is hereby granted, free of charge, to any person
+// obtaining a copy of this software and associated documentation
+// files (the "Software"), to deal in the Software without
+// restriction, including without limitation the rights to use,
+// copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following
+// conditions:
+// 
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+// 
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+// OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT.  IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+// HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+// WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+// FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+
+
+package edu.ucar.ral.nujan.netcdfUnitTest;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import junit.framework.TestCase;
+
+import edu.ucar.ral.nujan.hdf.HdfFileWriter;
+import edu.ucar.ral.nujan.hdf.HdfGroup;
+import edu.ucar.ral.nujan.hdfTest.HdfReadBack;
+
+
+// Checks OPT_SPARSE_CHUNKS: chunks that hold only the fill value,
+// or are never written, are left out of the chunk Btree
+// and read back as the fill value.
+
+
+public class TestSparse extends TestCase {
+
+
+static final int FILL = -999;
+static final int[] VAR_DIMS = { 20, 30};
+static final int[] CHUNK_DIMS = { 5, 10};
+
+
+
+public static void main( String[] args)
+throws Exception
+{
+  new TestSparse().testIt();
+  System.out.println("TestSparse: all done");
+}
+
+
+
+public void testIt()
+throws Exception
+{
+  new File( TestPrimitivePuts.TARGET_DIR).mkdirs();
+  checkPartFill();
+  checkAllFill();
+  checkChars();
+}
+
+
+
+/**
+ * Chunk kind for the chunk at ia, ib:
+ * 0: real data, 1: written but all fill, 2: never written.
+ */
+
+static int chunkKind(
+  int ia,
+  int ib)
+{
+  return (ia / CHUNK_DIMS[0] + ib / CHUNK_DIMS[1]) % 3;
+}
+
+
+
+void checkPartFill()
+throws Exception
+{
+  String fname = TestPrimitivePuts.TARGET_DIR + "/sparse.part.h5";
+  HdfFileWriter hfile = new HdfFileWriter( fname,
+    HdfFileWriter.OPT_ALLOW_OVERWRITE | HdfFileWriter.OPT_SPARSE_CHUNKS);
+  HdfGroup var = hfile.getRootGroup().addVariable(
+    "var", HdfGroup.DTYPE_FIXED32, 0, VAR_DIMS, CHUNK_DIMS,
+    new Integer( FILL), 0);
+  hfile.endDefine();
+
+  int numLive = 0;
+  for (int ia = 0; ia < VAR_DIMS[0]; ia += CHUNK_DIMS[0]) {
+    for (int ib = 0; ib < VAR_DIMS[1]; ib += CHUNK_DIMS[1]) {
+      int kind = chunkKind( ia, ib);
+      int[] startIxs = { ia, ib};
+      if (kind == 0) {
+        var.writeData( startIxs, TestPrimitivePuts.genData(
+          HdfGroup.DTYPE_FIXED32, CHUNK_DIMS, startIxs, false), false);
+        numLive++;
+      }
+      else if (kind == 1) {
+        int[][] vals = new int[CHUNK_DIMS[0]][CHUNK_DIMS[1]];
+        for (int[] row : vals) {
+          Arrays.fill( row, FILL);
+        }
+        var.writeData( startIxs, vals, false);
+      }
+    }
+  }
+  hfile.close();
+
+  HdfReadBack rdr = new HdfReadBack( fname);
+  HdfReadBack.VarInfo info = rdr.getVar( "/var");
+  HdfReadBack.BtreeInfo binfo = rdr.walkBtree( info);
+  assertEquals( fname, numLive, binfo.chunks.size());
+  for (HdfReadBack.ChunkInfo chunk : binfo.chunks) {
+    assertEquals( fname, 0,
+      chunkKind( (int) chunk.startIxs[0], (int) chunk.startIxs[1]));
+  }
+
+  ByteBuffer bbuf = rdr.readData( info);
+  for (int ia = 0; ia < VAR_DIMS[0]; ia++) {
+    for (int ib = 0; ib < VAR_DIMS[1]; ib++) {
+      double expect = chunkKind( ia, ib) == 0
+        ? TestPrimitivePuts.value( ia, ib) : FILL;
+      assertEquals( fname + " at " + ia + "," + ib, expect,
+        bbuf.getInt( 4 * (ia * VAR_DIMS[1] + ib)), 0);
+    }
+  }
+}
+
+
+
+void checkAllFill()
+throws Exception
+{
+  String fname = TestPrimitivePuts.TARGET_DIR + "/sparse.all.h5";
+  HdfFileWriter hfile = new HdfFileWriter( fname,
+    HdfFileWriter.OPT_ALLOW_OVERWRITE | HdfFileWriter.OPT_SPARSE_CHUNKS);
+  HdfGroup var = hfile.getRootGroup().addVariable(
+    "var", HdfGroup.DTYPE_FLOAT64, 0, VAR_DIMS, CHUNK_DIMS,
+    new Double( Double.NaN), 0);
+  hfile.endDefine();
+
+  double[] vals = new double[ CHUNK_DIMS[0] * CHUNK_DIMS[1]];
+  Arrays.fill( vals, Double.NaN);
+  for (int ia = 0; ia < VAR_DIMS[0]; ia += CHUNK_DIMS[0]) {
+    for (int ib = 0; ib < VAR_DIMS[1]; ib += CHUNK_DIMS[1]) {
+      var.writeData( new int[] { ia, ib}, vals, true);
+    }
+  }
+  hfile.close();
+
+  HdfReadBack rdr = new HdfReadBack( fname);
+  HdfReadBack.VarInfo info = rdr.getVar( "/var");
+  HdfReadBack.BtreeInfo binfo = rdr.walkBtree( info);
+  assertEquals( fname, 0, binfo.chunks.size());
+  assertEquals( fname, 1, binfo.numNode);
+
+  ByteBuffer bbuf = rdr.readData( info);
+  int num = VAR_DIMS[0] * VAR_DIMS[1];
+  for (int ii = 0; ii < num; ii++) {
+    assertTrue( fname + " at " + ii, Double.isNaN( bbuf.getDouble( 8 * ii)));
+  }
+}
+
+
+
+/**
+ * A char variable as NhVariable writes TP_CHAR: the fill is a String
+ * of length 1, and the data are Strings of length 1.
+ */
+
+void checkChars()
+throws Exception
+{
+  String fname = TestPrimitivePuts.TARGET_DIR + "/sparse.char.h5";
+  HdfFileWriter hfile = new HdfFileWriter( fname,
+    HdfFileWriter.OPT_ALLOW_OVERWRITE | HdfFileWriter.OPT_SPARSE_CHUNKS);
+  HdfGroup var = hfile.getRootGroup().addVariable(
+    "var", HdfGroup.DTYPE_STRING_FIX, 1, VAR_DIMS, CHUNK_DIMS, "x", 0);
+  hfile.endDefine();
+
+  for (int ia = 0; ia < VAR_DIMS[0]; ia += CHUNK_DIMS[0]) {
+    for (int ib = 0; ib < VAR_DIMS[1]; ib += CHUNK_DIMS[1]) {
+      String[][] vals = new String[CHUNK_DIMS[0]][CHUNK_DIMS[1]];
+      for (String[] row : vals) {
+        Arrays.fill( row, chunkKind( ia, ib) == 0 ? "a" : "x");
+      }
+      var.writeData( new int[] { ia, ib}, vals, false);
+    }
+  }
+  hfile.close();
+
+  HdfReadBack rdr = new HdfReadBack( fname);
+  HdfReadBack.VarInfo info = rdr.getVar( "/var");
+  HdfReadBack.BtreeInfo binfo = rdr.walkBtree( info);
+  ByteBuffer bbuf = rdr.readData( info);
+  int numLive = 0;
+  for (int ia = 0; ia < VAR_DIMS[0]; ia++) {
+    for (int ib = 0; ib < VAR_DIMS[1]; ib++) {
+      boolean isLive = chunkKind( ia, ib) == 0;
+      if (isLive) numLive++;
+      assertEquals( fname + " at " + ia + "," + ib, isLive ? 'a' : 'x',
+        (char) bbuf.get( ia * VAR_DIMS[1] + ib));
+    }
+  }
+  int chunkLen = CHUNK_DIMS[0] * CHUNK_DIMS[1];
+  assertEquals( fname, numLive / chunkLen, binfo.chunks.size());
+}
+
+
+} // end class
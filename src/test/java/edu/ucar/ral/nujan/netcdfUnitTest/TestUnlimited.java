@@ -0,0 +1,183 @@
+// The MIT License
+// 
+// Copyright (c) 2010 University Corporation for Atmospheric Research
+// 
+// Permission is hereby granted, free of charge, to any person
+// obtaining a copy of this software and associated documentation
+// files (the "Software"), to deal in the Software without
+// restriction, including without limitation the rights to use,
+// copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following
+// conditions:
+// 
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+// 
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+// OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT.  IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+// HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+// WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+// FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+
+
+package edu.ucar.ral.nujan.netcdfUnitTest;
+
+import java.io.File;
+import junit.framework.TestCase;
+
+import edu.ucar.ral.nujan.hdf.HdfException;
+import edu.ucar.ral.nujan.hdf.HdfFileWriter;
+import edu.ucar.ral.nujan.hdf.HdfGroup;
+import edu.ucar.ral.nujan.hdfTest.HdfReadBack;
+import edu.ucar.ral.nujan.netcdf.NhDimension;
+import edu.ucar.ral.nujan.netcdf.NhFileWriter;
+import edu.ucar.ral.nujan.netcdf.NhGroup;
+import edu.ucar.ral.nujan.netcdf.NhVariable;
+
+
+// Checks unlimited dimensions: records appended a chunk at a time,
+// the final length and unlimited max dims in the file,
+// the dimension scale chunked by 1024 records, and a short
+// chunk of records that isn't the last.
+
+
+public class TestUnlimited extends TestCase {
+
+
+static final int NB = 9;
+
+
+
+public static void main( String[] args)
+throws Exception
+{
+  new TestUnlimited().testIt();
+  System.out.println("TestUnlimited: all done");
+}
+
+
+
+public void testIt()
+throws Exception
+{
+  new File( TestPrimitivePuts.TARGET_DIR).mkdirs();
+  checkRecords( 7, 3, 2);
+  checkRecords( 1500, 500, 128);
+  checkRecords( 2048, 1024, 1000);
+  checkShortMiddle();
+}
+
+
+
+/**
+ * Appends numRec records to two variables sharing an unlimited
+ * dimension, with chunk lens chunkA and chunkB in dimension 0.
+ */
+
+void checkRecords(
+  int numRec,
+  int chunkA,
+  int chunkB)
+throws Exception
+{
+  String fname = TestPrimitivePuts.TARGET_DIR + "/unlimited." + numRec
+    + ".nc";
+  NhFileWriter nhfile = new NhFileWriter(
+    fname, NhFileWriter.OPT_OVERWRITE);
+  NhGroup rootGroup = nhfile.getRootGroup();
+  NhDimension timeDim = rootGroup.addDimension(
+    "time", NhDimension.UNLIMITED);
+  assertTrue( timeDim.isUnlimited());
+  NhDimension[] dims = { timeDim, rootGroup.addDimension( "nb", NB)};
+  int[][] chunkLens = { { chunkA, NB}, { chunkB, 4}};
+  int[] nhTypes = { NhVariable.TP_INT, NhVariable.TP_DOUBLE};
+  int[] dtypes = { HdfGroup.DTYPE_FIXED32, HdfGroup.DTYPE_FLOAT64};
+  String[] names = { "va", "vb"};
+  NhVariable[] vars = new NhVariable[ names.length];
+  for (int ivar = 0; ivar < vars.length; ivar++) {
+    vars[ivar] = rootGroup.addVariable( names[ivar], nhTypes[ivar], dims,
+      chunkLens[ivar], null, ivar);
+  }
+  nhfile.endDefine();
+  assertEquals( fname, 0, timeDim.getLength());
+
+  // Append a chunk at a time, the last maybe short.
+  for (int ivar = 0; ivar < vars.length; ivar++) {
+    int[] chunks = chunkLens[ivar];
+    for (int ia = 0; ia < numRec; ia += chunks[0]) {
+      for (int ib = 0; ib < NB; ib += chunks[1]) {
+        int[] startIxs = { ia, ib};
+        int[] dataDims = {
+          Math.min( chunks[0], numRec - ia), Math.min( chunks[1], NB - ib)};
+        vars[ivar].writeData( startIxs, TestPrimitivePuts.genData(
+          dtypes[ivar], dataDims, startIxs, false));
+      }
+      assertTrue( fname, timeDim.getLength() >= ia);
+    }
+  }
+  assertEquals( fname, numRec, timeDim.getLength());
+  nhfile.close();
+  assertEquals( fname, numRec, timeDim.getLength());
+
+  int[] varDims = { numRec, NB};
+  for (int ivar = 0; ivar < vars.length; ivar++) {
+    HdfReadBack.VarInfo info = TestPrimitivePuts.checkAll(
+      fname, "/" + names[ivar], dtypes[ivar], varDims);
+    assertEquals( fname, HdfReadBack.LY_CHUNKED, info.layoutClass);
+    assertEquals( fname, -1, info.maxDims[0]);
+    assertEquals( fname, NB, info.maxDims[1]);
+    assertEquals( fname, chunkLens[ivar][0], info.chunkDims[0]);
+  }
+
+  // The dimension scale has no coordinate variable,
+  // so it's written at close in chunks of 1024 records.
+  HdfReadBack rdr = new HdfReadBack( fname);
+  HdfReadBack.VarInfo info = rdr.getVar( "/time");
+  assertEquals( fname, 1, info.dims.length);
+  assertEquals( fname, numRec, info.dims[0]);
+  assertEquals( fname, -1, info.maxDims[0]);
+  assertEquals( fname, 1024, info.chunkDims[0]);
+  assertEquals( fname, (numRec + 1023) / 1024,
+    rdr.walkBtree( info).chunks.size());
+  assertEquals( fname, numRec, rdr.readData( info).capacity() / 4);
+}
+
+
+
+/**
+ * Only the last chunk of records may be short.
+ */
+
+void checkShortMiddle()
+throws Exception
+{
+  String fname = TestPrimitivePuts.TARGET_DIR + "/unlimited.short.h5";
+  HdfFileWriter hfile = new HdfFileWriter(
+    fname, HdfFileWriter.OPT_ALLOW_OVERWRITE);
+  int[] chunkDims = { 3, NB};
+  HdfGroup var = hfile.getRootGroup().addVariable( "var",
+    HdfGroup.DTYPE_FIXED32, 0, new int[] { HdfGroup.DIM_UNLIMITED, NB},
+    chunkDims, null, 0);
+  hfile.endDefine();
+  int[] shortDims = { 2, NB};
+  var.writeData( new int[] { 0, 0}, TestPrimitivePuts.genData(
+    HdfGroup.DTYPE_FIXED32, shortDims, new int[] { 0, 0}, true), true);
+  var.writeData( new int[] { 3, 0}, TestPrimitivePuts.genData(
+    HdfGroup.DTYPE_FIXED32, chunkDims, new int[] { 3, 0}, false), false);
+  assertEquals( 6, var.getRecordLen());
+  try {
+    hfile.close();
+    fail("close accepted a short chunk of records before the last");
+  }
+  catch( HdfException exc) {
+    assertTrue( exc.toString(),
+      exc.getMessage().indexOf( "may be short") >= 0);
+  }
+}
+
+
+} // end class
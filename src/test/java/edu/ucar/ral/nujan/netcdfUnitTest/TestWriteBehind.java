@@ -0,0 +1,167 @@
+// The MIT License
+// 
+// Copyright (c) 2010 University Corporation for Atmospheric Research
+// 
+// Permission is hereby granted, free of charge, to any person
+// obtaining a copy of this software and associated documentation
+// files (the "Software"), to deal in the Software without
+// restriction, including without limitation the rights to use,
+// copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following
+// conditions:
+// 
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+// 
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+// OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT.  IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+// HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+// WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+// FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+
+
+package edu.ucar.ral.nujan.netcdfUnitTest;
+
+import java.io.File;
+import junit.framework.TestCase;
+
+import edu.ucar.ral.nujan.hdf.HdfException;
+import edu.ucar.ral.nujan.hdf.HdfFileWriter;
+import edu.ucar.ral.nujan.hdf.HdfGroup;
+import edu.ucar.ral.nujan.hdfTest.HdfReadBack;
+
+
+// Checks the write-behind pipeline: deflated and uncompressed
+// variables read back, the memory budget bounds the bytes in
+// flight, and getWriteBehindStatus counts every chunk.
+
+
+public class TestWriteBehind extends TestCase {
+
+
+static final int[] VAR_DIMS = { 45, 50};
+static final int[] CHUNK_DIMS = { 8, 10};
+
+
+
+public static void main( String[] args)
+throws Exception
+{
+  new TestWriteBehind().testIt();
+  System.out.println("TestWriteBehind: all done");
+}
+
+
+
+public void testIt()
+throws Exception
+{
+  new File( TestPrimitivePuts.TARGET_DIR).mkdirs();
+  // One chunk of the FLOAT64 variable is 8*10*8 = 640 bytes,
+  // so a 1000 byte budget holds only one chunk at a time.
+  long[] maxBytes = { 1000, 1 << 20};
+  int[] numThreads = { 1, 3};
+  for (long maxByte : maxBytes) {
+    for (int numThread : numThreads) {
+      checkOne( numThread, maxByte);
+    }
+  }
+  checkErrors();
+}
+
+
+
+void checkOne(
+  int numThread,
+  long maxByte)
+throws Exception
+{
+  String fname = TestPrimitivePuts.TARGET_DIR + "/writeBehind."
+    + numThread + "." + maxByte + ".h5";
+  HdfFileWriter hfile = new HdfFileWriter(
+    fname, HdfFileWriter.OPT_ALLOW_OVERWRITE);
+  hfile.setWriteBehind( numThread, maxByte);
+  HdfGroup varComp = hfile.getRootGroup().addVariable( "comp",
+    HdfGroup.DTYPE_FIXED32, 0, VAR_DIMS, CHUNK_DIMS, null, 4);
+  HdfGroup varRaw = hfile.getRootGroup().addVariable( "raw",
+    HdfGroup.DTYPE_FLOAT64, 0, VAR_DIMS, CHUNK_DIMS, null, 0);
+  assertNull( fname, hfile.getWriteBehindStatus());
+  hfile.endDefine();
+
+  TestPrimitivePuts.writeAll(
+    varComp, HdfGroup.DTYPE_FIXED32, VAR_DIMS, CHUNK_DIMS, false);
+  TestPrimitivePuts.writeAll(
+    varRaw, HdfGroup.DTYPE_FLOAT64, VAR_DIMS, CHUNK_DIMS, true);
+  hfile.close();
+
+  String status = hfile.getWriteBehindStatus();
+  assertNotNull( fname, status);
+  int numChunkPerVar = 6 * 5;
+  assertEquals( fname + ": " + status,
+    2 * numChunkPerVar, getStatusValue( status, "numChunk"));
+  assertEquals( fname + ": " + status,
+    0, getStatusValue( status, "numJobInFlight"));
+  long rawBytes = (long) numChunkPerVar * 8 * 10 * (4 + 8);
+  assertEquals( fname + ": " + status,
+    rawBytes, getStatusValue( status, "numRawByte"));
+  // A chunk is always let in when the pipeline is empty,
+  // so the bound is the budget or one chunk, whichever is more.
+  assertTrue( fname + ": " + status,
+    getStatusValue( status, "maxByteInFlight") <= Math.max( maxByte, 640));
+
+  HdfReadBack.VarInfo info = TestPrimitivePuts.checkAll(
+    fname, "/comp", HdfGroup.DTYPE_FIXED32, VAR_DIMS);
+  assertEquals( fname, HdfReadBack.FILT_DEFLATE, info.filterIds[0]);
+  TestPrimitivePuts.checkAll(
+    fname, "/raw", HdfGroup.DTYPE_FLOAT64, VAR_DIMS);
+}
+
+
+
+void checkErrors()
+throws Exception
+{
+  String fname = TestPrimitivePuts.TARGET_DIR + "/writeBehind.err.h5";
+  HdfFileWriter hfile = new HdfFileWriter(
+    fname, HdfFileWriter.OPT_ALLOW_OVERWRITE);
+  try {
+    hfile.setWriteBehind( 0, 1000);
+    fail("accepted numCompressThread 0");
+  }
+  catch( HdfException exc) {}
+  hfile.setWriteBehind( 2, 1000);
+  hfile.setCompressThreads( 2);
+  hfile.getRootGroup().addVariable( "var",
+    HdfGroup.DTYPE_FIXED32, 0, VAR_DIMS, CHUNK_DIMS, null, 4);
+  try {
+    hfile.endDefine();
+    fail("accepted both setCompressThreads and setWriteBehind");
+  }
+  catch( HdfException exc) {}
+}
+
+
+
+/**
+ * Returns the value following "name: " in a status line.
+ */
+
+static long getStatusValue(
+  String status,
+  String name)
+{
+  String key = "  " + name + ": ";
+  int ix = ("  " + status).indexOf( key);
+  if (ix < 0) fail("no " + name + " in status: " + status);
+  String rest = ("  " + status).substring( ix + key.length());
+  int iend = rest.indexOf(' ');
+  if (iend >= 0) rest = rest.substring( 0, iend);
+  return Long.parseLong( rest);
+}
+
+
+} // end class